@@ -0,0 +1,194 @@
+package net.sourceforge.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.auth.Credentials;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures BasicFileAuthenticationProvider.getAuthorizedConfigurations()
+ * against user mappings of different sizes, half of whose users have
+ * MD5-hashed passwords, both read into memory and read through a binary
+ * index. The "authorized" and "wrongPassword" benchmarks measure each login
+ * once the mapping has been read, cycling through users spread across the
+ * whole mapping, more users than the index keeps decoded.
+ *
+ * @author Michael Jumper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BasicFileAuthenticationProviderBenchmark {
+
+    /**
+     * The number of distinct users logged in as.
+     */
+    private static final int SAMPLES = 1024;
+
+    /**
+     * The number of users within the user mapping.
+     */
+    @Param({"10", "10000", "100000"})
+    public int users;
+
+    /**
+     * Whether the user mapping is read through a binary index.
+     */
+    @Param({"false", "true"})
+    public boolean index;
+
+    /**
+     * The user mapping file.
+     */
+    private File mapping;
+
+    /**
+     * The temporary GUACAMOLE_HOME pointing to the user mapping.
+     */
+    private File home;
+
+    /**
+     * The provider whose mapping has already been read.
+     */
+    private BasicFileAuthenticationProvider provider;
+
+    /**
+     * Credentials having the correct password, spread across all users.
+     */
+    private Credentials[] authorized;
+
+    /**
+     * Credentials having the wrong password, spread across all users.
+     */
+    private Credentials[] unauthorized;
+
+    /**
+     * The index of the next credentials to use.
+     */
+    private int next = 0;
+
+    /**
+     * Creates credentials for the user having the given index.
+     *
+     * @param index The index of the user.
+     * @param password The password to provide.
+     * @return New credentials for the user.
+     */
+    private static Credentials getCredentials(int index, String password) {
+        Credentials credentials = new Credentials();
+        credentials.setUsername(BenchmarkSupport.getUsername(index));
+        credentials.setPassword(password);
+        return credentials;
+    }
+
+    /**
+     * Writes the user mapping and guacamole.properties, and reads the
+     * mapping once.
+     *
+     * @throws Exception If the files cannot be written or read.
+     */
+    @Setup
+    public void createMapping() throws Exception {
+
+        mapping = File.createTempFile("user-mapping", ".xml");
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(mapping), "UTF-8");
+        try {
+            BenchmarkSupport.writeUserMapping(out, users);
+        }
+        finally {
+            out.close();
+        }
+
+        home = BenchmarkSupport.createGuacamoleHome(
+                "basic-user-mapping: " + mapping.getAbsolutePath(),
+                "basic-user-mapping-index: " + index,
+                "basic-user-mapping-cache-size: " + SAMPLES / 4);
+
+        authorized = new Credentials[SAMPLES];
+        unauthorized = new Credentials[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int index = (int) ((long) i * users / SAMPLES);
+            authorized[i] = getCredentials(index, BenchmarkSupport.getPassword(index));
+            unauthorized[i] = getCredentials(index, "wrong");
+        }
+
+        provider = new BasicFileAuthenticationProvider();
+        if (provider.getAuthorizedConfigurations(authorized[0]) == null)
+            throw new IllegalStateException("Generated user mapping rejected valid login.");
+
+    }
+
+    /**
+     * Deletes the user mapping, its index and guacamole.properties.
+     */
+    @TearDown
+    public void deleteMapping() {
+        new File(mapping.getPath() + ".idx").delete();
+        mapping.delete();
+        BenchmarkSupport.delete(home);
+    }
+
+    /**
+     * Logs in with the correct password.
+     *
+     * @return The configurations authorized.
+     * @throws GuacamoleException If the mapping cannot be read.
+     */
+    @Benchmark
+    public Map<String, GuacamoleConfiguration> authorized() throws GuacamoleException {
+        next = (next + 1) % SAMPLES;
+        return provider.getAuthorizedConfigurations(authorized[next]);
+    }
+
+    /**
+     * Logs in with the wrong password.
+     *
+     * @return The configurations authorized, which are always null.
+     * @throws GuacamoleException If the mapping cannot be read.
+     */
+    @Benchmark
+    public Map<String, GuacamoleConfiguration> wrongPassword() throws GuacamoleException {
+        next = (next + 1) % SAMPLES;
+        return provider.getAuthorizedConfigurations(unauthorized[next]);
+    }
+
+}
@@ -0,0 +1,333 @@
+package net.sourceforge.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionContext;
+
+/**
+ * Fixtures shared by the benchmarks: generated user mappings, a temporary
+ * GUACAMOLE_HOME, and minimal in-memory servlet objects.
+ *
+ * GuacamoleProperties reads guacamole.properties only once per JVM, from
+ * the directory given by the "guacamole.home" system property. Benchmarks
+ * which depend on properties must therefore create their home before
+ * anything reads a property, and rely on JMH running each combination of
+ * parameters within its own fork.
+ *
+ * @author Michael Jumper
+ */
+public class BenchmarkSupport {
+
+    /**
+     * Returns the username of the user having the given index within a
+     * generated user mapping.
+     *
+     * @param index The index of the user.
+     * @return The username of the user.
+     */
+    public static String getUsername(int index) {
+        return "user-" + index;
+    }
+
+    /**
+     * Returns the plain-text password of the user having the given index
+     * within a generated user mapping.
+     *
+     * @param index The index of the user.
+     * @return The password of the user.
+     */
+    public static String getPassword(int index) {
+        return "password-" + index;
+    }
+
+    /**
+     * Returns the hex MD5 hash of the given password, as stored within user
+     * mappings having encoding="md5".
+     *
+     * @param password The password to hash.
+     * @return The hex MD5 hash of the password.
+     */
+    public static String md5(String password) {
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            String hash = new BigInteger(1, digest.digest(password.getBytes("UTF-8"))).toString(16);
+            while (hash.length() < 32)
+                hash = "0" + hash;
+            return hash;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException("Unexpected lack of MD5 support.", e);
+        }
+        catch (IOException e) {
+            throw new UnsupportedOperationException("Unexpected lack of UTF-8 support.", e);
+        }
+
+    }
+
+    /**
+     * Writes a user mapping authorizing the given number of users, each
+     * with a single connection. Every other user has an MD5-hashed
+     * password.
+     *
+     * @param out The writer to write the user mapping to.
+     * @param users The number of users to authorize.
+     * @throws IOException If an error occurs while writing.
+     */
+    public static void writeUserMapping(Writer out, int users)
+            throws IOException {
+
+        out.write("<user-mapping>\n");
+        for (int i = 0; i < users; i++) {
+
+            if (i % 2 == 0)
+                out.write("    <authorize username=\"" + getUsername(i)
+                        + "\" password=\"" + getPassword(i) + "\">\n");
+            else
+                out.write("    <authorize username=\"" + getUsername(i)
+                        + "\" password=\"" + md5(getPassword(i))
+                        + "\" encoding=\"md5\">\n");
+
+            out.write("        <connection name=\"connection-" + i + "\">\n");
+            out.write("            <protocol>vnc</protocol>\n");
+            out.write("            <param name=\"hostname\">host-" + i + "</param>\n");
+            out.write("            <param name=\"port\">5900</param>\n");
+            out.write("        </connection>\n");
+            out.write("    </authorize>\n");
+
+        }
+        out.write("</user-mapping>\n");
+
+    }
+
+    /**
+     * Creates a temporary directory containing a guacamole.properties with
+     * the given lines, and sets the "guacamole.home" system property to that
+     * directory. This must be done before anything reads a property.
+     *
+     * @param lines The lines of guacamole.properties.
+     * @return The new directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    public static File createGuacamoleHome(String... lines) throws IOException {
+
+        File home = File.createTempFile("guacamole-benchmark", "");
+        if (!home.delete() || !home.mkdir())
+            throw new IOException("Unable to create " + home + ".");
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(home, "guacamole.properties")), "UTF-8"));
+        try {
+            for (String line : lines)
+                out.println(line);
+        }
+        finally {
+            out.close();
+        }
+
+        System.setProperty("guacamole.home", home.getAbsolutePath());
+        return home;
+
+    }
+
+    /**
+     * Deletes the given directory and all files within it.
+     *
+     * @param directory The directory to delete.
+     */
+    public static void delete(File directory) {
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+
+        directory.delete();
+
+    }
+
+    /**
+     * Returns the default value of the given type, as returned by a method
+     * which does nothing.
+     *
+     * @param type The return type of the method.
+     * @return null, false or zero, as appropriate for the type.
+     */
+    private static Object getDefaultValue(Class<?> type) {
+
+        if (type == Boolean.TYPE)   return false;
+        if (type == Integer.TYPE)   return 0;
+        if (type == Long.TYPE)      return 0L;
+        if (type == Short.TYPE)     return (short) 0;
+        if (type == Byte.TYPE)      return (byte) 0;
+        if (type == Character.TYPE) return (char) 0;
+        if (type == Float.TYPE)     return 0f;
+        if (type == Double.TYPE)    return 0d;
+
+        return null;
+
+    }
+
+    /**
+     * Creates an HttpServletResponse whose writer is the given writer, and
+     * whose other methods do nothing.
+     *
+     * @param writer The writer to return from getWriter().
+     * @return A new HttpServletResponse.
+     */
+    public static HttpServletResponse newResponse(final PrintWriter writer) {
+
+        return (HttpServletResponse) Proxy.newProxyInstance(
+            BenchmarkSupport.class.getClassLoader(),
+            new Class<?>[] { HttpServletResponse.class },
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+
+                    if (method.getName().equals("getWriter"))
+                        return writer;
+
+                    return getDefaultValue(method.getReturnType());
+
+                }
+
+            }
+        );
+
+    }
+
+    /**
+     * HttpSession which only stores attributes.
+     */
+    @SuppressWarnings("deprecation")
+    public static class Session implements HttpSession {
+
+        /**
+         * All attributes of this session.
+         */
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        @Override
+        public long getCreationTime() {
+            return 0;
+        }
+
+        @Override
+        public String getId() {
+            return "benchmark";
+        }
+
+        @Override
+        public long getLastAccessedTime() {
+            return 0;
+        }
+
+        @Override
+        public ServletContext getServletContext() {
+            return null;
+        }
+
+        @Override
+        public void setMaxInactiveInterval(int interval) {
+        }
+
+        @Override
+        public int getMaxInactiveInterval() {
+            return 0;
+        }
+
+        @Override
+        public HttpSessionContext getSessionContext() {
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public Object getValue(String name) {
+            return getAttribute(name);
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            return Collections.enumeration(attributes.keySet());
+        }
+
+        @Override
+        public String[] getValueNames() {
+            return attributes.keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void putValue(String name, Object value) {
+            setAttribute(name, value);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public void removeValue(String name) {
+            removeAttribute(name);
+        }
+
+        @Override
+        public void invalidate() {
+            attributes.clear();
+        }
+
+        @Override
+        public boolean isNew() {
+            return false;
+        }
+
+    }
+
+}
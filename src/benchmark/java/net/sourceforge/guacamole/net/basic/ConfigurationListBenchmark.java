@@ -0,0 +1,128 @@
+package net.sourceforge.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures rendering of the XML configuration list by ConfigurationList for
+ * users authorized for different numbers of configurations. The XML is
+ * written to a writer which only counts characters.
+ *
+ * @author Michael Jumper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConfigurationListBenchmark {
+
+    /**
+     * The number of configurations the user is authorized for.
+     */
+    @Param({"1", "10", "100"})
+    public int configs;
+
+    /**
+     * The servlet rendering the list.
+     */
+    private ConfigurationList servlet;
+
+    /**
+     * The configurations listed.
+     */
+    private Map<String, GuacamoleConfiguration> configurations;
+
+    /**
+     * The number of characters written so far.
+     */
+    private long written = 0;
+
+    /**
+     * The response the list is written to.
+     */
+    private HttpServletResponse response;
+
+    /**
+     * Creates the servlet, configurations and response.
+     */
+    @Setup
+    public void createServlet() {
+
+        servlet = new ConfigurationList();
+
+        configurations = new HashMap<String, GuacamoleConfiguration>();
+        for (int i = 0; i < configs; i++) {
+            GuacamoleConfiguration config = new GuacamoleConfiguration();
+            config.setProtocol(i % 2 == 0 ? "vnc" : "rdp");
+            config.setParameter("hostname", "host-" + i);
+            configurations.put("connection-" + i, config);
+        }
+
+        response = BenchmarkSupport.newResponse(new PrintWriter(new Writer() {
+
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                written += length;
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+
+        }));
+
+    }
+
+    /**
+     * Renders the configuration list.
+     *
+     * @return The total number of characters written so far.
+     * @throws Exception If the list cannot be rendered.
+     */
+    @Benchmark
+    public long render() throws Exception {
+        servlet.authenticatedService(configurations, null, response);
+        return written;
+    }
+
+}
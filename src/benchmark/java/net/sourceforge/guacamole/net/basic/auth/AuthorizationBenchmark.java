@@ -0,0 +1,114 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.guacamole.net.basic.BenchmarkSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures Authorization.validate() for plain-text and MD5-hashed
+ * passwords, both for the correct password and for a wrong one.
+ *
+ * @author Michael Jumper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AuthorizationBenchmark {
+
+    /**
+     * The encoding of the stored password.
+     */
+    @Param({"plain", "md5"})
+    public String encoding;
+
+    /**
+     * The authorization being validated against.
+     */
+    private Authorization authorization;
+
+    /**
+     * The username of the authorization.
+     */
+    private String username;
+
+    /**
+     * The correct plain-text password.
+     */
+    private String password;
+
+    /**
+     * Creates the authorization, storing its password with the encoding
+     * being measured.
+     */
+    @Setup
+    public void createAuthorization() {
+
+        username = BenchmarkSupport.getUsername(0);
+        password = BenchmarkSupport.getPassword(0);
+
+        authorization = new Authorization();
+        authorization.setUsername(username);
+
+        if ("md5".equals(encoding)) {
+            authorization.setEncoding(Authorization.Encoding.MD5);
+            authorization.setPassword(BenchmarkSupport.md5(password));
+        }
+        else {
+            authorization.setEncoding(Authorization.Encoding.PLAIN_TEXT);
+            authorization.setPassword(password);
+        }
+
+    }
+
+    /**
+     * Validates the correct password.
+     *
+     * @return Whether validation succeeded, which is always true.
+     */
+    @Benchmark
+    public boolean correctPassword() {
+        return authorization.validate(username, password);
+    }
+
+    /**
+     * Validates a wrong password.
+     *
+     * @return Whether validation succeeded, which is always false.
+     */
+    @Benchmark
+    public boolean wrongPassword() {
+        return authorization.validate(username, "wrong");
+    }
+
+}
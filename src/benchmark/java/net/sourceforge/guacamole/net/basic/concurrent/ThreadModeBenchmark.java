@@ -0,0 +1,155 @@
+package net.sourceforge.guacamole.net.basic.concurrent;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares platform and virtual threads for the blocking work of many mostly
+ * idle tunnels. Each simulated tunnel repeatedly waits briefly for data, as
+ * a tunnel read loop waits on guacd, and then does a small amount of work.
+ *
+ * The "perTunnel" benchmark gives every tunnel its own thread, as blocking
+ * tunnel reads require. The "workerPool" benchmark runs the same tunnels
+ * through GuacamoleThreads.newWorkerPool(), as the asynchronous tunnel does.
+ * Virtual threads are only compared when run on Java 21 or later; on older
+ * runtimes both modes use platform threads.
+ *
+ * @author Michael Jumper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ThreadModeBenchmark {
+
+    /**
+     * The number of times each tunnel waits for data.
+     */
+    private static final int READS_PER_TUNNEL = 5;
+
+    /**
+     * The number of nanoseconds each tunnel waits for data.
+     */
+    private static final long READ_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The number of platform threads used by the worker pool.
+     */
+    private static final int POOL_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The kind of thread being measured.
+     */
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    /**
+     * The number of concurrent tunnels.
+     */
+    @Param({"100", "1000", "10000"})
+    public int tunnels;
+
+    /**
+     * Factory creating a thread per tunnel.
+     */
+    private ThreadFactory factory;
+
+    /**
+     * Pool running all tunnels.
+     */
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        GuacamoleThreads.Mode threadMode = GuacamoleThreads.Mode.fromName(mode);
+        factory = GuacamoleThreads.newThreadFactory(threadMode, "benchmark");
+        pool = GuacamoleThreads.newWorkerPool(threadMode, "benchmark-pool", POOL_THREADS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Returns a task simulating a single tunnel, counting down the given
+     * latch once complete.
+     *
+     * @param done The latch to count down once the tunnel is complete.
+     * @return A task simulating a single tunnel.
+     */
+    private Runnable tunnel(final CountDownLatch done) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+
+                for (int i = 0; i < READS_PER_TUNNEL; i++)
+                    LockSupport.parkNanos(READ_WAIT);
+
+                done.countDown();
+
+            }
+
+        };
+    }
+
+    @Benchmark
+    public void perTunnel() throws InterruptedException {
+
+        CountDownLatch done = new CountDownLatch(tunnels);
+        for (int i = 0; i < tunnels; i++)
+            factory.newThread(tunnel(done)).start();
+
+        done.await();
+
+    }
+
+    @Benchmark
+    public void workerPool() throws InterruptedException {
+
+        CountDownLatch done = new CountDownLatch(tunnels);
+        for (int i = 0; i < tunnels; i++)
+            pool.execute(tunnel(done));
+
+        done.await();
+
+    }
+
+}
@@ -0,0 +1,204 @@
+package net.sourceforge.guacamole.net.basic.event;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.auth.Credentials;
+import net.sourceforge.guacamole.net.basic.BenchmarkSupport;
+import net.sourceforge.guacamole.net.event.AuthenticationSuccessEvent;
+import net.sourceforge.guacamole.net.event.TunnelConnectEvent;
+import net.sourceforge.guacamole.net.event.listener.AuthenticationSuccessListener;
+import net.sourceforge.guacamole.net.event.listener.TunnelConnectListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures SessionListenerCollection with different numbers of listeners
+ * listed in "event-listeners", alternating between authentication success
+ * and tunnel connect listeners. The "construct" benchmark measures the
+ * first construction within a new session, which loads and instantiates
+ * every listener. The "constructCached" benchmark measures later
+ * constructions within the same session. The "dispatch" benchmark notifies
+ * the listeners of a successful authentication, as AuthenticatingHttpServlet
+ * does.
+ *
+ * @author Michael Jumper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SessionListenerCollectionBenchmark {
+
+    /**
+     * The number of listeners listed in "event-listeners".
+     */
+    @Param({"0", "1", "8"})
+    public int listeners;
+
+    /**
+     * The temporary GUACAMOLE_HOME listing the listeners.
+     */
+    private File home;
+
+    /**
+     * A session already containing its listeners.
+     */
+    private BenchmarkSupport.Session session;
+
+    /**
+     * The credentials of the authentication success event.
+     */
+    private Credentials credentials;
+
+    /**
+     * Listener which allows every authentication.
+     */
+    public static class SuccessListener implements AuthenticationSuccessListener {
+
+        @Override
+        public boolean authenticationSucceeded(AuthenticationSuccessEvent e)
+                throws GuacamoleException {
+            return true;
+        }
+
+    }
+
+    /**
+     * Listener which allows every tunnel.
+     */
+    public static class ConnectListener implements TunnelConnectListener {
+
+        @Override
+        public boolean tunnelConnected(TunnelConnectEvent e)
+                throws GuacamoleException {
+            return true;
+        }
+
+    }
+
+    /**
+     * Writes guacamole.properties listing the listeners, and creates a
+     * session containing them.
+     *
+     * @throws Exception If guacamole.properties cannot be written, or the
+     *                   listeners cannot be loaded.
+     */
+    @Setup
+    public void createListeners() throws Exception {
+
+        if (listeners > 0) {
+
+            StringBuilder classes = new StringBuilder();
+            for (int i = 0; i < listeners; i++) {
+
+                if (i > 0)
+                    classes.append(", ");
+
+                if (i % 2 == 0)
+                    classes.append(SuccessListener.class.getName());
+                else
+                    classes.append(ConnectListener.class.getName());
+
+            }
+
+            home = BenchmarkSupport.createGuacamoleHome(
+                    "event-listeners: " + classes);
+
+        }
+        else
+            home = BenchmarkSupport.createGuacamoleHome();
+
+        session = new BenchmarkSupport.Session();
+        if (new SessionListenerCollection(session).size() != listeners)
+            throw new IllegalStateException("Listeners not loaded from guacamole.properties.");
+
+        credentials = new Credentials();
+        credentials.setSession(session);
+
+    }
+
+    /**
+     * Deletes guacamole.properties.
+     */
+    @TearDown
+    public void deleteHome() {
+        BenchmarkSupport.delete(home);
+    }
+
+    /**
+     * Constructs the listeners of a new session.
+     *
+     * @return The new listeners.
+     * @throws GuacamoleException If the listeners cannot be loaded.
+     */
+    @Benchmark
+    public SessionListenerCollection construct() throws GuacamoleException {
+        return new SessionListenerCollection(new BenchmarkSupport.Session());
+    }
+
+    /**
+     * Constructs the listeners of a session which already contains them.
+     *
+     * @return The listeners.
+     * @throws GuacamoleException If the listeners cannot be loaded.
+     */
+    @Benchmark
+    public SessionListenerCollection constructCached() throws GuacamoleException {
+        return new SessionListenerCollection(session);
+    }
+
+    /**
+     * Notifies the listeners of a session of a successful authentication.
+     *
+     * @return Whether all listeners allowed the authentication.
+     * @throws GuacamoleException If the listeners cannot be loaded, or a
+     *                            listener fails.
+     */
+    @Benchmark
+    public boolean dispatch() throws GuacamoleException {
+
+        AuthenticationSuccessEvent event = new AuthenticationSuccessEvent(credentials);
+
+        for (Object listener : new SessionListenerCollection(session)) {
+            if (listener instanceof AuthenticationSuccessListener) {
+                if (!((AuthenticationSuccessListener) listener).authenticationSucceeded(event))
+                    return false;
+            }
+        }
+
+        return true;
+
+    }
+
+}
@@ -0,0 +1,397 @@
+package net.sourceforge.guacamole.net.basic.load;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process stand-in for guacd, listening on the loopback interface. Each
+ * connection is given the handshake expected of guacd, listing a fixed set
+ * of arguments for every protocol, and then receives the output of an
+ * InstructionStream. Anything the client sends after the handshake is read
+ * and discarded, counting the "sync" replies received.
+ *
+ * @author Michael Jumper
+ */
+public class FakeGuacd {
+
+    private Logger logger = LoggerFactory.getLogger(FakeGuacd.class);
+
+    /**
+     * The arguments listed for every protocol.
+     */
+    private final List<String> arguments;
+
+    /**
+     * The stream written to each connection after the handshake.
+     */
+    private final InstructionStream stream;
+
+    /**
+     * The socket accepting connections.
+     */
+    private final ServerSocket server;
+
+    /**
+     * All currently-open connections.
+     */
+    private final Set<Socket> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    /**
+     * The number of connections which have completed the handshake.
+     */
+    private final AtomicInteger handshakes = new AtomicInteger();
+
+    /**
+     * The number of bytes written by all connections after the handshake.
+     */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * The number of "sync" instructions received from all connections.
+     */
+    private final AtomicLong syncsReceived = new AtomicLong();
+
+    /**
+     * Whether this FakeGuacd has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new FakeGuacd listening on the given port of the loopback
+     * interface. Connections are not accepted until start() is called.
+     *
+     * @param port The port to listen on, or 0 to listen on any free port.
+     * @param stream The stream to write to each connection after the
+     *               handshake.
+     * @param arguments The arguments to list for every protocol.
+     * @throws IOException If the port cannot be bound.
+     */
+    public FakeGuacd(int port, InstructionStream stream, String... arguments)
+            throws IOException {
+        this.stream = stream;
+        this.arguments = Arrays.asList(arguments);
+        this.server = new ServerSocket(port, 1024, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * Encodes the given elements as a single Guacamole instruction.
+     *
+     * @param elements The opcode and arguments of the instruction.
+     * @return The encoded instruction.
+     */
+    public static String encode(String... elements) {
+
+        StringBuilder instruction = new StringBuilder();
+        for (int i = 0; i < elements.length; i++) {
+
+            if (i > 0)
+                instruction.append(',');
+
+            String element = elements[i];
+            instruction.append(element.codePointCount(0, element.length()));
+            instruction.append('.');
+            instruction.append(element);
+
+        }
+
+        return instruction.append(';').toString();
+
+    }
+
+    /**
+     * Returns the UTF-8 encoding of the given string.
+     *
+     * @param value The string to encode.
+     * @return The UTF-8 bytes of the string.
+     */
+    public static byte[] toUTF8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported.", e);
+        }
+    }
+
+    /**
+     * Returns the port this FakeGuacd is listening on.
+     *
+     * @return The port this FakeGuacd is listening on.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connections currently open, including those
+     * which have not completed the handshake.
+     *
+     * @return The number of open connections.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of connections which have completed the handshake.
+     *
+     * @return The number of completed handshakes.
+     */
+    public int getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * Returns the number of bytes written by all connections after the
+     * handshake.
+     *
+     * @return The number of bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Returns the number of "sync" instructions received from all
+     * connections.
+     *
+     * @return The number of sync replies received.
+     */
+    public long getSyncsReceived() {
+        return syncsReceived.get();
+    }
+
+    /**
+     * Starts accepting connections, each serviced by its own daemon thread.
+     */
+    public void start() {
+
+        Thread acceptor = new Thread("fake-guacd") {
+
+            @Override
+            public void run() {
+
+                while (!closed) {
+
+                    try {
+                        final Socket socket = server.accept();
+                        socket.setTcpNoDelay(true);
+                        connections.add(socket);
+
+                        Thread connection = new Thread("fake-guacd-connection") {
+                            @Override
+                            public void run() {
+                                service(socket);
+                            }
+                        };
+
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                    catch (IOException e) {
+                        if (!closed)
+                            logger.warn("Fake guacd unable to accept connection.", e);
+                    }
+
+                }
+
+            }
+
+        };
+
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        logger.info("Fake guacd listening on port {}.", getPort());
+
+    }
+
+    /**
+     * Performs the handshake with the given connection, and then writes the
+     * stream, closing the connection once the stream ends.
+     *
+     * @param socket The connection to service.
+     */
+    private void service(final Socket socket) {
+
+        try {
+
+            final InstructionReader reader = new InstructionReader(
+                    new BufferedInputStream(socket.getInputStream()));
+
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+
+            // Protocol selection, answered with arguments
+            String opcode = reader.next();
+            if (!"select".equals(opcode))
+                throw new IOException("Expected \"select\", received \"" + opcode + "\".");
+
+            String[] args = new String[arguments.size() + 1];
+            args[0] = "args";
+            for (int i = 0; i < arguments.size(); i++)
+                args[i + 1] = arguments.get(i);
+
+            output.write(toUTF8(encode(args)));
+            output.flush();
+
+            // Client information, ending with connect
+            do {
+                opcode = reader.next();
+                if (opcode == null)
+                    throw new IOException("Connection closed during handshake.");
+            } while (!"connect".equals(opcode));
+
+            if (reader.getArguments().size() != arguments.size())
+                logger.warn("Fake guacd received {} connect arguments, expected {}.",
+                        reader.getArguments().size(), arguments.size());
+
+            handshakes.incrementAndGet();
+
+            // Discard client input, counting sync replies
+            Thread input = new Thread("fake-guacd-input") {
+                @Override
+                public void run() {
+                    try {
+                        String received;
+                        while ((received = reader.next()) != null) {
+                            if ("sync".equals(received))
+                                syncsReceived.incrementAndGet();
+                        }
+                    }
+                    catch (IOException e) {
+                        // Connection closed
+                    }
+                }
+            };
+
+            input.setDaemon(true);
+            input.start();
+
+            stream.write(new CountingOutputStream(output));
+
+        }
+
+        // Connections are routinely closed by the client
+        catch (SocketException e) {
+            logger.debug("Fake guacd connection closed.", e);
+        }
+        catch (IOException e) {
+            if (!closed)
+                logger.warn("Fake guacd connection failed.", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            connections.remove(socket);
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                logger.debug("Unable to close fake guacd connection.", e);
+            }
+        }
+
+    }
+
+    /**
+     * Stops accepting connections, and closes all open connections.
+     */
+    public void close() {
+
+        closed = true;
+
+        try {
+            server.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close fake guacd.", e);
+        }
+
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                logger.debug("Unable to close fake guacd connection.", e);
+            }
+        }
+
+    }
+
+    /**
+     * OutputStream which counts the bytes written to the connection after
+     * the handshake.
+     */
+    private class CountingOutputStream extends OutputStream {
+
+        /**
+         * The stream being written to.
+         */
+        private final OutputStream output;
+
+        /**
+         * Creates a new CountingOutputStream which writes to the given
+         * stream.
+         *
+         * @param output The stream to write to.
+         */
+        public CountingOutputStream(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+            bytesSent.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            output.write(b, off, len);
+            bytesSent.addAndGet(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+    }
+
+}
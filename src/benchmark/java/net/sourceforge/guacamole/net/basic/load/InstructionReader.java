@@ -0,0 +1,222 @@
+package net.sourceforge.guacamole.net.basic.load;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads Guacamole instructions from a stream of UTF-8 bytes. The opcode of
+ * each instruction is always decoded, but its arguments are only decoded if
+ * the opcode is one of those requested, such that long streams of image
+ * data can be counted without decoding them.
+ *
+ * This class is not threadsafe.
+ *
+ * @author Michael Jumper
+ */
+public class InstructionReader {
+
+    /**
+     * The stream to read from.
+     */
+    private final InputStream input;
+
+    /**
+     * The opcodes whose arguments are decoded, or null if the arguments of
+     * all instructions are decoded.
+     */
+    private final Set<String> decoded;
+
+    /**
+     * Buffer receiving the bytes of the element being decoded.
+     */
+    private final ByteArrayOutputStream element = new ByteArrayOutputStream();
+
+    /**
+     * The arguments of the instruction most recently read.
+     */
+    private final List<String> arguments = new ArrayList<String>();
+
+    /**
+     * The number of bytes read so far.
+     */
+    private long bytesRead = 0;
+
+    /**
+     * Creates a new InstructionReader which reads from the given stream,
+     * decoding the arguments of all instructions.
+     *
+     * @param input The stream to read from, which should be buffered.
+     */
+    public InstructionReader(InputStream input) {
+        this(input, null);
+    }
+
+    /**
+     * Creates a new InstructionReader which reads from the given stream,
+     * decoding only the arguments of instructions having the given opcodes.
+     *
+     * @param input The stream to read from, which should be buffered.
+     * @param decoded The opcodes whose arguments should be decoded, or null
+     *                to decode the arguments of all instructions.
+     */
+    public InstructionReader(InputStream input, Set<String> decoded) {
+        this.input = input;
+        this.decoded = decoded;
+    }
+
+    /**
+     * Reads a single byte from the stream.
+     *
+     * @return The byte read.
+     * @throws IOException If the stream ends or cannot be read.
+     */
+    private int readByte() throws IOException {
+
+        int value = input.read();
+        if (value == -1)
+            throw new IOException("Stream ended within an instruction.");
+
+        bytesRead++;
+        return value;
+
+    }
+
+    /**
+     * Reads the next element, decoding it only if requested.
+     *
+     * @param first The first byte of the element's length, already read.
+     * @param decode Whether the element should be decoded.
+     * @return The decoded element, or null if the element was not decoded.
+     * @throws IOException If the stream ends or cannot be read, or if the
+     *                     element is malformed.
+     */
+    private String readElement(int first, boolean decode) throws IOException {
+
+        // Parse length, in Unicode codepoints
+        int length = 0;
+        int digit = first;
+        while (digit != '.') {
+
+            if (digit < '0' || digit > '9')
+                throw new IOException("Non-numeric character in element length.");
+
+            length = length * 10 + digit - '0';
+            digit = readByte();
+
+        }
+
+        element.reset();
+
+        // Read each codepoint, with all of its continuation bytes
+        for (int i = 0; i < length; i++) {
+
+            int lead = readByte();
+            if (decode)
+                element.write(lead);
+
+            int continuation;
+            if      (lead >= 0xF0) continuation = 3;
+            else if (lead >= 0xE0) continuation = 2;
+            else if (lead >= 0xC0) continuation = 1;
+            else                   continuation = 0;
+
+            for (int j = 0; j < continuation; j++) {
+                int value = readByte();
+                if (decode)
+                    element.write(value);
+            }
+
+        }
+
+        if (decode)
+            return element.toString("UTF-8");
+
+        return null;
+
+    }
+
+    /**
+     * Reads the next instruction.
+     *
+     * @return The opcode of the instruction read, or null if the stream
+     *         ended cleanly between instructions.
+     * @throws IOException If the stream ends within an instruction or
+     *                     cannot be read, or if the instruction is
+     *                     malformed.
+     */
+    public String next() throws IOException {
+
+        arguments.clear();
+
+        int first = input.read();
+        if (first == -1)
+            return null;
+
+        bytesRead++;
+
+        String opcode = readElement(first, true);
+        boolean decode = decoded == null || decoded.contains(opcode);
+
+        // Read arguments until terminator
+        int terminator = readByte();
+        while (terminator == ',') {
+
+            String argument = readElement(readByte(), decode);
+            if (decode)
+                arguments.add(argument);
+
+            terminator = readByte();
+
+        }
+
+        if (terminator != ';')
+            throw new IOException("Element not followed by ',' or ';'.");
+
+        return opcode;
+
+    }
+
+    /**
+     * Returns the arguments of the instruction most recently read. The
+     * arguments are empty if they were not decoded, and are only valid
+     * until the next instruction is read.
+     *
+     * @return The arguments of the instruction most recently read.
+     */
+    public List<String> getArguments() {
+        return Collections.unmodifiableList(arguments);
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     *
+     * @return The number of bytes read.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+}
@@ -0,0 +1,45 @@
+package net.sourceforge.guacamole.net.basic.load;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The output of a fake guacd connection, written once the handshake has
+ * completed.
+ *
+ * @author Michael Jumper
+ */
+public interface InstructionStream {
+
+    /**
+     * Writes this stream to the given output, returning once the stream has
+     * ended. Each call writes the stream from its beginning, and calls may
+     * be made concurrently for different connections.
+     *
+     * @param output The output of the connection.
+     * @throws IOException If an error occurs while writing, such as the
+     *                     connection being closed.
+     * @throws InterruptedException If the thread is interrupted while
+     *                              waiting to write.
+     */
+    void write(OutputStream output) throws IOException, InterruptedException;
+
+}
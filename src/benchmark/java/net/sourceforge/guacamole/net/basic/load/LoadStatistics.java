@@ -0,0 +1,182 @@
+package net.sourceforge.guacamole.net.basic.load;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.guacamole.net.basic.metrics.LatencyHistogram;
+
+/**
+ * Statistics shared by all clients of a load test.
+ *
+ * @author Michael Jumper
+ */
+public class LoadStatistics {
+
+    /**
+     * Time from the start of each connect request until its tunnel UUID is
+     * received.
+     */
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    /**
+     * Time from the start of each connect request until the first "sync"
+     * instruction of its tunnel is received.
+     */
+    private final LatencyHistogram firstFrameLatency = new LatencyHistogram();
+
+    /**
+     * Time from each "sync" instruction being written by the fake guacd until
+     * it is received by the client.
+     */
+    private final LatencyHistogram frameLatency = new LatencyHistogram();
+
+    /**
+     * Time from the start of each read request until its response ends.
+     */
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+
+    /**
+     * The number of bytes of tunnel output received, before decompression.
+     */
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * The number of instructions received.
+     */
+    private final AtomicLong instructionsReceived = new AtomicLong();
+
+    /**
+     * The number of frames ("sync" instructions) received.
+     */
+    private final AtomicLong framesReceived = new AtomicLong();
+
+    /**
+     * The number of tunnels currently open.
+     */
+    private final AtomicInteger openTunnels = new AtomicInteger();
+
+    /**
+     * The number of connect requests refused by admission control.
+     */
+    private final AtomicInteger refusedTunnels = new AtomicInteger();
+
+    /**
+     * The number of clients which failed.
+     */
+    private final AtomicInteger failedTunnels = new AtomicInteger();
+
+    /**
+     * Returns the histogram of the time from the start of each connect
+     * request until its tunnel UUID was received.
+     *
+     * @return The histogram of connect latency.
+     */
+    public LatencyHistogram getConnectLatency() {
+        return connectLatency;
+    }
+
+    /**
+     * Returns the histogram of the time from the start of each connect
+     * request until the first frame of its tunnel was received.
+     *
+     * @return The histogram of first frame latency.
+     */
+    public LatencyHistogram getFirstFrameLatency() {
+        return firstFrameLatency;
+    }
+
+    /**
+     * Returns the histogram of the time from each frame being written by the
+     * fake guacd until it was received. This is only meaningful for synthetic
+     * streams.
+     *
+     * @return The histogram of frame latency.
+     */
+    public LatencyHistogram getFrameLatency() {
+        return frameLatency;
+    }
+
+    /**
+     * Returns the histogram of the time from the start of each read request
+     * until its response ended.
+     *
+     * @return The histogram of read latency.
+     */
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    /**
+     * Returns the counter of the number of bytes of tunnel output received,
+     * before decompression.
+     *
+     * @return The counter of bytes received.
+     */
+    public AtomicLong getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the counter of the number of instructions received.
+     *
+     * @return The counter of instructions received.
+     */
+    public AtomicLong getInstructionsReceived() {
+        return instructionsReceived;
+    }
+
+    /**
+     * Returns the counter of the number of frames received.
+     *
+     * @return The counter of frames received.
+     */
+    public AtomicLong getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * Returns the counter of the number of tunnels currently open.
+     *
+     * @return The counter of open tunnels.
+     */
+    public AtomicInteger getOpenTunnels() {
+        return openTunnels;
+    }
+
+    /**
+     * Returns the counter of the number of connect requests refused by
+     * admission control.
+     *
+     * @return The counter of refused tunnels.
+     */
+    public AtomicInteger getRefusedTunnels() {
+        return refusedTunnels;
+    }
+
+    /**
+     * Returns the counter of the number of clients which failed.
+     *
+     * @return The counter of failed clients.
+     */
+    public AtomicInteger getFailedTunnels() {
+        return failedTunnels;
+    }
+
+}
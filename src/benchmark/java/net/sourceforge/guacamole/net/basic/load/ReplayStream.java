@@ -0,0 +1,116 @@
+package net.sourceforge.guacamole.net.basic.load;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.guacamole.net.basic.recording.RecordingReader;
+
+/**
+ * InstructionStream which replays a session recording, as written for
+ * connections having a "recording-path" parameter, with the original timing
+ * between records scaled by a given speed. Gaps within the recording are
+ * skipped. The sync timestamps within the recording are replayed as
+ * recorded.
+ *
+ * @author Michael Jumper
+ */
+public class ReplayStream implements InstructionStream {
+
+    /**
+     * The directory containing the recording.
+     */
+    private final File directory;
+
+    /**
+     * The name of the recording.
+     */
+    private final String name;
+
+    /**
+     * The factor by which replay is faster than the original session, or 0
+     * to replay without waiting between records.
+     */
+    private final double speed;
+
+    /**
+     * Creates a new ReplayStream which replays the given recording.
+     *
+     * @param directory The directory containing the recording.
+     * @param name The name of the recording.
+     * @param speed The factor by which replay should be faster than the
+     *              original session, or 0 to replay without waiting between
+     *              records.
+     * @throws IOException If the recording does not exist or cannot be
+     *                     read.
+     */
+    public ReplayStream(File directory, String name, double speed)
+            throws IOException {
+
+        this.directory = directory;
+        this.name = name;
+        this.speed = speed;
+
+        // Fail early if recording is missing
+        new RecordingReader(directory, name).close();
+
+    }
+
+    @Override
+    public void write(OutputStream output)
+            throws IOException, InterruptedException {
+
+        RecordingReader reader = new RecordingReader(directory, name);
+        try {
+
+            long start = System.nanoTime();
+            long recordedStart = -1;
+
+            while (reader.next()) {
+
+                if (reader.isGap())
+                    continue;
+
+                if (recordedStart == -1)
+                    recordedStart = reader.getTimestamp();
+
+                // Wait until record is due, relative to first record
+                if (speed > 0) {
+                    long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(
+                            reader.getTimestamp() - recordedStart) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                output.write(reader.getData(), 0, reader.getLength());
+                output.flush();
+
+            }
+
+        }
+        finally {
+            reader.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package net.sourceforge.guacamole.net.basic.load;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InstructionStream which writes frames of synthetic image data at a fixed
+ * rate. Each frame consists of a given number of "png" instructions, each
+ * carrying a given amount of random base64 data, followed by a "sync"
+ * instruction whose timestamp is the time the frame was written, such that
+ * clients within the same JVM can measure the latency of each frame.
+ *
+ * @author Michael Jumper
+ */
+public class SyntheticStream implements InstructionStream {
+
+    /**
+     * Characters used within base64 data.
+     */
+    private static final String BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /**
+     * The number of nanoseconds between the start of each frame.
+     */
+    private final long interval;
+
+    /**
+     * The number of milliseconds to write frames for, or 0 to write frames
+     * until the connection is closed.
+     */
+    private final long duration;
+
+    /**
+     * The image instructions of each frame, as UTF-8.
+     */
+    private final byte[] frame;
+
+    /**
+     * Creates a new SyntheticStream.
+     *
+     * @param framesPerSecond The number of frames to write each second.
+     * @param instructionsPerFrame The number of image instructions within
+     *                             each frame.
+     * @param payloadSize The number of characters of base64 data within each
+     *                    image instruction.
+     * @param duration The number of milliseconds to write frames for, or 0
+     *                 to write frames until the connection is closed.
+     */
+    public SyntheticStream(int framesPerSecond, int instructionsPerFrame,
+            int payloadSize, long duration) {
+
+        this.interval = TimeUnit.SECONDS.toNanos(1) / framesPerSecond;
+        this.duration = duration;
+
+        // Generate random payload, shared by all instructions
+        Random random = new Random(0);
+        StringBuilder payload = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++)
+            payload.append(BASE64.charAt(random.nextInt(BASE64.length())));
+
+        // Draw each instruction at a different location of the default layer
+        StringBuilder instructions = new StringBuilder();
+        for (int i = 0; i < instructionsPerFrame; i++) {
+            instructions.append(FakeGuacd.encode("png", "14", "0",
+                    Integer.toString((i % 16) * 64),
+                    Integer.toString((i / 16) * 64),
+                    payload.toString()));
+        }
+
+        this.frame = FakeGuacd.toUTF8(instructions.toString());
+
+    }
+
+    @Override
+    public void write(OutputStream output)
+            throws IOException, InterruptedException {
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+
+        for (long next = start; duration == 0 || next < end; next += interval) {
+
+            // Wait until frame is due, writing immediately if behind
+            long wait = next - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+
+            output.write(frame);
+            output.write(FakeGuacd.toUTF8(FakeGuacd.encode("sync",
+                    Long.toString(System.currentTimeMillis()))));
+            output.flush();
+
+        }
+
+    }
+
+}
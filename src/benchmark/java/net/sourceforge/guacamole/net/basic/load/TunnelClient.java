@@ -0,0 +1,437 @@
+package net.sourceforge.guacamole.net.basic.load;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single simulated client of the HTTP tunnel, behaving as the JavaScript
+ * client does: it logs in, connects, and then reads the tunnel one response
+ * at a time until stopped, replying to the last "sync" instruction of each
+ * response.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelClient implements Runnable {
+
+    private Logger logger = LoggerFactory.getLogger(TunnelClient.class);
+
+    /**
+     * The URL of the web application, ending with a slash.
+     */
+    private final URL base;
+
+    /**
+     * The path of the tunnel servlet, relative to the web application.
+     */
+    private final String tunnel;
+
+    /**
+     * The name of the user to log in as.
+     */
+    private final String username;
+
+    /**
+     * The password of the user to log in as.
+     */
+    private final String password;
+
+    /**
+     * The ID of the connection to connect to.
+     */
+    private final String connection;
+
+    /**
+     * Whether compressed tunnel output should be requested.
+     */
+    private final boolean compress;
+
+    /**
+     * The statistics to update.
+     */
+    private final LoadStatistics statistics;
+
+    /**
+     * The session cookie received upon login.
+     */
+    private String cookie;
+
+    /**
+     * Whether this client should continue reading.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new TunnelClient. The client does nothing until run.
+     *
+     * @param base The URL of the web application, ending with a slash.
+     * @param tunnel The path of the tunnel servlet, relative to the web
+     *               application.
+     * @param username The name of the user to log in as.
+     * @param password The password of the user to log in as.
+     * @param connection The ID of the connection to connect to.
+     * @param compress Whether compressed tunnel output should be requested.
+     * @param statistics The statistics to update.
+     */
+    public TunnelClient(URL base, String tunnel, String username,
+            String password, String connection, boolean compress,
+            LoadStatistics statistics) {
+        this.base = base;
+        this.tunnel = tunnel;
+        this.username = username;
+        this.password = password;
+        this.connection = connection;
+        this.compress = compress;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Requests that this client stop reading and disconnect.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Opens a request to the given path, relative to the web application,
+     * sending the session cookie if logged in.
+     *
+     * @param path The path and query string to request.
+     * @param body The body to POST, or null to GET.
+     * @param contentType The content type of the body, if any.
+     * @return The connection, with any body already sent.
+     * @throws IOException If the request cannot be sent.
+     */
+    private HttpURLConnection request(String path, String body,
+            String contentType) throws IOException {
+
+        HttpURLConnection request =
+                (HttpURLConnection) new URL(base, path).openConnection();
+
+        request.setInstanceFollowRedirects(false);
+        request.setUseCaches(false);
+
+        if (cookie != null)
+            request.setRequestProperty("Cookie", cookie);
+
+        if (compress)
+            request.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+        if (body != null) {
+
+            byte[] data = FakeGuacd.toUTF8(body);
+
+            request.setRequestMethod("POST");
+            request.setRequestProperty("Content-Type", contentType);
+            request.setFixedLengthStreamingMode(data.length);
+            request.setDoOutput(true);
+
+            OutputStream output = request.getOutputStream();
+            try {
+                output.write(data);
+            }
+            finally {
+                output.close();
+            }
+
+        }
+
+        return request;
+
+    }
+
+    /**
+     * Opens a POST of form parameters to the given path.
+     *
+     * @param path The path and query string to request.
+     * @param parameters Alternating names and values of the parameters.
+     * @return The connection, with the parameters already sent.
+     * @throws IOException If the request cannot be sent.
+     */
+    private HttpURLConnection post(String path, String... parameters)
+            throws IOException {
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < parameters.length; i += 2) {
+
+            if (i > 0)
+                body.append('&');
+
+            body.append(URLEncoder.encode(parameters[i], "UTF-8"));
+            body.append('=');
+            body.append(URLEncoder.encode(parameters[i + 1], "UTF-8"));
+
+        }
+
+        return request(path, body.toString(),
+                "application/x-www-form-urlencoded; charset=UTF-8");
+
+    }
+
+    /**
+     * Reads the entire body of the given response, which must have
+     * succeeded.
+     *
+     * @param response The response to read.
+     * @return The body of the response.
+     * @throws IOException If the request failed or the response cannot be
+     *                     read.
+     */
+    private String readBody(HttpURLConnection response) throws IOException {
+
+        int status = response.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK)
+            throw new IOException("Request failed with status " + status + ".");
+
+        InputStream input = response.getInputStream();
+        try {
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+
+            int length;
+            while ((length = input.read(buffer)) != -1)
+                body.write(buffer, 0, length);
+
+            return body.toString("UTF-8");
+
+        }
+        finally {
+            input.close();
+        }
+
+    }
+
+    /**
+     * Logs in, storing the session cookie received.
+     *
+     * @throws IOException If login fails.
+     */
+    private void login() throws IOException {
+
+        HttpURLConnection response = post("login",
+                "username", username, "password", password);
+
+        readBody(response);
+
+        Map<String, List<String>> headers = response.getHeaderFields();
+        List<String> cookies = headers.get("Set-Cookie");
+        if (cookies == null)
+            throw new IOException("No session cookie received.");
+
+        // Keep only the session cookie itself, without attributes
+        for (String received : cookies) {
+            if (received.startsWith("JSESSIONID=")) {
+                int end = received.indexOf(';');
+                cookie = end == -1 ? received : received.substring(0, end);
+            }
+        }
+
+        if (cookie == null)
+            throw new IOException("No session cookie received.");
+
+    }
+
+    /**
+     * Connects a new tunnel.
+     *
+     * @return The UUID of the new tunnel, or null if the connect was refused
+     *         by admission control.
+     * @throws IOException If the connect fails for any other reason.
+     */
+    private String connect() throws IOException {
+
+        HttpURLConnection response;
+        if (compress)
+            response = post(tunnel + "?connect", "id", connection,
+                    "width", "1024", "height", "768",
+                    "compress", "gzip", "compress", "deflate");
+        else
+            response = post(tunnel + "?connect", "id", connection,
+                    "width", "1024", "height", "768");
+
+        int status = response.getResponseCode();
+        if (status == HttpURLConnection.HTTP_UNAVAILABLE || status == 429)
+            return null;
+
+        return readBody(response).trim();
+
+    }
+
+    /**
+     * Reads a single response of the tunnel having the given UUID, updating
+     * the statistics with its contents.
+     *
+     * @param uuid The UUID of the tunnel.
+     * @param sequence The number of this read, which keeps it from being
+     *                 cached.
+     * @return The timestamp of the last "sync" instruction received, or -1
+     *         if the response contained none.
+     * @throws IOException If the tunnel has closed or cannot be read.
+     */
+    private long read(String uuid, long sequence) throws IOException {
+
+        long start = System.nanoTime();
+
+        HttpURLConnection response = request(
+                tunnel + "?read:" + uuid + ":" + sequence, null, null);
+
+        int status = response.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK)
+            throw new IOException("Tunnel closed with status " + status + ".");
+
+        InputStream input = response.getInputStream();
+        try {
+
+            // Decompress if requested and accepted
+            String encoding = response.getContentEncoding();
+            if ("gzip".equals(encoding))
+                input = new GZIPInputStream(input);
+            else if ("deflate".equals(encoding))
+                input = new InflaterInputStream(input);
+
+            InstructionReader reader = new InstructionReader(
+                    new BufferedInputStream(input),
+                    Collections.singleton("sync"));
+
+            long timestamp = -1;
+            boolean ended = false;
+            long instructions = 0;
+
+            String opcode;
+            while ((opcode = reader.next()) != null) {
+
+                // Empty instruction marks end of response
+                if (opcode.length() == 0) {
+                    ended = true;
+                    continue;
+                }
+
+                instructions++;
+
+                if ("sync".equals(opcode)) {
+                    timestamp = Long.parseLong(reader.getArguments().get(0));
+                    statistics.getFramesReceived().incrementAndGet();
+                    statistics.getFrameLatency().record(1000000L
+                            * (System.currentTimeMillis() - timestamp));
+                }
+
+                else if ("error".equals(opcode))
+                    throw new IOException("Tunnel closed with error.");
+
+            }
+
+            statistics.getBytesReceived().addAndGet(reader.getBytesRead());
+            statistics.getInstructionsReceived().addAndGet(instructions);
+            statistics.getReadLatency().record(System.nanoTime() - start);
+
+            if (!ended)
+                throw new IOException("Tunnel closed.");
+
+            return timestamp;
+
+        }
+        finally {
+            input.close();
+        }
+
+    }
+
+    /**
+     * Sends the given instruction to the tunnel having the given UUID.
+     *
+     * @param uuid The UUID of the tunnel.
+     * @param instruction The instruction to send.
+     * @throws IOException If the instruction cannot be sent.
+     */
+    private void write(String uuid, String instruction) throws IOException {
+        readBody(request(tunnel + "?write:" + uuid, instruction,
+                "application/octet-stream"));
+    }
+
+    @Override
+    public void run() {
+
+        String uuid = null;
+
+        try {
+
+            login();
+
+            long start = System.nanoTime();
+            uuid = connect();
+            if (uuid == null) {
+                statistics.getRefusedTunnels().incrementAndGet();
+                return;
+            }
+
+            statistics.getConnectLatency().record(System.nanoTime() - start);
+            statistics.getOpenTunnels().incrementAndGet();
+
+            try {
+
+                boolean firstFrame = true;
+                for (long sequence = 0; running; sequence++) {
+
+                    long timestamp = read(uuid, sequence);
+                    if (timestamp == -1)
+                        continue;
+
+                    if (firstFrame) {
+                        statistics.getFirstFrameLatency().record(System.nanoTime() - start);
+                        firstFrame = false;
+                    }
+
+                    write(uuid, FakeGuacd.encode("sync", Long.toString(timestamp)));
+
+                }
+
+                write(uuid, FakeGuacd.encode("disconnect"));
+
+            }
+            finally {
+                statistics.getOpenTunnels().decrementAndGet();
+            }
+
+        }
+        catch (IOException e) {
+            if (running) {
+                statistics.getFailedTunnels().incrementAndGet();
+                logger.warn("Client \"{}\" failed: {}", username, e.getMessage());
+                logger.debug("Client failure.", e);
+            }
+        }
+
+    }
+
+}
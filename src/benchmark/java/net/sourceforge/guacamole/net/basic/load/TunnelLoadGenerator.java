@@ -0,0 +1,443 @@
+package net.sourceforge.guacamole.net.basic.load;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.guacamole.net.basic.BasicGuacamoleAsyncTunnelServlet;
+import net.sourceforge.guacamole.net.basic.BasicGuacamoleTunnelServlet;
+import net.sourceforge.guacamole.net.basic.BasicLogin;
+import net.sourceforge.guacamole.net.basic.metrics.LatencyHistogram;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Drives many concurrent HTTP tunnel clients against the tunnel servlet,
+ * running within an embedded Jetty together with a FakeGuacd, and reports
+ * throughput, latency percentiles and heap use. Everything runs within one
+ * JVM, such that the results measure the web application alone, without
+ * network or guacd.
+ *
+ * The test is configured through system properties:
+ *
+ *     load.tunnels       Number of concurrent clients (default 50).
+ *     load.duration      Seconds to run once all clients have started
+ *                        (default 60).
+ *     load.rampup        Seconds over which clients are started (default
+ *                        10).
+ *     load.fps           Synthetic frames per second per tunnel (default
+ *                        30).
+ *     load.instructions  Image instructions per synthetic frame (default
+ *                        4).
+ *     load.payload       Characters of image data per instruction (default
+ *                        4096).
+ *     load.replay        Path of a session recording (directory and name)
+ *                        to replay instead of synthetic frames.
+ *     load.speed         Replay speed relative to the recorded session, or
+ *                        0 for as fast as possible (default 1).
+ *     load.tunnel        "tunnel" or "async-tunnel" (default "tunnel").
+ *     load.compress      Whether clients request compressed output
+ *                        (default false).
+ *     load.properties    Additional guacamole.properties to apply, such as
+ *                        enable-guacd-relay or admission limits.
+ *
+ * The web application reads its configuration from a temporary directory
+ * given as the "guacamole.home" system property, which this class sets.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelLoadGenerator {
+
+    /**
+     * The name of the connection every user is authorized to use.
+     */
+    private static final String CONNECTION = "fake";
+
+    /**
+     * The password of every user.
+     */
+    private static final String PASSWORD = "load";
+
+    /**
+     * The number of seconds between progress reports.
+     */
+    private static final int REPORT_INTERVAL = 5;
+
+    /**
+     * Returns the value of the given system property, treating empty values
+     * as unset.
+     *
+     * @param name The name of the system property.
+     * @param defaultValue The value to return if the property is unset.
+     * @return The value of the property, or the default value.
+     */
+    private static String getProperty(String name, String defaultValue) {
+
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+
+        return value.trim();
+
+    }
+
+    /**
+     * Returns the integer value of the given system property.
+     *
+     * @param name The name of the system property.
+     * @param defaultValue The value to return if the property is unset.
+     * @return The value of the property, or the default value.
+     */
+    private static int getInteger(String name, int defaultValue) {
+        return Integer.parseInt(getProperty(name, Integer.toString(defaultValue)));
+    }
+
+    /**
+     * Writes the guacamole.properties and user-mapping.xml of the web
+     * application to the given directory.
+     *
+     * @param home The directory to write to.
+     * @param guacdPort The port of the fake guacd.
+     * @param users The number of users to authorize.
+     * @param async Whether the asynchronous tunnel should be enabled.
+     * @param extra Additional properties to append, or null if none.
+     * @throws IOException If the files cannot be written.
+     */
+    private static void writeConfiguration(File home, int guacdPort,
+            int users, boolean async, File extra) throws IOException {
+
+        File mapping = new File(home, "user-mapping.xml");
+
+        // One user per client, each authorized for the fake connection
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(mapping), "UTF-8"));
+        try {
+
+            out.println("<user-mapping>");
+            for (int i = 0; i < users; i++) {
+                out.println("    <authorize username=\"load-" + i + "\" password=\"" + PASSWORD + "\">");
+                out.println("        <connection name=\"" + CONNECTION + "\">");
+                out.println("            <protocol>vnc</protocol>");
+                out.println("            <param name=\"hostname\">localhost</param>");
+                out.println("            <param name=\"port\">5900</param>");
+                out.println("        </connection>");
+                out.println("    </authorize>");
+            }
+            out.println("</user-mapping>");
+
+        }
+        finally {
+            out.close();
+        }
+
+        File properties = new File(home, "guacamole.properties");
+
+        out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(properties), "UTF-8"));
+        try {
+            out.println("guacd-hostname: 127.0.0.1");
+            out.println("guacd-port: " + guacdPort);
+            out.println("auth-provider: net.sourceforge.guacamole.net.basic.BasicFileAuthenticationProvider");
+            out.println("basic-user-mapping: " + mapping.getAbsolutePath());
+            if (async)
+                out.println("enable-async-tunnel: true");
+        }
+        finally {
+            out.close();
+        }
+
+        // Later properties override those above
+        if (extra != null) {
+
+            InputStream input = new FileInputStream(extra);
+            OutputStream output = new FileOutputStream(properties, true);
+            try {
+
+                byte[] buffer = new byte[8192];
+                int length;
+
+                output.write('\n');
+                while ((length = input.read(buffer)) != -1)
+                    output.write(buffer, 0, length);
+
+            }
+            finally {
+                output.close();
+                input.close();
+            }
+
+        }
+
+    }
+
+    /**
+     * Prints the given latency histogram as a single line.
+     *
+     * @param name The name of the histogram.
+     * @param histogram The histogram to print.
+     */
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("  %-20s n=%-9d mean=%9.1f  p50=%8.1f  p95=%8.1f  p99=%8.1f  max=%9.1f ms%n",
+                name, histogram.getCount(), histogram.getMean(),
+                histogram.getPercentile(0.5), histogram.getPercentile(0.95),
+                histogram.getPercentile(0.99), histogram.getMax());
+    }
+
+    /**
+     * Returns the total number of garbage collections so far, and the total
+     * time spent on them.
+     *
+     * @return The number of collections and the milliseconds spent on them.
+     */
+    private static long[] getCollections() {
+
+        long[] collections = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections[0] += Math.max(0, collector.getCollectionCount());
+            collections[1] += Math.max(0, collector.getCollectionTime());
+        }
+
+        return collections;
+
+    }
+
+    /**
+     * Runs a load test as configured through system properties, printing
+     * progress and a final report to standard output.
+     *
+     * @param args Ignored.
+     * @throws Exception If the test cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+
+        int tunnels      = getInteger("load.tunnels", 50);
+        int duration     = getInteger("load.duration", 60);
+        int rampup       = getInteger("load.rampup", 10);
+        int fps          = getInteger("load.fps", 30);
+        int instructions = getInteger("load.instructions", 4);
+        int payload      = getInteger("load.payload", 4096);
+        String replay    = getProperty("load.replay", null);
+        double speed     = Double.parseDouble(getProperty("load.speed", "1"));
+        String tunnel    = getProperty("load.tunnel", "tunnel");
+        boolean compress = Boolean.parseBoolean(getProperty("load.compress", "false"));
+        String extra     = getProperty("load.properties", null);
+
+        boolean async = "async-tunnel".equals(tunnel);
+        if (!async && !"tunnel".equals(tunnel))
+            throw new IllegalArgumentException("load.tunnel must be \"tunnel\" or \"async-tunnel\".");
+
+        // Keep connections of all clients alive between requests
+        System.setProperty("http.maxConnections", Integer.toString(2 * tunnels));
+
+        // Start fake guacd with requested output
+        InstructionStream stream;
+        if (replay != null) {
+            File recording = new File(replay);
+            stream = new ReplayStream(recording.getAbsoluteFile().getParentFile(),
+                    recording.getName(), speed);
+        }
+        else
+            stream = new SyntheticStream(fps, instructions, payload, 0);
+
+        FakeGuacd guacd = new FakeGuacd(0, stream, "hostname", "port", "password");
+        guacd.start();
+
+        // Configure web application
+        File home = Files.createTempDirectory("guacamole-load").toFile();
+        writeConfiguration(home, guacd.getPort(), tunnels, async,
+                extra != null ? new File(extra) : null);
+        System.setProperty("guacamole.home", home.getAbsolutePath());
+
+        // Start web application, with enough threads for blocking reads
+        QueuedThreadPool threads = new QueuedThreadPool(Math.max(200, 3 * tunnels));
+        Server server = new Server(threads);
+
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/guacamole");
+        context.addServlet(new ServletHolder(new BasicLogin()), "/login");
+        context.addServlet(new ServletHolder(new BasicGuacamoleTunnelServlet()), "/tunnel");
+
+        if (async) {
+            ServletHolder holder = new ServletHolder(new BasicGuacamoleAsyncTunnelServlet());
+            holder.setAsyncSupported(true);
+            context.addServlet(holder, "/async-tunnel");
+        }
+
+        server.setHandler(context);
+        server.start();
+
+        URL base = new URL("http://127.0.0.1:" + connector.getLocalPort() + "/guacamole/");
+
+        System.out.printf("Load test: %d tunnels via /%s, %s%s, %d s after %d s ramp-up%n",
+                tunnels, tunnel,
+                replay != null
+                    ? "replaying " + replay + " at " + speed + "x"
+                    : fps + " fps of " + instructions + " x " + payload + " chars",
+                compress ? ", compressed" : "", duration, rampup);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        LoadStatistics statistics = new LoadStatistics();
+        List<TunnelClient> clients = new ArrayList<TunnelClient>();
+        List<Thread> clientThreads = new ArrayList<Thread>();
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(rampup);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+
+        long[] collectionsBefore = null;
+        long bytesBefore = 0;
+        long instructionsBefore = 0;
+        long framesBefore = 0;
+        long peakHeap = 0;
+
+        long lastBytes = 0;
+        long lastReport = start;
+        int started = 0;
+
+        for (long now = start; now < end; now = System.nanoTime()) {
+
+            // Start clients spread evenly over ramp-up
+            while (started < tunnels && (rampup == 0
+                    || now - start >= TimeUnit.SECONDS.toNanos(rampup) * started / tunnels)) {
+
+                TunnelClient client = new TunnelClient(base, tunnel,
+                        "load-" + started, PASSWORD, CONNECTION, compress,
+                        statistics);
+
+                Thread thread = new Thread(client, "load-client-" + started);
+                thread.setDaemon(true);
+                thread.start();
+
+                clients.add(client);
+                clientThreads.add(thread);
+                started++;
+
+            }
+
+            // Begin measuring throughput once ramp-up is complete
+            if (collectionsBefore == null && now >= measureStart) {
+                collectionsBefore = getCollections();
+                bytesBefore = statistics.getBytesReceived().get();
+                instructionsBefore = statistics.getInstructionsReceived().get();
+                framesBefore = statistics.getFramesReceived().get();
+            }
+
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            peakHeap = Math.max(peakHeap, heap);
+
+            // Periodic progress
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(REPORT_INTERVAL)) {
+
+                long bytes = statistics.getBytesReceived().get();
+                double seconds = (now - lastReport) / 1e9;
+
+                System.out.printf("  %4d s  open=%-5d refused=%-5d failed=%-5d %8.2f MB/s  heap=%d MB%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - start),
+                        statistics.getOpenTunnels().get(),
+                        statistics.getRefusedTunnels().get(),
+                        statistics.getFailedTunnels().get(),
+                        (bytes - lastBytes) / seconds / 1048576,
+                        heap / 1048576);
+
+                lastBytes = bytes;
+                lastReport = now;
+
+            }
+
+            Thread.sleep(Math.min(100, Math.max(1,
+                    TimeUnit.NANOSECONDS.toMillis(end - now))));
+
+        }
+
+        // Final throughput over measurement period only
+        double seconds = duration;
+        long[] collectionsAfter = getCollections();
+        if (collectionsBefore == null)
+            collectionsBefore = collectionsAfter;
+
+        long bytes = statistics.getBytesReceived().get() - bytesBefore;
+        long received = statistics.getInstructionsReceived().get() - instructionsBefore;
+        long frames = statistics.getFramesReceived().get() - framesBefore;
+
+        System.out.println();
+        System.out.println("Results:");
+        System.out.printf("  tunnels              open=%d refused=%d failed=%d (guacd handshakes=%d)%n",
+                statistics.getOpenTunnels().get(),
+                statistics.getRefusedTunnels().get(),
+                statistics.getFailedTunnels().get(),
+                guacd.getHandshakeCount());
+        System.out.printf("  throughput           %.2f MB/s, %.0f instructions/s, %.0f frames/s%n",
+                bytes / seconds / 1048576, received / seconds, frames / seconds);
+        System.out.printf("  guacd                %.2f MB/s sent, %d sync replies received%n",
+                guacd.getBytesSent() / ((System.nanoTime() - start) / 1e9) / 1048576,
+                guacd.getSyncsReceived());
+
+        printLatency("connect", statistics.getConnectLatency());
+        printLatency("first frame", statistics.getFirstFrameLatency());
+        printLatency("read response", statistics.getReadLatency());
+        if (replay == null)
+            printLatency("frame", statistics.getFrameLatency());
+
+        System.out.printf("  heap                 peak=%d MB, final=%d MB, max=%d MB%n",
+                peakHeap / 1048576,
+                memory.getHeapMemoryUsage().getUsed() / 1048576,
+                memory.getHeapMemoryUsage().getMax() / 1048576);
+        System.out.printf("  gc                   %d collections, %d ms%n",
+                collectionsAfter[0] - collectionsBefore[0],
+                collectionsAfter[1] - collectionsBefore[1]);
+
+        // Disconnect all clients, then shut down
+        for (TunnelClient client : clients)
+            client.stop();
+
+        for (Thread thread : clientThreads)
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+
+        server.stop();
+        guacd.close();
+
+        for (File file : home.listFiles())
+            file.delete();
+        home.delete();
+
+    }
+
+}
@@ -0,0 +1,109 @@
+package net.sourceforge.guacamole.net.basic.xml;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.guacamole.net.basic.BenchmarkSupport;
+import net.sourceforge.guacamole.net.basic.auth.UserMapping;
+import net.sourceforge.guacamole.net.basic.xml.user_mapping.UserMappingTagHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * Measures SAX parsing of user mappings of different sizes through
+ * DocumentHandler and the user mapping tag handlers, from memory, such that
+ * only parsing and building the UserMapping is measured.
+ *
+ * @author Michael Jumper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DocumentHandlerBenchmark {
+
+    /**
+     * The number of users within the user mapping.
+     */
+    @Param({"10", "10000", "100000"})
+    public int users;
+
+    /**
+     * The user mapping, as UTF-8.
+     */
+    private byte[] document;
+
+    /**
+     * Generates the user mapping.
+     *
+     * @throws Exception If the user mapping cannot be generated.
+     */
+    @Setup
+    public void createDocument() throws Exception {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        Writer out = new OutputStreamWriter(buffer, "UTF-8");
+        BenchmarkSupport.writeUserMapping(out, users);
+        out.close();
+
+        document = buffer.toByteArray();
+
+    }
+
+    /**
+     * Parses the user mapping, as BasicFileAuthenticationProvider does.
+     *
+     * @return The parsed user mapping.
+     * @throws Exception If the user mapping cannot be parsed.
+     */
+    @Benchmark
+    public UserMapping parse() throws Exception {
+
+        UserMappingTagHandler userMappingHandler = new UserMappingTagHandler();
+        DocumentHandler contentHandler = new DocumentHandler(
+                "user-mapping", userMappingHandler);
+
+        XMLReader parser = XMLReaderFactory.createXMLReader();
+        parser.setContentHandler(contentHandler);
+        parser.parse(new InputSource(new ByteArrayInputStream(document)));
+
+        return userMappingHandler.asUserMapping();
+
+    }
+
+}
@@ -0,0 +1,119 @@
+package net.sourceforge.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.ServletRegistration;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import net.sourceforge.guacamole.properties.GuacamoleProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple ServletContextListener which installs the asynchronous HTTP tunnel
+ * servlet if enabled within guacamole.properties, using the Servlet 3.0 API
+ * to dynamically load and install the tunnel servlet.
+ *
+ * Note that because Guacamole must still run within Servlet 2.5 containers,
+ * nothing from the 3.0 API is touched unless the container reports support
+ * for Servlet 3.0.
+ *
+ * @author Michael Jumper
+ */
+public class AsyncTunnelSupportLoader implements ServletContextListener {
+
+    private Logger logger = LoggerFactory.getLogger(AsyncTunnelSupportLoader.class);
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+
+        try {
+
+            // Do nothing unless enabled
+            Boolean enabled = GuacamoleProperties.getProperty(BasicGuacamoleProperties.ENABLE_ASYNC_TUNNEL);
+            if (enabled == null || !enabled)
+                return;
+
+            // Servlet API 3.0 unsupported
+            ServletContext context = sce.getServletContext();
+            if (context.getMajorVersion() < 3) {
+                logger.warn("Asynchronous tunnel enabled, but Servlet API 3.0 not found.");
+                return;
+            }
+
+            Registrar.register(context);
+            logger.info("Asynchronous tunnel support loaded.");
+
+        }
+
+        // Servlet class missing or incomplete API
+        catch (ClassNotFoundException e) {
+            logger.error("Unable to load asynchronous tunnel servlet.", e);
+        }
+        catch (LinkageError e) {
+            logger.error("Servlet API 3.0 found, but incomplete.", e);
+        }
+
+        // Log all GuacamoleExceptions
+        catch (GuacamoleException e) {
+            logger.error("Unable to load asynchronous tunnel support.", e);
+        }
+
+    }
+
+    /**
+     * Performs the actual registration of the asynchronous tunnel servlet.
+     * This is kept separate from the listener such that classes from the
+     * Servlet 3.0 API are never loaded within a Servlet 2.5 container.
+     */
+    private static class Registrar {
+
+        /**
+         * Registers the asynchronous tunnel servlet within the given context,
+         * marking it as supporting asynchronous requests.
+         *
+         * @param context The context to register the servlet within.
+         * @throws ClassNotFoundException If the servlet class cannot be found.
+         */
+        public static void register(ServletContext context)
+                throws ClassNotFoundException {
+
+            Class<? extends Servlet> servlet = Class.forName(
+                "net.sourceforge.guacamole.net.basic.BasicGuacamoleAsyncTunnelServlet"
+            ).asSubclass(Servlet.class);
+
+            ServletRegistration.Dynamic registration =
+                    context.addServlet("AsyncTunnel", servlet);
+
+            registration.setAsyncSupported(true);
+            registration.addMapping("/async-tunnel");
+
+        }
+
+    }
+
+}
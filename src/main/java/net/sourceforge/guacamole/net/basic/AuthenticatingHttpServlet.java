@@ -30,6 +30,7 @@ import javax.servlet.http.HttpSession;
 import net.sourceforge.guacamole.GuacamoleException;
 import net.sourceforge.guacamole.net.auth.AuthenticationProvider;
 import net.sourceforge.guacamole.net.auth.Credentials;
+import net.sourceforge.guacamole.net.basic.auth.ChangeTrackingAuthenticationProvider;
 import net.sourceforge.guacamole.net.basic.event.SessionListenerCollection;
 import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
 import net.sourceforge.guacamole.net.event.AuthenticationFailureEvent;
@@ -71,6 +72,19 @@ public abstract class AuthenticatingHttpServlet extends HttpServlet {
      */
     private static final String CREDENTIALS_ATTRIBUTE = "GUAC_CREDS";
 
+    /**
+     * The session attribute holding the revision of the authorization data
+     * from which the session's configurations were retrieved, if the
+     * authentication provider tracks changes.
+     */
+    private static final String REVISION_ATTRIBUTE = "GUAC_AUTH_REVISION";
+
+    /**
+     * The request attribute holding the time the request began to be
+     * serviced, as given by System.nanoTime().
+     */
+    private static final String SERVICE_START_ATTRIBUTE = "GUAC_SERVICE_START";
+
     /**
      * The AuthenticationProvider to use to authenticate all requests.
      */
@@ -184,15 +198,147 @@ public abstract class AuthenticatingHttpServlet extends HttpServlet {
         return (Map<String, GuacamoleConfiguration>) session.getAttribute(CONFIGURATIONS_ATTRIBUTE);
     }
 
+    /**
+     * Returns the time the given request began to be serviced, before any
+     * authentication took place.
+     *
+     * @param request The request being serviced.
+     * @return The time the request began to be serviced, as given by
+     *         System.nanoTime().
+     */
+    protected long getServiceStartTime(HttpServletRequest request) {
+
+        Long start = (Long) request.getAttribute(SERVICE_START_ATTRIBUTE);
+        if (start == null)
+            return System.nanoTime();
+
+        return start;
+
+    }
+
+    /**
+     * Returns the current revision of the authorization data associated with
+     * the given credentials, or 0 if the authentication provider does not
+     * track changes.
+     *
+     * @param credentials The credentials to retrieve the revision of.
+     * @return The current revision of the authorization data associated with
+     *         the given credentials, or 0 if unknown.
+     * @throws GuacamoleException If an error occurs while retrieving the
+     *                            revision.
+     */
+    private long getRevision(Credentials credentials) throws GuacamoleException {
+
+        if (authProvider instanceof ChangeTrackingAuthenticationProvider)
+            return ((ChangeTrackingAuthenticationProvider) authProvider).getRevision(credentials);
+
+        return 0;
+
+    }
+
+    /**
+     * Retrieves the configurations of the given session again from the
+     * authentication provider if the authorization data they were retrieved
+     * from has changed since, storing the new configurations in the session.
+     * Sessions whose credentials are no longer valid are deauthenticated.
+     * Tunnels already open are not affected. The credentials stored in the
+     * session are not modified, as they may be in use by other requests.
+     *
+     * @param session The session whose configurations should be refreshed.
+     * @param request The request being serviced.
+     * @param configs The configurations currently associated with the
+     *                session.
+     * @return The configurations now associated with the session, or null if
+     *         the session is no longer authenticated.
+     */
+    private Map<String, GuacamoleConfiguration> refreshConfigurations(
+            HttpSession session, HttpServletRequest request,
+            Map<String, GuacamoleConfiguration> configs) {
+
+        // Nothing to compare against if changes are not tracked
+        Long revision = (Long) session.getAttribute(REVISION_ATTRIBUTE);
+        Credentials credentials = getCredentials(session);
+        if (revision == null || credentials == null)
+            return configs;
+
+        try {
+
+            // Configs remain valid while authorization data is unchanged
+            long revisionNow = getRevision(credentials);
+            if (revisionNow == revision)
+                return configs;
+
+            // Retrieve configs again using the original credentials, along
+            // with the current request
+            Credentials current = new Credentials();
+            current.setSession(session);
+            current.setRequest(request);
+            current.setUsername(credentials.getUsername());
+            current.setPassword(credentials.getPassword());
+
+            Map<String, GuacamoleConfiguration> refreshed =
+                    authProvider.getAuthorizedConfigurations(current);
+
+            // Deauthenticate if no longer authorized
+            if (refreshed == null) {
+                logger.info("User \"{}\" is no longer authorized. Session deauthenticated.",
+                        credentials.getUsername());
+
+                session.removeAttribute(CONFIGURATIONS_ATTRIBUTE);
+                session.removeAttribute(CREDENTIALS_ATTRIBUTE);
+                session.removeAttribute(REVISION_ATTRIBUTE);
+                return null;
+            }
+
+            logger.info("Configurations of user \"{}\" changed. Session updated.",
+                    credentials.getUsername());
+
+            session.setAttribute(CONFIGURATIONS_ATTRIBUTE, refreshed);
+            session.setAttribute(REVISION_ATTRIBUTE, revisionNow);
+            return refreshed;
+
+        }
+
+        // Keep current configs if they cannot be refreshed
+        catch (GuacamoleException e) {
+            logger.error("Error refreshing configuration(s) for user \"{}\".",
+                    credentials.getUsername(), e);
+            return configs;
+        }
+
+    }
+
+    /**
+     * Returns whether the configurations of the current session should be
+     * checked for changes to the user's authorization data before the given
+     * request is serviced. Servlets which service frequent requests not
+     * depending on the configurations themselves, such as the reads and
+     * writes of a tunnel, should check only where the configurations are
+     * actually used. By default, every request is checked.
+     *
+     * @param request The request about to be serviced.
+     * @return true if the configurations should be checked for changes,
+     *         false otherwise.
+     */
+    protected boolean isRefreshRequired(HttpServletRequest request) {
+        return true;
+    }
+
     @Override
     protected void service(HttpServletRequest request, HttpServletResponse response)
     throws IOException, ServletException {
 
+        request.setAttribute(SERVICE_START_ATTRIBUTE, System.nanoTime());
+
         HttpSession httpSession = request.getSession(true);
 
         // Try to get configs from session
         Map<String, GuacamoleConfiguration> configs = getConfigurations(httpSession);
 
+        // Pick up any changes to the user's authorization data
+        if (configs != null && isRefreshRequired(request))
+            configs = refreshConfigurations(httpSession, request, configs);
+
         // If no configs, try to authenticate the user to get the configs using
         // this request.
         if (configs == null) {
@@ -218,8 +364,12 @@ public abstract class AuthenticatingHttpServlet extends HttpServlet {
             credentials.setUsername(username);
             credentials.setPassword(password);
 
-            // Get authorized configs
+            // Get authorized configs, noting the revision of the data they
+            // come from before retrieval, such that any concurrent change
+            // is picked up by the next request
+            long revision;
             try {
+                revision = getRevision(credentials);
                 configs = authProvider.getAuthorizedConfigurations(credentials);
             }
 
@@ -276,6 +426,10 @@ public abstract class AuthenticatingHttpServlet extends HttpServlet {
             httpSession.setAttribute(CONFIGURATIONS_ATTRIBUTE, configs);
             httpSession.setAttribute(CREDENTIALS_ATTRIBUTE,    credentials);
 
+            // Track changes, if supported
+            if (authProvider instanceof ChangeTrackingAuthenticationProvider)
+                httpSession.setAttribute(REVISION_ATTRIBUTE, revision);
+
 
         }
 
@@ -24,16 +24,29 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import net.sourceforge.guacamole.GuacamoleException;
-import net.sourceforge.guacamole.net.auth.AuthenticationProvider;
 import net.sourceforge.guacamole.net.auth.Credentials;
 import net.sourceforge.guacamole.net.basic.auth.Authorization;
+import net.sourceforge.guacamole.net.basic.auth.AuthorizationSource;
+import net.sourceforge.guacamole.net.basic.auth.ChangeTrackingAuthenticationProvider;
+import net.sourceforge.guacamole.net.basic.auth.FileChangeListener;
+import net.sourceforge.guacamole.net.basic.auth.FileWatcher;
 import net.sourceforge.guacamole.net.basic.auth.UserMapping;
+import net.sourceforge.guacamole.net.basic.auth.UserMappingDiff;
+import net.sourceforge.guacamole.net.basic.auth.UserMappingIndex;
+import net.sourceforge.guacamole.net.basic.auth.UserMappingIndexWriter;
+import net.sourceforge.guacamole.net.basic.properties.BooleanGuacamoleProperty;
 import net.sourceforge.guacamole.net.basic.xml.DocumentHandler;
 import net.sourceforge.guacamole.net.basic.xml.user_mapping.UserMappingTagHandler;
 import net.sourceforge.guacamole.properties.FileGuacamoleProperty;
 import net.sourceforge.guacamole.properties.GuacamoleProperties;
+import net.sourceforge.guacamole.properties.IntegerGuacamoleProperty;
 import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,23 +58,24 @@ import org.xml.sax.helpers.XMLReaderFactory;
 /**
  * Authenticates users against a static list of username/password pairs.
  * Each username/password may be associated with multiple configurations.
- * This list is stored in an XML file which is reread if modified.
+ * This list is stored in an XML file which is reread in the background
+ * whenever it is modified.
  *
  * @author Michael Jumper, Michal Kotas
  */
-public class BasicFileAuthenticationProvider implements AuthenticationProvider {
-
-    private Logger logger = LoggerFactory.getLogger(BasicFileAuthenticationProvider.class);
+public class BasicFileAuthenticationProvider implements ChangeTrackingAuthenticationProvider {
 
     /**
-     * The time the user mapping file was last modified.
+     * The default maximum number of authorizations kept decoded when the
+     * user mapping is read through an index.
      */
-    private long mod_time;
+    private static final int DEFAULT_CACHE_SIZE = 1024;
 
     /**
-     * The parsed UserMapping read when the user mapping file was last parsed.
+     * The user mapping of the file given in guacamole.properties, or null if
+     * not yet retrieved.
      */
-    private UserMapping user_mapping;
+    private volatile SharedUserMapping sharedUserMapping;
 
     /**
      * The filename of the XML file to read the user user_mapping from.
@@ -74,26 +88,376 @@ public class BasicFileAuthenticationProvider implements AuthenticationProvider {
     };
 
     /**
-     * Returns a UserMapping containing all authorization data given within
+     * The number of milliseconds between checks of the user mapping file for
+     * changes. By default, the file is watched for changes using the change
+     * notifications of its filesystem where available, and is otherwise
+     * checked every five seconds. An interval should be given where the file
+     * is changed by other hosts on a network filesystem.
+     */
+    public static final IntegerGuacamoleProperty BASIC_USER_MAPPING_POLL_INTERVAL = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "basic-user-mapping-poll-interval"; }
+
+    };
+
+    /**
+     * Whether the user mapping file should be compiled into a binary index,
+     * stored alongside the file with an ".idx" extension added. The index is
+     * rebuilt whenever the file changes, and is otherwise used in place of
+     * the file, decoding the authorization of each user only as needed.
+     * Intended for user mappings too large to keep in memory.
+     */
+    public static final BooleanGuacamoleProperty BASIC_USER_MAPPING_INDEX = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "basic-user-mapping-index"; }
+
+    };
+
+    /**
+     * The maximum number of users whose authorizations are kept decoded when
+     * reading the user mapping through an index.
+     */
+    public static final IntegerGuacamoleProperty BASIC_USER_MAPPING_CACHE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "basic-user-mapping-cache-size"; }
+
+    };
+
+    /**
+     * Returns the user mapping providing all authorization data given within
      * the XML file specified by the "basic-user-mapping" property in
-     * guacamole.properties. If the XML file has been modified or has not yet
-     * been read, this function may reread the file.
+     * guacamole.properties. The user mapping of each file is shared by all
+     * providers.
      * 
-     * @return A UserMapping containing all authorization data within the
-     *         user mapping XML file.
+     * @return An AuthorizationSource providing all authorization data within
+     *         the user mapping XML file.
      * @throws GuacamoleException If the user mapping property is missing or
      *                            an error occurs while parsing the XML file.
      */
-    private UserMapping getUserMapping() throws GuacamoleException {
+    private AuthorizationSource getUserMapping() throws GuacamoleException {
+
+        SharedUserMapping shared = sharedUserMapping;
+        if (shared == null) {
+            shared = SharedUserMapping.getInstance(
+                    GuacamoleProperties.getRequiredProperty(BASIC_USER_MAPPING));
+            sharedUserMapping = shared;
+        }
+
+        return shared.getUserMapping();
+
+    }
+
+    @Override
+    public Map<String, GuacamoleConfiguration> getAuthorizedConfigurations(Credentials credentials) throws GuacamoleException {
+
+        // Validate and return info for given user and pass
+        Authorization auth = getUserMapping().getAuthorization(credentials.getUsername());
+        if (auth != null && auth.validate(credentials.getUsername(), credentials.getPassword()))
+            return auth.getConfigurations();
+
+        // Unauthorized
+        return null;
+
+    }
+
+    @Override
+    public long getRevision(Credentials credentials) throws GuacamoleException {
+
+        // Revision changes with any change to the user's authorization
+        Authorization auth = getUserMapping().getAuthorization(credentials.getUsername());
+        if (auth != null)
+            return auth.getRevision();
+
+        // Unknown user
+        return 0;
+
+    }
+
+    /**
+     * The user mapping read from a single file, shared by all providers
+     * reading that file, such that the file is watched and reread only once
+     * no matter how many providers exist.
+     */
+    private static class SharedUserMapping {
+
+        private static final Logger logger = LoggerFactory.getLogger(BasicFileAuthenticationProvider.class);
+
+        /**
+         * The SharedUserMapping of each file, by absolute path. Each is
+         * referenced only weakly, such that its watcher stops once no
+         * provider uses it.
+         */
+        private static final Map<File, WeakReference<SharedUserMapping>> instances =
+                new HashMap<File, WeakReference<SharedUserMapping>>();
+
+        /**
+         * The most recently read user mapping, or null if the user mapping file
+         * has not yet been read. This is either a UserMapping or, if indexing is
+         * enabled, a UserMappingIndex. Published user mappings are never
+         * modified; a reload builds an entirely new user mapping and replaces
+         * this one.
+         */
+        private final AtomicReference<AuthorizationSource> userMapping =
+                new AtomicReference<AuthorizationSource>();
+
+        /**
+         * Lock held while the user mapping file is being read, such that only
+         * one thread reads the file at a time.
+         */
+        private final ReentrantLock reloadLock = new ReentrantLock();
+
+        /**
+         * The user mapping file.
+         */
+        private final File file;
+
+        /**
+         * Watcher which rereads the user mapping file whenever it changes, or
+         * null if the file has not yet been read.
+         */
+        private FileWatcher watcher;
+
+        /**
+         * The index file built from the user mapping file, or null if indexing
+         * is disabled. Read only while holding reloadLock.
+         */
+        private File indexFile;
+
+        /**
+         * The maximum number of authorizations kept decoded when reading
+         * through an index. Read only while holding reloadLock.
+         */
+        private int cacheSize;
+
+        /**
+         * Listener which rereads the user mapping file when notified. The
+         * watcher references this listener only weakly, and stops once no
+         * provider uses this user mapping.
+         */
+        private final FileChangeListener reloader = new FileChangeListener() {
+
+            @Override
+            public void fileChanged(File file) {
+
+                reloadLock.lock();
+                try {
+                    userMapping.set(readUserMapping(file));
+                }
+                catch (GuacamoleException e) {
+                    logger.error("Unable to reread user mapping file. Previous user mapping remains in use.", e);
+                }
+                finally {
+                    reloadLock.unlock();
+                }
+
+            }
+
+        };
+
+        /**
+         * Creates a new SharedUserMapping for the given file. The file is not
+         * read until first use.
+         *
+         * @param file The user mapping file.
+         */
+        private SharedUserMapping(File file) {
+            this.file = file;
+        }
 
-        // Get user user_mapping file
-        File user_mapping_file =
-                GuacamoleProperties.getRequiredProperty(BASIC_USER_MAPPING);
+        /**
+         * Returns the SharedUserMapping of the given file, creating it if no
+         * provider is currently using that file.
+         *
+         * @param file The user mapping file.
+         * @return The SharedUserMapping of the given file.
+         */
+        public static SharedUserMapping getInstance(File file) {
 
-        // If user_mapping not yet read, or user_mapping has been modified, reread
-        if (user_mapping == null ||
-                (user_mapping_file.exists()
-                 && mod_time < user_mapping_file.lastModified())) {
+            File key = file.getAbsoluteFile();
+
+            synchronized (instances) {
+
+                // Use existing instance if still in use
+                WeakReference<SharedUserMapping> reference = instances.get(key);
+                SharedUserMapping instance = reference != null ? reference.get() : null;
+                if (instance != null)
+                    return instance;
+
+                // Forget instances no longer in use
+                Iterator<WeakReference<SharedUserMapping>> references = instances.values().iterator();
+                while (references.hasNext()) {
+                    if (references.next().get() == null)
+                        references.remove();
+                }
+
+                instance = new SharedUserMapping(key);
+                instances.put(key, new WeakReference<SharedUserMapping>(instance));
+                return instance;
+
+            }
+
+        }
+
+        /**
+         * Returns the user mapping providing all authorization data given within
+         * the user mapping file. The file is read upon first use, and is then
+         * reread in the background whenever it changes, such that this function
+         * normally returns the user mapping already in memory without touching
+         * the filesystem.
+         * 
+         * @return An AuthorizationSource providing all authorization data within
+         *         the user mapping XML file.
+         * @throws GuacamoleException If an error occurs while parsing the XML
+         *                            file.
+         */
+        public AuthorizationSource getUserMapping() throws GuacamoleException {
+
+            // Use current user mapping if already read
+            AuthorizationSource current = userMapping.get();
+            if (current != null)
+                return current;
+
+            reloadLock.lock();
+            try {
+
+                // Read only if not already read by another thread
+                current = userMapping.get();
+                if (current != null)
+                    return current;
+
+                // Index user mapping file, if enabled
+                Boolean indexEnabled = GuacamoleProperties.getProperty(BASIC_USER_MAPPING_INDEX);
+                if (indexEnabled != null && indexEnabled) {
+
+                    indexFile = new File(file.getPath() + ".idx");
+
+                    Integer configuredCacheSize = GuacamoleProperties.getProperty(BASIC_USER_MAPPING_CACHE_SIZE);
+                    if (configuredCacheSize != null)
+                        cacheSize = configuredCacheSize;
+                    else
+                        cacheSize = DEFAULT_CACHE_SIZE;
+
+                }
+
+                // Watch for changes before reading, such that no change is missed
+                if (watcher == null) {
+
+                    Integer pollInterval = GuacamoleProperties.getProperty(BASIC_USER_MAPPING_POLL_INTERVAL);
+                    if (pollInterval == null)
+                        pollInterval = 0;
+
+                    watcher = FileWatcher.newFileWatcher(file, reloader, pollInterval);
+                    watcher.start();
+
+                }
+
+                current = readUserMapping(file);
+                userMapping.set(current);
+
+                return current;
+
+            }
+            finally {
+                reloadLock.unlock();
+            }
+
+        }
+
+        /**
+         * Reads the given user mapping file into a new user mapping, through its
+         * index if indexing is enabled. This function must only be called while
+         * holding reloadLock.
+         *
+         * @param user_mapping_file The user mapping file to read.
+         * @return A new AuthorizationSource providing all authorization data
+         *         within the file.
+         * @throws GuacamoleException If an error occurs while reading or parsing
+         *                            the XML file, or while building its index.
+         */
+        private AuthorizationSource readUserMapping(File user_mapping_file)
+                throws GuacamoleException {
+
+            if (indexFile != null)
+                return readUserMappingIndex(user_mapping_file);
+
+            UserMapping parsed = parseUserMapping(user_mapping_file);
+
+            // Keep everything unchanged from the previous user mapping, such
+            // that only changes occupy new memory
+            AuthorizationSource previous = userMapping.get();
+            UserMappingDiff diff = new UserMappingDiff(
+                    previous instanceof UserMapping ? (UserMapping) previous : null,
+                    parsed);
+
+            logger.info("User mapping read: {} users added, {} changed, {} removed, {} unchanged.",
+                    new Object[] { diff.getAdded(), diff.getChanged(),
+                                   diff.getRemoved(), diff.getUnchanged() });
+
+            // The merged mapping is no longer modified once merging is done
+            return diff.getUserMapping().freeze();
+
+        }
+
+        /**
+         * Returns the index of the given user mapping file, building the index
+         * first if it does not exist or was built from an older version of the
+         * file. This function must only be called while holding reloadLock.
+         *
+         * @param user_mapping_file The user mapping file to read.
+         * @return The index of the given user mapping file.
+         * @throws GuacamoleException If an error occurs while reading or parsing
+         *                            the XML file, or while building its index.
+         */
+        private UserMappingIndex readUserMappingIndex(File user_mapping_file)
+                throws GuacamoleException {
+
+            // Use existing index if built from the file as it is now
+            if (indexFile.exists()) {
+
+                try {
+
+                    UserMappingIndex index = new UserMappingIndex(indexFile, cacheSize);
+                    if (index.isCurrent(user_mapping_file)) {
+                        logger.info("Using user mapping index: {} ({} users)",
+                                indexFile, index.getUserCount());
+                        return index;
+                    }
+
+                }
+                catch (GuacamoleException e) {
+                    logger.warn("Unable to read user mapping index. Index will be rebuilt.", e);
+                }
+
+            }
+
+            // Note the version of the file before reading, such that any change
+            // made while reading results in the index being rebuilt again
+            long modified = user_mapping_file.lastModified();
+            long length = user_mapping_file.length();
+
+            UserMapping parsed = parseUserMapping(user_mapping_file);
+
+            logger.info("Building user mapping index: {}", indexFile);
+            UserMappingIndexWriter.write(parsed, indexFile, modified, length);
+
+            return new UserMappingIndex(indexFile, cacheSize);
+
+        }
+
+        /**
+         * Parses the given user mapping file into a new user mapping.
+         *
+         * @param user_mapping_file The user mapping file to parse.
+         * @return A new user mapping containing all authorization data within
+         *         the file.
+         * @throws GuacamoleException If an error occurs while reading or parsing
+         *                            the XML file.
+         */
+        private UserMapping parseUserMapping(File user_mapping_file)
+                throws GuacamoleException {
 
             logger.info("Reading user mapping file: {}", user_mapping_file);
 
@@ -103,7 +467,7 @@ public class BasicFileAuthenticationProvider implements AuthenticationProvider {
                 // Get handler for root element
                 UserMappingTagHandler userMappingHandler =
                         new UserMappingTagHandler();
-                
+
                 // Set up document handler
                 DocumentHandler contentHandler = new DocumentHandler(
                         "user-mapping", userMappingHandler);
@@ -114,12 +478,14 @@ public class BasicFileAuthenticationProvider implements AuthenticationProvider {
 
                 // Read and parse file
                 Reader reader = new BufferedReader(new FileReader(user_mapping_file));
-                parser.parse(new InputSource(reader));
-                reader.close();
+                try {
+                    parser.parse(new InputSource(reader));
+                }
+                finally {
+                    reader.close();
+                }
 
-                // Store mod time and user mapping
-                mod_time = user_mapping_file.lastModified();
-                user_mapping = userMappingHandler.asUserMapping();
+                return userMappingHandler.asUserMapping();
 
             }
             catch (IOException e) {
@@ -131,22 +497,6 @@ public class BasicFileAuthenticationProvider implements AuthenticationProvider {
 
         }
 
-        // Return (possibly cached) user mapping
-        return user_mapping;
-
-    }
-
-    @Override
-    public Map<String, GuacamoleConfiguration> getAuthorizedConfigurations(Credentials credentials) throws GuacamoleException {
-
-        // Validate and return info for given user and pass
-        Authorization auth = getUserMapping().getAuthorization(credentials.getUsername());
-        if (auth != null && auth.validate(credentials.getUsername(), credentials.getPassword()))
-            return auth.getConfigurations();
-
-        // Unauthorized
-        return null;
-
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,231 @@
+package net.sourceforge.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.GuacamoleTunnel;
+import net.sourceforge.guacamole.net.basic.async.AsyncReadDispatcher;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import net.sourceforge.guacamole.properties.GuacamoleProperties;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+import net.sourceforge.guacamole.servlet.GuacamoleSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunnel servlet which behaves identically to BasicGuacamoleTunnelServlet,
+ * except that read requests are serviced asynchronously using the Servlet
+ * 3.0 API, such that no container thread is held while waiting for data from
+ * guacd. This servlet is registered dynamically by AsyncTunnelSupportLoader,
+ * and only if Servlet 3.0 is available and the asynchronous tunnel is enabled
+ * in guacamole.properties.
+ *
+ * If virtual threads are in use, connect requests, including any
+ * authentication they require and the handshake with guacd, are also run
+ * asynchronously on virtual threads rather than on container threads.
+ *
+ * @author Michael Jumper
+ */
+public class BasicGuacamoleAsyncTunnelServlet extends BasicGuacamoleTunnelServlet {
+
+    private Logger logger = LoggerFactory.getLogger(BasicGuacamoleAsyncTunnelServlet.class);
+
+    /**
+     * The prefix of the query string of all read requests.
+     */
+    private static final String READ_PREFIX = "read:";
+
+    /**
+     * The query string of all connect requests.
+     */
+    private static final String CONNECT_QUERY = "connect";
+
+    /**
+     * The length of the string form of a tunnel UUID.
+     */
+    private static final int UUID_LENGTH = 36;
+
+    /**
+     * The default number of milliseconds between checks for available data.
+     */
+    private static final int DEFAULT_POLL_INTERVAL = 10;
+
+    /**
+     * The default maximum number of milliseconds a read may remain parked
+     * without data from guacd.
+     */
+    private static final int DEFAULT_MAX_WAIT = 10000;
+
+    /**
+     * The dispatcher which services all parked reads.
+     */
+    private AsyncReadDispatcher dispatcher;
+
+    /**
+     * The executor running connect requests, or null if connect requests
+     * run on container threads.
+     */
+    private ExecutorService connectExecutor;
+
+    @Override
+    public void init() throws ServletException {
+
+        super.init();
+
+        try {
+
+            // Read poll interval
+            Integer pollInterval = GuacamoleProperties.getProperty(BasicGuacamoleProperties.ASYNC_TUNNEL_POLL_INTERVAL);
+            if (pollInterval == null)
+                pollInterval = DEFAULT_POLL_INTERVAL;
+
+            // Read number of workers, defaulting to two per core
+            Integer threads = GuacamoleProperties.getProperty(BasicGuacamoleProperties.ASYNC_TUNNEL_THREADS);
+            if (threads == null)
+                threads = 2 * Runtime.getRuntime().availableProcessors();
+
+            dispatcher = new AsyncReadDispatcher(pollInterval, threads, DEFAULT_MAX_WAIT,
+                    getSuspender());
+
+            // Only offload connects if doing so costs no platform threads
+            if (GuacamoleThreads.getMode() == GuacamoleThreads.Mode.VIRTUAL)
+                connectExecutor = GuacamoleThreads.newWorkerPool("tunnel-connect", threads);
+
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading asynchronous tunnel configuration from properties.", e);
+            throw new ServletException(e);
+        }
+
+    }
+
+    @Override
+    public void destroy() {
+
+        if (dispatcher != null)
+            dispatcher.shutdown();
+
+        if (connectExecutor != null)
+            connectExecutor.shutdown();
+
+        super.destroy();
+
+    }
+
+    @Override
+    protected void service(final HttpServletRequest request,
+            final HttpServletResponse response)
+    throws IOException, ServletException {
+
+        // Handle all but connect requests normally
+        if (connectExecutor == null
+                || !CONNECT_QUERY.equals(request.getQueryString())
+                || !request.isAsyncSupported()) {
+            super.service(request, response);
+            return;
+        }
+
+        final AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+
+        // Authenticate and connect without holding this thread
+        connectExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    BasicGuacamoleAsyncTunnelServlet.super.service(request, response);
+                }
+                catch (Exception e) {
+
+                    logger.error("Error connecting tunnel.", e);
+
+                    try {
+                        if (!response.isCommitted())
+                            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                    catch (IOException ignore) {
+                        // Client will see an incomplete response
+                    }
+
+                }
+                finally {
+                    context.complete();
+                }
+
+            }
+
+        });
+
+    }
+
+    @Override
+    protected void authenticatedService(
+            Map<String, GuacamoleConfiguration> configs,
+            HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException {
+
+        // Handle all but read requests normally
+        String query = request.getQueryString();
+        if (query == null || !query.startsWith(READ_PREFIX)
+                || query.length() < READ_PREFIX.length() + UUID_LENGTH
+                || !request.isAsyncSupported()) {
+            super.authenticatedService(configs, request, response);
+            return;
+        }
+
+        String uuid = query.substring(READ_PREFIX.length(),
+                READ_PREFIX.length() + UUID_LENGTH);
+
+        try {
+
+            // Get tunnel, ensure tunnel exists
+            GuacamoleSession session = new GuacamoleSession(request.getSession(true));
+            GuacamoleTunnel tunnel = session.getTunnel(uuid);
+            if (tunnel == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such tunnel.");
+                return;
+            }
+
+            // Note that although we are sending text, Webkit browsers will
+            // buffer 1024 bytes before starting a normal stream if we use
+            // anything but application/octet-stream.
+            response.setContentType("application/octet-stream");
+            response.setHeader("Cache-Control", "no-cache");
+
+            // Wait for data without holding this thread
+            dispatcher.park(session, tunnel, request.startAsync());
+
+        }
+        catch (GuacamoleException e) {
+            throw new ServletException(e);
+        }
+
+    }
+
+}
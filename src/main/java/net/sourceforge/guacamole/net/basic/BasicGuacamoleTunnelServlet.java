@@ -18,30 +18,54 @@ package net.sourceforge.guacamole.net.basic;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Map;
+import java.util.Properties;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import net.sourceforge.guacamole.GuacamoleException;
 import net.sourceforge.guacamole.GuacamoleSecurityException;
+import net.sourceforge.guacamole.io.GuacamoleReader;
 import net.sourceforge.guacamole.net.GuacamoleSocket;
 import net.sourceforge.guacamole.net.GuacamoleTunnel;
-import net.sourceforge.guacamole.net.InetGuacamoleSocket;
 import net.sourceforge.guacamole.net.auth.Credentials;
+import net.sourceforge.guacamole.net.basic.admission.Admission;
+import net.sourceforge.guacamole.net.basic.admission.TunnelAdmissionException;
 import net.sourceforge.guacamole.net.basic.event.SessionListenerCollection;
+import net.sourceforge.guacamole.net.basic.guacd.GuacdConnection;
+import net.sourceforge.guacamole.net.basic.guacd.GuacdConnector;
+import net.sourceforge.guacamole.net.basic.metrics.ConnectMetrics;
+import net.sourceforge.guacamole.net.basic.metrics.ConnectPhase;
+import net.sourceforge.guacamole.net.basic.metrics.ConnectTimer;
+import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import net.sourceforge.guacamole.net.basic.recording.SessionRecording;
+import net.sourceforge.guacamole.net.basic.share.SharedTunnelBuffer;
+import net.sourceforge.guacamole.net.basic.share.SharedViewerSocket;
+import net.sourceforge.guacamole.net.basic.tunnel.BasicGuacamoleTunnel;
+import net.sourceforge.guacamole.net.basic.tunnel.LagTracker;
+import net.sourceforge.guacamole.net.basic.tunnel.ReplayBuffer;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelCloseReason;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelCompression;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelReaper;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelRegistry;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelResponseWriter;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelStatistics;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelSuspender;
 import net.sourceforge.guacamole.net.event.TunnelCloseEvent;
 import net.sourceforge.guacamole.net.event.TunnelConnectEvent;
 import net.sourceforge.guacamole.net.event.listener.TunnelCloseListener;
 import net.sourceforge.guacamole.net.event.listener.TunnelConnectListener;
 import net.sourceforge.guacamole.properties.GuacamoleProperties;
-import net.sourceforge.guacamole.protocol.ConfiguredGuacamoleSocket;
 import net.sourceforge.guacamole.protocol.GuacamoleClientInformation;
 import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
 import net.sourceforge.guacamole.servlet.GuacamoleHTTPTunnelServlet;
+import net.sourceforge.guacamole.servlet.GuacamoleSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,14 +79,320 @@ public class BasicGuacamoleTunnelServlet extends AuthenticatingHttpServlet {
 
     private Logger logger = LoggerFactory.getLogger(BasicGuacamoleTunnelServlet.class);
 
+    /**
+     * The request attribute holding the Admission of a connect request.
+     */
+    private static final String ADMISSION_ATTRIBUTE = "GUAC_ADMISSION";
+
+    /**
+     * The request attribute holding the ConnectTimer of a connect request.
+     */
+    private static final String CONNECT_TIMER_ATTRIBUTE = "GUAC_CONNECT_TIMER";
+
+    /**
+     * The shared connector which connects each tunnel to guacd.
+     */
+    private GuacdConnector connector;
+
+    /**
+     * The number of milliseconds a client may fall behind before the output
+     * of its tunnel is reduced, or 0 if output is never reduced.
+     */
+    private int lagThreshold = LagTracker.DEFAULT_THRESHOLD;
+
+    /**
+     * The size of each segment file of a session recording, in bytes.
+     */
+    private int recordingSegmentSize = SessionRecording.DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * The number of bytes of each session recording which may be waiting to
+     * be written before further data is dropped.
+     */
+    private int recordingQueueSize = SessionRecording.DEFAULT_QUEUE_SIZE;
+
+    /**
+     * The number of bytes of recent output each shared tunnel holds for its
+     * viewers.
+     */
+    private int shareBufferSize = SharedTunnelBuffer.DEFAULT_CAPACITY;
+
+    /**
+     * The suspender keeping tunnels open for their clients to resume, or
+     * null if tunnels cannot be resumed.
+     */
+    private TunnelSuspender suspender;
+
+    /**
+     * The number of bytes of unacknowledged output each tunnel holds for
+     * resending to a resuming client.
+     */
+    private int replayBufferSize = ReplayBuffer.DEFAULT_CAPACITY;
+
+    /**
+     * The reaper closing idle and overly long-lived tunnels, or null if
+     * tunnels are never closed for those reasons.
+     */
+    private TunnelReaper reaper;
+
+    @Override
+    public void init() throws ServletException {
+
+        super.init();
+
+        // Get lag threshold, if specified
+        try {
+            Integer threshold = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_LAG_THRESHOLD);
+            if (threshold != null)
+                lagThreshold = threshold;
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading lag threshold from properties.", e);
+            throw new ServletException(e);
+        }
+
+        // Get recording sizes, if specified
+        try {
+
+            Integer segmentSize = GuacamoleProperties.getProperty(BasicGuacamoleProperties.RECORDING_SEGMENT_SIZE);
+            if (segmentSize != null)
+                recordingSegmentSize = segmentSize;
+
+            Integer queueSize = GuacamoleProperties.getProperty(BasicGuacamoleProperties.RECORDING_QUEUE_SIZE);
+            if (queueSize != null)
+                recordingQueueSize = queueSize;
+
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading recording configuration from properties.", e);
+            throw new ServletException(e);
+        }
+
+        // Get share buffer size, if specified
+        try {
+            Integer bufferSize = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_SHARE_BUFFER_SIZE);
+            if (bufferSize != null)
+                shareBufferSize = bufferSize;
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading share buffer size from properties.", e);
+            throw new ServletException(e);
+        }
+
+        // Get resume timeout and replay buffer size, if specified
+        try {
+
+            Integer timeout = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_RESUME_TIMEOUT);
+            if (timeout == null)
+                timeout = TunnelSuspender.DEFAULT_TIMEOUT;
+
+            Integer bufferSize = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_REPLAY_BUFFER_SIZE);
+            if (bufferSize != null)
+                replayBufferSize = bufferSize;
+
+            if (timeout > 0)
+                suspender = new TunnelSuspender(timeout);
+
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading tunnel resume configuration from properties.", e);
+            throw new ServletException(e);
+        }
+
+        // Get slow connect threshold, if specified
+        try {
+            Integer threshold = GuacamoleProperties.getProperty(BasicGuacamoleProperties.CONNECT_SLOW_THRESHOLD);
+            if (threshold != null)
+                ConnectMetrics.setSlowThreshold(threshold);
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading slow connect threshold from properties.", e);
+            throw new ServletException(e);
+        }
+
+        // Get tunnel idle and lifetime limits, if specified
+        try {
+
+            Integer idleTimeout = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_IDLE_TIMEOUT);
+            if (idleTimeout == null)
+                idleTimeout = 0;
+
+            Integer maxLifetime = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_MAX_LIFETIME);
+            if (maxLifetime == null)
+                maxLifetime = 0;
+
+            if (idleTimeout > 0 || maxLifetime > 0)
+                reaper = new TunnelReaper(idleTimeout, maxLifetime);
+
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading tunnel limits from properties.", e);
+            throw new ServletException(e);
+        }
+
+        // Set up connections to guacd
+        try {
+            connector = GuacdConnector.acquire();
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading guacd configuration from properties.", e);
+            throw new ServletException(e);
+        }
+
+    }
+
+    @Override
+    public void destroy() {
+
+        // Release guacd connections once no longer used by any servlet
+        if (connector != null)
+            GuacdConnector.release();
+
+        // Stop exposing tunnels of this web application
+        TunnelRegistry.unregisterAll();
+        ConnectMetrics.unregisterAll();
+
+        if (suspender != null)
+            suspender.shutdown();
+
+        if (reaper != null)
+            reaper.shutdown();
+
+        super.destroy();
+
+    }
+
+    /**
+     * Returns the suspender keeping tunnels open for their clients to
+     * resume.
+     *
+     * @return The suspender of this servlet, or null if tunnels cannot be
+     *         resumed.
+     */
+    protected TunnelSuspender getSuspender() {
+        return suspender;
+    }
+
+    /**
+     * Resumes the suspended tunnel having the given UUID, attached to the
+     * session of the given request. The client will first be sent all
+     * output following the last sync instruction it received, as given by
+     * the "sync" parameter of the request or, if not given, the last sync
+     * instruction it acknowledged.
+     *
+     * @param request The connect request of the resuming client.
+     * @param uuid The UUID of the tunnel to resume.
+     * @return The resumed tunnel.
+     * @throws GuacamoleException If there is no such tunnel, or if the
+     *                            output the client missed is no longer
+     *                            available.
+     */
+    private GuacamoleTunnel resume(HttpServletRequest request, String uuid)
+            throws GuacamoleException {
+
+        GuacamoleSession session = new GuacamoleSession(request.getSession(true));
+
+        // Only open tunnels of this session may be resumed
+        GuacamoleTunnel existing = session.getTunnel(uuid);
+        if (!(existing instanceof BasicGuacamoleTunnel) || !existing.isOpen())
+            throw new GuacamoleException("No such tunnel to resume.");
+
+        BasicGuacamoleTunnel tunnel = (BasicGuacamoleTunnel) existing;
+        ReplayBuffer replayBuffer = tunnel.getReplayBuffer();
+        if (replayBuffer == null)
+            throw new GuacamoleException("Tunnel cannot be resumed.");
+
+        // Get last sync received by client
+        long sync = tunnel.getLagTracker().getLastAcknowledged();
+        String syncParam = request.getParameter("sync");
+        if (syncParam != null) {
+            try {
+                sync = Long.parseLong(syncParam);
+            }
+            catch (NumberFormatException e) {
+                throw new GuacamoleException("Invalid sync timestamp.", e);
+            }
+        }
+
+        // Fail now if client cannot catch up, such that it connects anew
+        if (replayBuffer.getOutputAfter(sync) == null)
+            throw new GuacamoleException("Output missed by client is no longer available.");
+
+        tunnel.resume(sync);
+        logger.info("Tunnel {} resumed from {}.", uuid, request.getRemoteAddr());
+
+        return tunnel;
+
+    }
+
+    /**
+     * Checks for changes to the user's authorization data only when
+     * connecting, as reads and writes of an open tunnel do not use the
+     * configurations of the session.
+     */
+    @Override
+    protected boolean isRefreshRequired(HttpServletRequest request) {
+        return "connect".equals(request.getQueryString());
+    }
+
     @Override
     protected void authenticatedService(
             Map<String, GuacamoleConfiguration> configs,
             HttpServletRequest request, HttpServletResponse response)
     throws IOException, ServletException {
 
-        // If authenticated, respond as tunnel
-        tunnelServlet.service(request, response);
+        // Handle all but connect requests normally
+        if (!"connect".equals(request.getQueryString())) {
+            tunnelServlet.service(request, response);
+            return;
+        }
+
+        // Resumed tunnels still hold the admission they were connected with,
+        // and make no new connection to guacd
+        if (request.getParameter("resume") != null) {
+            tunnelServlet.service(request, response);
+            return;
+        }
+
+        ConnectTimer timer = new ConnectTimer(getServiceStartTime(request));
+        timer.mark(ConnectPhase.AUTHENTICATION);
+
+        // Wait for guacd to be available, failing fast if overloaded. Viewers
+        // of shared tunnels are admitted like any other tunnel, counting
+        // against tunnel-max-count and tunnel-max-per-user, as each holds an
+        // open tunnel of its own, but release their handshake slot at once.
+        Credentials credentials = getCredentials(request.getSession(true));
+        Admission admission;
+        try {
+            admission = connector.getAdmission().admit(
+                    credentials != null ? credentials.getUsername() : null);
+        }
+        catch (TunnelAdmissionException e) {
+
+            if (e.getRetryAfter() > 0)
+                response.setHeader("Retry-After", Integer.toString(e.getRetryAfter()));
+
+            response.sendError(e.getStatus(), e.getMessage());
+            return;
+
+        }
+        catch (GuacamoleException e) {
+            throw new ServletException(e);
+        }
+
+        timer.mark(ConnectPhase.ADMISSION);
+
+        // Connect, keeping admission only if a tunnel results
+        request.setAttribute(ADMISSION_ATTRIBUTE, admission);
+        request.setAttribute(CONNECT_TIMER_ATTRIBUTE, timer);
+        try {
+            tunnelServlet.service(request, response);
+        }
+        finally {
+            admission.handshakeComplete();
+            if (!admission.isClaimed())
+                admission.release();
+        }
 
     }
 
@@ -151,6 +481,11 @@ public class BasicGuacamoleTunnelServlet extends AuthenticatingHttpServlet {
         @Override
         protected GuacamoleTunnel doConnect(HttpServletRequest request) throws GuacamoleException {
 
+            // Resume existing tunnel, if requested
+            String resume = request.getParameter("resume");
+            if (resume != null)
+                return resume(request, resume);
+
             HttpSession httpSession = request.getSession(true);
 
             // Get listeners
@@ -163,6 +498,10 @@ public class BasicGuacamoleTunnelServlet extends AuthenticatingHttpServlet {
                 throw e;
             }
 
+            ConnectTimer timer = (ConnectTimer) request.getAttribute(CONNECT_TIMER_ATTRIBUTE);
+            if (timer != null)
+                timer.mark(ConnectPhase.LISTENERS);
+
             // Get ID of connection
             String id = request.getParameter("id");
 
@@ -208,17 +547,52 @@ public class BasicGuacamoleTunnelServlet extends AuthenticatingHttpServlet {
             if (video_mimetypes != null)
                 info.getVideoMimetypes().addAll(Arrays.asList(video_mimetypes));
 
-            // Configure and connect socket
-            String hostname = GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_HOSTNAME);
-            int port = GuacamoleProperties.getProperty(GuacamoleProperties.GUACD_PORT);
+            // Choose compression of output, if requested
+            TunnelCompression compression = TunnelCompression.negotiate(
+                    request.getParameterValues("compress"),
+                    request.getHeader("Accept-Encoding"));
+
+            // Join shared tunnel instead of connecting, if requested
+            String join = request.getParameter("join");
+            BasicGuacamoleTunnel shared = null;
+
+            GuacamoleSocket socket;
+            String endpoint;
+            GuacdConnection connection = null;
+
+            if (join != null) {
+
+                // Only shared tunnels of the same connection may be joined,
+                // as judged by configuration rather than by name, which is
+                // chosen by each user's own authorization
+                shared = TunnelRegistry.getTunnel(join);
+                if (shared == null || shared.getShare() == null
+                        || !shared.getShare().isAuthorized(config)) {
+                    logger.warn("Shared tunnel {} not found for connection \"{}\".", join, id);
+                    throw new GuacamoleSecurityException("Requested tunnel is not shared.");
+                }
+
+                socket = new SharedViewerSocket(shared.getShare());
+                endpoint = shared.getStatistics().getGuacdEndpoint();
+
+                logger.info("Viewer from {} joined shared tunnel {}.", request.getRemoteAddr(), join);
+
+            }
+
+            // Otherwise, configure and connect socket
+            else {
+                connection = connector.connect(config, info, timer);
+                socket = connection.getSocket();
+                endpoint = connection.getEndpoint().toString();
+            }
 
-            GuacamoleSocket socket = new ConfiguredGuacamoleSocket(
-                    new InetGuacamoleSocket(hostname, port),
-                    config, info
-            );
+            // Let others connect now that guacd is done with the handshake
+            final Admission admission = (Admission) request.getAttribute(ADMISSION_ATTRIBUTE);
+            if (admission != null)
+                admission.handshakeComplete();
 
             // Associate socket with tunnel
-            GuacamoleTunnel tunnel = new GuacamoleTunnel(socket) {
+            BasicGuacamoleTunnel tunnel = new BasicGuacamoleTunnel(socket) {
 
                 @Override
                 public void close() throws GuacamoleException {
@@ -228,22 +602,181 @@ public class BasicGuacamoleTunnelServlet extends AuthenticatingHttpServlet {
                         throw new GuacamoleException("Tunnel close canceled by listener.");
 
                     // Close if no exception due to listener
-                    super.close();
+                    try {
+                        super.close();
+                    }
+                    finally {
+
+                        if (reaper != null)
+                            reaper.unregister(this);
+
+                        // Free space for another tunnel
+                        if (admission != null)
+                            admission.release();
+
+                    }
 
                 }
 
             };
 
+            tunnel.setCompression(compression);
+            tunnel.getLagTracker().setThreshold(lagThreshold);
+
+            // Allow client to resume after its connection fails
+            if (suspender != null)
+                tunnel.setReplayBuffer(new ReplayBuffer(replayBufferSize));
+
+            // Record who is using the tunnel, and through which guacd
+            TunnelStatistics statistics = tunnel.getStatistics();
+            statistics.setUsername(credentials.getUsername());
+            statistics.setConnectionId(id);
+            statistics.setProtocol(config.getProtocol());
+            statistics.setRemoteAddress(request.getRemoteAddr());
+            statistics.setGuacdEndpoint(endpoint);
+            statistics.setSharedTunnel(join);
+
+            if (connection != null)
+                statistics.setHandshake(connection.getConnectTime(),
+                        connection.isHandshakePipelined(),
+                        connection.getHandshakeTime());
+
             // Notify listeners about connection
             if (!notifyConnect(listeners, credentials, tunnel)) {
                 logger.info("Connection canceled by listener.");
+
+                // Disconnect, such that the guacd connection (and its count
+                // of active tunnels) is not held by a tunnel never used
+                try {
+                    socket.close();
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("Error closing canceled connection.", e);
+                }
+
                 return null;
             }
 
+            // Share output with viewers, if enabled for this connection
+            if (shared == null && "true".equals(config.getParameter("shared")))
+                tunnel.setShare(new SharedTunnelBuffer(shareBufferSize, config,
+                        connection.getArguments()));
+
+            // Record output, if enabled for this connection
+            String recordingPath = config.getParameter("recording-path");
+            if (shared == null && recordingPath != null) {
+
+                Properties details = new Properties();
+                details.setProperty("username", String.valueOf(credentials.getUsername()));
+                details.setProperty("connection", id);
+                details.setProperty("protocol", config.getProtocol());
+                details.setProperty("remote-address", request.getRemoteAddr());
+                details.setProperty("start-time", String.valueOf(new Date().getTime()));
+
+                try {
+                    tunnel.setRecording(new SessionRecording(new File(recordingPath),
+                            tunnel.getUUID().toString(), details,
+                            recordingSegmentSize, recordingQueueSize));
+                }
+                catch (GuacamoleException e) {
+
+                    logger.error("Unable to start recording. Connection closed.", e);
+
+                    // Close normally, such that listeners notified of the
+                    // connect are notified of the close
+                    try {
+                        tunnel.close(TunnelCloseReason.ERROR);
+                    }
+                    catch (GuacamoleException closeError) {
+                        logger.debug("Error closing tunnel after recording failed.", closeError);
+                        socket.close();
+                    }
+
+                    throw e;
+
+                }
+
+                logger.info("Recording tunnel {} to \"{}\".", tunnel.getUUID(), recordingPath);
+
+            }
+
+            // Time until the client receives its first frame
+            if (timer != null) {
+                timer.mark(ConnectPhase.CONNECT_LISTENERS);
+                timer.setDetails(config.getProtocol(), endpoint, id,
+                        credentials.getUsername(), tunnel.getUUID().toString());
+                tunnel.setConnectTimer(timer);
+            }
+
+            TunnelRegistry.register(tunnel);
+
+            // Hold admission until closed
+            if (admission != null)
+                admission.claim();
+
+            // Close tunnel once idle or open for too long
+            if (reaper != null)
+                reaper.register(new GuacamoleSession(httpSession), tunnel);
+
             return tunnel;
 
         }
 
+        @Override
+        protected void doRead(HttpServletRequest request,
+                HttpServletResponse response, String tunnelUUID)
+                throws GuacamoleException {
+
+            GuacamoleSession session = new GuacamoleSession(request.getSession(true));
+
+            // Get tunnel, ensure tunnel exists and is open
+            GuacamoleTunnel tunnel = session.getTunnel(tunnelUUID);
+            if (tunnel == null)
+                throw new GuacamoleException("No such tunnel.");
+
+            if (!tunnel.isOpen())
+                throw new GuacamoleException("Tunnel is closed.");
+
+            // Obtain exclusive read access
+            GuacamoleReader reader = tunnel.acquireReader();
+            try {
+
+                // Note that although we are sending text, Webkit browsers will
+                // buffer 1024 bytes before starting a normal stream if we use
+                // anything but application/octet-stream.
+                response.setContentType("application/octet-stream");
+                response.setHeader("Cache-Control", "no-cache");
+
+                // Close tunnel immediately upon EOF
+                if (!new TunnelResponseWriter(tunnel, reader, response).write(true)) {
+                    session.detachTunnel(tunnel);
+                    BasicGuacamoleTunnel.close(tunnel, TunnelCloseReason.GUACD_CLOSED);
+                }
+
+            }
+            catch (IOException e) {
+
+                // Keep tunnel open for client to resume, if possible
+                if (suspender == null || !(tunnel instanceof BasicGuacamoleTunnel)
+                        || !suspender.suspend(session, (BasicGuacamoleTunnel) tunnel)) {
+                    session.detachTunnel(tunnel);
+                    BasicGuacamoleTunnel.close(tunnel, TunnelCloseReason.CLIENT_FAILED);
+                }
+
+                throw new GuacamoleException("I/O error sending data to client: " + e.getMessage(), e);
+
+            }
+            catch (GuacamoleException e) {
+                session.detachTunnel(tunnel);
+                BasicGuacamoleTunnel.close(tunnel, TunnelCloseReason.ERROR);
+                throw e;
+            }
+            finally {
+                tunnel.releaseReader();
+            }
+
+        }
+
     };
 
 }
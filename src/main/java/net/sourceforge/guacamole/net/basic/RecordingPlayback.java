@@ -0,0 +1,249 @@
+package net.sourceforge.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.GuacamoleSecurityException;
+import net.sourceforge.guacamole.io.GuacamoleReader;
+import net.sourceforge.guacamole.net.GuacamoleTunnel;
+import net.sourceforge.guacamole.net.auth.Credentials;
+import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import net.sourceforge.guacamole.net.basic.recording.PlaybackSocket;
+import net.sourceforge.guacamole.net.basic.recording.RecordingIndex;
+import net.sourceforge.guacamole.net.basic.recording.RecordingReader;
+import net.sourceforge.guacamole.net.basic.tunnel.BasicGuacamoleTunnel;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelCompression;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelResponseWriter;
+import net.sourceforge.guacamole.properties.GuacamoleProperties;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+import net.sourceforge.guacamole.servlet.GuacamoleHTTPTunnelServlet;
+import net.sourceforge.guacamole.servlet.GuacamoleSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunnel servlet which plays back a recorded session of the authorized
+ * configuration having the given ID, in place of connecting to guacd. The
+ * recording is chosen with the "recording" parameter, which is the UUID of
+ * the recorded tunnel, and may be started at any point with the "seek"
+ * parameter (milliseconds since the start of the recording) and played
+ * faster or slower with the "speed" parameter. Only users listed in the
+ * "admin-users" property may use this servlet.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingPlayback extends AuthenticatingHttpServlet {
+
+    private Logger logger = LoggerFactory.getLogger(RecordingPlayback.class);
+
+    /**
+     * The fastest allowed playback speed.
+     */
+    private static final double MAX_SPEED = 64;
+
+    /**
+     * The names of all users allowed to use this servlet.
+     */
+    private Set<String> adminUsers;
+
+    @Override
+    public void init() throws ServletException {
+
+        super.init();
+
+        // Get admin users, if any
+        try {
+            adminUsers = GuacamoleProperties.getProperty(BasicGuacamoleProperties.ADMIN_USERS);
+            if (adminUsers == null)
+                adminUsers = Collections.emptySet();
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading admin users from properties.", e);
+            throw new ServletException(e);
+        }
+
+    }
+
+    @Override
+    protected void authenticatedService(
+            Map<String, GuacamoleConfiguration> configs,
+            HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException {
+
+        // If authenticated, respond as tunnel
+        tunnelServlet.service(request, response);
+
+    }
+
+    /**
+     * Wrapped GuacamoleHTTPTunnelServlet which will handle all authenticated
+     * requests.
+     */
+    private GuacamoleHTTPTunnelServlet tunnelServlet = new GuacamoleHTTPTunnelServlet() {
+
+        @Override
+        protected GuacamoleTunnel doConnect(HttpServletRequest request) throws GuacamoleException {
+
+            HttpSession httpSession = request.getSession(true);
+
+            // Get ID of connection
+            String id = request.getParameter("id");
+
+            // Get credentials
+            Credentials credentials = getCredentials(httpSession);
+
+            // Get authorized configs
+            Map<String, GuacamoleConfiguration> configs = getConfigurations(httpSession);
+
+            // If no configs/credentials in session, not authorized
+            if (credentials == null || configs == null)
+                throw new GuacamoleSecurityException("Cannot play back - user not logged in.");
+
+            // Only admin users may play back recordings
+            if (!adminUsers.contains(credentials.getUsername())) {
+                logger.warn("Playback denied to non-admin user from {}.", request.getRemoteAddr());
+                throw new GuacamoleSecurityException("Playback is not authorized.");
+            }
+
+            // Get authorized config
+            GuacamoleConfiguration config = configs.get(id);
+            if (config == null) {
+                logger.warn("Configuration id={} not found.", id);
+                throw new GuacamoleSecurityException("Requested configuration is not authorized.");
+            }
+
+            String recordingPath = config.getParameter("recording-path");
+            if (recordingPath == null)
+                throw new GuacamoleException("Requested configuration is not recorded.");
+
+            // Recording names are tunnel UUIDs, and nothing else may be read
+            String name;
+            try {
+                name = UUID.fromString(request.getParameter("recording")).toString();
+            }
+            catch (RuntimeException e) {
+                throw new GuacamoleException("Invalid recording.", e);
+            }
+
+            // Get playback position and speed, if provided
+            long seek = 0;
+            double speed = 1;
+            try {
+
+                String seekParam = request.getParameter("seek");
+                if (seekParam != null)
+                    seek = Math.max(0, Long.parseLong(seekParam));
+
+                String speedParam = request.getParameter("speed");
+                if (speedParam != null)
+                    speed = Double.parseDouble(speedParam);
+
+            }
+            catch (NumberFormatException e) {
+                throw new GuacamoleException("Invalid playback position or speed.", e);
+            }
+
+            if (!(speed > 0 && speed <= MAX_SPEED))
+                throw new GuacamoleException("Playback speed must be greater than 0 and at most " + MAX_SPEED + ".");
+
+            // Open recording
+            File directory = new File(recordingPath);
+            RecordingReader recording;
+            RecordingIndex index;
+            try {
+                recording = new RecordingReader(directory, name);
+                index = RecordingIndex.load(directory, name);
+            }
+            catch (IOException e) {
+                logger.warn("Unable to open recording \"{}\": {}", name, e.getMessage());
+                throw new GuacamoleException("Unable to open recording.", e);
+            }
+
+            logger.info("Playback of recording \"{}\" by {}.", name, credentials.getUsername());
+
+            BasicGuacamoleTunnel tunnel = new BasicGuacamoleTunnel(
+                    new PlaybackSocket(recording, index, seek, speed));
+
+            // Compress output, if requested
+            tunnel.setCompression(TunnelCompression.negotiate(
+                    request.getParameterValues("compress"),
+                    request.getHeader("Accept-Encoding")));
+
+            return tunnel;
+
+        }
+
+        @Override
+        protected void doRead(HttpServletRequest request,
+                HttpServletResponse response, String tunnelUUID)
+                throws GuacamoleException {
+
+            GuacamoleSession session = new GuacamoleSession(request.getSession(true));
+
+            // Get tunnel, ensure tunnel exists and is open
+            GuacamoleTunnel tunnel = session.getTunnel(tunnelUUID);
+            if (tunnel == null)
+                throw new GuacamoleException("No such tunnel.");
+
+            if (!tunnel.isOpen())
+                throw new GuacamoleException("Tunnel is closed.");
+
+            // Obtain exclusive read access
+            GuacamoleReader reader = tunnel.acquireReader();
+            try {
+
+                response.setContentType("application/octet-stream");
+                response.setHeader("Cache-Control", "no-cache");
+
+                // Close tunnel once playback ends
+                if (!new TunnelResponseWriter(tunnel, reader, response).write(true)) {
+                    session.detachTunnel(tunnel);
+                    tunnel.close();
+                }
+
+            }
+            catch (IOException e) {
+                session.detachTunnel(tunnel);
+                tunnel.close();
+                throw new GuacamoleException("I/O error sending data to client: " + e.getMessage(), e);
+            }
+            catch (GuacamoleException e) {
+                session.detachTunnel(tunnel);
+                tunnel.close();
+                throw e;
+            }
+            finally {
+                tunnel.releaseReader();
+            }
+
+        }
+
+    };
+
+}
@@ -0,0 +1,203 @@
+package net.sourceforge.guacamole.net.basic;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.auth.Credentials;
+import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import net.sourceforge.guacamole.net.basic.tunnel.BasicGuacamoleTunnel;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelRegistry;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelStatistics;
+import net.sourceforge.guacamole.properties.GuacamoleProperties;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple HttpServlet which outputs JSON describing all open tunnels, including
+ * their live traffic counters. Only users listed in the "admin-users"
+ * property may use this servlet.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelList extends AuthenticatingHttpServlet {
+
+    private Logger logger = LoggerFactory.getLogger(TunnelList.class);
+
+    /**
+     * The names of all users allowed to use this servlet.
+     */
+    private Set<String> adminUsers;
+
+    @Override
+    public void init() throws ServletException {
+
+        super.init();
+
+        // Get admin users, if any
+        try {
+            adminUsers = GuacamoleProperties.getProperty(BasicGuacamoleProperties.ADMIN_USERS);
+            if (adminUsers == null)
+                adminUsers = Collections.emptySet();
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading admin users from properties.", e);
+            throw new ServletException(e);
+        }
+
+    }
+
+    /**
+     * Writes the given string as a JSON string, escaping as necessary.
+     *
+     * @param out The writer to write to.
+     * @param value The string to write, or null.
+     */
+    private static void writeString(PrintWriter out, String value) {
+
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+
+        out.write('"');
+
+        for (int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+            switch (c) {
+
+                case '"':  out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n");  break;
+                case '\r': out.write("\\r");  break;
+                case '\t': out.write("\\t");  break;
+
+                default:
+                    if (c < 0x20)
+                        out.write(String.format("\\u%04x", (int) c));
+                    else
+                        out.write(c);
+
+            }
+
+        }
+
+        out.write('"');
+
+    }
+
+    /**
+     * Writes the given statistics as a JSON object.
+     *
+     * @param out The writer to write to.
+     * @param statistics The statistics to write.
+     */
+    private static void writeTunnel(PrintWriter out, TunnelStatistics statistics) {
+
+        out.write("{\"uuid\":");
+        writeString(out, statistics.getUUID());
+        out.write(",\"username\":");
+        writeString(out, statistics.getUsername());
+        out.write(",\"connection\":");
+        writeString(out, statistics.getConnectionId());
+        out.write(",\"protocol\":");
+        writeString(out, statistics.getProtocol());
+        out.write(",\"remoteAddress\":");
+        writeString(out, statistics.getRemoteAddress());
+        out.write(",\"guacd\":");
+        writeString(out, statistics.getGuacdEndpoint());
+        out.write(",\"sharedTunnel\":");
+        writeString(out, statistics.getSharedTunnel());
+        out.write(",\"created\":" + statistics.getCreationTime());
+        out.write(",\"lastActivity\":" + statistics.getLastActivityTime());
+        out.write(",\"handshakePipelined\":" + statistics.isHandshakePipelined());
+        out.write(",\"handshakeTime\":" + statistics.getHandshakeTime());
+        out.write(",\"connectLatency\":" + statistics.getConnectLatency());
+        out.write(",\"inputBytes\":" + statistics.getInputBytes());
+        out.write(",\"inputInstructions\":" + statistics.getInputInstructions());
+        out.write(",\"inputRate\":" + statistics.getInputRate());
+        out.write(",\"outputBytes\":" + statistics.getOutputBytes());
+        out.write(",\"outputInstructions\":" + statistics.getOutputInstructions());
+        out.write(",\"outputRate\":" + statistics.getOutputRate());
+        out.write(",\"compression\":");
+        writeString(out, statistics.getCompression());
+        out.write(",\"compressionRatio\":" + statistics.getCompressionRatio());
+        out.write(",\"averageBatchSize\":" + statistics.getAverageBatchSize());
+        out.write(",\"roundTripTime\":" + statistics.getRoundTripTime());
+        out.write(",\"lag\":" + statistics.getLag());
+        out.write(",\"droppedInstructions\":" + statistics.getDroppedInstructions());
+        out.write(",\"bufferedBytes\":" + statistics.getBufferedBytes());
+        out.write(",\"throttledTime\":" + statistics.getThrottledTime());
+        out.write(",\"recordedBytes\":" + statistics.getRecordedBytes());
+        out.write(",\"recordingDroppedBytes\":" + statistics.getRecordingDroppedBytes());
+        out.write('}');
+
+    }
+
+    @Override
+    protected void authenticatedService(
+            Map<String, GuacamoleConfiguration> configs,
+            HttpServletRequest request, HttpServletResponse response)
+    throws IOException {
+
+        // Only admin users may list tunnels
+        Credentials credentials = getCredentials(request.getSession(true));
+        if (credentials == null || !adminUsers.contains(credentials.getUsername())) {
+            logger.warn("Tunnel list denied to non-admin user from {}.", request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        // Do not cache
+        response.setHeader("Cache-Control", "no-cache");
+
+        // Write JSON
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        PrintWriter out = response.getWriter();
+        out.write('[');
+
+        // Write each open tunnel
+        boolean first = true;
+        for (BasicGuacamoleTunnel tunnel : TunnelRegistry.getTunnels()) {
+
+            if (!first)
+                out.write(',');
+
+            writeTunnel(out, tunnel.getStatistics());
+            first = false;
+
+        }
+
+        out.write(']');
+        out.flush();
+
+    }
+
+}
@@ -0,0 +1,109 @@
+package net.sourceforge.guacamole.net.basic.admission;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Permission for a single connect request to perform its handshake with
+ * guacd and then hold a tunnel open. The handshake permit should be
+ * released as soon as the handshake completes; the tunnel permit should be
+ * released when the tunnel closes, or immediately if no tunnel results.
+ * Each permit is released at most once, no matter how many times the
+ * corresponding function is called.
+ *
+ * @author Michael Jumper
+ */
+public class Admission {
+
+    /**
+     * The controller which granted this admission.
+     */
+    private final AdmissionController controller;
+
+    /**
+     * The name of the user admitted.
+     */
+    private final String username;
+
+    /**
+     * Whether the handshake permit has been released.
+     */
+    private final AtomicBoolean handshakeReleased = new AtomicBoolean();
+
+    /**
+     * Whether the tunnel permit has been released.
+     */
+    private final AtomicBoolean tunnelReleased = new AtomicBoolean();
+
+    /**
+     * Whether a tunnel has taken ownership of this admission.
+     */
+    private volatile boolean claimed = false;
+
+    /**
+     * Creates a new Admission granted by the given controller.
+     *
+     * @param controller The controller granting the admission.
+     * @param username The name of the user admitted.
+     */
+    Admission(AdmissionController controller, String username) {
+        this.controller = controller;
+        this.username = username;
+    }
+
+    /**
+     * Marks this admission as owned by a newly-created tunnel, which will
+     * call release() when closed.
+     */
+    public void claim() {
+        claimed = true;
+    }
+
+    /**
+     * Returns whether a tunnel has taken ownership of this admission.
+     *
+     * @return true if claimed by a tunnel, false otherwise.
+     */
+    public boolean isClaimed() {
+        return claimed;
+    }
+
+    /**
+     * Releases the handshake permit, allowing another connect request to
+     * begin its handshake.
+     */
+    public void handshakeComplete() {
+        if (handshakeReleased.compareAndSet(false, true))
+            controller.releaseHandshake();
+    }
+
+    /**
+     * Releases both permits, as the tunnel has closed or will never exist.
+     */
+    public void release() {
+
+        handshakeComplete();
+
+        if (tunnelReleased.compareAndSet(false, true))
+            controller.releaseTunnel(username);
+
+    }
+
+}
@@ -0,0 +1,425 @@
+package net.sourceforge.guacamole.net.basic.admission;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletResponse;
+import net.sourceforge.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of handshakes with guacd in progress at once and the
+ * number of tunnels open at once, queueing connect requests which cannot be
+ * admitted immediately. Waiting requests are admitted in the order they
+ * arrived. If too many requests are already waiting, or a request waits too
+ * long, it is refused with 503 (Service Unavailable), such that a surge of
+ * connections is turned away quickly rather than overloading guacd for
+ * everyone. Each user may also be limited to a number of open tunnels.
+ *
+ * The state of admission is exposed through JMX as
+ * "net.sourceforge.guacamole:type=Admission".
+ *
+ * @author Michael Jumper
+ */
+public class AdmissionController implements AdmissionControllerMXBean {
+
+    private Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+    /**
+     * The default maximum number of connect requests waiting at once.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+
+    /**
+     * The default maximum number of milliseconds a connect request may wait.
+     */
+    public static final int DEFAULT_QUEUE_TIMEOUT = 10000;
+
+    /**
+     * The HTTP status reported when a user has too many open tunnels. The
+     * Servlet API defines no constant for this status.
+     */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The name of the MBean exposing admission through JMX.
+     */
+    private static final String MBEAN_NAME = "net.sourceforge.guacamole:type=Admission";
+
+    /**
+     * Permits for handshakes in progress, or null if unlimited.
+     */
+    private final Semaphore handshakes;
+
+    /**
+     * Permits for open tunnels, or null if unlimited.
+     */
+    private final Semaphore tunnels;
+
+    /**
+     * The open tunnel count of each user, or null if unlimited.
+     */
+    private final UserTunnelQuota quota;
+
+    /**
+     * The maximum number of connect requests waiting at once.
+     */
+    private final int queueSize;
+
+    /**
+     * The maximum number of nanoseconds a connect request may wait.
+     */
+    private final long queueTimeout;
+
+    /**
+     * The number of seconds refused clients are asked to wait before
+     * trying again.
+     */
+    private final int retryAfter;
+
+    /**
+     * The number of connect requests waiting.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * The number of handshakes in progress.
+     */
+    private final AtomicInteger activeHandshakes = new AtomicInteger();
+
+    /**
+     * The number of admitted tunnels which remain open.
+     */
+    private final AtomicInteger activeTunnels = new AtomicInteger();
+
+    /**
+     * The number of connect requests admitted.
+     */
+    private final AtomicLong admitted = new AtomicLong();
+
+    /**
+     * The number of connect requests refused due to overload.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * The number of connect requests refused due to user quotas.
+     */
+    private final AtomicLong quotaRejected = new AtomicLong();
+
+    /**
+     * The number of connect requests whose wait has been recorded.
+     */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /**
+     * The total time connect requests waited, in nanoseconds.
+     */
+    private final AtomicLong totalWait = new AtomicLong();
+
+    /**
+     * The longest time any connect request waited, in nanoseconds.
+     */
+    private final AtomicLong maxWait = new AtomicLong();
+
+    /**
+     * Creates a new AdmissionController enforcing the given limits. A limit
+     * of 0 or less disables that limit.
+     *
+     * @param maxHandshakes The maximum number of handshakes in progress at
+     *                      once.
+     * @param maxTunnels The maximum number of tunnels open at once.
+     * @param maxUserTunnels The maximum number of tunnels of each user open
+     *                       at once.
+     * @param queueSize The maximum number of connect requests waiting at
+     *                  once.
+     * @param queueTimeout The maximum number of milliseconds a connect
+     *                     request may wait.
+     */
+    public AdmissionController(int maxHandshakes, int maxTunnels,
+            int maxUserTunnels, int queueSize, int queueTimeout) {
+
+        this.handshakes = (maxHandshakes > 0) ? new Semaphore(maxHandshakes, true) : null;
+        this.tunnels    = (maxTunnels    > 0) ? new Semaphore(maxTunnels,    true) : null;
+        this.quota      = (maxUserTunnels > 0) ? new UserTunnelQuota(maxUserTunnels) : null;
+
+        this.queueSize = queueSize;
+        this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+        this.retryAfter = Math.max(1, (queueTimeout + 999) / 1000);
+
+    }
+
+    /**
+     * Acquires a permit from the given semaphore, waiting at most the given
+     * number of nanoseconds, and respecting the order of any threads already
+     * waiting.
+     *
+     * @param semaphore The semaphore to acquire from, or null if unlimited.
+     * @param timeout The maximum number of nanoseconds to wait.
+     * @return true if a permit was acquired, false otherwise.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static boolean acquire(Semaphore semaphore, long timeout)
+            throws InterruptedException {
+
+        if (semaphore == null)
+            return true;
+
+        return semaphore.tryAcquire(Math.max(timeout, 0), TimeUnit.NANOSECONDS);
+
+    }
+
+    /**
+     * Releases a permit to the given semaphore.
+     *
+     * @param semaphore The semaphore to release to, or null if unlimited.
+     */
+    private static void release(Semaphore semaphore) {
+        if (semaphore != null)
+            semaphore.release();
+    }
+
+    /**
+     * Records the time a connect request spent waiting for admission.
+     *
+     * @param wait The time spent waiting, in nanoseconds.
+     */
+    private void recordWait(long wait) {
+
+        waitCount.incrementAndGet();
+        totalWait.addAndGet(wait);
+
+        long max;
+        do {
+            max = maxWait.get();
+        } while (wait > max && !maxWait.compareAndSet(max, wait));
+
+    }
+
+    /**
+     * Admits a connect request of the given user, waiting if necessary until
+     * a handshake may begin and a tunnel may be opened.
+     *
+     * @param username The name of the user connecting, or null if not
+     *                 known, in which case no per-user limit applies.
+     * @return The admission of the connect request, whose permits must be
+     *         released once no longer needed.
+     * @throws TunnelAdmissionException If the connect request is refused.
+     * @throws GuacamoleException If interrupted while waiting.
+     */
+    public Admission admit(String username) throws GuacamoleException {
+
+        long start = System.nanoTime();
+
+        // Refuse outright if user has too many tunnels
+        if (quota != null && username != null && !quota.acquire(username)) {
+            quotaRejected.incrementAndGet();
+            logger.info("User \"{}\" already has the maximum number of open connections.", username);
+            throw new TunnelAdmissionException("Too many open connections.",
+                    SC_TOO_MANY_REQUESTS, 0);
+        }
+
+        boolean haveTunnel = false;
+        boolean haveHandshake = false;
+
+        try {
+
+            // Admit immediately if nobody is waiting and limits allow
+            haveTunnel = acquire(tunnels, 0);
+            if (haveTunnel)
+                haveHandshake = acquire(handshakes, 0);
+
+            // Otherwise, wait in line, if there is room
+            if (!haveHandshake) {
+
+                if (queued.incrementAndGet() > queueSize) {
+                    queued.decrementAndGet();
+                    rejected.incrementAndGet();
+                    logger.warn("Too many connections waiting. Connection of user \"{}\" refused.", username);
+                    throw new TunnelAdmissionException("Server is busy.",
+                            HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter);
+                }
+
+                try {
+
+                    long deadline = start + queueTimeout;
+
+                    if (!haveTunnel)
+                        haveTunnel = acquire(tunnels, deadline - System.nanoTime());
+
+                    if (haveTunnel)
+                        haveHandshake = acquire(handshakes, deadline - System.nanoTime());
+
+                }
+                finally {
+                    queued.decrementAndGet();
+                }
+
+                if (!haveHandshake) {
+                    recordWait(System.nanoTime() - start);
+                    rejected.incrementAndGet();
+                    logger.warn("Connection of user \"{}\" not admitted in time. Refused.", username);
+                    throw new TunnelAdmissionException("Server is busy.",
+                            HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter);
+                }
+
+            }
+
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleException("Interrupted while waiting for admission.", e);
+        }
+
+        // Give back anything acquired if not admitted
+        finally {
+            if (!haveHandshake) {
+                if (haveTunnel)
+                    release(tunnels);
+                if (quota != null && username != null)
+                    quota.release(username);
+            }
+        }
+
+        recordWait(System.nanoTime() - start);
+        admitted.incrementAndGet();
+        activeHandshakes.incrementAndGet();
+        activeTunnels.incrementAndGet();
+
+        return new Admission(this, username);
+
+    }
+
+    /**
+     * Releases the handshake permit of an admitted connect request.
+     */
+    void releaseHandshake() {
+        activeHandshakes.decrementAndGet();
+        release(handshakes);
+    }
+
+    /**
+     * Releases the tunnel permit of an admitted connect request of the given
+     * user.
+     *
+     * @param username The name of the user whose tunnel closed.
+     */
+    void releaseTunnel(String username) {
+
+        activeTunnels.decrementAndGet();
+        release(tunnels);
+
+        if (quota != null && username != null)
+            quota.release(username);
+
+    }
+
+    /**
+     * Exposes this controller through JMX, if possible.
+     */
+    public void register() {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(MBEAN_NAME));
+        }
+        catch (JMException e) {
+            logger.warn("Unable to expose admission control through JMX: {}", e.getMessage());
+        }
+        catch (SecurityException e) {
+            logger.warn("Unable to expose admission control through JMX: {}", e.getMessage());
+        }
+
+    }
+
+    /**
+     * Stops exposing this controller through JMX.
+     */
+    public void unregister() {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        }
+        catch (JMException e) {
+            logger.debug("Unable to remove admission control MBean.", e);
+        }
+        catch (SecurityException e) {
+            logger.debug("Unable to remove admission control MBean.", e);
+        }
+
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public int getActiveHandshakes() {
+        return activeHandshakes.get();
+    }
+
+    @Override
+    public int getActiveTunnels() {
+        return activeTunnels.get();
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getQuotaRejectedCount() {
+        return quotaRejected.get();
+    }
+
+    @Override
+    public double getAverageWaitTime() {
+
+        long count = waitCount.get();
+        if (count == 0)
+            return 0;
+
+        return totalWait.get() / 1000000.0 / count;
+
+    }
+
+    @Override
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWait.get());
+    }
+
+}
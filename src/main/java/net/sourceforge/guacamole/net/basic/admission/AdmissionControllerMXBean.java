@@ -0,0 +1,89 @@
+package net.sourceforge.guacamole.net.basic.admission;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Management interface exposing the state of the admission of new tunnels.
+ *
+ * @author Michael Jumper
+ */
+public interface AdmissionControllerMXBean {
+
+    /**
+     * Returns the number of connect requests waiting to be admitted.
+     *
+     * @return The number of waiting connect requests.
+     */
+    public int getQueueDepth();
+
+    /**
+     * Returns the number of handshakes with guacd currently in progress.
+     *
+     * @return The number of admitted connect requests which have not yet
+     *         completed their handshake.
+     */
+    public int getActiveHandshakes();
+
+    /**
+     * Returns the number of admitted tunnels which remain open.
+     *
+     * @return The number of open tunnels.
+     */
+    public int getActiveTunnels();
+
+    /**
+     * Returns the number of connect requests admitted.
+     *
+     * @return The number of admitted connect requests.
+     */
+    public long getAdmittedCount();
+
+    /**
+     * Returns the number of connect requests refused because too many were
+     * already waiting, or because they waited too long.
+     *
+     * @return The number of connect requests refused due to overload.
+     */
+    public long getRejectedCount();
+
+    /**
+     * Returns the number of connect requests refused because the user
+     * already had the maximum number of open tunnels.
+     *
+     * @return The number of connect requests refused due to user quotas.
+     */
+    public long getQuotaRejectedCount();
+
+    /**
+     * Returns the average time connect requests waited to be admitted,
+     * including those which did not need to wait and those refused after
+     * waiting too long.
+     *
+     * @return The average wait time, in milliseconds.
+     */
+    public double getAverageWaitTime();
+
+    /**
+     * Returns the longest time any connect request waited to be admitted.
+     *
+     * @return The maximum wait time, in milliseconds.
+     */
+    public long getMaxWaitTime();
+
+}
@@ -0,0 +1,79 @@
+package net.sourceforge.guacamole.net.basic.admission;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.sourceforge.guacamole.GuacamoleException;
+
+/**
+ * An exception thrown when a new tunnel is refused by an
+ * AdmissionController, carrying the HTTP status the refusal should be
+ * reported with and how long the client should wait before trying again.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelAdmissionException extends GuacamoleException {
+
+    /**
+     * The HTTP status code the refusal should be reported with.
+     */
+    private final int status;
+
+    /**
+     * The number of seconds the client should wait before trying again, or
+     * 0 if trying again soon will not help.
+     */
+    private final int retryAfter;
+
+    /**
+     * Creates a new TunnelAdmissionException with the given message, HTTP
+     * status, and retry delay.
+     *
+     * @param message A human readable description of the refusal.
+     * @param status The HTTP status code the refusal should be reported with.
+     * @param retryAfter The number of seconds the client should wait before
+     *                   trying again, or 0 if trying again soon will not
+     *                   help.
+     */
+    public TunnelAdmissionException(String message, int status, int retryAfter) {
+        super(message);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns the HTTP status code the refusal should be reported with.
+     *
+     * @return The HTTP status code of the refusal.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the number of seconds the client should wait before trying
+     * again.
+     *
+     * @return The number of seconds to wait, or 0 if trying again soon will
+     *         not help.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+}
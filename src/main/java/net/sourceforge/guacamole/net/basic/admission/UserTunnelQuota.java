@@ -0,0 +1,153 @@
+package net.sourceforge.guacamole.net.basic.admission;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the open tunnels of each user, refusing tunnels beyond a fixed
+ * limit per user. Counters are divided among a fixed number of stripes by
+ * the hash of the username, each stripe guarded by its own lock, such that
+ * users connecting at the same time rarely contend with each other.
+ * Counters are removed once they reach zero, so only users with open tunnels
+ * occupy memory.
+ *
+ * @author Michael Jumper
+ */
+public class UserTunnelQuota {
+
+    /**
+     * The number of stripes. This must be a power of two.
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * The maximum number of open tunnels of each user.
+     */
+    private final int limit;
+
+    /**
+     * The open tunnel count of each user with open tunnels, divided among
+     * stripes by the hash of the username. Each map is its own lock.
+     */
+    private final Map<String, Integer>[] stripes;
+
+    /**
+     * Creates a new UserTunnelQuota allowing each user the given number of
+     * open tunnels.
+     *
+     * @param limit The maximum number of open tunnels of each user.
+     */
+    public UserTunnelQuota(int limit) {
+
+        this.limit = limit;
+        @SuppressWarnings("unchecked")
+        Map<String, Integer>[] maps = (Map<String, Integer>[]) new Map<?, ?>[STRIPES];
+        this.stripes = maps;
+
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new HashMap<String, Integer>();
+
+    }
+
+    /**
+     * Returns the stripe holding the counter of the given user.
+     *
+     * @param username The name of the user.
+     * @return The stripe holding the counter of the user.
+     */
+    private Map<String, Integer> getStripe(String username) {
+
+        // Spread high bits, as HashMap does
+        int hash = username.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return stripes[hash & (STRIPES - 1)];
+
+    }
+
+    /**
+     * Counts a new tunnel of the given user, if the user is below the limit.
+     *
+     * @param username The name of the user.
+     * @return true if the tunnel was counted, false if the user already has
+     *         the maximum number of open tunnels.
+     */
+    public boolean acquire(String username) {
+
+        Map<String, Integer> stripe = getStripe(username);
+        synchronized (stripe) {
+
+            Integer count = stripe.get(username);
+            if (count == null)
+                count = 0;
+
+            if (count >= limit)
+                return false;
+
+            stripe.put(username, count + 1);
+            return true;
+
+        }
+
+    }
+
+    /**
+     * Stops counting a tunnel of the given user, previously counted by
+     * acquire().
+     *
+     * @param username The name of the user.
+     */
+    public void release(String username) {
+
+        Map<String, Integer> stripe = getStripe(username);
+        synchronized (stripe) {
+
+            Integer count = stripe.get(username);
+            if (count == null)
+                return;
+
+            if (count <= 1)
+                stripe.remove(username);
+            else
+                stripe.put(username, count - 1);
+
+        }
+
+    }
+
+    /**
+     * Returns the number of open tunnels of the given user.
+     *
+     * @param username The name of the user.
+     * @return The number of open tunnels of the user.
+     */
+    public int getCount(String username) {
+
+        Map<String, Integer> stripe = getStripe(username);
+        synchronized (stripe) {
+            Integer count = stripe.get(username);
+            return (count != null) ? count : 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,486 @@
+package net.sourceforge.guacamole.net.basic.async;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleReader;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+import net.sourceforge.guacamole.net.GuacamoleTunnel;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import net.sourceforge.guacamole.net.basic.nio.NioGuacamoleSocket;
+import net.sourceforge.guacamole.net.basic.nio.ReadyListener;
+import net.sourceforge.guacamole.net.basic.tunnel.BasicGuacamoleTunnel;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelCloseReason;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelResponseWriter;
+import net.sourceforge.guacamole.net.basic.tunnel.TunnelSuspender;
+import net.sourceforge.guacamole.servlet.GuacamoleSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Services HTTP tunnel read requests asynchronously. Rather than holding a
+ * container thread blocked on guacd for the duration of each read request,
+ * read requests are parked using the Servlet 3.0 asynchronous API. A single
+ * background thread watches all tunnels having parked reads, and hands each
+ * tunnel to a small pool of worker threads only once data from guacd is
+ * available. The worker writes all available instructions, ends the
+ * response, and returns immediately.
+ *
+ * If a tunnel is serviced by the guacd relay engine, the relay notifies the
+ * dispatcher as soon as data arrives, and the tunnel is dispatched without
+ * waiting for the poller. The poller then only ends reads which have waited
+ * too long.
+ *
+ * As with the synchronous tunnel, read requests for the same tunnel are
+ * answered strictly in the order they were received.
+ *
+ * @author Michael Jumper
+ */
+public class AsyncReadDispatcher {
+
+    private Logger logger = LoggerFactory.getLogger(AsyncReadDispatcher.class);
+
+    /**
+     * The parked reads of all tunnels, indexed by tunnel UUID.
+     */
+    private final ConcurrentMap<String, PendingReads> pending =
+            new ConcurrentHashMap<String, PendingReads>();
+
+    /**
+     * The maximum number of milliseconds a read may remain parked without
+     * data from guacd before it is ended with an empty response.
+     */
+    private final long maxWait;
+
+    /**
+     * The suspender keeping tunnels open for their clients to resume, or
+     * null if tunnels cannot be resumed.
+     */
+    private final TunnelSuspender suspender;
+
+    /**
+     * The single thread watching all tunnels for available data.
+     */
+    private final ScheduledExecutorService poller;
+
+    /**
+     * The threads which write available data to parked reads.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * All parked reads for a single tunnel.
+     */
+    private class PendingReads {
+
+        /**
+         * The session the tunnel is attached to.
+         */
+        private final GuacamoleSession session;
+
+        /**
+         * The tunnel being read.
+         */
+        private final GuacamoleTunnel tunnel;
+
+        /**
+         * All parked reads, in the order they were received.
+         */
+        private final ConcurrentLinkedQueue<AsyncContext> reads =
+                new ConcurrentLinkedQueue<AsyncContext>();
+
+        /**
+         * Whether a worker is currently servicing the oldest parked read.
+         */
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        /**
+         * The time the oldest parked read began waiting, in milliseconds
+         * since the epoch.
+         */
+        private volatile long waitingSince = System.currentTimeMillis();
+
+        /**
+         * Whether these reads have been removed from the pending reads of
+         * the dispatcher. No further reads may be added once removed.
+         */
+        private boolean removed = false;
+
+        /**
+         * Creates a new, empty set of parked reads for the given tunnel.
+         *
+         * @param session The session the tunnel is attached to.
+         * @param tunnel The tunnel being read.
+         */
+        public PendingReads(GuacamoleSession session, GuacamoleTunnel tunnel) {
+            this.session = session;
+            this.tunnel = tunnel;
+        }
+
+    }
+
+    /**
+     * Creates a new AsyncReadDispatcher which checks all tunnels for available
+     * data at the given interval, writing that data using the given number of
+     * worker threads.
+     *
+     * @param pollInterval The number of milliseconds between checks for
+     *                     available data.
+     * @param threads The number of worker threads, if platform threads are
+     *                in use.
+     * @param maxWait The maximum number of milliseconds a read may remain
+     *                parked without data before it is ended with an empty
+     *                response.
+     * @param suspender The suspender keeping tunnels open for their clients
+     *                  to resume if writing to the client fails, or null if
+     *                  such tunnels should be closed.
+     */
+    public AsyncReadDispatcher(long pollInterval, int threads, long maxWait,
+            TunnelSuspender suspender) {
+
+        this.maxWait = maxWait;
+        this.suspender = suspender;
+
+        poller = Executors.newSingleThreadScheduledExecutor(
+                GuacamoleThreads.newThreadFactory("async-tunnel-poller"));
+
+        workers = GuacamoleThreads.newWorkerPool("async-tunnel-worker", threads);
+
+        poller.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    poll();
+                }
+                catch (RuntimeException e) {
+                    logger.error("Unexpected error while polling tunnels.", e);
+                }
+            }
+
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Parks the given asynchronous read request until data is available from
+     * the given tunnel.
+     *
+     * @param session The session the tunnel is attached to.
+     * @param tunnel The tunnel to read from.
+     * @param context The asynchronous context of the read request.
+     */
+    public void park(GuacamoleSession session, GuacamoleTunnel tunnel,
+            final AsyncContext context) {
+
+        String uuid = tunnel.getUUID().toString();
+
+        // No timeout from container; parked reads are ended by the poller
+        context.setTimeout(0);
+
+        for (;;) {
+
+            // Get or create set of parked reads for tunnel
+            PendingReads reads = pending.get(uuid);
+            if (reads == null) {
+                PendingReads created = new PendingReads(session, tunnel);
+                reads = pending.putIfAbsent(uuid, created);
+                if (reads == null) {
+                    reads = created;
+                    watch(created);
+                }
+            }
+
+            // Add read unless the set was concurrently removed
+            synchronized (reads) {
+
+                if (reads.removed)
+                    continue;
+
+                if (reads.reads.isEmpty())
+                    reads.waitingSince = System.currentTimeMillis();
+
+                reads.reads.add(context);
+
+            }
+
+            // Forget about reads which fail or time out while parked
+            final PendingReads parked = reads;
+            context.addListener(new AsyncListener() {
+
+                @Override
+                public void onComplete(AsyncEvent event) {}
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {}
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                    if (parked.reads.remove(context))
+                        context.complete();
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                    if (parked.reads.remove(context))
+                        context.complete();
+                }
+
+            });
+
+            return;
+
+        }
+
+    }
+
+    /**
+     * Requests notification from the relay engine whenever data arrives for
+     * the tunnel of the given reads, if that tunnel is serviced by the relay.
+     *
+     * @param reads The parked reads to dispatch upon arrival of data.
+     */
+    private void watch(final PendingReads reads) {
+
+        GuacamoleSocket socket = reads.tunnel.getSocket();
+        if (socket instanceof NioGuacamoleSocket) {
+            ((NioGuacamoleSocket) socket).setReadyListener(new ReadyListener() {
+
+                @Override
+                public void ready() {
+                    check(reads, System.currentTimeMillis());
+                }
+
+            });
+        }
+
+    }
+
+    /**
+     * Checks all tunnels having parked reads, dispatching any tunnel which
+     * has data available, has closed, or has waited too long to a worker.
+     */
+    private void poll() {
+
+        long now = System.currentTimeMillis();
+
+        for (PendingReads reads : pending.values())
+            check(reads, now);
+
+    }
+
+    /**
+     * Checks the given tunnel, dispatching it to a worker if it has data
+     * available, has closed, or has waited too long. Tunnels without parked
+     * reads are forgotten once closed.
+     *
+     * @param reads The parked reads of the tunnel to check.
+     * @param now The current time, in milliseconds since the epoch.
+     */
+    private void check(final PendingReads reads, long now) {
+
+        // Skip tunnels already being serviced
+        if (reads.busy.get())
+            return;
+
+        // Clean up tunnels which are closed and have no reads
+        if (reads.reads.isEmpty()) {
+
+            if (!reads.tunnel.isOpen()) {
+                synchronized (reads) {
+                    if (reads.reads.isEmpty()) {
+                        reads.removed = true;
+                        pending.remove(reads.tunnel.getUUID().toString(), reads);
+                    }
+                }
+            }
+
+            return;
+
+        }
+
+        // Dispatch if data is ready or read must end
+        if (!reads.tunnel.isOpen() || available(reads.tunnel)
+                || now - reads.waitingSince >= maxWait) {
+
+            if (reads.busy.compareAndSet(false, true)) {
+                workers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        service(reads);
+                    }
+
+                });
+            }
+
+        }
+
+    }
+
+    /**
+     * Returns whether data from guacd is available on the given tunnel,
+     * without blocking.
+     *
+     * @param tunnel The tunnel to check.
+     * @return true if data is available, false otherwise.
+     */
+    private boolean available(GuacamoleTunnel tunnel) {
+
+        try {
+            return tunnel.getSocket().getReader().available();
+        }
+        catch (GuacamoleException e) {
+            // Let the worker deal with the error
+            return true;
+        }
+
+    }
+
+    /**
+     * Answers the oldest parked read of the given tunnel with all currently
+     * available data.
+     *
+     * @param reads The parked reads of the tunnel to service.
+     */
+    private void service(PendingReads reads) {
+
+        try {
+
+            AsyncContext context = reads.reads.poll();
+            if (context != null)
+                writeAvailable(reads, context);
+
+        }
+        finally {
+            reads.waitingSince = System.currentTimeMillis();
+            reads.busy.set(false);
+        }
+
+        // Data may have arrived while busy
+        check(reads, System.currentTimeMillis());
+
+    }
+
+    /**
+     * Writes all instructions currently available from the given tunnel to
+     * the response of the given read request, ending the response once no
+     * further data is immediately available.
+     *
+     * @param reads The parked reads of the tunnel being read.
+     * @param context The asynchronous context of the read request.
+     */
+    private void writeAvailable(PendingReads reads, AsyncContext context) {
+
+        GuacamoleTunnel tunnel = reads.tunnel;
+        HttpServletResponse response = (HttpServletResponse) context.getResponse();
+
+        try {
+
+            // Fail if tunnel is closed
+            if (!tunnel.isOpen()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Tunnel is closed.");
+                return;
+            }
+
+            GuacamoleReader reader = tunnel.acquireReader();
+            try {
+
+                // Write all available instructions, closing upon EOF
+                if (!new TunnelResponseWriter(tunnel, reader, response).write(false)) {
+                    reads.session.detachTunnel(tunnel);
+                    BasicGuacamoleTunnel.close(tunnel, TunnelCloseReason.GUACD_CLOSED);
+                }
+
+            }
+            finally {
+                tunnel.releaseReader();
+            }
+
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Error reading from tunnel.", e);
+            closeTunnel(reads, TunnelCloseReason.ERROR);
+        }
+        catch (IOException e) {
+
+            logger.debug("Error writing to client.", e);
+
+            // Keep tunnel open for client to resume, if possible
+            if (suspender == null || !(tunnel instanceof BasicGuacamoleTunnel)
+                    || !suspender.suspend(reads.session, (BasicGuacamoleTunnel) tunnel))
+                closeTunnel(reads, TunnelCloseReason.CLIENT_FAILED);
+
+        }
+        finally {
+            context.complete();
+        }
+
+    }
+
+    /**
+     * Detaches and closes the tunnel of the given parked reads following an
+     * error, logging any failure to close.
+     *
+     * @param reads The parked reads of the tunnel to close.
+     * @param reason The reason the tunnel is being closed.
+     */
+    private void closeTunnel(PendingReads reads, TunnelCloseReason reason) {
+
+        reads.session.detachTunnel(reads.tunnel);
+
+        try {
+            BasicGuacamoleTunnel.close(reads.tunnel, reason);
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Error closing tunnel.", e);
+        }
+
+    }
+
+    /**
+     * Stops all polling and worker threads, ending all parked reads.
+     */
+    public void shutdown() {
+
+        poller.shutdownNow();
+        workers.shutdownNow();
+
+        for (PendingReads reads : pending.values()) {
+            AsyncContext context;
+            while ((context = reads.reads.poll()) != null)
+                context.complete();
+        }
+
+    }
+
+}
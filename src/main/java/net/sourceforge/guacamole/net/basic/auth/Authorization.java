@@ -72,6 +72,22 @@ public class Authorization {
     private Map<String, GuacamoleConfiguration> configs = new
             TreeMap<String, GuacamoleConfiguration>();
 
+    /**
+     * The revision of this authorization, as returned by getRevision(), or 0
+     * if not yet calculated.
+     */
+    private volatile long revision = 0;
+
+    /**
+     * The 64-bit FNV-1a offset basis.
+     */
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+
+    /**
+     * The 64-bit FNV-1a prime.
+     */
+    private static final long FNV_PRIME = 0x100000001B3L;
+
     /**
      * Lookup table of hex bytes characters by value.
      */
@@ -244,4 +260,96 @@ public class Authorization {
         return configs;
     }
 
+    /**
+     * Adds the given string to the given 64-bit FNV-1a hash, preceded by its
+     * length such that consecutive strings cannot run together.
+     *
+     * @param hash The hash to add the string to.
+     * @param value The string to add, which may be null.
+     * @return The new value of the hash.
+     */
+    private static long hash(long hash, String value) {
+
+        if (value == null)
+            return (hash ^ 0xFF) * FNV_PRIME;
+
+        int length = value.length();
+        hash = (hash ^ length) * FNV_PRIME;
+
+        for (int i = 0; i < length; i++)
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+
+        return hash;
+
+    }
+
+    /**
+     * Returns a revision identifying the current contents of this
+     * authorization: its username, password, encoding and all
+     * configurations. The revision is calculated from the contents alone, so
+     * authorizations read separately from the same data have the same
+     * revision, and the revision changes if any of the contents change. Only
+     * the protocol of configurations other than MappedConfigurations is
+     * considered. The revision must not be requested until this
+     * authorization is no longer being modified.
+     *
+     * @return A non-zero revision identifying the contents of this
+     *         authorization.
+     */
+    public long getRevision() {
+
+        if (revision != 0)
+            return revision;
+
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, username);
+        hash = hash(hash, password);
+        hash = hash(hash, encoding.name());
+
+        for (Map.Entry<String, GuacamoleConfiguration> entry : configs.entrySet()) {
+
+            GuacamoleConfiguration config = entry.getValue();
+            hash = hash(hash, entry.getKey());
+            hash = hash(hash, config.getProtocol());
+
+            if (config instanceof MappedConfiguration) {
+                for (String name : ((MappedConfiguration) config).getParameterNames()) {
+                    hash = hash(hash, name);
+                    hash = hash(hash, config.getParameter(name));
+                }
+            }
+
+        }
+
+        // Zero is reserved for "not yet calculated"
+        if (hash == 0)
+            hash = 1;
+
+        revision = hash;
+        return hash;
+
+    }
+
+    @Override
+    public boolean equals(Object object) {
+
+        if (object == this)
+            return true;
+
+        if (!(object instanceof Authorization))
+            return false;
+
+        Authorization other = (Authorization) object;
+        return (username == null ? other.username == null : username.equals(other.username))
+            && (password == null ? other.password == null : password.equals(other.password))
+            && encoding == other.encoding
+            && configs.equals(other.configs);
+
+    }
+
+    @Override
+    public int hashCode() {
+        return username == null ? 0 : username.hashCode();
+    }
+
 }
@@ -0,0 +1,43 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.sourceforge.guacamole.GuacamoleException;
+
+/**
+ * Source of the authorizations of users, looked up by username.
+ *
+ * @author Michael Jumper
+ */
+public interface AuthorizationSource {
+
+    /**
+     * Returns the authorization corresponding to the user having the given
+     * username, if any. The authorization returned must not be modified.
+     *
+     * @param username The username to find the authorization for.
+     * @return The authorization corresponding to the user having the given
+     *         username, or null if no such authorization exists.
+     * @throws GuacamoleException If an error occurs while retrieving the
+     *                            authorization.
+     */
+    public Authorization getAuthorization(String username)
+            throws GuacamoleException;
+
+}
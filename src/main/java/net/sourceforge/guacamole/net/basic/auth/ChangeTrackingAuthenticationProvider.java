@@ -0,0 +1,49 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.auth.AuthenticationProvider;
+import net.sourceforge.guacamole.net.auth.Credentials;
+
+/**
+ * AuthenticationProvider which can report when the configurations it would
+ * authorize for given credentials have changed. Sessions which have already
+ * authenticated can then be given the new configurations without logging in
+ * again, and only when they actually change.
+ *
+ * @author Michael Jumper
+ */
+public interface ChangeTrackingAuthenticationProvider extends AuthenticationProvider {
+
+    /**
+     * Returns a revision identifying the current authorization data of the
+     * user having the given credentials. The revision changes whenever the
+     * result of getAuthorizedConfigurations() for the same credentials may
+     * have changed. Revisions must be comparable between different instances
+     * of the same provider reading the same data.
+     *
+     * @param credentials The credentials of the user.
+     * @return A revision identifying the authorization data of the user, or
+     *         0 if the user is not known.
+     * @throws GuacamoleException If the authorization data cannot be read.
+     */
+    public long getRevision(Credentials credentials) throws GuacamoleException;
+
+}
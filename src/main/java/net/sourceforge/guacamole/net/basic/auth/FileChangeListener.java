@@ -0,0 +1,39 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+
+/**
+ * Listener notified by a FileWatcher when the file being watched changes.
+ *
+ * @author Michael Jumper
+ */
+public interface FileChangeListener {
+
+    /**
+     * Called from the thread of a FileWatcher when the file being watched
+     * has been created or modified. Several changes in quick succession may
+     * result in a single call.
+     *
+     * @param file The file which changed.
+     */
+    public void fileChanged(File file);
+
+}
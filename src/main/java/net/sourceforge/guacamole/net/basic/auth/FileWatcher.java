@@ -0,0 +1,203 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a single file for changes from a background thread, notifying a
+ * FileChangeListener whenever the file is created or modified. Only a weak
+ * reference to the listener is kept; once the listener is no longer
+ * referenced elsewhere, the watcher stops by itself.
+ *
+ * @author Michael Jumper
+ */
+public abstract class FileWatcher implements Runnable {
+
+    private static Logger logger = LoggerFactory.getLogger(FileWatcher.class);
+
+    /**
+     * The number of milliseconds between checks of the file when polling is
+     * used because the file cannot otherwise be watched.
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 5000;
+
+    /**
+     * The file being watched.
+     */
+    private final File file;
+
+    /**
+     * The listener to notify of changes.
+     */
+    private final WeakReference<FileChangeListener> listener;
+
+    /**
+     * The thread watching the file, or null if not yet started.
+     */
+    private Thread thread;
+
+    /**
+     * Whether this watcher has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new FileWatcher which watches the given file.
+     *
+     * @param file The file to watch.
+     * @param listener The listener to notify of changes.
+     */
+    protected FileWatcher(File file, FileChangeListener listener) {
+        this.file = file;
+        this.listener = new WeakReference<FileChangeListener>(listener);
+    }
+
+    /**
+     * Creates a new FileWatcher for the given file, which must then be
+     * started. Unless a poll interval is given, the file is watched using
+     * the change notifications of its filesystem, if the Java runtime and
+     * filesystem support them, and is otherwise polled.
+     *
+     * @param file The file to watch.
+     * @param listener The listener to notify of changes.
+     * @param pollInterval The number of milliseconds between checks of the
+     *                     file, or 0 to use change notifications where
+     *                     possible.
+     * @return A new FileWatcher.
+     */
+    public static FileWatcher newFileWatcher(File file,
+            FileChangeListener listener, long pollInterval) {
+
+        if (pollInterval > 0)
+            return new PollingFileWatcher(file, listener, pollInterval);
+
+        // Use WatchService if running on Java 7 or later
+        try {
+            Class.forName("java.nio.file.WatchService");
+            return new WatchServiceFileWatcher(file, listener);
+        }
+        catch (ClassNotFoundException e) {
+            logger.debug("WatchService not available. Polling {} for changes.", file);
+        }
+        catch (LinkageError e) {
+            logger.debug("WatchService not available. Polling {} for changes.", file);
+        }
+        catch (IOException e) {
+            logger.warn("Unable to watch {} for changes. Polling instead.", file);
+            logger.debug("Unable to watch file.", e);
+        }
+
+        return new PollingFileWatcher(file, listener, DEFAULT_POLL_INTERVAL);
+
+    }
+
+    /**
+     * Returns the file being watched.
+     *
+     * @return The file being watched.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns whether this watcher should stop, either because it has been
+     * closed, or because its listener is no longer referenced.
+     *
+     * @return true if this watcher should stop, false otherwise.
+     */
+    protected boolean isStopped() {
+        return closed || listener.get() == null;
+    }
+
+    /**
+     * Notifies the listener that the file has changed. Errors thrown by the
+     * listener are logged, and do not stop this watcher.
+     */
+    protected void fileChanged() {
+
+        FileChangeListener current = listener.get();
+        if (current == null)
+            return;
+
+        try {
+            current.fileChanged(file);
+        }
+        catch (RuntimeException e) {
+            logger.error("Error handling change to " + file + ".", e);
+        }
+
+    }
+
+    /**
+     * Watches the file until this watcher stops, calling fileChanged() for
+     * each change.
+     *
+     * @throws InterruptedException If the thread is interrupted, which
+     *                              happens when this watcher is closed.
+     */
+    protected abstract void watch() throws InterruptedException;
+
+    @Override
+    public void run() {
+
+        try {
+            watch();
+        }
+        catch (InterruptedException e) {
+            // Closed
+        }
+
+        logger.debug("Stopped watching {}.", file);
+
+    }
+
+    /**
+     * Starts watching the file from a new background thread.
+     */
+    public synchronized void start() {
+
+        if (thread != null)
+            return;
+
+        thread = GuacamoleThreads.newThreadFactory("file-watcher").newThread(this);
+        thread.start();
+
+    }
+
+    /**
+     * Stops watching the file. The listener will not be notified of any
+     * further changes.
+     */
+    public synchronized void close() {
+
+        closed = true;
+
+        if (thread != null)
+            thread.interrupt();
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * GuacamoleConfiguration read from the user mapping, which remembers the
+ * names of its parameters such that two configurations can be compared by
+ * value. Configurations are equal if their protocols and all parameters
+ * are equal.
+ *
+ * @author Michael Jumper
+ */
+public class MappedConfiguration extends GuacamoleConfiguration {
+
+    /**
+     * The names of all parameters set, in order.
+     */
+    private final Set<String> parameterNames = new TreeSet<String>();
+
+    @Override
+    public void setParameter(String name, String value) {
+        parameterNames.add(name);
+        super.setParameter(name, value);
+    }
+
+    /**
+     * Returns the names of all parameters set, in order.
+     *
+     * @return The names of all parameters set.
+     */
+    public Set<String> getParameterNames() {
+        return Collections.unmodifiableSet(parameterNames);
+    }
+
+    /**
+     * Returns whether the given strings are equal, where either may be null.
+     *
+     * @param a The first string.
+     * @param b The second string.
+     * @return true if both strings are null or equal, false otherwise.
+     */
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+
+        if (object == this)
+            return true;
+
+        if (!(object instanceof MappedConfiguration))
+            return false;
+
+        MappedConfiguration other = (MappedConfiguration) object;
+        if (!equals(getProtocol(), other.getProtocol())
+                || !parameterNames.equals(other.parameterNames))
+            return false;
+
+        for (String name : parameterNames) {
+            if (!equals(getParameter(name), other.getParameter(name)))
+                return false;
+        }
+
+        return true;
+
+    }
+
+    @Override
+    public int hashCode() {
+
+        int hash = getProtocol() == null ? 0 : getProtocol().hashCode();
+        for (String name : parameterNames) {
+            String value = getParameter(name);
+            hash = 31 * hash + name.hashCode();
+            hash = 31 * hash + (value == null ? 0 : value.hashCode());
+        }
+
+        return hash;
+
+    }
+
+}
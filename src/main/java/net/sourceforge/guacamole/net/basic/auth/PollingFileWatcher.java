@@ -0,0 +1,81 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+
+/**
+ * FileWatcher which checks the modification time and length of the file at
+ * a fixed interval. This works on any filesystem, including network
+ * filesystems whose change notifications do not cover changes made by
+ * other hosts.
+ *
+ * @author Michael Jumper
+ */
+public class PollingFileWatcher extends FileWatcher {
+
+    /**
+     * The number of milliseconds between checks of the file.
+     */
+    private final long interval;
+
+    /**
+     * Creates a new PollingFileWatcher which checks the given file at the
+     * given interval.
+     *
+     * @param file The file to watch.
+     * @param listener The listener to notify of changes.
+     * @param interval The number of milliseconds between checks of the file.
+     */
+    public PollingFileWatcher(File file, FileChangeListener listener,
+            long interval) {
+        super(file, listener);
+        this.interval = interval;
+    }
+
+    @Override
+    protected void watch() throws InterruptedException {
+
+        File file = getFile();
+
+        long modified = file.lastModified();
+        long length = file.length();
+
+        while (!isStopped()) {
+
+            Thread.sleep(interval);
+
+            long currentModified = file.lastModified();
+            long currentLength = file.length();
+
+            if (currentModified == modified && currentLength == length)
+                continue;
+
+            modified = currentModified;
+            length = currentLength;
+
+            // Ignore removal of the file, keeping what was last read
+            if (currentModified != 0)
+                fileChanged();
+
+        }
+
+    }
+
+}
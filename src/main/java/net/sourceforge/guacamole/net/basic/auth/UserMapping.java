@@ -1,5 +1,6 @@
 package net.sourceforge.guacamole.net.basic.auth;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,18 +28,48 @@ import java.util.Map;
  * 
  * @author Mike Jumper
  */
-public class UserMapping {
+public class UserMapping implements AuthorizationSource {
 
     /**
      * All authorizations, indexed by username.
      */
-    private Map<String, Authorization> authorizations =
-            new HashMap<String, Authorization>();
-   
+    private final Map<String, Authorization> authorizations;
+
+    /**
+     * Creates a new, empty UserMapping.
+     */
+    public UserMapping() {
+        authorizations = new HashMap<String, Authorization>();
+    }
+
+    /**
+     * Creates a new UserMapping containing the given authorizations, indexed
+     * by username.
+     *
+     * @param authorizations All authorizations, indexed by username.
+     */
+    private UserMapping(Map<String, Authorization> authorizations) {
+        this.authorizations = authorizations;
+    }
+
+    /**
+     * Returns an unmodifiable view of this user mapping, to which no
+     * authorizations can be added. Provided this user mapping and its
+     * authorizations are no longer modified, the view returned is immutable,
+     * and may be shared freely between threads once safely published.
+     *
+     * @return An unmodifiable view of this user mapping.
+     */
+    public UserMapping freeze() {
+        return new UserMapping(Collections.unmodifiableMap(authorizations));
+    }
+
     /**
      * Adds the given authorization to the user mapping.
      * 
      * @param authorization The authorization to add to the user mapping.
+     * @throws UnsupportedOperationException If this user mapping is a view
+     *                                       returned by freeze().
      */
     public void addAuthorization(Authorization authorization) {
         authorizations.put(authorization.getUsername(), authorization);
@@ -52,8 +83,20 @@ public class UserMapping {
      * @return The authorization corresponding to the user having the given
      *         username, or null if no such authorization exists.
      */
+    @Override
     public Authorization getAuthorization(String username) {
         return authorizations.get(username);
     }
+
+    /**
+     * Returns all authorizations within this user mapping, indexed by
+     * username.
+     *
+     * @return An unmodifiable map of all authorizations, indexed by
+     *         username.
+     */
+    public Map<String, Authorization> getAuthorizations() {
+        return Collections.unmodifiableMap(authorizations);
+    }
     
 }
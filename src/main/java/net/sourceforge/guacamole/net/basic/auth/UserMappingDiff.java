@@ -0,0 +1,166 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Map;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * The differences between a user mapping and the user mapping it replaces.
+ * Creating a UserMappingDiff merges the two: authorizations and
+ * configurations of the new user mapping which are unchanged are replaced
+ * with those of the previous user mapping, such that only what changed
+ * occupies new memory once the previous user mapping is discarded.
+ *
+ * @author Michael Jumper
+ */
+public class UserMappingDiff {
+
+    /**
+     * The number of users not within the previous user mapping.
+     */
+    private int added = 0;
+
+    /**
+     * The number of users whose authorizations changed.
+     */
+    private int changed = 0;
+
+    /**
+     * The number of users no longer within the user mapping.
+     */
+    private int removed = 0;
+
+    /**
+     * The number of users whose authorizations are unchanged.
+     */
+    private int unchanged = 0;
+
+    /**
+     * The new user mapping, sharing all unchanged data with the previous
+     * user mapping.
+     */
+    private final UserMapping userMapping = new UserMapping();
+
+    /**
+     * Compares the given user mappings, merging the new user mapping with
+     * the previous one. The new user mapping must not be in use elsewhere,
+     * as its authorizations may be modified.
+     *
+     * @param previous The user mapping being replaced, or null if there is
+     *                 none.
+     * @param next The newly-read user mapping replacing it.
+     */
+    public UserMappingDiff(UserMapping previous, UserMapping next) {
+
+        for (Authorization authorization : next.getAuthorizations().values()) {
+
+            Authorization old = null;
+            if (previous != null)
+                old = previous.getAuthorization(authorization.getUsername());
+
+            // New user
+            if (old == null) {
+                added++;
+                userMapping.addAuthorization(authorization);
+            }
+
+            // Unchanged user, keep previous authorization
+            else if (old.equals(authorization)) {
+                unchanged++;
+                userMapping.addAuthorization(old);
+            }
+
+            // Changed user, keep any unchanged configurations
+            else {
+
+                changed++;
+
+                for (Map.Entry<String, GuacamoleConfiguration> entry :
+                        authorization.getConfigurations().entrySet()) {
+
+                    GuacamoleConfiguration config = old.getConfiguration(entry.getKey());
+                    if (entry.getValue().equals(config))
+                        entry.setValue(config);
+
+                }
+
+                userMapping.addAuthorization(authorization);
+
+            }
+
+        }
+
+        // Count users no longer present
+        if (previous != null) {
+            for (String username : previous.getAuthorizations().keySet()) {
+                if (next.getAuthorization(username) == null)
+                    removed++;
+            }
+        }
+
+    }
+
+    /**
+     * Returns the new user mapping, sharing all unchanged authorizations and
+     * configurations with the previous user mapping.
+     *
+     * @return The merged user mapping.
+     */
+    public UserMapping getUserMapping() {
+        return userMapping;
+    }
+
+    /**
+     * Returns the number of users not within the previous user mapping.
+     *
+     * @return The number of users added.
+     */
+    public int getAdded() {
+        return added;
+    }
+
+    /**
+     * Returns the number of users whose authorizations changed.
+     *
+     * @return The number of users changed.
+     */
+    public int getChanged() {
+        return changed;
+    }
+
+    /**
+     * Returns the number of users no longer within the user mapping.
+     *
+     * @return The number of users removed.
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns the number of users whose authorizations are unchanged.
+     *
+     * @return The number of users unchanged.
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+}
@@ -0,0 +1,344 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.sourceforge.guacamole.GuacamoleException;
+
+/**
+ * Binary index of a user mapping, as written by UserMappingIndexWriter,
+ * mapped into memory. Authorizations are decoded from the index only as
+ * they are looked up, and the most recently used authorizations are kept
+ * decoded, such that the size of the heap needed does not depend on the
+ * number of users.
+ *
+ * @author Michael Jumper
+ */
+public class UserMappingIndex implements AuthorizationSource {
+
+    /**
+     * The value identifying a user mapping index, "GUMI".
+     */
+    static final int MAGIC = 0x47554D49;
+
+    /**
+     * The version of the index format. Indexes of other versions are
+     * rebuilt.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The size of the header preceding the slots, in bytes.
+     */
+    static final int HEADER_SIZE = 32;
+
+    /**
+     * The size of each slot, in bytes.
+     */
+    static final int SLOT_SIZE = 8;
+
+    /**
+     * The charset of all strings within the index.
+     */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The contents of the index file.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The modification time of the file the index was built from, as stored
+     * in the index.
+     */
+    private final long sourceModified;
+
+    /**
+     * The length of the file the index was built from, as stored in the
+     * index.
+     */
+    private final long sourceLength;
+
+    /**
+     * The number of users within the index.
+     */
+    private final int userCount;
+
+    /**
+     * The number of slots within the index, always a power of two.
+     */
+    private final int slotCount;
+
+    /**
+     * The most recently used authorizations, indexed by username, in order
+     * of use.
+     */
+    private final Map<String, Authorization> cache;
+
+    /**
+     * Maps the given index file into memory, keeping up to the given number
+     * of decoded authorizations.
+     *
+     * @param file The index file to map.
+     * @param cacheSize The maximum number of decoded authorizations to keep.
+     * @throws GuacamoleException If the index file cannot be read, or is not
+     *                            an index of the current version.
+     */
+    public UserMappingIndex(File file, final int cacheSize)
+            throws GuacamoleException {
+
+        try {
+
+            // The mapping remains valid after the file is closed
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+
+                long length = input.length();
+                if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+                    throw new GuacamoleException("Invalid user mapping index \"" + file + "\".");
+
+                buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            }
+            finally {
+                input.close();
+            }
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Error reading user mapping index.", e);
+        }
+
+        // Verify index is of this version
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new GuacamoleException("User mapping index \"" + file + "\" is of an unsupported format.");
+
+        sourceModified = buffer.getLong(8);
+        sourceLength   = buffer.getLong(16);
+        userCount      = buffer.getInt(24);
+        slotCount      = buffer.getInt(28);
+
+        if (Integer.bitCount(slotCount) != 1
+                || HEADER_SIZE + (long) slotCount * SLOT_SIZE > buffer.capacity())
+            throw new GuacamoleException("Invalid user mapping index \"" + file + "\".");
+
+        // Discard least recently used authorizations beyond cache size
+        cache = new LinkedHashMap<String, Authorization>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Authorization> eldest) {
+                return size() > cacheSize;
+            }
+
+        };
+
+    }
+
+    /**
+     * Returns the hash of the given username, as used to select its slot.
+     *
+     * @param username The username to hash.
+     * @return The hash of the given username.
+     */
+    static int hash(String username) {
+
+        // Spread the upper bits of String.hashCode() into the lower bits,
+        // which alone select the slot
+        int hash = username == null ? 0 : username.hashCode();
+        return hash ^ (hash >>> 16);
+
+    }
+
+    /**
+     * Returns whether this index was built from the given file as it is now,
+     * based on the modification time and length of the file.
+     *
+     * @param source The file to compare against.
+     * @return true if this index was built from the given file as it is now,
+     *         false if the file has changed since.
+     */
+    public boolean isCurrent(File source) {
+        return source.lastModified() == sourceModified
+            && source.length() == sourceLength;
+    }
+
+    /**
+     * Returns the number of users within this index.
+     *
+     * @return The number of users within this index.
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * Reads the string at the current position of the given buffer.
+     *
+     * @param record The buffer to read from.
+     * @return The string read, which may be null.
+     */
+    private static String readString(ByteBuffer record) {
+
+        int length = record.getInt();
+        if (length == -1)
+            return null;
+
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, UTF8);
+
+    }
+
+    /**
+     * Returns whether the string at the given offset of the index consists
+     * of the given bytes.
+     *
+     * @param offset The offset of the string.
+     * @param bytes The bytes to compare against.
+     * @return true if the string at the given offset consists of the given
+     *         bytes, false otherwise.
+     */
+    private boolean matches(int offset, byte[] bytes) {
+
+        if (buffer.getInt(offset) != bytes.length)
+            return false;
+
+        offset += 4;
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(offset + i) != bytes[i])
+                return false;
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Decodes the authorization recorded at the given offset of the index.
+     *
+     * @param offset The offset of the record.
+     * @return The authorization recorded at the given offset.
+     */
+    private Authorization decode(int offset) {
+
+        // Read through a separate view, as other threads may be decoding
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+
+        Authorization auth = new Authorization();
+        auth.setUsername(readString(record));
+        auth.setPassword(readString(record));
+        auth.setEncoding(Authorization.Encoding.values()[record.get()]);
+
+        int configCount = record.getInt();
+        for (int i = 0; i < configCount; i++) {
+
+            String name = readString(record);
+
+            MappedConfiguration config = new MappedConfiguration();
+            config.setProtocol(readString(record));
+
+            int parameterCount = record.getInt();
+            for (int j = 0; j < parameterCount; j++)
+                config.setParameter(readString(record), readString(record));
+
+            auth.addConfiguration(name, config);
+
+        }
+
+        return auth;
+
+    }
+
+    /**
+     * Locates and decodes the authorization of the user having the given
+     * username within the index.
+     *
+     * @param username The username to find the authorization for.
+     * @return The authorization of the user having the given username, or
+     *         null if no such user is within the index.
+     */
+    private Authorization find(String username) {
+
+        byte[] bytes = username.getBytes(UTF8);
+        int hash = hash(username);
+        int mask = slotCount - 1;
+
+        // Probe slots from the one selected by hash until an empty slot
+        int slot = hash & mask;
+        for (int i = 0; i < slotCount; i++, slot = (slot + 1) & mask) {
+
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            int offset = buffer.getInt(position + 4);
+            if (offset == 0)
+                return null;
+
+            if (buffer.getInt(position) == hash && matches(offset, bytes))
+                return decode(offset);
+
+        }
+
+        // No empty slot in a valid index
+        throw new IllegalStateException("User mapping index has no empty slots.");
+
+    }
+
+    @Override
+    public Authorization getAuthorization(String username)
+            throws GuacamoleException {
+
+        if (username == null)
+            return null;
+
+        synchronized (cache) {
+            Authorization auth = cache.get(username);
+            if (auth != null)
+                return auth;
+        }
+
+        // Decode outside the lock, such that lookups proceed in parallel
+        Authorization auth;
+        try {
+            auth = find(username);
+        }
+        // Reads beyond the index or of nonsensical lengths and values
+        catch (RuntimeException e) {
+            throw new GuacamoleException("User mapping index is corrupt.", e);
+        }
+
+        // Unknown users are not kept, such that failed logins cannot evict
+        // the authorizations of known users
+        if (auth != null) {
+            synchronized (cache) {
+                cache.put(username, auth);
+            }
+        }
+
+        return auth;
+
+    }
+
+}
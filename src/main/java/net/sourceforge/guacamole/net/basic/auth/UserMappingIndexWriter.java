@@ -0,0 +1,236 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Writes a UserMapping as a binary index which can be read by
+ * UserMappingIndex. The index begins with a header describing the source
+ * file it was built from, followed by an open-addressing hash table of
+ * usernames and the encoded authorization of each user:
+ *
+ * <pre>
+ * header:        int magic, int version,
+ *                long source modification time, long source length,
+ *                int user count, int slot count
+ * slots:         (int username hash, int record offset) * slot count
+ * records:       string username, string password, byte encoding,
+ *                int configuration count,
+ *                (string name, string protocol, int parameter count,
+ *                 (string name, string value) * parameter count) * count
+ * </pre>
+ *
+ * All values are big-endian. Strings are stored as their length in UTF-8
+ * bytes followed by those bytes, with -1 denoting null. Empty slots have an
+ * offset of 0.
+ *
+ * @author Michael Jumper
+ */
+public class UserMappingIndexWriter {
+
+    /**
+     * This class should not be instantiated.
+     */
+    private UserMappingIndexWriter() {}
+
+    /**
+     * Writes the given string, preceded by its length in UTF-8 bytes.
+     *
+     * @param output The stream to write to.
+     * @param value The string to write, which may be null.
+     * @throws IOException If an error occurs while writing.
+     */
+    private static void writeString(DataOutputStream output, String value)
+            throws IOException {
+
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UserMappingIndex.UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+
+    }
+
+    /**
+     * Writes the given authorization as an index record.
+     *
+     * @param output The stream to write to.
+     * @param auth The authorization to write.
+     * @throws IOException If an error occurs while writing.
+     */
+    private static void writeRecord(DataOutputStream output, Authorization auth)
+            throws IOException {
+
+        writeString(output, auth.getUsername());
+        writeString(output, auth.getPassword());
+        output.writeByte(auth.getEncoding().ordinal());
+
+        Map<String, GuacamoleConfiguration> configs = auth.getConfigurations();
+        output.writeInt(configs.size());
+
+        for (Map.Entry<String, GuacamoleConfiguration> entry : configs.entrySet()) {
+
+            GuacamoleConfiguration config = entry.getValue();
+            writeString(output, entry.getKey());
+            writeString(output, config.getProtocol());
+
+            // Only the parameters of MappedConfigurations can be listed
+            if (config instanceof MappedConfiguration) {
+                MappedConfiguration mapped = (MappedConfiguration) config;
+                output.writeInt(mapped.getParameterNames().size());
+                for (String name : mapped.getParameterNames()) {
+                    writeString(output, name);
+                    writeString(output, mapped.getParameter(name));
+                }
+            }
+            else
+                output.writeInt(0);
+
+        }
+
+    }
+
+    /**
+     * Writes the given user mapping as a binary index. The index is first
+     * written to a temporary file alongside the index file, and then renamed
+     * over the index file, such that an index is never seen partially
+     * written, and such that an index already mapped into memory remains
+     * intact.
+     *
+     * @param mapping The user mapping to write.
+     * @param index The index file to write.
+     * @param sourceModified The modification time of the file the user
+     *                       mapping was read from, as it was before reading.
+     * @param sourceLength The length of the file the user mapping was read
+     *                     from, as it was before reading.
+     * @throws GuacamoleException If an error occurs while writing the index.
+     */
+    public static void write(UserMapping mapping, File index,
+            long sourceModified, long sourceLength) throws GuacamoleException {
+
+        Map<String, Authorization> authorizations = mapping.getAuthorizations();
+
+        // Keep hash table at most half full
+        int slotCount = 2;
+        while (slotCount < authorizations.size() * 2)
+            slotCount <<= 1;
+
+        int[] hashes = new int[slotCount];
+        int[] offsets = new int[slotCount];
+        int mask = slotCount - 1;
+
+        try {
+
+            File temp = File.createTempFile(index.getName(), ".tmp",
+                    index.getAbsoluteFile().getParentFile());
+
+            try {
+
+                // Write header, leaving slots empty until records are written
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temp)));
+
+                try {
+
+                    output.writeInt(UserMappingIndex.MAGIC);
+                    output.writeInt(UserMappingIndex.VERSION);
+                    output.writeLong(sourceModified);
+                    output.writeLong(sourceLength);
+                    output.writeInt(authorizations.size());
+                    output.writeInt(slotCount);
+
+                    output.write(new byte[slotCount * UserMappingIndex.SLOT_SIZE]);
+
+                    // Write each record, noting its offset in its slot
+                    for (Authorization auth : authorizations.values()) {
+
+                        int hash = UserMappingIndex.hash(auth.getUsername());
+                        int slot = hash & mask;
+                        while (offsets[slot] != 0)
+                            slot = (slot + 1) & mask;
+
+                        hashes[slot] = hash;
+                        offsets[slot] = output.size();
+
+                        writeRecord(output, auth);
+
+                        // Offsets are 32-bit, and DataOutputStream stops
+                        // counting at Integer.MAX_VALUE
+                        if (output.size() == Integer.MAX_VALUE)
+                            throw new GuacamoleException("User mapping is too large to index.");
+
+                    }
+
+                }
+                finally {
+                    output.close();
+                }
+
+                // Fill in slots
+                ByteBuffer slots = ByteBuffer.allocate(slotCount * UserMappingIndex.SLOT_SIZE);
+                for (int i = 0; i < slotCount; i++) {
+                    slots.putInt(hashes[i]);
+                    slots.putInt(offsets[i]);
+                }
+
+                slots.flip();
+
+                RandomAccessFile file = new RandomAccessFile(temp, "rw");
+                try {
+                    FileChannel channel = file.getChannel();
+                    long position = UserMappingIndex.HEADER_SIZE;
+                    while (slots.hasRemaining())
+                        position += channel.write(slots, position);
+                }
+                finally {
+                    file.close();
+                }
+
+                // Replace any previous index, deleting the previous index
+                // first only where it cannot be replaced directly
+                if (!temp.renameTo(index) && !(index.delete() && temp.renameTo(index)))
+                    throw new GuacamoleException("Unable to replace user mapping index \"" + index + "\".");
+
+            }
+            finally {
+                temp.delete();
+            }
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Error writing user mapping index.", e);
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package net.sourceforge.guacamole.net.basic.auth;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FileWatcher which receives change notifications for the directory
+ * containing the file through a java.nio.file.WatchService. This class
+ * requires Java 7 or later, and must only be loaded after checking that
+ * java.nio.file.WatchService exists.
+ *
+ * @author Michael Jumper
+ */
+public class WatchServiceFileWatcher extends FileWatcher {
+
+    private Logger logger = LoggerFactory.getLogger(WatchServiceFileWatcher.class);
+
+    /**
+     * The number of milliseconds to wait for further events after a change,
+     * such that a file written in several steps is read only once.
+     */
+    private static final long SETTLE_TIME = 200;
+
+    /**
+     * The number of milliseconds to wait for events before checking whether
+     * this watcher should stop.
+     */
+    private static final long STOP_CHECK_INTERVAL = 5000;
+
+    /**
+     * The service providing change notifications.
+     */
+    private final WatchService service;
+
+    /**
+     * The name of the file within its directory.
+     */
+    private final Path name;
+
+    /**
+     * Creates a new WatchServiceFileWatcher which watches the given file,
+     * registering its directory for change notifications.
+     *
+     * @param file The file to watch.
+     * @param listener The listener to notify of changes.
+     * @throws IOException If the directory of the file cannot be watched.
+     */
+    public WatchServiceFileWatcher(File file, FileChangeListener listener)
+            throws IOException {
+
+        super(file, listener);
+
+        Path path = file.getAbsoluteFile().toPath();
+        Path directory = path.getParent();
+        name = path.getFileName();
+
+        service = directory.getFileSystem().newWatchService();
+        try {
+            directory.register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e) {
+            service.close();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Returns whether the given events include a change to the file. Any
+     * lost events are assumed to include one.
+     *
+     * @param key The key whose events should be checked, which is reset.
+     * @return true if the file may have changed, false otherwise.
+     */
+    private boolean isChanged(WatchKey key) {
+
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || name.equals(event.context()))
+                changed = true;
+        }
+
+        if (!key.reset())
+            logger.warn("Directory of {} can no longer be watched.", getFile());
+
+        return changed;
+
+    }
+
+    @Override
+    protected void watch() throws InterruptedException {
+
+        try {
+
+            while (!isStopped()) {
+
+                WatchKey key = service.poll(STOP_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                if (key == null || !isChanged(key))
+                    continue;
+
+                // Let the change settle before notifying
+                while ((key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null)
+                    isChanged(key);
+
+                fileChanged();
+
+            }
+
+        }
+        finally {
+            try {
+                service.close();
+            }
+            catch (IOException e) {
+                logger.debug("Unable to close watch service.", e);
+            }
+        }
+
+    }
+
+}
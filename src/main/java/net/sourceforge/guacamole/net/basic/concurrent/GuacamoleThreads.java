@@ -0,0 +1,256 @@
+package net.sourceforge.guacamole.net.basic.concurrent;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import net.sourceforge.guacamole.properties.GuacamoleProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates all background threads used by tunnels, including those which
+ * connect to guacd, check its health, and read from tunnels on behalf of
+ * asynchronous requests. Depending on the "thread-mode" property, these
+ * threads are either ordinary platform threads or, if the Java runtime
+ * supports them, virtual threads.
+ *
+ * Virtual threads are created through reflection, such that this class (and
+ * the rest of the web application) still runs on older runtimes, which
+ * simply fall back to platform threads.
+ *
+ * @author Michael Jumper
+ */
+public class GuacamoleThreads {
+
+    private static Logger logger = LoggerFactory.getLogger(GuacamoleThreads.class);
+
+    /**
+     * All supported kinds of thread.
+     */
+    public static enum Mode {
+
+        /**
+         * Ordinary threads, each backed by a thread of the operating system.
+         */
+        PLATFORM("platform"),
+
+        /**
+         * Lightweight threads scheduled by the Java runtime, which cost
+         * almost nothing while blocked. Requires Java 21 or later.
+         */
+        VIRTUAL("virtual");
+
+        /**
+         * The name of this mode within guacamole.properties.
+         */
+        private final String name;
+
+        /**
+         * Creates a new Mode having the given name.
+         *
+         * @param name The name of the mode within guacamole.properties.
+         */
+        private Mode(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the Mode having the given name.
+         *
+         * @param name The name of the mode within guacamole.properties.
+         * @return The Mode having the given name.
+         * @throws GuacamoleException If no such mode exists.
+         */
+        public static Mode fromName(String name) throws GuacamoleException {
+
+            for (Mode mode : values()) {
+                if (mode.name.equals(name))
+                    return mode;
+            }
+
+            throw new GuacamoleException("Invalid thread mode: \"" + name + "\"");
+
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    }
+
+    /**
+     * The mode in use, or null if not yet read from guacamole.properties.
+     */
+    private static Mode mode;
+
+    /**
+     * Returns whether the Java runtime supports virtual threads.
+     *
+     * @return true if virtual threads are supported, false otherwise.
+     */
+    public static boolean isVirtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the mode given in guacamole.properties, defaulting to platform
+     * threads. If virtual threads are requested but not supported, or the
+     * property is invalid, platform threads are used and a warning is
+     * logged.
+     *
+     * @return The mode of all threads created by this class.
+     */
+    public static synchronized Mode getMode() {
+
+        // Read mode only once
+        if (mode != null)
+            return mode;
+
+        mode = Mode.PLATFORM;
+
+        try {
+
+            String name = GuacamoleProperties.getProperty(BasicGuacamoleProperties.THREAD_MODE);
+            if (name != null)
+                mode = Mode.fromName(name);
+
+            // Fall back if virtual threads are not supported
+            if (mode == Mode.VIRTUAL && !isVirtualSupported()) {
+                logger.warn("Virtual threads are not supported by this Java runtime. Using platform threads.");
+                mode = Mode.PLATFORM;
+            }
+
+        }
+        catch (GuacamoleException e) {
+            logger.error("Error reading thread mode from properties. Using platform threads.", e);
+        }
+
+        logger.info("Using {} threads for tunnels.", mode);
+        return mode;
+
+    }
+
+    /**
+     * Returns a ThreadFactory which creates daemon threads of the mode given
+     * in guacamole.properties, numbered and named with the given prefix.
+     *
+     * @param name The prefix of the name of each thread.
+     * @return A new ThreadFactory.
+     */
+    public static ThreadFactory newThreadFactory(String name) {
+        return newThreadFactory(getMode(), name);
+    }
+
+    /**
+     * Returns a ThreadFactory which creates daemon threads of the given mode,
+     * numbered and named with the given prefix. If virtual threads are
+     * requested but not supported, platform threads are created.
+     *
+     * @param mode The mode of the threads to create.
+     * @param name The prefix of the name of each thread.
+     * @return A new ThreadFactory.
+     */
+    public static ThreadFactory newThreadFactory(Mode mode, final String name) {
+
+        if (mode == Mode.VIRTUAL) {
+
+            try {
+
+                // Equivalent to Thread.ofVirtual().name(name + "-", 1).factory()
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+                Method setName = builderClass.getMethod("name", String.class, long.class);
+                builder = setName.invoke(builder, name + "-", 1L);
+
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            }
+            catch (Exception e) {
+                logger.debug("Unable to create virtual thread factory.", e);
+            }
+
+        }
+
+        return new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        };
+
+    }
+
+    /**
+     * Returns an ExecutorService for blocking work. With platform threads,
+     * the given number of threads is shared by all tasks. With virtual
+     * threads, as each blocked thread costs almost nothing, every task may
+     * run on its own thread.
+     *
+     * @param name The prefix of the name of each thread.
+     * @param threads The number of threads to use if platform threads are in
+     *                use.
+     * @return A new ExecutorService.
+     */
+    public static ExecutorService newWorkerPool(String name, int threads) {
+        return newWorkerPool(getMode(), name, threads);
+    }
+
+    /**
+     * Returns an ExecutorService for blocking work using threads of the given
+     * mode. With platform threads, the given number of threads is shared by
+     * all tasks. With virtual threads, every task may run on its own thread.
+     *
+     * @param mode The mode of the threads to use.
+     * @param name The prefix of the name of each thread.
+     * @param threads The number of threads to use if platform threads are in
+     *                use.
+     * @return A new ExecutorService.
+     */
+    public static ExecutorService newWorkerPool(Mode mode, String name, int threads) {
+
+        ThreadFactory factory = newThreadFactory(mode, name);
+
+        if (mode == Mode.VIRTUAL && isVirtualSupported())
+            return Executors.newCachedThreadPool(factory);
+
+        return Executors.newFixedThreadPool(threads, factory);
+
+    }
+
+}
@@ -0,0 +1,187 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Circuit breaker which tracks consecutive failures to reach a guacd
+ * instance. Once the failure threshold is reached, the breaker opens and no
+ * new connections are attempted until the recovery timeout has elapsed, at
+ * which point a single trial connection is allowed. If the trial succeeds,
+ * the breaker closes again. If it fails, the breaker reopens. If the result
+ * of the trial is never recorded, another trial is allowed once the recovery
+ * timeout has elapsed again, such that the breaker cannot remain half-open
+ * indefinitely.
+ *
+ * @author Michael Jumper
+ */
+public class CircuitBreaker {
+
+    /**
+     * All possible states of a circuit breaker.
+     */
+    public static enum State {
+
+        /**
+         * Connections are allowed.
+         */
+        CLOSED,
+
+        /**
+         * Connections are not allowed until the recovery timeout elapses.
+         */
+        OPEN,
+
+        /**
+         * A single trial connection is in progress.
+         */
+        HALF_OPEN
+
+    }
+
+    /**
+     * The number of consecutive failures after which the breaker opens.
+     */
+    private final int failureThreshold;
+
+    /**
+     * The number of milliseconds the breaker stays open before allowing a
+     * trial connection.
+     */
+    private final long recoveryTimeout;
+
+    /**
+     * The current state of this breaker.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * The number of consecutive failures recorded.
+     */
+    private int failures = 0;
+
+    /**
+     * The time this breaker last opened, in milliseconds since the epoch.
+     */
+    private long openTime;
+
+    /**
+     * The time the current trial connection was allowed, in milliseconds
+     * since the epoch.
+     */
+    private long trialTime;
+
+    /**
+     * Creates a new, closed CircuitBreaker.
+     *
+     * @param failureThreshold The number of consecutive failures after which
+     *                         the breaker opens.
+     * @param recoveryTimeout The number of milliseconds the breaker stays
+     *                        open before allowing a trial connection.
+     */
+    public CircuitBreaker(int failureThreshold, long recoveryTimeout) {
+        this.failureThreshold = failureThreshold;
+        this.recoveryTimeout  = recoveryTimeout;
+    }
+
+    /**
+     * Returns whether a connection would currently be allowed, without
+     * changing the state of this breaker.
+     *
+     * @return true if a connection would be allowed, false otherwise.
+     */
+    public synchronized boolean isAvailable() {
+
+        long now = System.currentTimeMillis();
+
+        switch (state) {
+
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                return now - openTime >= recoveryTimeout;
+
+            case HALF_OPEN:
+                return now - trialTime >= recoveryTimeout;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Requests permission to attempt a connection. If the breaker is open
+     * and the recovery timeout has elapsed, this call claims the single trial
+     * connection, and all further requests are refused until its result is
+     * recorded.
+     *
+     * @return true if a connection may be attempted, false otherwise.
+     */
+    public synchronized boolean allowRequest() {
+
+        if (state == State.CLOSED)
+            return true;
+
+        // Allow a single trial once recovery timeout has elapsed, or once
+        // the result of the previous trial is overdue
+        if (isAvailable()) {
+            state = State.HALF_OPEN;
+            trialTime = System.currentTimeMillis();
+            return true;
+        }
+
+        // Still open, or trial already in progress
+        return false;
+
+    }
+
+    /**
+     * Records a successful connection, closing this breaker.
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Records a failed connection, opening this breaker if the trial
+     * connection failed or the failure threshold has been reached.
+     */
+    public synchronized void recordFailure() {
+
+        failures++;
+
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openTime = System.currentTimeMillis();
+        }
+
+    }
+
+    /**
+     * Returns the current state of this breaker.
+     *
+     * @return The current state of this breaker.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+}
@@ -0,0 +1,90 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The hostname, port, and relative weight of a single guacd instance, as
+ * given in guacamole.properties.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdAddress {
+
+    /**
+     * The hostname of guacd.
+     */
+    private final String hostname;
+
+    /**
+     * The port of guacd.
+     */
+    private final int port;
+
+    /**
+     * The relative share of new tunnels this guacd should receive.
+     */
+    private final int weight;
+
+    /**
+     * Creates a new GuacdAddress with the given hostname, port, and weight.
+     *
+     * @param hostname The hostname of guacd.
+     * @param port The port of guacd.
+     * @param weight The relative share of new tunnels this guacd should
+     *               receive, which must be at least 1.
+     */
+    public GuacdAddress(String hostname, int port, int weight) {
+        this.hostname = hostname;
+        this.port     = port;
+        this.weight   = weight;
+    }
+
+    /**
+     * Returns the hostname of guacd.
+     *
+     * @return The hostname of guacd.
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Returns the port of guacd.
+     *
+     * @return The port of guacd.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the relative share of new tunnels this guacd should receive.
+     *
+     * @return The weight of this guacd.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return hostname + ":" + port;
+    }
+
+}
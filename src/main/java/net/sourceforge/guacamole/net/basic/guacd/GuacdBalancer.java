@@ -0,0 +1,403 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import net.sourceforge.guacamole.properties.GuacamoleProperties;
+import net.sourceforge.guacamole.properties.IntegerGuacamoleProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Distributes new tunnels across all guacd instances listed in
+ * guacamole.properties. Each guacd is periodically probed in the background,
+ * and guacd instances which repeatedly fail are skipped by their circuit
+ * breaker until they recover. If a connection attempt fails, the next
+ * available guacd is tried.
+ *
+ * If no list of guacd instances is given, the single guacd given by the
+ * "guacd-hostname" and "guacd-port" properties is used.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdBalancer {
+
+    private Logger logger = LoggerFactory.getLogger(GuacdBalancer.class);
+
+    /**
+     * The default maximum age of idle guacd connections, in milliseconds.
+     * guacd closes connections which do not begin the handshake within 15
+     * seconds.
+     */
+    private static final int DEFAULT_POOL_MAX_AGE = 10000;
+
+    /**
+     * The default number of milliseconds to wait for a TCP connection to
+     * guacd to be established.
+     */
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    /**
+     * The default number of milliseconds between health checks.
+     */
+    private static final int DEFAULT_HEALTH_CHECK_INTERVAL = 10000;
+
+    /**
+     * The default number of consecutive failures after which a guacd is no
+     * longer used.
+     */
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /**
+     * The default number of milliseconds to wait before retrying a guacd
+     * which has failed.
+     */
+    private static final int DEFAULT_RECOVERY_TIMEOUT = 30000;
+
+    /**
+     * All supported strategies for choosing the guacd of a new tunnel.
+     */
+    public static enum Strategy {
+
+        /**
+         * Choose the guacd with the fewest active tunnels relative to its
+         * weight.
+         */
+        LEAST_ACTIVE("least-active"),
+
+        /**
+         * Choose each guacd in turn, in proportion to its weight.
+         */
+        ROUND_ROBIN("round-robin");
+
+        /**
+         * The name of this strategy within guacamole.properties.
+         */
+        private final String name;
+
+        /**
+         * Creates a new Strategy having the given name.
+         *
+         * @param name The name of the strategy within guacamole.properties.
+         */
+        private Strategy(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the Strategy having the given name.
+         *
+         * @param name The name of the strategy within guacamole.properties.
+         * @return The Strategy having the given name.
+         * @throws GuacamoleException If no such strategy exists.
+         */
+        public static Strategy fromName(String name) throws GuacamoleException {
+
+            for (Strategy strategy : values()) {
+                if (strategy.name.equals(name))
+                    return strategy;
+            }
+
+            throw new GuacamoleException("Invalid guacd balance strategy: \"" + name + "\"");
+
+        }
+
+    }
+
+    /**
+     * All guacd instances, in the order given.
+     */
+    private final List<GuacdEndpoint> endpoints = new ArrayList<GuacdEndpoint>();
+
+    /**
+     * All guacd instances in weighted round-robin order, where each guacd
+     * appears a number of times equal to its weight, spread as evenly as
+     * possible.
+     */
+    private final List<GuacdEndpoint> rotation = new ArrayList<GuacdEndpoint>();
+
+    /**
+     * The strategy to use to choose the guacd of each new tunnel.
+     */
+    private final Strategy strategy;
+
+    /**
+     * The position of the next guacd to try within the rotation.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * The executor which runs all health checks.
+     */
+    private final ScheduledExecutorService healthCheck;
+
+    /**
+     * Creates a new GuacdBalancer using the guacd instances and settings
+     * given in guacamole.properties. Health checks, and maintenance of the
+     * idle connection pools of each guacd, begin immediately.
+     *
+     * @throws GuacamoleException If guacamole.properties contains invalid
+     *                            settings, or no guacd is specified.
+     */
+    public GuacdBalancer() throws GuacamoleException {
+
+        // Read list of guacd instances, defaulting to single guacd
+        List<GuacdAddress> addresses = GuacamoleProperties.getProperty(BasicGuacamoleProperties.GUACD_ENDPOINTS);
+        if (addresses == null || addresses.isEmpty()) {
+            String hostname = GuacamoleProperties.getRequiredProperty(GuacamoleProperties.GUACD_HOSTNAME);
+            int port = GuacamoleProperties.getRequiredProperty(GuacamoleProperties.GUACD_PORT);
+            addresses = Collections.singletonList(new GuacdAddress(hostname, port, 1));
+        }
+
+        // Read strategy
+        String strategyName = GuacamoleProperties.getProperty(BasicGuacamoleProperties.GUACD_BALANCE_STRATEGY);
+        strategy = strategyName != null ? Strategy.fromName(strategyName) : Strategy.LEAST_ACTIVE;
+
+        // Read connection and health settings
+        int connectTimeout      = getProperty(BasicGuacamoleProperties.GUACD_CONNECT_TIMEOUT,       DEFAULT_CONNECT_TIMEOUT);
+        int healthCheckInterval = getProperty(BasicGuacamoleProperties.GUACD_HEALTH_CHECK_INTERVAL, DEFAULT_HEALTH_CHECK_INTERVAL);
+        int failureThreshold    = getProperty(BasicGuacamoleProperties.GUACD_FAILURE_THRESHOLD,     DEFAULT_FAILURE_THRESHOLD);
+        int recoveryTimeout     = getProperty(BasicGuacamoleProperties.GUACD_RECOVERY_TIMEOUT,      DEFAULT_RECOVERY_TIMEOUT);
+
+        // Read pool configuration, keeping no idle sockets by default
+        int minIdle = getProperty(BasicGuacamoleProperties.GUACD_POOL_MIN_IDLE, 0);
+        int maxIdle = getProperty(BasicGuacamoleProperties.GUACD_POOL_MAX_IDLE, minIdle);
+        int maxAge  = getProperty(BasicGuacamoleProperties.GUACD_POOL_MAX_AGE,  DEFAULT_POOL_MAX_AGE);
+
+        // Create endpoints
+        int totalWeight = 0;
+        for (GuacdAddress address : addresses) {
+            endpoints.add(new GuacdEndpoint(address, connectTimeout,
+                    new CircuitBreaker(failureThreshold, recoveryTimeout),
+                    minIdle, maxIdle, maxAge));
+            totalWeight += address.getWeight();
+        }
+
+        // Build smooth weighted rotation, such that no guacd receives many
+        // consecutive tunnels unless its weight dominates
+        int[] current = new int[endpoints.size()];
+        for (int i = 0; i < totalWeight; i++) {
+
+            int best = 0;
+            for (int j = 0; j < current.length; j++) {
+                current[j] += endpoints.get(j).getAddress().getWeight();
+                if (current[j] > current[best])
+                    best = j;
+            }
+
+            current[best] -= totalWeight;
+            rotation.add(endpoints.get(best));
+
+        }
+
+        // Periodically check health of all guacd
+        healthCheck = Executors.newSingleThreadScheduledExecutor(
+                GuacamoleThreads.newThreadFactory("guacd-health-check"));
+
+        healthCheck.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                for (GuacdEndpoint endpoint : endpoints)
+                    checkHealth(endpoint);
+            }
+
+        }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+
+        logger.info("Balancing tunnels across {} guacd instance(s) using \"{}\" strategy.",
+                endpoints.size(), strategy.name);
+
+    }
+
+    /**
+     * Returns the value of the given integer property, or the given default
+     * value if the property is not set.
+     *
+     * @param property The property to read.
+     * @param defaultValue The value to return if the property is not set.
+     * @return The value of the property, or the default value.
+     * @throws GuacamoleException If the property value is invalid.
+     */
+    private static int getProperty(IntegerGuacamoleProperty property,
+            int defaultValue) throws GuacamoleException {
+
+        Integer value = GuacamoleProperties.getProperty(property);
+        if (value == null)
+            return defaultValue;
+
+        return value;
+
+    }
+
+    /**
+     * Probes the given guacd with a new TCP connection, recording a failure
+     * with its circuit breaker if the connection cannot be established.
+     * Accepting a connection does not prove guacd healthy, as guacd may still
+     * fail every handshake, so only the handshakes of actual tunnels close
+     * the breaker. Guacd whose breaker is not closed is not probed, leaving
+     * the trial connection to the next tunnel.
+     *
+     * @param endpoint The guacd to check.
+     */
+    private void checkHealth(GuacdEndpoint endpoint) {
+
+        if (endpoint.getCircuitBreaker().getState() != CircuitBreaker.State.CLOSED)
+            return;
+
+        try {
+            endpoint.connect().close();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Health check of guacd at {} failed.", endpoint, e);
+        }
+
+    }
+
+    /**
+     * Returns all guacd instances known to this balancer.
+     *
+     * @return An unmodifiable list of all guacd instances.
+     */
+    public List<GuacdEndpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * Chooses the guacd which should receive the next tunnel, excluding the
+     * given guacd instances, and claims permission to connect from its
+     * circuit breaker.
+     *
+     * @param excluded All guacd instances which must not be chosen.
+     * @return The chosen guacd, or null if no guacd is available.
+     */
+    private GuacdEndpoint select(List<GuacdEndpoint> excluded) {
+
+        List<GuacdEndpoint> refused = new ArrayList<GuacdEndpoint>();
+
+        for (;;) {
+
+            GuacdEndpoint chosen = null;
+
+            switch (strategy) {
+
+                // Fewest active tunnels relative to weight
+                case LEAST_ACTIVE:
+                    for (GuacdEndpoint endpoint : endpoints) {
+
+                        if (excluded.contains(endpoint) || refused.contains(endpoint)
+                                || !endpoint.getCircuitBreaker().isAvailable())
+                            continue;
+
+                        if (chosen == null
+                                || (long) endpoint.getActiveTunnels() * chosen.getAddress().getWeight()
+                                 < (long) chosen.getActiveTunnels() * endpoint.getAddress().getWeight())
+                            chosen = endpoint;
+
+                    }
+                    break;
+
+                // Next available in weighted rotation
+                case ROUND_ROBIN:
+                    int start = (next.getAndIncrement() & Integer.MAX_VALUE) % rotation.size();
+                    for (int i = 0; i < rotation.size(); i++) {
+
+                        GuacdEndpoint endpoint = rotation.get((start + i) % rotation.size());
+                        if (!excluded.contains(endpoint) && !refused.contains(endpoint)
+                                && endpoint.getCircuitBreaker().isAvailable()) {
+                            chosen = endpoint;
+                            break;
+                        }
+
+                    }
+                    break;
+
+            }
+
+            // Stop if no guacd remains
+            if (chosen == null)
+                return null;
+
+            // Use guacd only if breaker still allows it
+            if (chosen.getCircuitBreaker().allowRequest())
+                return chosen;
+
+            refused.add(chosen);
+
+        }
+
+    }
+
+    /**
+     * Returns a connection to the guacd which should receive the next tunnel,
+     * trying each other available guacd in turn if the connection fails.
+     *
+     * @return A GuacdSocket connected to guacd, counted as an active tunnel
+     *         until closed.
+     * @throws GuacamoleException If no guacd could be connected to.
+     */
+    public GuacdSocket getSocket() throws GuacamoleException {
+
+        List<GuacdEndpoint> tried = new ArrayList<GuacdEndpoint>(endpoints.size());
+        GuacamoleException failure = null;
+
+        GuacdEndpoint endpoint;
+        while ((endpoint = select(tried)) != null) {
+
+            tried.add(endpoint);
+
+            try {
+                return endpoint.getSocket();
+            }
+            catch (GuacamoleException e) {
+                logger.warn("Unable to connect to guacd at {}: {}", endpoint, e.getMessage());
+                failure = e;
+            }
+
+        }
+
+        // Rethrow last failure, if any
+        if (failure != null)
+            throw failure;
+
+        throw new GuacamoleException("No guacd is currently available.");
+
+    }
+
+    /**
+     * Stops all health checks and closes all idle connections.
+     */
+    public void shutdown() {
+
+        healthCheck.shutdownNow();
+
+        for (GuacdEndpoint endpoint : endpoints)
+            endpoint.shutdown();
+
+    }
+
+}
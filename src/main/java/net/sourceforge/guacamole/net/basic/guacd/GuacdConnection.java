@@ -0,0 +1,132 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+
+/**
+ * A connection to guacd which has completed the Guacamole protocol
+ * handshake, along with the guacd it was made to.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdConnection {
+
+    /**
+     * The socket connected to guacd.
+     */
+    private final GuacamoleSocket socket;
+
+    /**
+     * The guacd the socket is connected to.
+     */
+    private final GuacdEndpoint endpoint;
+
+    /**
+     * The time the connection was requested, in milliseconds since the
+     * epoch.
+     */
+    private final long connectTime;
+
+    /**
+     * The result of the handshake.
+     */
+    private final GuacdHandshake.Result handshake;
+
+    /**
+     * Creates a new GuacdConnection representing the given socket, which is
+     * connected to the given guacd.
+     *
+     * @param socket The socket connected to guacd.
+     * @param endpoint The guacd the socket is connected to.
+     * @param connectTime The time the connection was requested, in
+     *                    milliseconds since the epoch.
+     * @param handshake The result of the handshake.
+     */
+    public GuacdConnection(GuacamoleSocket socket, GuacdEndpoint endpoint,
+            long connectTime, GuacdHandshake.Result handshake) {
+        this.socket      = socket;
+        this.endpoint    = endpoint;
+        this.connectTime = connectTime;
+        this.handshake   = handshake;
+    }
+
+    /**
+     * Returns the socket connected to guacd, which has completed the
+     * handshake.
+     *
+     * @return The socket connected to guacd.
+     */
+    public GuacamoleSocket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Returns the guacd the socket is connected to.
+     *
+     * @return The guacd the socket is connected to.
+     */
+    public GuacdEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Returns the time the connection was requested, before a guacd was
+     * chosen or the handshake begun.
+     *
+     * @return The time the connection was requested, in milliseconds since
+     *         the epoch.
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Returns whether the handshake was sent in a single write, without
+     * waiting for guacd to request its arguments.
+     *
+     * @return true if the handshake was pipelined, false otherwise.
+     */
+    public boolean isHandshakePipelined() {
+        return handshake.isPipelined();
+    }
+
+    /**
+     * Returns the duration of the handshake, from sending "select" until
+     * "connect" was sent and the arguments requested by guacd were known.
+     *
+     * @return The duration of the handshake, in nanoseconds.
+     */
+    public long getHandshakeTime() {
+        return handshake.getDuration();
+    }
+
+    /**
+     * Returns the names of the arguments guacd requested during the
+     * handshake. Only the values of these parameters of the configuration
+     * were sent to guacd.
+     *
+     * @return The names of the arguments guacd requested, in order.
+     */
+    public List<String> getArguments() {
+        return handshake.getArguments();
+    }
+
+}
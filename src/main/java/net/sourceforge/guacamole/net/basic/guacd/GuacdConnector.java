@@ -0,0 +1,352 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.admission.AdmissionController;
+import net.sourceforge.guacamole.net.basic.metrics.ConnectPhase;
+import net.sourceforge.guacamole.net.basic.metrics.ConnectTimer;
+import net.sourceforge.guacamole.net.basic.nio.NioGuacamoleSocket;
+import net.sourceforge.guacamole.net.basic.nio.RelayEngine;
+import net.sourceforge.guacamole.net.basic.properties.BasicGuacamoleProperties;
+import net.sourceforge.guacamole.properties.GuacamoleProperties;
+import net.sourceforge.guacamole.protocol.GuacamoleClientInformation;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects new tunnels to guacd, choosing a guacd through a GuacdBalancer,
+ * performing the Guacamole protocol handshake through a GuacdHandshake, and,
+ * if enabled, handing the resulting connection to a RelayEngine.
+ *
+ * A single GuacdConnector is shared by all tunnel servlets of the web
+ * application, such that idle connections, health checks, and event loops
+ * are not duplicated. Each servlet acquires the shared connector when
+ * initialized and releases it when destroyed.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdConnector {
+
+    private Logger logger = LoggerFactory.getLogger(GuacdConnector.class);
+
+    /**
+     * The shared connector, or null if no servlet has acquired it.
+     */
+    private static GuacdConnector instance;
+
+    /**
+     * The number of servlets which have acquired the shared connector.
+     */
+    private static int references = 0;
+
+    /**
+     * The balancer which chooses the guacd of each tunnel.
+     */
+    private final GuacdBalancer balancer;
+
+    /**
+     * Performs the handshake of each connection, remembering the arguments
+     * requested for each protocol.
+     */
+    private final GuacdHandshake handshake;
+
+    /**
+     * Limits how many tunnels may connect to guacd at once.
+     */
+    private final AdmissionController admission;
+
+    /**
+     * The engine relaying data over all guacd connections, or null if each
+     * tunnel reads from guacd directly.
+     */
+    private final RelayEngine relay;
+
+    /**
+     * Creates a new GuacdConnector, reading its configuration from
+     * guacamole.properties.
+     *
+     * @throws GuacamoleException If an error occurs while reading
+     *                            guacamole.properties, or if the relay engine
+     *                            cannot be started.
+     */
+    private GuacdConnector() throws GuacamoleException {
+
+        // Pipeline handshakes unless disabled
+        Boolean pipelining = GuacamoleProperties.getProperty(BasicGuacamoleProperties.GUACD_PIPELINE_HANDSHAKE);
+        handshake = new GuacdHandshake(pipelining == null || pipelining);
+
+        // Limit concurrent handshakes and tunnels, if requested
+        Integer maxHandshakes  = GuacamoleProperties.getProperty(BasicGuacamoleProperties.GUACD_MAX_HANDSHAKES);
+        Integer maxTunnels     = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_MAX_COUNT);
+        Integer maxUserTunnels = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_MAX_PER_USER);
+
+        Integer queueSize = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_ADMISSION_QUEUE_SIZE);
+        if (queueSize == null)
+            queueSize = AdmissionController.DEFAULT_QUEUE_SIZE;
+
+        Integer queueTimeout = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_ADMISSION_TIMEOUT);
+        if (queueTimeout == null)
+            queueTimeout = AdmissionController.DEFAULT_QUEUE_TIMEOUT;
+
+        admission = new AdmissionController(
+                maxHandshakes  != null ? maxHandshakes  : 0,
+                maxTunnels     != null ? maxTunnels     : 0,
+                maxUserTunnels != null ? maxUserTunnels : 0,
+                queueSize, queueTimeout);
+
+        balancer = new GuacdBalancer();
+
+        // Start relay engine if enabled
+        Boolean relayEnabled = GuacamoleProperties.getProperty(BasicGuacamoleProperties.ENABLE_GUACD_RELAY);
+        if (relayEnabled != null && relayEnabled) {
+
+            // Default to one event loop per core
+            Integer threads = GuacamoleProperties.getProperty(BasicGuacamoleProperties.GUACD_RELAY_THREADS);
+            if (threads == null)
+                threads = Runtime.getRuntime().availableProcessors();
+
+            // Bound data buffered for each tunnel
+            Integer bufferLimit = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_BUFFER_SIZE);
+            if (bufferLimit == null)
+                bufferLimit = NioGuacamoleSocket.DEFAULT_BUFFER_LIMIT;
+
+            Integer stallTimeout = GuacamoleProperties.getProperty(BasicGuacamoleProperties.TUNNEL_STALL_TIMEOUT);
+            if (stallTimeout == null)
+                stallTimeout = NioGuacamoleSocket.DEFAULT_STALL_TIMEOUT;
+
+            try {
+                relay = new RelayEngine(threads, bufferLimit, stallTimeout);
+            }
+            catch (GuacamoleException e) {
+                balancer.shutdown();
+                throw e;
+            }
+
+        }
+        else
+            relay = null;
+
+        admission.register();
+
+    }
+
+    /**
+     * Returns the shared connector, creating it if necessary. Each call must
+     * be balanced by a call to release().
+     *
+     * @return The shared GuacdConnector.
+     * @throws GuacamoleException If the shared connector must be created but
+     *                            cannot be.
+     */
+    public static synchronized GuacdConnector acquire() throws GuacamoleException {
+
+        if (instance == null)
+            instance = new GuacdConnector();
+
+        references++;
+        return instance;
+
+    }
+
+    /**
+     * Releases the shared connector, shutting it down if no longer acquired
+     * by any servlet.
+     */
+    public static synchronized void release() {
+
+        if (references == 0)
+            return;
+
+        if (--references == 0) {
+            instance.shutdown();
+            instance = null;
+        }
+
+    }
+
+    /**
+     * Returns the balancer which chooses the guacd of each tunnel.
+     *
+     * @return The balancer used by this connector.
+     */
+    public GuacdBalancer getBalancer() {
+        return balancer;
+    }
+
+    /**
+     * Connects to guacd and performs the Guacamole protocol handshake using
+     * the given configuration and client information.
+     *
+     * @param config The configuration to use for the handshake.
+     * @param info The client information to use for the handshake.
+     * @param timer The timer to mark as connecting to guacd and the
+     *              handshake complete, or null if not timed.
+     * @return A connection to guacd which has completed the handshake.
+     * @throws GuacamoleException If an error occurs while connecting or
+     *                            during the handshake.
+     */
+    public GuacdConnection connect(GuacamoleConfiguration config,
+            GuacamoleClientInformation info, ConnectTimer timer)
+            throws GuacamoleException {
+
+        long connectTime = System.currentTimeMillis();
+
+        GuacdSocket guacdSocket = balancer.getSocket();
+        if (timer != null)
+            timer.mark(ConnectPhase.GUACD_CONNECT);
+
+        // The outcome of the handshake is reported to the circuit breaker of
+        // the guacd, however the connection was obtained, such that guacd
+        // which accepts connections but fails handshakes is taken out of
+        // service. Failures to connect are reported by the endpoint itself.
+        // Handshakes rejected because of the configuration of a single
+        // connection are not held against guacd.
+        GuacdEndpoint endpoint = guacdSocket.getEndpoint();
+        GuacdHandshake.Result result;
+        try {
+            result = handshake.perform(guacdSocket, config, info, true);
+        }
+        catch (GuacamoleException e) {
+
+            guacdSocket.close();
+
+            // Only retry if guacd may have dropped an idle connection
+            if (!guacdSocket.isPooled()) {
+                if (GuacdHandshake.isTransportFailure(e))
+                    endpoint.recordFailure();
+                throw e;
+            }
+
+            logger.debug("Handshake failed on idle guacd connection. Retrying.", e);
+            guacdSocket = endpoint.getNewSocket();
+            result = perform(guacdSocket, config, info, true);
+
+        }
+
+        // If guacd was sent the wrong arguments, start over the slow way
+        if (result == null) {
+            guacdSocket.close();
+            guacdSocket = endpoint.getNewSocket();
+            result = perform(guacdSocket, config, info, false);
+        }
+
+        endpoint.recordSuccess();
+
+        logger.debug("{} handshake with {} took {} ms.", new Object[] {
+            result.isPipelined() ? "Pipelined" : "Sequential",
+            endpoint,
+            result.getDuration() / 1000000.0
+        });
+
+        if (timer != null)
+            timer.mark(ConnectPhase.HANDSHAKE);
+
+        // Use connection directly if not relaying
+        if (relay == null)
+            return new GuacdConnection(guacdSocket, guacdSocket.getEndpoint(),
+                    connectTime, result);
+
+        // Otherwise, hand connection to relay
+        try {
+            return new GuacdConnection(
+                    relay.register(guacdSocket, guacdSocket.getChannel(), guacdSocket.drain()),
+                    guacdSocket.getEndpoint(), connectTime, result);
+        }
+        catch (GuacamoleException e) {
+            guacdSocket.close();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Performs the handshake on the given newly-connected socket, closing
+     * the socket if the handshake fails, and recording the failure with the
+     * circuit breaker of its guacd if the connection itself failed.
+     *
+     * @param guacdSocket The socket to perform the handshake on.
+     * @param config The configuration to use for the handshake.
+     * @param info The client information to use for the handshake.
+     * @param allowPipelining Whether the handshake may be pipelined.
+     * @return The result of the completed handshake, or null if the
+     *         handshake must be repeated on a new connection.
+     * @throws GuacamoleException If an error occurs during the handshake.
+     */
+    private GuacdHandshake.Result perform(GuacdSocket guacdSocket,
+            GuacamoleConfiguration config, GuacamoleClientInformation info,
+            boolean allowPipelining) throws GuacamoleException {
+
+        try {
+            return handshake.perform(guacdSocket, config, info, allowPipelining);
+        }
+        catch (GuacamoleException e) {
+            guacdSocket.close();
+            if (GuacdHandshake.isTransportFailure(e))
+                guacdSocket.getEndpoint().recordFailure();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Returns the controller limiting how many tunnels may connect to guacd
+     * at once. Each connect request should be admitted before connecting.
+     *
+     * @return The admission controller of this connector.
+     */
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Returns the object performing the handshake of each connection, which
+     * tracks how many handshakes were pipelined and how long they took.
+     *
+     * @return The handshake of this connector.
+     */
+    public GuacdHandshake getHandshake() {
+        return handshake;
+    }
+
+    /**
+     * Stops all background activity of this connector and closes all idle
+     * guacd connections.
+     */
+    private void shutdown() {
+
+        logger.info("Handshakes: {} pipelined (average {} ms), {} sequential (average {} ms), {} repeated.",
+                new Object[] {
+                    handshake.getPipelinedCount(),
+                    handshake.getAveragePipelinedTime(),
+                    handshake.getSequentialCount(),
+                    handshake.getAverageSequentialTime(),
+                    handshake.getMismatchCount()
+                });
+
+        if (relay != null)
+            relay.shutdown();
+
+        balancer.shutdown();
+        admission.unregister();
+
+    }
+
+}
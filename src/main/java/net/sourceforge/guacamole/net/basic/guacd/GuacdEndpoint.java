@@ -0,0 +1,229 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sourceforge.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single guacd instance which tunnels may be connected through, along with
+ * its pool of idle connections, its circuit breaker, and the number of
+ * tunnels currently using it.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdEndpoint {
+
+    private Logger logger = LoggerFactory.getLogger(GuacdEndpoint.class);
+
+    /**
+     * The hostname, port, and weight of this guacd.
+     */
+    private final GuacdAddress address;
+
+    /**
+     * The number of milliseconds to wait for new TCP connections to be
+     * established, or 0 to wait indefinitely.
+     */
+    private final int connectTimeout;
+
+    /**
+     * The circuit breaker guarding new connections to this guacd.
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * The pool of idle connections to this guacd.
+     */
+    private final GuacdSocketPool pool;
+
+    /**
+     * The number of tunnels currently connected through this guacd.
+     */
+    private final AtomicInteger activeTunnels = new AtomicInteger();
+
+    /**
+     * Creates a new GuacdEndpoint for the guacd at the given address. If the
+     * pool is to keep any idle connections, background maintenance of the
+     * pool begins immediately.
+     *
+     * @param address The hostname, port, and weight of guacd.
+     * @param connectTimeout The number of milliseconds to wait for new TCP
+     *                       connections to be established, or 0 to wait
+     *                       indefinitely.
+     * @param breaker The circuit breaker to use to guard new connections.
+     * @param minIdle The minimum number of idle connections to keep.
+     * @param maxIdle The maximum number of idle connections to keep.
+     * @param maxAge The maximum age of an idle connection, in milliseconds.
+     */
+    public GuacdEndpoint(GuacdAddress address, int connectTimeout,
+            CircuitBreaker breaker, int minIdle, int maxIdle, long maxAge) {
+
+        this.address        = address;
+        this.connectTimeout = connectTimeout;
+        this.breaker        = breaker;
+        this.pool           = new GuacdSocketPool(this, minIdle, maxIdle, maxAge);
+
+    }
+
+    /**
+     * Returns the hostname, port, and weight of this guacd.
+     *
+     * @return The address of this guacd.
+     */
+    public GuacdAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the circuit breaker guarding new connections to this guacd.
+     *
+     * @return The circuit breaker of this guacd.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Returns the pool of idle connections to this guacd.
+     *
+     * @return The pool of idle connections to this guacd.
+     */
+    public GuacdSocketPool getSocketPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the number of tunnels currently connected through this guacd.
+     *
+     * @return The number of active tunnels.
+     */
+    public int getActiveTunnels() {
+        return activeTunnels.get();
+    }
+
+    /**
+     * Establishes a new TCP connection to this guacd. Failure to connect is
+     * recorded with the circuit breaker, while success is not, as guacd may
+     * yet fail the handshake; callers record success with recordSuccess()
+     * once guacd has proven itself. The connection is not counted as an
+     * active tunnel.
+     *
+     * @return A new GuacdSocket connected to this guacd.
+     * @throws GuacamoleException If an error occurs while connecting.
+     */
+    public GuacdSocket connect() throws GuacamoleException {
+
+        try {
+            return new GuacdSocket(this, connectTimeout);
+        }
+        catch (GuacamoleException e) {
+            recordFailure();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Records with the circuit breaker that guacd has successfully completed
+     * a handshake, closing the breaker.
+     */
+    public void recordSuccess() {
+
+        // Log recovery
+        if (breaker.getState() != CircuitBreaker.State.CLOSED)
+            logger.info("guacd at {} has recovered.", this);
+
+        breaker.recordSuccess();
+
+    }
+
+    /**
+     * Records with the circuit breaker that guacd could not be connected to,
+     * or that the connection failed during a handshake.
+     */
+    public void recordFailure() {
+
+        breaker.recordFailure();
+
+        // Log when guacd is taken out of service
+        if (breaker.getState() == CircuitBreaker.State.OPEN)
+            logger.warn("guacd at {} is failing and will not be used until it recovers.", this);
+
+    }
+
+    /**
+     * Returns a connection to this guacd for use by a new tunnel, using an
+     * idle connection from the pool if possible. The connection is counted as
+     * an active tunnel until closed.
+     *
+     * @return A GuacdSocket connected to this guacd.
+     * @throws GuacamoleException If no idle connection is available and an
+     *                            error occurs while connecting.
+     */
+    public GuacdSocket getSocket() throws GuacamoleException {
+        GuacdSocket socket = pool.getSocket();
+        socket.setActive(true);
+        return socket;
+    }
+
+    /**
+     * Establishes a new connection to this guacd for use by a new tunnel,
+     * bypassing the pool. The connection is counted as an active tunnel
+     * until closed.
+     *
+     * @return A new GuacdSocket connected to this guacd.
+     * @throws GuacamoleException If an error occurs while connecting.
+     */
+    public GuacdSocket getNewSocket() throws GuacamoleException {
+        GuacdSocket socket = connect();
+        socket.setActive(true);
+        return socket;
+    }
+
+    /**
+     * Called when a socket counted as an active tunnel has been opened.
+     */
+    void tunnelOpened() {
+        activeTunnels.incrementAndGet();
+    }
+
+    /**
+     * Called when a socket counted as an active tunnel has been closed.
+     */
+    void tunnelClosed() {
+        activeTunnels.decrementAndGet();
+    }
+
+    /**
+     * Stops all background maintenance of this guacd and closes all idle
+     * connections.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+
+}
@@ -0,0 +1,450 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.protocol.GuacamoleClientInformation;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+import net.sourceforge.guacamole.protocol.GuacamoleInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Performs the Guacamole protocol handshake with guacd, remembering the
+ * arguments each guacd requested for each protocol, as different guacd
+ * instances may be of different versions. Once the arguments of a protocol
+ * are known, the entire handshake is sent in a single write, without first
+ * waiting for guacd to send its "args" instruction. The "args" instruction
+ * is still read and compared against the remembered arguments, and if they
+ * differ (guacd was upgraded, for example), the handshake must be repeated
+ * on a new connection.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdHandshake {
+
+    private Logger logger = LoggerFactory.getLogger(GuacdHandshake.class);
+
+    /**
+     * The arguments each guacd most recently requested for each protocol.
+     */
+    private final ConcurrentMap<GuacdEndpoint, ConcurrentMap<String, List<String>>> arguments =
+            new ConcurrentHashMap<GuacdEndpoint, ConcurrentMap<String, List<String>>>();
+
+    /**
+     * Whether handshakes may be pipelined at all.
+     */
+    private final boolean pipelining;
+
+    /**
+     * The number of handshakes which were pipelined.
+     */
+    private final AtomicLong pipelinedCount = new AtomicLong();
+
+    /**
+     * The total time spent in pipelined handshakes, in nanoseconds.
+     */
+    private final AtomicLong pipelinedTime = new AtomicLong();
+
+    /**
+     * The number of handshakes which waited for the "args" instruction.
+     */
+    private final AtomicLong sequentialCount = new AtomicLong();
+
+    /**
+     * The total time spent in handshakes which waited for the "args"
+     * instruction, in nanoseconds.
+     */
+    private final AtomicLong sequentialTime = new AtomicLong();
+
+    /**
+     * The number of pipelined handshakes which had to be repeated because
+     * guacd requested different arguments than expected.
+     */
+    private final AtomicLong mismatchCount = new AtomicLong();
+
+    /**
+     * Creates a new GuacdHandshake.
+     *
+     * @param pipelining Whether handshakes may be pipelined once the
+     *                   arguments of a protocol are known.
+     */
+    public GuacdHandshake(boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    /**
+     * Appends the given instruction to the given buffer, in the format
+     * expected by guacd.
+     *
+     * @param buffer The buffer to append to.
+     * @param opcode The opcode of the instruction.
+     * @param args The arguments of the instruction.
+     */
+    private static void appendInstruction(StringBuilder buffer, String opcode,
+            List<String> args) {
+
+        appendElement(buffer, opcode);
+        for (String arg : args) {
+            buffer.append(',');
+            appendElement(buffer, arg);
+        }
+
+        buffer.append(';');
+
+    }
+
+    /**
+     * Appends the given instruction element to the given buffer, prefixed
+     * with its length in characters.
+     *
+     * @param buffer The buffer to append to.
+     * @param value The value of the element.
+     */
+    private static void appendElement(StringBuilder buffer, String value) {
+        buffer.append(value.codePointCount(0, value.length()));
+        buffer.append('.');
+        buffer.append(value);
+    }
+
+    /**
+     * Appends the instructions which follow the "args" instruction of guacd
+     * to the given buffer: the screen size, supported audio and video
+     * formats, and finally the values of the requested arguments.
+     *
+     * @param buffer The buffer to append to.
+     * @param config The configuration providing argument values.
+     * @param info The client information to send.
+     * @param names The names of the arguments requested by guacd.
+     */
+    private static void appendConnect(StringBuilder buffer,
+            GuacamoleConfiguration config, GuacamoleClientInformation info,
+            List<String> names) {
+
+        appendInstruction(buffer, "size", Arrays.asList(
+            Integer.toString(info.getOptimalScreenWidth()),
+            Integer.toString(info.getOptimalScreenHeight())
+        ));
+
+        appendInstruction(buffer, "audio", info.getAudioMimetypes());
+        appendInstruction(buffer, "video", info.getVideoMimetypes());
+
+        // Send value of each requested argument, or blank if unset
+        String[] values = new String[names.size()];
+        for (int i = 0; i < values.length; i++) {
+            String value = config.getParameter(names.get(i));
+            values[i] = (value != null) ? value : "";
+        }
+
+        appendInstruction(buffer, "connect", Arrays.asList(values));
+
+    }
+
+    /**
+     * Writes the given buffered instructions to the given socket in a
+     * single write.
+     *
+     * @param socket The socket to write to.
+     * @param buffer The instructions to write.
+     * @throws GuacamoleException If an error occurs while writing.
+     */
+    private static void write(GuacdSocket socket, StringBuilder buffer)
+            throws GuacamoleException {
+
+        char[] chunk = new char[buffer.length()];
+        buffer.getChars(0, chunk.length, chunk, 0);
+        socket.getWriter().write(chunk);
+
+    }
+
+    /**
+     * Reads the "args" instruction of guacd from the given socket, returning
+     * the names of the requested arguments.
+     *
+     * @param socket The socket to read from.
+     * @return The names of the arguments requested by guacd.
+     * @throws GuacamoleException If an error occurs while reading, or if
+     *                            guacd sends anything other than "args".
+     */
+    private static List<String> readArgs(GuacdSocket socket)
+            throws GuacamoleException {
+
+        GuacamoleInstruction instruction = socket.getReader().readInstruction();
+        if (instruction == null)
+            throw new GuacamoleException("End of stream during initial handshake.",
+                    new EOFException("guacd closed the connection."));
+
+        if (!"args".equals(instruction.getOpcode()))
+            throw new GuacamoleException("Expected \"args\" instruction but instead received \""
+                    + instruction.getOpcode() + "\".");
+
+        return Arrays.asList(instruction.getArgs());
+
+    }
+
+    /**
+     * Returns the arguments the given guacd most recently requested for each
+     * protocol.
+     *
+     * @param endpoint The guacd to retrieve the arguments of.
+     * @return A map of each protocol to the arguments the given guacd most
+     *         recently requested for that protocol.
+     */
+    private ConcurrentMap<String, List<String>> getArguments(GuacdEndpoint endpoint) {
+
+        ConcurrentMap<String, List<String>> endpointArguments = arguments.get(endpoint);
+        if (endpointArguments == null) {
+
+            ConcurrentMap<String, List<String>> created = new ConcurrentHashMap<String, List<String>>();
+            endpointArguments = arguments.putIfAbsent(endpoint, created);
+            if (endpointArguments == null)
+                endpointArguments = created;
+
+        }
+
+        return endpointArguments;
+
+    }
+
+    /**
+     * Returns whether the given handshake failure was caused by the
+     * connection to guacd itself failing (an I/O error, timeout, or guacd
+     * closing the connection), rather than by guacd rejecting the handshake,
+     * as it would for an unknown protocol or invalid arguments. Only the
+     * former says anything about the health of guacd as a whole.
+     *
+     * @param e The exception thrown by perform().
+     * @return true if the connection to guacd failed, false otherwise.
+     */
+    public static boolean isTransportFailure(GuacamoleException e) {
+
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException)
+                return true;
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Performs the handshake on the given socket, pipelining it if the
+     * arguments of the requested protocol are known and pipelining is
+     * allowed. If a pipelined handshake turns out to have sent the wrong
+     * arguments, the correct arguments are remembered, and null is
+     * returned; the socket must then be closed and the handshake performed
+     * again on a new connection.
+     *
+     * @param socket The socket to perform the handshake on.
+     * @param config The configuration to use for the handshake.
+     * @param info The client information to use for the handshake.
+     * @param allowPipelining Whether the handshake may be pipelined.
+     * @return The result of the completed handshake, or null if the
+     *         handshake must be repeated on a new connection.
+     * @throws GuacamoleException If an error occurs during the handshake.
+     */
+    public Result perform(GuacdSocket socket, GuacamoleConfiguration config,
+            GuacamoleClientInformation info, boolean allowPipelining)
+            throws GuacamoleException {
+
+        long start = System.nanoTime();
+        String protocol = config.getProtocol();
+        ConcurrentMap<String, List<String>> known = getArguments(socket.getEndpoint());
+
+        StringBuilder buffer = new StringBuilder();
+        appendInstruction(buffer, "select", Arrays.asList(protocol));
+
+        // If arguments are known, send everything without waiting
+        List<String> expected = known.get(protocol);
+        if (pipelining && allowPipelining && expected != null) {
+
+            appendConnect(buffer, config, info, expected);
+            write(socket, buffer);
+
+            // Verify guacd asked for what was sent
+            List<String> names = readArgs(socket);
+            if (!names.equals(expected)) {
+                known.put(protocol, names);
+                mismatchCount.incrementAndGet();
+                logger.info("Arguments of protocol \"{}\" of guacd at {} have changed. Repeating handshake.",
+                        protocol, socket.getEndpoint());
+                return null;
+            }
+
+            long elapsed = System.nanoTime() - start;
+            pipelinedCount.incrementAndGet();
+            pipelinedTime.addAndGet(elapsed);
+            return new Result(true, elapsed, names);
+
+        }
+
+        // Otherwise, wait for guacd to request its arguments
+        write(socket, buffer);
+        List<String> names = readArgs(socket);
+        known.put(protocol, names);
+
+        buffer.setLength(0);
+        appendConnect(buffer, config, info, names);
+        write(socket, buffer);
+
+        long elapsed = System.nanoTime() - start;
+        sequentialCount.incrementAndGet();
+        sequentialTime.addAndGet(elapsed);
+        return new Result(false, elapsed, names);
+
+    }
+
+    /**
+     * Returns the number of handshakes which were pipelined.
+     *
+     * @return The number of pipelined handshakes.
+     */
+    public long getPipelinedCount() {
+        return pipelinedCount.get();
+    }
+
+    /**
+     * Returns the average duration of pipelined handshakes.
+     *
+     * @return The average duration of pipelined handshakes, in
+     *         milliseconds, or 0 if there have been none.
+     */
+    public double getAveragePipelinedTime() {
+        return average(pipelinedTime.get(), pipelinedCount.get());
+    }
+
+    /**
+     * Returns the number of handshakes which waited for guacd to request its
+     * arguments.
+     *
+     * @return The number of sequential handshakes.
+     */
+    public long getSequentialCount() {
+        return sequentialCount.get();
+    }
+
+    /**
+     * Returns the average duration of handshakes which waited for guacd to
+     * request its arguments.
+     *
+     * @return The average duration of sequential handshakes, in
+     *         milliseconds, or 0 if there have been none.
+     */
+    public double getAverageSequentialTime() {
+        return average(sequentialTime.get(), sequentialCount.get());
+    }
+
+    /**
+     * Returns the number of pipelined handshakes which had to be repeated
+     * because guacd requested different arguments than expected.
+     *
+     * @return The number of repeated handshakes.
+     */
+    public long getMismatchCount() {
+        return mismatchCount.get();
+    }
+
+    /**
+     * Returns the average of the given total number of nanoseconds, in
+     * milliseconds.
+     *
+     * @param total The total number of nanoseconds.
+     * @param count The number of values totalled.
+     * @return The average in milliseconds, or 0 if count is 0.
+     */
+    private static double average(long total, long count) {
+
+        if (count == 0)
+            return 0;
+
+        return total / 1000000.0 / count;
+
+    }
+
+    /**
+     * The result of a completed handshake.
+     */
+    public static class Result {
+
+        /**
+         * Whether the handshake was pipelined.
+         */
+        private final boolean pipelined;
+
+        /**
+         * The duration of the handshake, in nanoseconds.
+         */
+        private final long duration;
+
+        /**
+         * The names of the arguments guacd requested, in order.
+         */
+        private final List<String> arguments;
+
+        /**
+         * Creates a new Result describing a completed handshake.
+         *
+         * @param pipelined Whether the handshake was pipelined.
+         * @param duration The duration of the handshake, in nanoseconds.
+         * @param arguments The names of the arguments guacd requested.
+         */
+        public Result(boolean pipelined, long duration, List<String> arguments) {
+            this.pipelined = pipelined;
+            this.duration = duration;
+            this.arguments = arguments;
+        }
+
+        /**
+         * Returns whether the handshake was pipelined.
+         *
+         * @return true if the handshake was pipelined, false otherwise.
+         */
+        public boolean isPipelined() {
+            return pipelined;
+        }
+
+        /**
+         * Returns the duration of the handshake.
+         *
+         * @return The duration of the handshake, in nanoseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Returns the names of the arguments guacd requested, and which were
+         * thus sent to guacd, in order.
+         *
+         * @return The names of the arguments guacd requested.
+         */
+        public List<String> getArguments() {
+            return arguments;
+        }
+
+    }
+
+}
@@ -0,0 +1,327 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleReader;
+import net.sourceforge.guacamole.io.GuacamoleWriter;
+import net.sourceforge.guacamole.io.WriterGuacamoleWriter;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+import net.sourceforge.guacamole.net.basic.protocol.StreamGuacamoleReader;
+
+/**
+ * Provides abstract socket-like access to a TCP connection to guacd. Unlike
+ * InetGuacamoleSocket, the underlying connection may be established ahead of
+ * time (by a GuacdSocketPool) and handed out later, once the handshake is
+ * actually needed.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdSocket implements GuacamoleSocket {
+
+    /**
+     * The number of milliseconds to wait for data on the TCP socket before
+     * timing out. This matches the timeout used by InetGuacamoleSocket.
+     */
+    private static final int SOCKET_TIMEOUT = 15000;
+
+    /**
+     * The guacd this socket is connected to.
+     */
+    private final GuacdEndpoint endpoint;
+
+    /**
+     * The channel of the TCP connection to guacd. The channel remains in
+     * blocking mode unless handed to a relay engine after the handshake.
+     */
+    private SocketChannel channel;
+
+    /**
+     * The TCP socket connected to guacd.
+     */
+    private Socket sock;
+
+    /**
+     * The time the TCP connection was established, in milliseconds since
+     * the epoch.
+     */
+    private long connectTime;
+
+    /**
+     * Whether this socket was retrieved from the idle sockets of a pool,
+     * rather than being connected on demand.
+     */
+    private boolean pooled = false;
+
+    /**
+     * Whether this socket is counted as an active tunnel of its endpoint.
+     */
+    private final AtomicBoolean active = new AtomicBoolean();
+
+    /**
+     * The GuacamoleReader this socket should read from. Data is read as raw
+     * bytes, such that it can be passed along without decoding.
+     */
+    private StreamGuacamoleReader reader;
+
+    /**
+     * The GuacamoleWriter this socket should write to.
+     */
+    private GuacamoleWriter writer;
+
+    /**
+     * Creates a new GuacdSocket which reads and writes instructions to the
+     * Guacamole instruction stream of the Guacamole proxy server at the given
+     * endpoint.
+     *
+     * @param endpoint The Guacamole proxy server to connect to.
+     * @param timeout The number of milliseconds to wait for the TCP connection
+     *                to be established, or 0 to wait indefinitely.
+     * @throws GuacamoleException If an error occurs while connecting to the
+     *                            Guacamole proxy server.
+     */
+    public GuacdSocket(GuacdEndpoint endpoint, int timeout)
+            throws GuacamoleException {
+
+        this.endpoint = endpoint;
+        GuacdAddress address = endpoint.getAddress();
+
+        try {
+
+            // Connect with timeout
+            channel = SocketChannel.open();
+            sock = channel.socket();
+            sock.connect(new InetSocketAddress(address.getHostname(), address.getPort()), timeout);
+            connectTime = System.currentTimeMillis();
+
+            // Set read timeout
+            sock.setSoTimeout(SOCKET_TIMEOUT);
+
+            // On successful connect, retrieve I/O streams
+            reader = new StreamGuacamoleReader(sock.getInputStream());
+            writer = new WriterGuacamoleWriter(new OutputStreamWriter(sock.getOutputStream(), "UTF-8"));
+
+        }
+        catch (IOException e) {
+
+            // Do not leak the socket if only partially initialized
+            if (channel != null) {
+                try { channel.close(); }
+                catch (IOException ignore) {}
+            }
+
+            throw new GuacamoleException("Unable to connect to guacd at "
+                    + address + ".", e);
+
+        }
+
+    }
+
+    /**
+     * Returns the guacd this socket is connected to.
+     *
+     * @return The guacd this socket is connected to.
+     */
+    public GuacdEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Returns the channel of the underlying TCP connection. The channel is
+     * in blocking mode, and must not be read from or written to directly
+     * while this socket's reader or writer are in use.
+     *
+     * @return The channel of the TCP connection to guacd.
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Removes and returns all data already read from guacd but not yet
+     * returned by the reader of this socket. This allows the connection to be
+     * handed to a relay engine without losing data.
+     *
+     * @return All data read but not yet returned, which may be empty.
+     */
+    public byte[] drain() {
+        return reader.drain();
+    }
+
+    /**
+     * Returns the number of milliseconds elapsed since the underlying TCP
+     * connection was established.
+     *
+     * @return The age of this socket, in milliseconds.
+     */
+    public long getAge() {
+        return System.currentTimeMillis() - connectTime;
+    }
+
+    /**
+     * Returns whether this socket was retrieved from the idle sockets of a
+     * pool, rather than connected on demand.
+     *
+     * @return true if this socket was retrieved from a pool, false otherwise.
+     */
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Sets whether this socket was retrieved from the idle sockets of a pool.
+     *
+     * @param pooled true if this socket was retrieved from a pool, false
+     *               otherwise.
+     */
+    void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    /**
+     * Sets whether this socket is counted as an active tunnel of its
+     * endpoint. Closing the socket stops it being counted.
+     *
+     * @param active true if this socket should be counted as an active
+     *               tunnel, false otherwise.
+     */
+    void setActive(boolean active) {
+        if (this.active.compareAndSet(!active, active)) {
+            if (active) endpoint.tunnelOpened();
+            else        endpoint.tunnelClosed();
+        }
+    }
+
+    /**
+     * Returns whether this socket still appears usable for a new handshake.
+     * Because guacd sends nothing until the handshake begins, a connection
+     * which guacd has closed, or on which any data is pending, is no longer
+     * in a known state. This check never blocks, and must only be performed
+     * on sockets not otherwise in use.
+     *
+     * @return true if this socket appears usable, false otherwise.
+     */
+    public boolean validate() {
+
+        // Connection must still be fully open
+        if (sock.isClosed() || !sock.isConnected()
+                || sock.isInputShutdown() || sock.isOutputShutdown())
+            return false;
+
+        // guacd must neither have closed the connection nor sent anything
+        // yet. The channel itself is read without blocking, as the input
+        // stream of its socket reports neither through available().
+        try {
+            synchronized (channel.blockingLock()) {
+
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) == 0;
+                }
+                finally {
+                    channel.configureBlocking(true);
+                }
+
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+
+    }
+
+    /**
+     * Tests whether guacd has closed this connection, waiting at most the
+     * given number of milliseconds for end-of-stream to be seen. As this
+     * function may block, it is intended for background maintenance of idle
+     * sockets only.
+     *
+     * @param timeout The maximum number of milliseconds to wait.
+     * @return true if the connection is still alive and no data has been
+     *         received, false otherwise.
+     */
+    public boolean probe(int timeout) {
+
+        if (!validate())
+            return false;
+
+        try {
+
+            // Any successful read means either EOF or unexpected data
+            sock.setSoTimeout(timeout);
+            sock.getInputStream().read();
+            return false;
+
+        }
+
+        // A timeout means the connection is still idle, as expected
+        catch (java.net.SocketTimeoutException e) {
+            return true;
+        }
+
+        catch (IOException e) {
+            return false;
+        }
+
+        // Restore normal read timeout
+        finally {
+            try { sock.setSoTimeout(SOCKET_TIMEOUT); }
+            catch (IOException e) { /* Socket will fail validation later */ }
+        }
+
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+
+        // No longer an active tunnel
+        setActive(false);
+
+        try {
+            sock.close();
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Error closing socket.", e);
+        }
+
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !sock.isClosed();
+    }
+
+}
@@ -0,0 +1,349 @@
+package net.sourceforge.guacamole.net.basic.guacd;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of idle, pre-connected TCP connections to a single guacd instance.
+ * A background thread keeps at least the configured minimum number of idle
+ * connections available, such that tunnels can begin the Guacamole protocol
+ * handshake without first waiting for a TCP connection to be established.
+ *
+ * Because guacd closes any connection which does not begin the handshake
+ * within a fixed timeout, idle connections are discarded once they reach
+ * the configured maximum age and are replaced with fresh connections.
+ *
+ * If the pool is configured with no idle connections at all, it simply
+ * connects a new socket for every request.
+ *
+ * @author Michael Jumper
+ */
+public class GuacdSocketPool {
+
+    private Logger logger = LoggerFactory.getLogger(GuacdSocketPool.class);
+
+    /**
+     * The number of milliseconds between maintenance runs, during which
+     * expired or dead connections are discarded and the pool is refilled.
+     */
+    private static final long MAINTENANCE_INTERVAL = 1000;
+
+    /**
+     * The number of milliseconds to wait for end-of-stream when probing idle
+     * connections during maintenance.
+     */
+    private static final int PROBE_TIMEOUT = 1;
+
+    /**
+     * The guacd whose connections are pooled.
+     */
+    private final GuacdEndpoint endpoint;
+
+    /**
+     * The minimum number of idle connections to keep available.
+     */
+    private final int minIdle;
+
+    /**
+     * The maximum number of idle connections to keep available.
+     */
+    private final int maxIdle;
+
+    /**
+     * The maximum age of an idle connection, in milliseconds.
+     */
+    private final long maxAge;
+
+    /**
+     * All idle connections, oldest first.
+     */
+    private final ConcurrentLinkedQueue<GuacdSocket> idle =
+            new ConcurrentLinkedQueue<GuacdSocket>();
+
+    /**
+     * The number of idle connections, including connections currently being
+     * established by the maintenance thread.
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * The number of requests satisfied by an idle connection.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of requests which required a new connection.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Whether shutdown() has been called.
+     */
+    private volatile boolean shutdown = false;
+
+    /**
+     * Whether a refill of the pool is already scheduled.
+     */
+    private final AtomicBoolean refillPending = new AtomicBoolean();
+
+    /**
+     * The executor which runs all background maintenance of this pool, or
+     * null if the pool keeps no idle connections.
+     */
+    private ScheduledExecutorService maintenance;
+
+    /**
+     * Task which discards expired or dead idle connections.
+     */
+    private final Runnable evictTask = new Runnable() {
+
+        @Override
+        public void run() {
+
+            // Check only the connections idle now, as those checked are
+            // returned to the end of the pool
+            for (GuacdSocket socket : new ArrayList<GuacdSocket>(idle)) {
+
+                // Take connection out of the pool while checking it, such
+                // that it is never probed while in use. Skip connections
+                // already taken.
+                if (!idle.remove(socket))
+                    continue;
+
+                idleCount.decrementAndGet();
+
+                // Close if expired or closed by guacd
+                if (socket.getAge() >= maxAge || !socket.probe(PROBE_TIMEOUT)) {
+                    discard(socket);
+                    continue;
+                }
+
+                // Otherwise return to pool
+                idleCount.incrementAndGet();
+                idle.offer(socket);
+
+                // Close connection if returned after shutdown
+                if (shutdown && idle.remove(socket)) {
+                    idleCount.decrementAndGet();
+                    discard(socket);
+                }
+
+            }
+
+            refill();
+
+        }
+
+    };
+
+    /**
+     * Task which establishes new connections until the minimum number of
+     * idle connections is available.
+     */
+    private final Runnable refillTask = new Runnable() {
+
+        @Override
+        public void run() {
+            refillPending.set(false);
+            refill();
+        }
+
+    };
+
+    /**
+     * Creates a new GuacdSocketPool for the given guacd instance. Background
+     * maintenance begins immediately if the pool is to keep any idle
+     * connections.
+     *
+     * @param endpoint The guacd whose connections should be pooled.
+     * @param minIdle The minimum number of idle connections to keep.
+     * @param maxIdle The maximum number of idle connections to keep.
+     * @param maxAge The maximum age of an idle connection, in milliseconds.
+     */
+    public GuacdSocketPool(GuacdEndpoint endpoint, int minIdle, int maxIdle,
+            long maxAge) {
+
+        this.endpoint = endpoint;
+        this.minIdle  = minIdle;
+        this.maxIdle  = Math.max(minIdle, maxIdle);
+        this.maxAge   = maxAge;
+
+        // Only maintain idle connections if requested
+        if (this.maxIdle > 0) {
+
+            maintenance = Executors.newSingleThreadScheduledExecutor(
+                    GuacamoleThreads.newThreadFactory("guacd-pool-" + endpoint));
+
+            maintenance.scheduleWithFixedDelay(evictTask, 0,
+                    MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        }
+
+    }
+
+    /**
+     * Returns a connection to guacd which has not yet begun the Guacamole
+     * protocol handshake. If a valid idle connection is available, it is
+     * removed from the pool and returned. Otherwise, a new connection is
+     * established.
+     *
+     * @return A GuacdSocket connected to guacd.
+     * @throws GuacamoleException If no idle connection is available and an
+     *                            error occurs while connecting.
+     */
+    public GuacdSocket getSocket() throws GuacamoleException {
+
+        // Use oldest valid idle connection, if any
+        GuacdSocket socket;
+        while ((socket = idle.poll()) != null) {
+
+            idleCount.decrementAndGet();
+
+            if (socket.getAge() < maxAge && socket.validate()) {
+                hits.incrementAndGet();
+                scheduleRefill();
+                socket.setPooled(true);
+                return socket;
+            }
+
+            discard(socket);
+
+        }
+
+        // Otherwise, connect on demand
+        misses.incrementAndGet();
+        scheduleRefill();
+        logger.debug("No idle connection to guacd at {}. Connecting on demand.", endpoint);
+        return endpoint.connect();
+
+    }
+
+    /**
+     * Returns the number of requests satisfied by an idle connection.
+     *
+     * @return The number of pool hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests which required a new connection.
+     *
+     * @return The number of pool misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of idle connections currently available.
+     *
+     * @return The number of idle connections.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Stops all background maintenance and closes all idle connections.
+     */
+    public void shutdown() {
+
+        shutdown = true;
+
+        if (maintenance != null)
+            maintenance.shutdownNow();
+
+        GuacdSocket socket;
+        while ((socket = idle.poll()) != null)
+            discard(socket);
+
+        logger.info("Closed connection pool for guacd at {} ({} hits, {} misses).",
+                new Object[] { endpoint, hits.get(), misses.get() });
+
+    }
+
+    /**
+     * Asynchronously refills the pool, unless a refill is already pending.
+     */
+    private void scheduleRefill() {
+        if (maintenance != null && refillPending.compareAndSet(false, true))
+            maintenance.execute(refillTask);
+    }
+
+    /**
+     * Establishes new connections until the minimum number of idle
+     * connections is reached, never exceeding the maximum.
+     */
+    private void refill() {
+
+        while (idleCount.get() < minIdle) {
+
+            // Do not attempt new connections to a failing guacd
+            if (!endpoint.getCircuitBreaker().isAvailable())
+                return;
+
+            // Reserve space for the new connection
+            if (idleCount.incrementAndGet() > maxIdle) {
+                idleCount.decrementAndGet();
+                return;
+            }
+
+            try {
+                idle.add(endpoint.connect());
+            }
+            catch (GuacamoleException e) {
+                idleCount.decrementAndGet();
+                logger.warn("Unable to pre-connect to guacd at {}: {}",
+                        endpoint, e.getMessage());
+                return;
+            }
+
+        }
+
+    }
+
+    /**
+     * Closes the given idle connection, logging any errors.
+     *
+     * @param socket The connection to close.
+     */
+    private void discard(GuacdSocket socket) {
+        try {
+            socket.close();
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Error closing idle guacd connection.", e);
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package net.sourceforge.guacamole.net.basic.metrics;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Histograms of the duration of each phase of establishing connections of
+ * one protocol, or through one guacd.
+ *
+ * @author Michael Jumper
+ */
+public class ConnectLatency implements ConnectLatencyMXBean {
+
+    /**
+     * The key of the histogram covering all phases.
+     */
+    private static final String TOTAL = "total";
+
+    /**
+     * The histogram of each phase, indexed by ordinal.
+     */
+    private final LatencyHistogram[] phases =
+            new LatencyHistogram[ConnectPhase.values().length];
+
+    /**
+     * The histogram of the total time taken by all phases.
+     */
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    /**
+     * Creates a new ConnectLatency with empty histograms.
+     */
+    public ConnectLatency() {
+        for (int i = 0; i < phases.length; i++)
+            phases[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Records the timings of the given completed connection.
+     *
+     * @param timer The timings of the connection.
+     */
+    public void record(ConnectTimer timer) {
+
+        for (ConnectPhase phase : ConnectPhase.values())
+            phases[phase.ordinal()].record(timer.getDuration(phase));
+
+        total.record(timer.getTotal());
+
+    }
+
+    /**
+     * Returns the given percentile of each phase and of the total.
+     *
+     * @param fraction The percentile to return, between 0 and 1.
+     * @return The given percentile of each phase, in milliseconds, keyed by
+     *         phase name.
+     */
+    private Map<String, Double> getPercentile(double fraction) {
+
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        for (ConnectPhase phase : ConnectPhase.values())
+            values.put(phase.getName(), phases[phase.ordinal()].getPercentile(fraction));
+
+        values.put(TOTAL, total.getPercentile(fraction));
+        return values;
+
+    }
+
+    @Override
+    public long getCount() {
+        return total.getCount();
+    }
+
+    @Override
+    public Map<String, Double> getMean() {
+
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        for (ConnectPhase phase : ConnectPhase.values())
+            values.put(phase.getName(), phases[phase.ordinal()].getMean());
+
+        values.put(TOTAL, total.getMean());
+        return values;
+
+    }
+
+    @Override
+    public Map<String, Double> getMedian() {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public Map<String, Double> getPercentile95() {
+        return getPercentile(0.95);
+    }
+
+    @Override
+    public Map<String, Double> getPercentile99() {
+        return getPercentile(0.99);
+    }
+
+    @Override
+    public Map<String, Double> getMax() {
+
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        for (ConnectPhase phase : ConnectPhase.values())
+            values.put(phase.getName(), phases[phase.ordinal()].getMax());
+
+        values.put(TOTAL, total.getMax());
+        return values;
+
+    }
+
+}
@@ -0,0 +1,74 @@
+package net.sourceforge.guacamole.net.basic.metrics;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface exposing how long connections of one protocol, or
+ * through one guacd, have taken to establish, broken down by phase. Each
+ * map is keyed by phase name, with "total" covering all phases.
+ *
+ * @author Michael Jumper
+ */
+public interface ConnectLatencyMXBean {
+
+    /**
+     * Returns the number of connections timed.
+     *
+     * @return The number of connections timed.
+     */
+    public long getCount();
+
+    /**
+     * Returns the mean duration of each phase.
+     *
+     * @return The mean duration of each phase, in milliseconds.
+     */
+    public Map<String, Double> getMean();
+
+    /**
+     * Returns the median duration of each phase.
+     *
+     * @return The median duration of each phase, in milliseconds.
+     */
+    public Map<String, Double> getMedian();
+
+    /**
+     * Returns the 95th percentile duration of each phase.
+     *
+     * @return The 95th percentile duration of each phase, in milliseconds.
+     */
+    public Map<String, Double> getPercentile95();
+
+    /**
+     * Returns the 99th percentile duration of each phase.
+     *
+     * @return The 99th percentile duration of each phase, in milliseconds.
+     */
+    public Map<String, Double> getPercentile99();
+
+    /**
+     * Returns the longest duration of each phase.
+     *
+     * @return The longest duration of each phase, in milliseconds.
+     */
+    public Map<String, Double> getMax();
+
+}
@@ -0,0 +1,206 @@
+package net.sourceforge.guacamole.net.basic.metrics;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the timings of all established connections into histograms per
+ * protocol and per guacd, and logs connections which took too long. The
+ * histograms of each protocol and guacd are exposed through JMX as
+ * "net.sourceforge.guacamole:type=ConnectLatency,protocol=PROTOCOL" and
+ * "net.sourceforge.guacamole:type=ConnectLatency,guacd=ADDRESS".
+ *
+ * @author Michael Jumper
+ */
+public class ConnectMetrics {
+
+    private static Logger logger = LoggerFactory.getLogger(ConnectMetrics.class);
+
+    /**
+     * The default number of milliseconds a connection may take to establish
+     * before it is logged as slow.
+     */
+    public static final int DEFAULT_SLOW_THRESHOLD = 5000;
+
+    /**
+     * The JMX domain of all connect latency MBeans.
+     */
+    private static final String MBEAN_DOMAIN = "net.sourceforge.guacamole";
+
+    /**
+     * The histograms of each protocol, by protocol name.
+     */
+    private static final ConcurrentMap<String, ConnectLatency> protocols =
+            new ConcurrentHashMap<String, ConnectLatency>();
+
+    /**
+     * The histograms of each guacd, by address.
+     */
+    private static final ConcurrentMap<String, ConnectLatency> endpoints =
+            new ConcurrentHashMap<String, ConnectLatency>();
+
+    /**
+     * The number of nanoseconds a connection may take to establish before it
+     * is logged as slow, or 0 if connections are never logged as slow.
+     */
+    private static volatile long slowThreshold =
+            DEFAULT_SLOW_THRESHOLD * 1000000L;
+
+    /**
+     * This class should not be instantiated.
+     */
+    private ConnectMetrics() {}
+
+    /**
+     * Sets the number of milliseconds a connection may take to establish
+     * before it is logged as slow.
+     *
+     * @param threshold The threshold in milliseconds, or 0 if connections
+     *                  should never be logged as slow.
+     */
+    public static void setSlowThreshold(int threshold) {
+        slowThreshold = threshold * 1000000L;
+    }
+
+    /**
+     * Returns the name of the MBean of the histograms having the given key
+     * and value.
+     *
+     * @param key The key distinguishing the histograms, such as "protocol".
+     * @param value The value of the key, such as "vnc".
+     * @return The name of the MBean.
+     * @throws JMException If the value does not produce a valid name.
+     */
+    private static ObjectName getObjectName(String key, String value)
+            throws JMException {
+        return new ObjectName(MBEAN_DOMAIN + ":type=ConnectLatency,"
+                + key + "=" + ObjectName.quote(value));
+    }
+
+    /**
+     * Returns the histograms having the given value within the given map,
+     * creating and exposing them through JMX if necessary.
+     *
+     * @param map The map of histograms to search.
+     * @param key The key distinguishing the histograms, such as "protocol".
+     * @param value The value of the key, such as "vnc".
+     * @return The histograms having the given value.
+     */
+    private static ConnectLatency getLatency(
+            ConcurrentMap<String, ConnectLatency> map, String key,
+            String value) {
+
+        ConnectLatency latency = map.get(value);
+        if (latency != null)
+            return latency;
+
+        // Create, unless created concurrently
+        latency = new ConnectLatency();
+        ConnectLatency existing = map.putIfAbsent(value, latency);
+        if (existing != null)
+            return existing;
+
+        // Expose through JMX, if possible
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(latency, getObjectName(key, value));
+        }
+        catch (JMException e) {
+            logger.warn("Unable to expose connect latency of {} \"{}\" through JMX: {}",
+                    new Object[] { key, value, e.getMessage() });
+        }
+        catch (SecurityException e) {
+            logger.warn("Unable to expose connect latency of {} \"{}\" through JMX: {}",
+                    new Object[] { key, value, e.getMessage() });
+        }
+
+        return latency;
+
+    }
+
+    /**
+     * Records the timings of the given completed connection, logging the
+     * connection if it took too long.
+     *
+     * @param timer The timings of the connection.
+     */
+    public static void record(ConnectTimer timer) {
+
+        if (timer.getProtocol() != null)
+            getLatency(protocols, "protocol", timer.getProtocol()).record(timer);
+
+        if (timer.getGuacdEndpoint() != null)
+            getLatency(endpoints, "guacd", timer.getGuacdEndpoint()).record(timer);
+
+        long threshold = slowThreshold;
+        if (threshold > 0 && timer.getTotal() > threshold)
+            logger.warn("Slow connect: {}", timer);
+        else
+            logger.debug("Connect: {}", timer);
+
+    }
+
+    /**
+     * Removes the MBeans of all histograms within the given map.
+     *
+     * @param map The map of histograms to remove.
+     * @param key The key distinguishing the histograms, such as "protocol".
+     */
+    private static void unregisterAll(ConcurrentMap<String, ConnectLatency> map,
+            String key) {
+
+        for (String value : map.keySet()) {
+
+            map.remove(value);
+
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = getObjectName(key, value);
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+            }
+            catch (JMException e) {
+                logger.debug("Unable to remove connect latency MBean.", e);
+            }
+            catch (SecurityException e) {
+                logger.debug("Unable to remove connect latency MBean.", e);
+            }
+
+        }
+
+    }
+
+    /**
+     * Discards all histograms, such that none remain exposed through JMX
+     * once this web application is stopped.
+     */
+    public static void unregisterAll() {
+        unregisterAll(protocols, "protocol");
+        unregisterAll(endpoints, "guacd");
+    }
+
+}
@@ -0,0 +1,97 @@
+package net.sourceforge.guacamole.net.basic.metrics;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The consecutive phases of establishing a new tunnel, from the arrival of
+ * the connect request until the client receives its first frame.
+ *
+ * @author Michael Jumper
+ */
+public enum ConnectPhase {
+
+    /**
+     * Authenticating the user, if not already authenticated, including
+     * loading session listeners and notifying them of the authentication.
+     */
+    AUTHENTICATION("authentication"),
+
+    /**
+     * Waiting for admission, if the number of handshakes or tunnels is
+     * limited.
+     */
+    ADMISSION("admission"),
+
+    /**
+     * Loading the session listeners of the tunnel.
+     */
+    LISTENERS("listeners"),
+
+    /**
+     * Choosing a guacd and obtaining a TCP connection to it.
+     */
+    GUACD_CONNECT("guacd-connect"),
+
+    /**
+     * Performing the Guacamole protocol handshake with guacd.
+     */
+    HANDSHAKE("handshake"),
+
+    /**
+     * Notifying listeners of the new tunnel and setting up its recording or
+     * sharing, if any.
+     */
+    CONNECT_LISTENERS("connect-listeners"),
+
+    /**
+     * Waiting for the first sync instruction to be sent to the client,
+     * including the client's first read request and the time taken by the
+     * remote desktop to produce its first frame.
+     */
+    FIRST_SYNC("first-sync");
+
+    /**
+     * The name of this phase, as logged.
+     */
+    private final String name;
+
+    /**
+     * Creates a new ConnectPhase having the given name.
+     *
+     * @param name The name of the phase, as logged.
+     */
+    private ConnectPhase(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of this phase, as logged.
+     *
+     * @return The name of this phase.
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,246 @@
+package net.sourceforge.guacamole.net.basic.metrics;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Times each phase of establishing a single tunnel. Phases are consecutive:
+ * marking the end of a phase attributes all time since the end of the
+ * previous phase to it, and phases which do not apply (such as the guacd
+ * handshake of a viewer joining a shared tunnel) are simply never marked.
+ * Once the first sync instruction has been sent, the timings are reported
+ * to ConnectMetrics.
+ *
+ * @author Michael Jumper
+ */
+public class ConnectTimer {
+
+    /**
+     * The time the connect request arrived, as given by System.nanoTime().
+     */
+    private final long startTime;
+
+    /**
+     * The time the most recent phase ended, as given by System.nanoTime().
+     */
+    private long lastMark;
+
+    /**
+     * The duration of each phase, in nanoseconds, indexed by ordinal.
+     */
+    private final long[] durations = new long[ConnectPhase.values().length];
+
+    /**
+     * The total duration, in nanoseconds, once complete.
+     */
+    private long total;
+
+    /**
+     * Whether all phases have completed.
+     */
+    private final AtomicBoolean complete = new AtomicBoolean();
+
+    /**
+     * The protocol of the connection.
+     */
+    private volatile String protocol;
+
+    /**
+     * The guacd the connection was made to.
+     */
+    private volatile String guacdEndpoint;
+
+    /**
+     * The ID of the configuration connected to.
+     */
+    private volatile String connectionId;
+
+    /**
+     * The name of the user connecting.
+     */
+    private volatile String username;
+
+    /**
+     * The UUID of the resulting tunnel.
+     */
+    private volatile String tunnel;
+
+    /**
+     * Creates a new ConnectTimer for a connect request which arrived at the
+     * given time.
+     *
+     * @param startTime The time the connect request arrived, as given by
+     *                  System.nanoTime().
+     */
+    public ConnectTimer(long startTime) {
+        this.startTime = startTime;
+        this.lastMark = startTime;
+    }
+
+    /**
+     * Marks the end of the given phase, attributing all time since the end
+     * of the previous phase to it.
+     *
+     * @param phase The phase which has ended.
+     */
+    public synchronized void mark(ConnectPhase phase) {
+        long now = System.nanoTime();
+        durations[phase.ordinal()] += now - lastMark;
+        lastMark = now;
+    }
+
+    /**
+     * Returns the duration of the given phase.
+     *
+     * @param phase The phase to return the duration of.
+     * @return The duration of the phase in nanoseconds, or 0 if the phase
+     *         was never marked.
+     */
+    public synchronized long getDuration(ConnectPhase phase) {
+        return durations[phase.ordinal()];
+    }
+
+    /**
+     * Returns the time from the arrival of the connect request until the
+     * end of the last phase.
+     *
+     * @return The total duration, in nanoseconds.
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * Sets the details of the connection being timed.
+     *
+     * @param protocol The protocol of the connection.
+     * @param guacdEndpoint The guacd the connection was made to.
+     * @param connectionId The ID of the configuration connected to.
+     * @param username The name of the user connecting.
+     * @param tunnel The UUID of the resulting tunnel.
+     */
+    public void setDetails(String protocol, String guacdEndpoint,
+            String connectionId, String username, String tunnel) {
+        this.protocol = protocol;
+        this.guacdEndpoint = guacdEndpoint;
+        this.connectionId = connectionId;
+        this.username = username;
+        this.tunnel = tunnel;
+    }
+
+    /**
+     * Returns the protocol of the connection.
+     *
+     * @return The protocol of the connection, or null if not known.
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Returns the guacd the connection was made to.
+     *
+     * @return The address of guacd, or null if not known.
+     */
+    public String getGuacdEndpoint() {
+        return guacdEndpoint;
+    }
+
+    /**
+     * Returns whether the first sync instruction has been sent.
+     *
+     * @return true if all phases have completed, false otherwise.
+     */
+    public boolean isComplete() {
+        return complete.get();
+    }
+
+    /**
+     * Marks the sending of the first sync instruction, completing the final
+     * phase and reporting all timings to ConnectMetrics. Subsequent calls
+     * have no effect.
+     */
+    public void firstSyncSent() {
+
+        if (!complete.compareAndSet(false, true))
+            return;
+
+        synchronized (this) {
+            mark(ConnectPhase.FIRST_SYNC);
+            total = lastMark - startTime;
+        }
+
+        ConnectMetrics.record(this);
+
+    }
+
+    /**
+     * Appends the given duration to the given buffer as a key/value pair.
+     *
+     * @param buffer The buffer to append to.
+     * @param key The key of the pair.
+     * @param nanos The duration, in nanoseconds.
+     */
+    private static void appendDuration(StringBuilder buffer, String key,
+            long nanos) {
+        buffer.append(' ').append(key).append('=')
+              .append(nanos / 1000000).append("ms");
+    }
+
+    /**
+     * Appends the given value to the given buffer as a key/value pair,
+     * quoting the value if it contains spaces or quotes.
+     *
+     * @param buffer The buffer to append to.
+     * @param key The key of the pair.
+     * @param value The value of the pair.
+     */
+    private static void appendValue(StringBuilder buffer, String key,
+            String value) {
+
+        buffer.append(' ').append(key).append('=');
+
+        if (value != null && (value.indexOf(' ') >= 0 || value.indexOf('"') >= 0))
+            buffer.append('"').append(value.replace("\"", "\\\"")).append('"');
+        else
+            buffer.append(value);
+
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("total=").append(total / 1000000).append("ms");
+
+        for (ConnectPhase phase : ConnectPhase.values())
+            appendDuration(buffer, phase.getName(), durations[phase.ordinal()]);
+
+        appendValue(buffer, "protocol", protocol);
+        appendValue(buffer, "guacd", guacdEndpoint);
+        appendValue(buffer, "connection", connectionId);
+        appendValue(buffer, "user", username);
+        appendValue(buffer, "tunnel", tunnel);
+
+        return buffer.toString();
+
+    }
+
+}
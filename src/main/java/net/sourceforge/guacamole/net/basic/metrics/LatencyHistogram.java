@@ -0,0 +1,176 @@
+package net.sourceforge.guacamole.net.basic.metrics;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations, with buckets growing geometrically by a factor
+ * of the fourth root of two (about 19%) from 1 ms up to roughly seven
+ * minutes. Recording a duration takes constant time and never locks.
+ * Percentiles are reported as the upper bound of the bucket containing
+ * them, and are thus accurate to within the width of a bucket.
+ *
+ * @author Michael Jumper
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of buckets per doubling of duration.
+     */
+    private static final int BUCKETS_PER_DOUBLING = 4;
+
+    /**
+     * The total number of buckets. Durations beyond the last bucket are
+     * counted within it.
+     */
+    private static final int BUCKETS = 76;
+
+    /**
+     * The number of durations within each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The number of durations recorded.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The sum of all durations recorded, in nanoseconds.
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * The longest duration recorded, in nanoseconds.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Returns the index of the bucket containing the given duration.
+     *
+     * @param nanos The duration, in nanoseconds.
+     * @return The index of the bucket containing the duration.
+     */
+    private static int getBucket(long nanos) {
+
+        double millis = nanos / 1000000.0;
+        if (millis <= 1)
+            return 0;
+
+        int bucket = (int) Math.ceil(BUCKETS_PER_DOUBLING * Math.log(millis) / Math.log(2));
+        return Math.min(bucket, BUCKETS - 1);
+
+    }
+
+    /**
+     * Returns the upper bound of the bucket having the given index.
+     *
+     * @param bucket The index of the bucket.
+     * @return The longest duration within the bucket, in milliseconds.
+     */
+    private static double getUpperBound(int bucket) {
+        return Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING);
+    }
+
+    /**
+     * Records the given duration.
+     *
+     * @param nanos The duration to record, in nanoseconds.
+     */
+    public void record(long nanos) {
+
+        if (nanos < 0)
+            nanos = 0;
+
+        counts.incrementAndGet(getBucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long current;
+        do {
+            current = max.get();
+        } while (nanos > current && !max.compareAndSet(current, nanos));
+
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     *
+     * @return The number of durations recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean of all durations recorded.
+     *
+     * @return The mean duration in milliseconds, or 0 if none have been
+     *         recorded.
+     */
+    public double getMean() {
+
+        long n = count.get();
+        if (n == 0)
+            return 0;
+
+        return sum.get() / 1000000.0 / n;
+
+    }
+
+    /**
+     * Returns the longest duration recorded.
+     *
+     * @return The longest duration in milliseconds.
+     */
+    public double getMax() {
+        return max.get() / 1000000.0;
+    }
+
+    /**
+     * Returns the duration below which the given fraction of all recorded
+     * durations fall.
+     *
+     * @param fraction The fraction of durations, between 0 and 1.
+     * @return The upper bound of the bucket containing the requested
+     *         percentile in milliseconds, never more than the longest
+     *         duration recorded, or 0 if none have been recorded.
+     */
+    public double getPercentile(double fraction) {
+
+        long n = count.get();
+        if (n == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(getUpperBound(i), getMax());
+        }
+
+        return getMax();
+
+    }
+
+}
@@ -0,0 +1,240 @@
+package net.sourceforge.guacamole.net.basic.nio;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.protocol.AbstractByteGuacamoleReader;
+
+/**
+ * GuacamoleReader which reads whole instructions already received from guacd
+ * by a relay event loop. Reads never touch the network; they only wait for
+ * the event loop to provide more data. The number of bytes received but not
+ * yet read is tracked, such that the socket can stop reading from guacd
+ * while too much data is waiting.
+ *
+ * @author Michael Jumper
+ */
+public class NioGuacamoleReader extends AbstractByteGuacamoleReader {
+
+    /**
+     * A chunk of received data containing only complete instructions.
+     */
+    private static class Chunk {
+
+        /**
+         * The received data.
+         */
+        private final byte[] data;
+
+        /**
+         * Whether the data ends with a sync instruction.
+         */
+        private final boolean sync;
+
+        /**
+         * The number of instructions within the data.
+         */
+        private final int count;
+
+        /**
+         * The timestamp of the last sync instruction within the data, or -1
+         * if the data contains no sync instruction.
+         */
+        private final long syncTimestamp;
+
+        /**
+         * Creates a new Chunk of received data.
+         *
+         * @param data The received data.
+         * @param sync Whether the data ends with a sync instruction.
+         * @param count The number of instructions within the data.
+         * @param syncTimestamp The timestamp of the last sync instruction
+         *                      within the data, or -1 if there is none.
+         */
+        public Chunk(byte[] data, boolean sync, int count, long syncTimestamp) {
+            this.data = data;
+            this.sync = sync;
+            this.count = count;
+            this.syncTimestamp = syncTimestamp;
+        }
+
+    }
+
+    /**
+     * Chunk marking the end of the stream.
+     */
+    private static final Chunk EOF = new Chunk(new byte[0], false, 0, -1);
+
+    /**
+     * The socket providing data to this reader.
+     */
+    private final NioGuacamoleSocket socket;
+
+    /**
+     * The number of milliseconds to wait for data before timing out.
+     */
+    private final int timeout;
+
+    /**
+     * The number of bytes received but not yet read.
+     */
+    private final AtomicLong buffered = new AtomicLong();
+
+    /**
+     * Chunks of received data, each containing only complete instructions.
+     */
+    private final LinkedBlockingQueue<Chunk> chunks =
+            new LinkedBlockingQueue<Chunk>();
+
+    /**
+     * Whether the data most recently returned ends with a sync instruction.
+     */
+    private boolean returnedSync = false;
+
+    /**
+     * The number of instructions within the data most recently returned.
+     */
+    private int returnedCount = 0;
+
+    /**
+     * The timestamp of the last sync instruction within the data most
+     * recently returned, or -1 if there is no such instruction.
+     */
+    private long returnedSyncTimestamp = -1;
+
+    /**
+     * Whether the end of the stream has been read.
+     */
+    private boolean eof = false;
+
+    /**
+     * Creates a new NioGuacamoleReader which reads data provided by the
+     * given socket, waiting at most the given number of milliseconds for
+     * data.
+     *
+     * @param socket The socket providing data to this reader, which is
+     *               notified as data is read.
+     * @param timeout The number of milliseconds to wait for data before
+     *                timing out.
+     */
+    public NioGuacamoleReader(NioGuacamoleSocket socket, int timeout) {
+        this.socket  = socket;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Adds a chunk of received data, which must contain only complete
+     * instructions.
+     *
+     * @param chunk The received data.
+     * @param sync Whether the received data ends with a sync instruction.
+     * @param count The number of instructions within the received data.
+     * @param syncTimestamp The timestamp of the last sync instruction within
+     *                      the received data, or -1 if there is none.
+     */
+    void received(byte[] chunk, boolean sync, int count, long syncTimestamp) {
+        buffered.addAndGet(chunk.length);
+        chunks.add(new Chunk(chunk, sync, count, syncTimestamp));
+    }
+
+    /**
+     * Discards all data received but not yet read.
+     */
+    void discard() {
+        chunks.clear();
+        buffered.set(0);
+    }
+
+    /**
+     * Returns the number of bytes received but not yet read.
+     *
+     * @return The number of bytes waiting to be read.
+     */
+    public long getBufferedBytes() {
+        return buffered.get();
+    }
+
+    /**
+     * Marks the end of the stream. Readers will receive all data received
+     * prior to this call before seeing end-of-stream.
+     */
+    void receivedEOF() {
+        chunks.add(EOF);
+    }
+
+    @Override
+    public boolean endsWithSync() {
+        return returnedSync;
+    }
+
+    @Override
+    protected int getChunkInstructionCount() {
+        return returnedCount;
+    }
+
+    @Override
+    protected long getChunkSyncTimestamp() {
+        return returnedSyncTimestamp;
+    }
+
+    @Override
+    protected boolean chunkAvailable() {
+        return !chunks.isEmpty();
+    }
+
+    @Override
+    protected ByteBuffer readChunk() throws GuacamoleException {
+
+        // Once EOF is reached, it is always reached
+        if (eof)
+            return null;
+
+        try {
+
+            Chunk chunk = chunks.poll(timeout, TimeUnit.MILLISECONDS);
+            if (chunk == null)
+                throw new GuacamoleException("Connection to guacd timed out.");
+
+            if (chunk == EOF) {
+                eof = true;
+                return null;
+            }
+
+            returnedSync = chunk.sync;
+            returnedCount = chunk.count;
+            returnedSyncTimestamp = chunk.syncTimestamp;
+
+            // Let socket resume reading once enough has been read
+            socket.consumed(buffered.addAndGet(-chunk.data.length));
+
+            return ByteBuffer.wrap(chunk.data);
+
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleException("Interrupted while waiting for data from guacd.", e);
+        }
+
+    }
+
+}
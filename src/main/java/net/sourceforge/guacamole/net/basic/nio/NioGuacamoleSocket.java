@@ -0,0 +1,559 @@
+package net.sourceforge.guacamole.net.basic.nio;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleReader;
+import net.sourceforge.guacamole.io.GuacamoleWriter;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+import net.sourceforge.guacamole.net.basic.protocol.InstructionFramer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleSocket whose connection to guacd is serviced by a relay event
+ * loop rather than by the threads reading from and writing to the socket.
+ * Data from guacd is read by the event loop as soon as it arrives and split
+ * into complete instructions, such that reads from this socket only ever
+ * wait for the event loop and never for the network.
+ *
+ * Data read from guacd is buffered only up to a limit. Once that much data
+ * is waiting to be read, the event loop stops reading from guacd, such that
+ * TCP flow control slows guacd instead, until half of the buffered data has
+ * been read. A socket which remains throttled for too long is closed.
+ *
+ * The socket wraps another GuacamoleSocket which has already completed the
+ * Guacamole protocol handshake and which owns the underlying connection.
+ * Closing this socket closes the wrapped socket.
+ *
+ * @author Michael Jumper
+ */
+public class NioGuacamoleSocket implements GuacamoleSocket {
+
+    private Logger logger = LoggerFactory.getLogger(NioGuacamoleSocket.class);
+
+    /**
+     * The number of milliseconds to wait for data from guacd before timing
+     * out. This matches the timeout used by InetGuacamoleSocket.
+     */
+    private static final int SOCKET_TIMEOUT = 15000;
+
+    /**
+     * The initial size of the buffer holding partially-received instructions.
+     */
+    private static final int INITIAL_PARTIAL_SIZE = 8192;
+
+    /**
+     * The default maximum number of bytes buffered before reading from guacd
+     * stops.
+     */
+    public static final int DEFAULT_BUFFER_LIMIT = 1048576;
+
+    /**
+     * The default number of milliseconds a socket may remain throttled
+     * before it is closed.
+     */
+    public static final int DEFAULT_STALL_TIMEOUT = 300000;
+
+    /**
+     * The socket which completed the handshake and owns the connection.
+     */
+    private final GuacamoleSocket socket;
+
+    /**
+     * The channel of the connection to guacd.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The event loop servicing this socket.
+     */
+    private final RelayEventLoop loop;
+
+    /**
+     * The number of bytes which may be waiting to be read before reading
+     * from guacd stops.
+     */
+    private final int bufferLimit;
+
+    /**
+     * The number of milliseconds this socket may remain throttled before it
+     * is closed, or 0 if it may remain throttled indefinitely.
+     */
+    private final int stallTimeout;
+
+    /**
+     * Whether reading from guacd has stopped because too much data is
+     * waiting to be read. Only changed by the event loop.
+     */
+    private volatile boolean throttled = false;
+
+    /**
+     * The time reading from guacd last stopped, in milliseconds since the
+     * epoch.
+     */
+    private volatile long throttledSince;
+
+    /**
+     * The total number of milliseconds spent throttled, not including the
+     * current period of throttling, if any.
+     */
+    private final AtomicLong throttledTime = new AtomicLong();
+
+    /**
+     * The number of times reading from guacd has stopped.
+     */
+    private final AtomicLong throttleCount = new AtomicLong();
+
+    /**
+     * Resumes reading from guacd if enough data has been read. Run on the
+     * event loop.
+     */
+    private final Runnable resumeTask = new Runnable() {
+
+        @Override
+        public void run() {
+            if (reader.getBufferedBytes() <= bufferLimit / 2)
+                resume();
+        }
+
+    };
+
+    /**
+     * The selection key of this socket within its event loop, or null if
+     * not yet registered.
+     */
+    private SelectionKey key;
+
+    /**
+     * Locates instruction boundaries within received data.
+     */
+    private final InstructionFramer framer = new InstructionFramer();
+
+    /**
+     * Received data which does not yet form a complete instruction. This
+     * buffer is only accessed by the event loop.
+     */
+    private byte[] partial = new byte[INITIAL_PARTIAL_SIZE];
+
+    /**
+     * The number of bytes within the partial buffer.
+     */
+    private int partialLength = 0;
+
+    /**
+     * Data waiting to be written to guacd, oldest first. All access to this
+     * queue and the channel for writing is synchronized on this queue.
+     */
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+    /**
+     * The reader providing instructions received by the event loop.
+     */
+    private final NioGuacamoleReader reader = new NioGuacamoleReader(this, SOCKET_TIMEOUT);
+
+    /**
+     * The writer sending data through this socket.
+     */
+    private final NioGuacamoleWriter writer = new NioGuacamoleWriter(this);
+
+    /**
+     * The listener to notify when new data is available, if any.
+     */
+    private volatile ReadyListener listener;
+
+    /**
+     * Creates a new NioGuacamoleSocket which relays data over the given
+     * channel. The socket is not serviced until registered with its event
+     * loop.
+     *
+     * @param socket The socket which completed the handshake and owns the
+     *               connection.
+     * @param channel The channel of the connection to guacd.
+     * @param loop The event loop which will service this socket.
+     * @param bufferLimit The number of bytes which may be waiting to be read
+     *                    before reading from guacd stops.
+     * @param stallTimeout The number of milliseconds this socket may remain
+     *                     throttled before it is closed, or 0 if it may
+     *                     remain throttled indefinitely.
+     */
+    public NioGuacamoleSocket(GuacamoleSocket socket, SocketChannel channel,
+            RelayEventLoop loop, int bufferLimit, int stallTimeout) {
+        this.socket       = socket;
+        this.channel      = channel;
+        this.loop         = loop;
+        this.bufferLimit  = bufferLimit;
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * Returns the channel of the connection to guacd.
+     *
+     * @return The channel of the connection to guacd.
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Sets the listener to notify whenever new data becomes available. If
+     * data is already available, the listener is notified immediately.
+     *
+     * @param listener The listener to notify, or null to notify no listener.
+     */
+    public void setReadyListener(ReadyListener listener) {
+
+        this.listener = listener;
+
+        try {
+            if (listener != null && reader.available())
+                listener.ready();
+        }
+        catch (GuacamoleException e) {
+            // Never thrown by NioGuacamoleReader
+        }
+
+    }
+
+    /**
+     * Sets the selection key of this socket, enabling write interest if data
+     * was queued before registration completed. Called by the event loop.
+     *
+     * @param key The selection key of this socket.
+     */
+    void setKey(SelectionKey key) {
+        synchronized (writeQueue) {
+
+            this.key = key;
+
+            if (!writeQueue.isEmpty())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+
+            // Do not read if already throttled by data read ahead
+            if (throttled)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        }
+    }
+
+    /**
+     * Returns whether reading from guacd has stopped because too much data
+     * is waiting to be read.
+     *
+     * @return true if reading from guacd has stopped, false otherwise.
+     */
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * Returns the number of bytes received from guacd but not yet read.
+     *
+     * @return The number of bytes waiting to be read.
+     */
+    public long getBufferedBytes() {
+        return reader.getBufferedBytes();
+    }
+
+    /**
+     * Returns the total time reading from guacd has been stopped because
+     * too much data was waiting to be read.
+     *
+     * @return The total time spent throttled, in milliseconds.
+     */
+    public long getThrottledTime() {
+
+        long total = throttledTime.get();
+        if (throttled)
+            total += System.currentTimeMillis() - throttledSince;
+
+        return total;
+
+    }
+
+    /**
+     * Returns the number of times reading from guacd has stopped because too
+     * much data was waiting to be read.
+     *
+     * @return The number of times this socket has been throttled.
+     */
+    public long getThrottleCount() {
+        return throttleCount.get();
+    }
+
+    /**
+     * Stops reading from guacd. Called by the event loop.
+     */
+    private void throttle() {
+
+        throttledSince = System.currentTimeMillis();
+        throttled = true;
+        throttleCount.incrementAndGet();
+
+        synchronized (writeQueue) {
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        // Data may have been read before throttling was visible to readers
+        if (reader.getBufferedBytes() <= bufferLimit / 2)
+            resume();
+
+    }
+
+    /**
+     * Resumes reading from guacd, if stopped. Called by the event loop.
+     */
+    private void resume() {
+
+        if (!throttled)
+            return;
+
+        throttled = false;
+        throttledTime.addAndGet(System.currentTimeMillis() - throttledSince);
+
+        synchronized (writeQueue) {
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+    }
+
+    /**
+     * Called by the reader whenever data has been read, such that reading
+     * from guacd can resume once enough data has been read.
+     *
+     * @param remaining The number of bytes still waiting to be read.
+     */
+    void consumed(long remaining) {
+        if (throttled && remaining <= bufferLimit / 2)
+            loop.execute(resumeTask);
+    }
+
+    /**
+     * Closes this socket if it has remained throttled for longer than
+     * allowed, discarding all data waiting to be read. Called by the event
+     * loop.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     */
+    void checkStalled(long now) {
+
+        if (!throttled || stallTimeout <= 0 || now - throttledSince < stallTimeout)
+            return;
+
+        logger.warn("Closing guacd connection whose data has not been read for {} seconds.",
+                (now - throttledSince) / 1000);
+
+        reader.discard();
+        fail(null);
+        resume();
+
+    }
+
+    /**
+     * Notifies the listener, if any, that data is available.
+     */
+    private void notifyReady() {
+        ReadyListener current = listener;
+        if (current != null)
+            current.ready();
+    }
+
+    /**
+     * Handles data received from guacd, passing along all complete
+     * instructions and retaining the remainder. Called by the event loop.
+     *
+     * @param data The array containing the received data.
+     * @param offset The offset of the first received byte.
+     * @param length The number of bytes received.
+     */
+    void received(byte[] data, int offset, int length) {
+
+        // Grow buffer as needed
+        if (partialLength + length > partial.length) {
+            byte[] grown = new byte[Math.max(partial.length * 2, partialLength + length)];
+            System.arraycopy(partial, 0, grown, 0, partialLength);
+            partial = grown;
+        }
+
+        System.arraycopy(data, offset, partial, partialLength, length);
+
+        int boundary;
+        try {
+            boundary = framer.frame(partial, partialLength, length);
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Invalid data received from guacd: {}", e.getMessage());
+            fail(null);
+            return;
+        }
+
+        partialLength += length;
+
+        // Pass along all complete instructions
+        if (boundary >= 0) {
+
+            byte[] chunk = new byte[boundary];
+            System.arraycopy(partial, 0, chunk, 0, boundary);
+
+            partialLength -= boundary;
+            System.arraycopy(partial, boundary, partial, 0, partialLength);
+
+            reader.received(chunk, framer.isSyncBoundary(),
+                    framer.getCompletedCount(), framer.getSyncTimestamp());
+            notifyReady();
+
+            // Stop reading once too much data is waiting
+            if (!throttled && reader.getBufferedBytes() >= bufferLimit)
+                throttle();
+
+        }
+
+    }
+
+    /**
+     * Handles end-of-stream from guacd. Called by the event loop.
+     */
+    void receivedEOF() {
+
+        if (key != null)
+            key.cancel();
+
+        reader.receivedEOF();
+        notifyReady();
+
+    }
+
+    /**
+     * Handles a failure of the connection to guacd, closing this socket.
+     * Readers see end-of-stream once all data already received has been read.
+     *
+     * @param e The error which occurred, or null if the error has already
+     *          been logged.
+     */
+    void fail(IOException e) {
+
+        if (e != null)
+            logger.debug("Connection to guacd failed.", e);
+
+        try {
+            socket.close();
+        }
+        catch (GuacamoleException ignore) {
+            // Already failing
+        }
+
+        receivedEOF();
+
+    }
+
+    /**
+     * Writes the given data to guacd. If the connection cannot accept all
+     * data immediately, the remainder is queued and written by the event
+     * loop once possible.
+     *
+     * @param buffer The data to write.
+     * @throws GuacamoleException If the socket is closed or an error occurs
+     *                            while writing.
+     */
+    void send(ByteBuffer buffer) throws GuacamoleException {
+
+        synchronized (writeQueue) {
+
+            try {
+
+                // Write immediately if nothing is queued
+                if (writeQueue.isEmpty()) {
+                    channel.write(buffer);
+                    if (!buffer.hasRemaining())
+                        return;
+                }
+
+                // Otherwise, wait for event loop
+                writeQueue.add(buffer);
+                if (key != null && writeQueue.size() == 1)
+                    loop.setWriteInterest(key, true);
+
+            }
+            catch (IOException e) {
+                throw new GuacamoleException("Error writing to guacd.", e);
+            }
+
+        }
+
+    }
+
+    /**
+     * Writes as much queued data as the connection allows, removing write
+     * interest once all queued data is written. Called by the event loop.
+     *
+     * @throws IOException If an error occurs while writing.
+     */
+    void flush() throws IOException {
+
+        synchronized (writeQueue) {
+
+            while (!writeQueue.isEmpty()) {
+
+                ByteBuffer buffer = writeQueue.getFirst();
+                channel.write(buffer);
+
+                if (buffer.hasRemaining())
+                    return;
+
+                writeQueue.removeFirst();
+
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        }
+
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+        socket.close();
+        reader.receivedEOF();
+        notifyReady();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+}
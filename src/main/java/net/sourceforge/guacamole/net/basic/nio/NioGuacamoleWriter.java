@@ -0,0 +1,71 @@
+package net.sourceforge.guacamole.net.basic.nio;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleWriter;
+import net.sourceforge.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleWriter which encodes data and hands it to a NioGuacamoleSocket,
+ * which writes it to guacd immediately if possible, and otherwise queues it
+ * to be written by the relay event loop. Writes never block.
+ *
+ * @author Michael Jumper
+ */
+public class NioGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The charset of all data sent to guacd.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The socket to send all data through.
+     */
+    private final NioGuacamoleSocket socket;
+
+    /**
+     * Creates a new NioGuacamoleWriter which sends all data through the
+     * given socket.
+     *
+     * @param socket The socket to send all data through.
+     */
+    public NioGuacamoleWriter(NioGuacamoleSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+        socket.send(UTF8.encode(CharBuffer.wrap(chunk, off, len)));
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+        write(instruction.toString().toCharArray());
+    }
+
+}
@@ -0,0 +1,36 @@
+package net.sourceforge.guacamole.net.basic.nio;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Listener which is notified whenever new data becomes available from a
+ * NioGuacamoleSocket, or when that socket reaches end-of-stream. Listeners
+ * are invoked on the thread of a relay event loop, and thus must not block.
+ *
+ * @author Michael Jumper
+ */
+public interface ReadyListener {
+
+    /**
+     * Called when new data can be read from the socket without blocking,
+     * or when the socket has reached end-of-stream.
+     */
+    public void ready();
+
+}
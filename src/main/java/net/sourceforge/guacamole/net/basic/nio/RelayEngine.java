@@ -0,0 +1,134 @@
+package net.sourceforge.guacamole.net.basic.nio;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays data between tunnels and guacd using a small, fixed number of
+ * event loops rather than a thread per connection. Connections are spread
+ * across event loops in turn.
+ *
+ * @author Michael Jumper
+ */
+public class RelayEngine {
+
+    private Logger logger = LoggerFactory.getLogger(RelayEngine.class);
+
+    /**
+     * All event loops of this engine.
+     */
+    private final RelayEventLoop[] loops;
+
+    /**
+     * The index of the event loop to use for the next connection.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * The number of bytes from guacd which may be waiting to be read by
+     * each tunnel before reading from its guacd connection stops.
+     */
+    private final int bufferLimit;
+
+    /**
+     * The number of milliseconds a connection may remain throttled before
+     * it is closed, or 0 if connections may remain throttled indefinitely.
+     */
+    private final int stallTimeout;
+
+    /**
+     * Creates a new RelayEngine, starting the given number of event loops.
+     *
+     * @param threads The number of event loops to start.
+     * @param bufferLimit The number of bytes from guacd which may be waiting
+     *                    to be read by each tunnel before reading from its
+     *                    guacd connection stops.
+     * @param stallTimeout The number of milliseconds a connection may
+     *                     remain throttled before it is closed, or 0 if
+     *                     connections may remain throttled indefinitely.
+     * @throws GuacamoleException If an event loop cannot be started.
+     */
+    public RelayEngine(int threads, int bufferLimit, int stallTimeout)
+            throws GuacamoleException {
+
+        this.bufferLimit  = bufferLimit;
+        this.stallTimeout = stallTimeout;
+
+        // Event loops never block, and so always use platform threads
+        ThreadFactory threadFactory = GuacamoleThreads.newThreadFactory(
+                GuacamoleThreads.Mode.PLATFORM, "guacd-relay");
+
+        loops = new RelayEventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new RelayEventLoop(threadFactory);
+
+        logger.info("Relaying guacd connections using {} event loops.", loops.length);
+
+    }
+
+    /**
+     * Hands the connection of the given socket to an event loop, returning a
+     * new socket through which all further data must be relayed. The given
+     * socket must have already completed the handshake, and must not have
+     * return any data beyond the handshake.
+     *
+     * @param socket The socket which completed the handshake and owns the
+     *               connection.
+     * @param channel The channel of the connection to guacd, currently in
+     *                blocking mode.
+     * @param buffered Any data already read from the connection but not yet
+     *                 returned, beginning at an instruction boundary.
+     * @return A new socket relaying data over the given channel.
+     * @throws GuacamoleException If the connection cannot be handed to an
+     *                            event loop.
+     */
+    public NioGuacamoleSocket register(GuacamoleSocket socket,
+            SocketChannel channel, byte[] buffered) throws GuacamoleException {
+
+        RelayEventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+
+        NioGuacamoleSocket relayed = new NioGuacamoleSocket(socket, channel, loop,
+                bufferLimit, stallTimeout);
+
+        // Pass along anything read ahead during the handshake
+        if (buffered.length > 0)
+            relayed.received(buffered, 0, buffered.length);
+
+        loop.register(relayed);
+        return relayed;
+
+    }
+
+    /**
+     * Stops all event loops of this engine.
+     */
+    public void shutdown() {
+        for (RelayEventLoop loop : loops)
+            loop.shutdown();
+    }
+
+}
@@ -0,0 +1,305 @@
+package net.sourceforge.guacamole.net.basic.nio;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import net.sourceforge.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread which services the guacd connections of any number of
+ * NioGuacamoleSockets using one Selector, reading data from guacd as it
+ * arrives and flushing data queued for guacd as the connection allows.
+ *
+ * @author Michael Jumper
+ */
+public class RelayEventLoop implements Runnable {
+
+    private Logger logger = LoggerFactory.getLogger(RelayEventLoop.class);
+
+    /**
+     * The size of the buffer used for all reads from guacd, in bytes.
+     */
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    /**
+     * The number of milliseconds between checks for connections which have
+     * remained throttled for too long.
+     */
+    private static final int STALL_CHECK_INTERVAL = 1000;
+
+    /**
+     * The selector watching all connections serviced by this loop.
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks which must run on the thread of this loop, such as registration
+     * of new connections or changes in interest.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Buffer receiving all data read by this loop. As only the thread of
+     * this loop reads, a single buffer is shared by all connections.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Whether this loop should continue running.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a new RelayEventLoop.
+     *
+     * @param threadFactory The factory creating the thread running this
+     *                      loop.
+     * @throws GuacamoleException If the selector cannot be opened.
+     */
+    public RelayEventLoop(ThreadFactory threadFactory) throws GuacamoleException {
+
+        try {
+            selector = Selector.open();
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Unable to open selector.", e);
+        }
+
+        threadFactory.newThread(this).start();
+
+    }
+
+    /**
+     * Runs the given task on the thread of this loop, as soon as possible.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers the given socket with this loop, such that data from guacd
+     * is read as it arrives. The channel of the socket is switched to
+     * non-blocking mode.
+     *
+     * @param socket The socket to register.
+     * @throws GuacamoleException If the channel cannot be switched to
+     *                            non-blocking mode.
+     */
+    public void register(final NioGuacamoleSocket socket)
+            throws GuacamoleException {
+
+        final SocketChannel channel = socket.getChannel();
+
+        try {
+            channel.configureBlocking(false);
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Unable to switch guacd connection to non-blocking mode.", e);
+        }
+
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    socket.setKey(channel.register(selector, SelectionKey.OP_READ, socket));
+                }
+                catch (IOException e) {
+                    socket.fail(e);
+                }
+            }
+
+        });
+
+    }
+
+    /**
+     * Adds or removes interest in write readiness for the given socket. This
+     * function may be called from any thread.
+     *
+     * @param key The selection key of the socket.
+     * @param interested true if the loop should flush queued data once the
+     *                   connection allows, false otherwise.
+     */
+    public void setWriteInterest(final SelectionKey key, final boolean interested) {
+
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (!key.isValid())
+                    return;
+
+                if (interested)
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                else
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            }
+
+        });
+
+    }
+
+    @Override
+    public void run() {
+
+        long lastStallCheck = System.currentTimeMillis();
+
+        while (running) {
+
+            try {
+                selector.select(STALL_CHECK_INTERVAL);
+            }
+            catch (IOException e) {
+                logger.error("Relay selector failed.", e);
+                break;
+            }
+
+            // Run any pending tasks. An unexpected error must not stop the
+            // loop, which would strand every connection it services.
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    logger.error("Unexpected error in relay task.", e);
+                }
+            }
+
+            // Handle all ready connections
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioGuacamoleSocket socket = (NioGuacamoleSocket) key.attachment();
+
+                try {
+
+                    if (key.isReadable())
+                        read(socket);
+
+                    if (key.isValid() && key.isWritable())
+                        socket.flush();
+
+                }
+                catch (CancelledKeyException e) {
+                    // Socket closed while handling
+                }
+                catch (IOException e) {
+                    socket.fail(e);
+                }
+
+                // Fail only the affected connection
+                catch (RuntimeException e) {
+                    logger.error("Unexpected error relaying guacd connection.", e);
+                    socket.fail(null);
+                }
+
+            }
+
+            // Close connections which have been throttled for too long
+            long now = System.currentTimeMillis();
+            if (now - lastStallCheck >= STALL_CHECK_INTERVAL) {
+
+                for (SelectionKey key : selector.keys()) {
+
+                    if (!key.isValid())
+                        continue;
+
+                    NioGuacamoleSocket socket = (NioGuacamoleSocket) key.attachment();
+                    try {
+                        socket.checkStalled(now);
+                    }
+                    catch (RuntimeException e) {
+                        logger.error("Unexpected error checking guacd connection.", e);
+                        socket.fail(null);
+                    }
+
+                }
+
+                lastStallCheck = now;
+
+            }
+
+        }
+
+        // Close selector once stopped
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            logger.debug("Error closing relay selector.", e);
+        }
+
+    }
+
+    /**
+     * Reads all data currently available from guacd for the given socket.
+     *
+     * @param socket The socket to read data for.
+     * @throws IOException If an error occurs while reading.
+     */
+    private void read(NioGuacamoleSocket socket) throws IOException {
+
+        SocketChannel channel = socket.getChannel();
+
+        // Read until no data remains or too much data is waiting
+        int length = 0;
+        while (!socket.isThrottled()
+                && (length = channel.read(readBuffer)) > 0) {
+
+            socket.received(readBuffer.array(), readBuffer.arrayOffset(), length);
+            readBuffer.clear();
+
+        }
+
+        // Handle EOF
+        if (length < 0)
+            socket.receivedEOF();
+
+    }
+
+    /**
+     * Stops this loop. Connections registered with this loop are not closed.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+}
@@ -20,6 +20,8 @@ package net.sourceforge.guacamole.net.basic.properties;
  */
 
 import net.sourceforge.guacamole.properties.FileGuacamoleProperty;
+import net.sourceforge.guacamole.properties.IntegerGuacamoleProperty;
+import net.sourceforge.guacamole.properties.StringGuacamoleProperty;
 
 /**
  * Properties used by the default Guacamole web application.
@@ -64,4 +66,366 @@ public class BasicGuacamoleProperties {
 
     };
 
+    /**
+     * The minimum number of idle, pre-connected sockets to keep open to guacd.
+     */
+    public static final IntegerGuacamoleProperty GUACD_POOL_MIN_IDLE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pool-min-idle"; }
+
+    };
+
+    /**
+     * The maximum number of idle, pre-connected sockets to keep open to guacd.
+     */
+    public static final IntegerGuacamoleProperty GUACD_POOL_MAX_IDLE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pool-max-idle"; }
+
+    };
+
+    /**
+     * The maximum number of milliseconds an idle, pre-connected socket may
+     * wait before being replaced. This must be less than the time guacd waits
+     * for the handshake to begin.
+     */
+    public static final IntegerGuacamoleProperty GUACD_POOL_MAX_AGE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pool-max-age"; }
+
+    };
+
+    /**
+     * The comma-separated list of all guacd instances to distribute tunnels
+     * across, each of the form "hostname:port" or "hostname:port:weight".
+     */
+    public static final GuacdEndpointsProperty GUACD_ENDPOINTS = new GuacdEndpointsProperty() {
+
+        @Override
+        public String getName() { return "guacd-endpoints"; }
+
+    };
+
+    /**
+     * The strategy used to choose the guacd of each new tunnel, either
+     * "least-active" or "round-robin".
+     */
+    public static final StringGuacamoleProperty GUACD_BALANCE_STRATEGY = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-balance-strategy"; }
+
+    };
+
+    /**
+     * The number of milliseconds to wait for a TCP connection to guacd to be
+     * established.
+     */
+    public static final IntegerGuacamoleProperty GUACD_CONNECT_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-connect-timeout"; }
+
+    };
+
+    /**
+     * The number of milliseconds between background health checks of each
+     * guacd.
+     */
+    public static final IntegerGuacamoleProperty GUACD_HEALTH_CHECK_INTERVAL = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-health-check-interval"; }
+
+    };
+
+    /**
+     * The number of consecutive connection failures after which a guacd stops
+     * receiving new tunnels.
+     */
+    public static final IntegerGuacamoleProperty GUACD_FAILURE_THRESHOLD = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-failure-threshold"; }
+
+    };
+
+    /**
+     * The number of milliseconds a failing guacd is left alone before a
+     * connection is retried.
+     */
+    public static final IntegerGuacamoleProperty GUACD_RECOVERY_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-recovery-timeout"; }
+
+    };
+
+    /**
+     * Whether the asynchronous HTTP tunnel, which requires Servlet 3.0, should
+     * be made available.
+     */
+    public static final BooleanGuacamoleProperty ENABLE_ASYNC_TUNNEL = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "enable-async-tunnel"; }
+
+    };
+
+    /**
+     * The number of milliseconds between checks for data from guacd on
+     * behalf of parked asynchronous read requests.
+     */
+    public static final IntegerGuacamoleProperty ASYNC_TUNNEL_POLL_INTERVAL = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "async-tunnel-poll-interval"; }
+
+    };
+
+    /**
+     * The number of threads which write data from guacd to asynchronous read
+     * requests.
+     */
+    public static final IntegerGuacamoleProperty ASYNC_TUNNEL_THREADS = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "async-tunnel-threads"; }
+
+    };
+
+    /**
+     * Whether guacd connections should be serviced by a fixed number of
+     * event loops, rather than by the threads using each tunnel.
+     */
+    public static final BooleanGuacamoleProperty ENABLE_GUACD_RELAY = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "enable-guacd-relay"; }
+
+    };
+
+    /**
+     * The number of event loops servicing guacd connections, if enabled.
+     */
+    public static final IntegerGuacamoleProperty GUACD_RELAY_THREADS = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-relay-threads"; }
+
+    };
+
+    /**
+     * The kind of thread used for blocking tunnel work, either "platform"
+     * (the default) or "virtual".
+     */
+    public static final StringGuacamoleProperty THREAD_MODE = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "thread-mode"; }
+
+    };
+
+    /**
+     * The comma-separated list of all users allowed to view the details of
+     * all open tunnels.
+     */
+    public static final StringSetGuacamoleProperty ADMIN_USERS = new StringSetGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "admin-users"; }
+
+    };
+
+    /**
+     * The number of milliseconds a client may fall behind the output of its
+     * tunnel before frames are collapsed and media is dropped, or 0 to never
+     * reduce output.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_LAG_THRESHOLD = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-lag-threshold"; }
+
+    };
+
+    /**
+     * The maximum number of bytes from guacd which may be waiting to be read
+     * by each tunnel before the relay stops reading from guacd.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_BUFFER_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-buffer-size"; }
+
+    };
+
+    /**
+     * The number of milliseconds the relay may stop reading from guacd on
+     * behalf of a tunnel whose data is not being read before that tunnel is
+     * closed, or 0 to never close such tunnels.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_STALL_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-stall-timeout"; }
+
+    };
+
+    /**
+     * The size of each segment file of a session recording, in bytes.
+     */
+    public static final IntegerGuacamoleProperty RECORDING_SEGMENT_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "recording-segment-size"; }
+
+    };
+
+    /**
+     * The maximum number of bytes of each session recording which may be
+     * waiting to be written to disk before further data is dropped.
+     */
+    public static final IntegerGuacamoleProperty RECORDING_QUEUE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "recording-queue-size"; }
+
+    };
+
+    /**
+     * The number of bytes of recent output each shared tunnel holds for its
+     * viewers.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_SHARE_BUFFER_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-share-buffer-size"; }
+
+    };
+
+    /**
+     * The number of milliseconds a tunnel whose client connection failed
+     * remains open for the client to resume, or 0 if tunnels cannot be
+     * resumed.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_RESUME_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-resume-timeout"; }
+
+    };
+
+    /**
+     * The maximum number of bytes of unacknowledged output each tunnel holds
+     * for resending to a resuming client.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_REPLAY_BUFFER_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-replay-buffer-size"; }
+
+    };
+
+    /**
+     * Whether the handshake with guacd should be sent in a single write once
+     * the arguments of the requested protocol are known.
+     */
+    public static final BooleanGuacamoleProperty GUACD_PIPELINE_HANDSHAKE = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-pipeline-handshake"; }
+
+    };
+
+    /**
+     * The number of milliseconds a tunnel may pass no data before it is
+     * closed, or 0 if tunnels may be idle indefinitely.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_IDLE_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-idle-timeout"; }
+
+    };
+
+    /**
+     * The number of milliseconds a tunnel may be open before it is closed,
+     * or 0 if tunnels may be open indefinitely.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_MAX_LIFETIME = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-max-lifetime"; }
+
+    };
+
+    /**
+     * The maximum number of handshakes with guacd in progress at once, or 0
+     * if unlimited.
+     */
+    public static final IntegerGuacamoleProperty GUACD_MAX_HANDSHAKES = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "guacd-max-handshakes"; }
+
+    };
+
+    /**
+     * The maximum number of tunnels open at once, or 0 if unlimited.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_MAX_COUNT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-max-count"; }
+
+    };
+
+    /**
+     * The maximum number of tunnels each user may have open at once, or 0 if
+     * unlimited.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_MAX_PER_USER = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-max-per-user"; }
+
+    };
+
+    /**
+     * The maximum number of connect requests waiting for admission at once.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_ADMISSION_QUEUE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-admission-queue-size"; }
+
+    };
+
+    /**
+     * The maximum number of milliseconds a connect request may wait for
+     * admission.
+     */
+    public static final IntegerGuacamoleProperty TUNNEL_ADMISSION_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "tunnel-admission-timeout"; }
+
+    };
+
+    /**
+     * The number of milliseconds a connection may take to establish, from
+     * the connect request until the first frame is sent, before it is
+     * logged as slow. 0 disables logging of slow connections.
+     */
+    public static final IntegerGuacamoleProperty CONNECT_SLOW_THRESHOLD = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() { return "connect-slow-threshold"; }
+
+    };
+
 }
@@ -0,0 +1,51 @@
+package net.sourceforge.guacamole.net.basic.properties;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.properties.GuacamoleProperty;
+
+/**
+ * A GuacamoleProperty whose value is a boolean, given as either "true" or
+ * "false".
+ *
+ * @author Michael Jumper
+ */
+public abstract class BooleanGuacamoleProperty implements GuacamoleProperty<Boolean> {
+
+    @Override
+    public Boolean parseValue(String value) throws GuacamoleException {
+
+        // If no property provided, return null.
+        if (value == null)
+            return null;
+
+        // Parse value
+        if (value.equals("true"))
+            return true;
+
+        if (value.equals("false"))
+            return false;
+
+        throw new GuacamoleException("Property \"" + getName()
+                + "\" must be either \"true\" or \"false\".");
+
+    }
+
+}
@@ -0,0 +1,75 @@
+package net.sourceforge.guacamole.net.basic.properties;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.guacd.GuacdAddress;
+import net.sourceforge.guacamole.properties.GuacamoleProperty;
+
+/**
+ * A GuacamoleProperty whose value is a comma-separated list of guacd
+ * addresses, each of the form "hostname:port" or "hostname:port:weight".
+ * If omitted, the weight of an address is 1.
+ *
+ * @author Michael Jumper
+ */
+public abstract class GuacdEndpointsProperty implements GuacamoleProperty<List<GuacdAddress>> {
+
+    @Override
+    public List<GuacdAddress> parseValue(String addressList) throws GuacamoleException {
+
+        // If no property provided, return null.
+        if (addressList == null)
+            return null;
+
+        // Parse list
+        String[] addresses = addressList.trim().split("[\\s]*,[\\s]*");
+
+        // Fill list of addresses
+        List<GuacdAddress> endpoints = new ArrayList<GuacdAddress>();
+        for (String address : addresses) {
+
+            String[] parts = address.split(":");
+            if (parts.length < 2 || parts.length > 3)
+                throw new GuacamoleException("Invalid guacd address: \"" + address + "\"");
+
+            try {
+
+                int port   = Integer.parseInt(parts[1]);
+                int weight = parts.length == 3 ? Integer.parseInt(parts[2]) : 1;
+
+                if (weight < 1)
+                    throw new GuacamoleException("Weight of guacd address \"" + address + "\" must be at least 1.");
+
+                endpoints.add(new GuacdAddress(parts[0], port, weight));
+
+            }
+            catch (NumberFormatException e) {
+                throw new GuacamoleException("Invalid port or weight in guacd address: \"" + address + "\"", e);
+            }
+
+        }
+
+        return endpoints;
+
+    }
+
+}
@@ -0,0 +1,224 @@
+package net.sourceforge.guacamole.net.basic.protocol;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * Base ByteGuacamoleReader which provides the character-based functions of
+ * GuacamoleReader on top of raw chunks of complete instructions.
+ *
+ * @author Michael Jumper
+ */
+public abstract class AbstractByteGuacamoleReader implements ByteGuacamoleReader {
+
+    /**
+     * The charset of all data received from guacd.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Instructions left over after a call to readInstruction(), or null if
+     * there are no such instructions.
+     */
+    private ByteBuffer pending;
+
+    /**
+     * The number of instructions left over after a call to
+     * readInstruction().
+     */
+    private int pendingCount = 0;
+
+    /**
+     * The number of instructions within the data most recently returned.
+     */
+    private int returnedCount = 0;
+
+    /**
+     * The timestamp of the last sync instruction within the data most
+     * recently returned, or -1 if there is no such instruction.
+     */
+    private long returnedSyncTimestamp = -1;
+
+    /**
+     * Reads the next chunk of complete instructions, blocking until at least
+     * one instruction is available.
+     *
+     * @return A buffer whose remaining bytes are one or more complete
+     *         instructions, or null if the end of the stream has been
+     *         reached. The buffer need only remain valid until the next call
+     *         to this function.
+     * @throws GuacamoleException If an error occurs while reading.
+     */
+    protected abstract ByteBuffer readChunk() throws GuacamoleException;
+
+    /**
+     * Returns whether readChunk() can likely return without blocking.
+     *
+     * @return true if data is available, false otherwise.
+     * @throws GuacamoleException If an error occurs while checking for data.
+     */
+    protected abstract boolean chunkAvailable() throws GuacamoleException;
+
+    /**
+     * Returns the number of instructions within the chunk most recently
+     * returned by readChunk().
+     *
+     * @return The number of instructions in the most recent chunk.
+     */
+    protected abstract int getChunkInstructionCount();
+
+    /**
+     * Returns the timestamp of the last sync instruction within the chunk
+     * most recently returned by readChunk().
+     *
+     * @return The timestamp of the last sync instruction in the most recent
+     *         chunk, or -1 if the chunk contains no sync instruction.
+     */
+    protected abstract long getChunkSyncTimestamp();
+
+    /**
+     * Removes and returns any instructions left over after a call to
+     * readInstruction().
+     *
+     * @return A buffer containing the leftover instructions, or null if there
+     *         are none.
+     */
+    protected ByteBuffer takePending() {
+        ByteBuffer chunk = pending;
+        pending = null;
+        return chunk;
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return pending != null || chunkAvailable();
+    }
+
+    @Override
+    public ByteBuffer readBytes() throws GuacamoleException {
+
+        // Return leftover instructions first
+        if (pending != null) {
+            ByteBuffer chunk = pending;
+            pending = null;
+            returnedCount = pendingCount;
+            return chunk;
+        }
+
+        ByteBuffer chunk = readChunk();
+        if (chunk != null) {
+            returnedCount = getChunkInstructionCount();
+            returnedSyncTimestamp = getChunkSyncTimestamp();
+        }
+        else {
+            returnedCount = 0;
+            returnedSyncTimestamp = -1;
+        }
+
+        return chunk;
+
+    }
+
+    @Override
+    public int getInstructionCount() {
+        return returnedCount;
+    }
+
+    @Override
+    public long getSyncTimestamp() {
+        return returnedSyncTimestamp;
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        ByteBuffer chunk = readBytes();
+        if (chunk == null)
+            return null;
+
+        return new String(chunk.array(), chunk.arrayOffset() + chunk.position(),
+                chunk.remaining(), UTF8).toCharArray();
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        ByteBuffer chunk = readBytes();
+        if (chunk == null)
+            return null;
+
+        byte[] data = chunk.array();
+        int i = chunk.arrayOffset() + chunk.position();
+
+        List<String> elements = new ArrayList<String>();
+
+        try {
+
+            for (;;) {
+
+                // Parse length
+                int length = 0;
+                byte b;
+                while ((b = data[i++]) != '.')
+                    length = length * 10 + (b - '0');
+
+                // Parse value, skipping continuation bytes of each character
+                int start = i;
+                for (int remaining = length; remaining > 0; remaining--) {
+                    i++;
+                    while ((data[i] & 0xC0) == 0x80)
+                        i++;
+                }
+
+                elements.add(new String(data, start, i - start, UTF8));
+
+                // Stop at end of instruction
+                if (data[i++] == ';')
+                    break;
+
+            }
+
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new GuacamoleException("Incomplete instruction.", e);
+        }
+
+        // Keep remaining instructions for next read
+        chunk.position(i - chunk.arrayOffset());
+        if (chunk.hasRemaining()) {
+            pending = chunk;
+            pendingCount = returnedCount - 1;
+        }
+
+        returnedCount = 1;
+
+        String opcode = elements.remove(0);
+        return new GuacamoleInstruction(opcode,
+                elements.toArray(new String[elements.size()]));
+
+    }
+
+}
@@ -0,0 +1,73 @@
+package net.sourceforge.guacamole.net.basic.protocol;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleReader;
+
+/**
+ * GuacamoleReader which can also provide instructions as the raw UTF-8 bytes
+ * received from guacd, such that those bytes can be passed along without
+ * being decoded and re-encoded.
+ *
+ * @author Michael Jumper
+ */
+public interface ByteGuacamoleReader extends GuacamoleReader {
+
+    /**
+     * Reads one or more complete instructions as raw UTF-8 bytes, blocking
+     * until at least one instruction is available. The returned buffer may
+     * be reused by the reader, and is only valid until the next call to any
+     * function of this reader.
+     *
+     * @return A buffer whose remaining bytes are one or more complete
+     *         instructions, or null if the end of the stream has been
+     *         reached.
+     * @throws GuacamoleException If an error occurs while reading.
+     */
+    public ByteBuffer readBytes() throws GuacamoleException;
+
+    /**
+     * Returns whether the data most recently returned by readBytes() ends
+     * with a sync instruction, and thus with a complete frame.
+     *
+     * @return true if the most recently returned data ends with a sync
+     *         instruction, false otherwise.
+     */
+    public boolean endsWithSync();
+
+    /**
+     * Returns the number of instructions within the data most recently
+     * returned by readBytes().
+     *
+     * @return The number of instructions most recently returned.
+     */
+    public int getInstructionCount();
+
+    /**
+     * Returns the timestamp of the last sync instruction within the data
+     * most recently returned by readBytes().
+     *
+     * @return The timestamp of the last sync instruction most recently
+     *         returned, or -1 if that data contains no sync instruction.
+     */
+    public long getSyncTimestamp();
+
+}
@@ -0,0 +1,210 @@
+package net.sourceforge.guacamole.net.basic.protocol;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removes instructions which a lagging client can do without from chunks
+ * of complete instructions, in place, without decoding. Media instructions,
+ * which carry no state the client needs later, are removed, and all but the
+ * last sync instruction are removed, such that the frames within the chunk
+ * are collapsed into one. Drawing instructions always remain, as each draws
+ * upon the result of those before it.
+ *
+ * @author Michael Jumper
+ */
+public class InstructionFilter {
+
+    /**
+     * The opcode of the sync instruction.
+     */
+    private static final byte[] SYNC = { 's', 'y', 'n', 'c' };
+
+    /**
+     * The opcodes of all instructions which carry only media.
+     */
+    private static final byte[][] MEDIA = {
+        { 'a', 'u', 'd', 'i', 'o' },
+        { 'v', 'i', 'd', 'e', 'o' }
+    };
+
+    /**
+     * The number of instructions removed by the most recent call to
+     * filter().
+     */
+    private int removed = 0;
+
+    /**
+     * Returns whether the opcode of the instruction at the given position
+     * matches the given opcode.
+     *
+     * @param data The array containing the instruction.
+     * @param start The offset of the first character of the opcode.
+     * @param length The length of the opcode, in bytes.
+     * @param opcode The opcode to compare against.
+     * @return true if the opcodes match, false otherwise.
+     */
+    private static boolean matches(byte[] data, int start, int length,
+            byte[] opcode) {
+
+        if (length != opcode.length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (data[start + i] != opcode[i])
+                return false;
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Returns the offset just past the end of the instruction beginning at
+     * the given offset.
+     *
+     * @param data The array containing the instruction.
+     * @param i The offset of the first byte of the instruction.
+     * @return The offset just past the terminating semicolon.
+     */
+    private static int skip(byte[] data, int i) {
+
+        for (;;) {
+
+            // Parse length
+            int length = 0;
+            byte b;
+            while ((b = data[i++]) != '.')
+                length = length * 10 + (b - '0');
+
+            // Skip value, including continuation bytes of each character
+            for (int remaining = length; remaining > 0; remaining--) {
+                i++;
+                while ((data[i] & 0xC0) == 0x80)
+                    i++;
+            }
+
+            // Stop at end of instruction
+            if (data[i++] == ';')
+                return i;
+
+        }
+
+    }
+
+    /**
+     * Returns the offset of the first character of the opcode of the
+     * instruction beginning at the given offset.
+     *
+     * @param data The array containing the instruction.
+     * @param i The offset of the first byte of the instruction.
+     * @return The offset of the first character of the opcode.
+     */
+    private static int opcodeStart(byte[] data, int i) {
+        while (data[i] != '.')
+            i++;
+        return i + 1;
+    }
+
+    /**
+     * Returns the length, in bytes, of the opcode of the instruction
+     * beginning at the given offset. Opcodes are always ASCII.
+     *
+     * @param data The array containing the instruction.
+     * @param i The offset of the first byte of the instruction.
+     * @return The length of the opcode.
+     */
+    private static int opcodeLength(byte[] data, int i) {
+
+        int length = 0;
+        byte b;
+        while ((b = data[i++]) != '.')
+            length = length * 10 + (b - '0');
+
+        return length;
+
+    }
+
+    /**
+     * Removes media instructions and all but the last sync instruction from
+     * the remaining bytes of the given buffer, which must contain only
+     * complete instructions. The buffer is modified in place, and its limit
+     * is adjusted to the new end of its data.
+     *
+     * @param chunk The buffer containing the instructions to filter.
+     */
+    public void filter(ByteBuffer chunk) {
+
+        byte[] data = chunk.array();
+        int start = chunk.arrayOffset() + chunk.position();
+        int end   = chunk.arrayOffset() + chunk.limit();
+
+        removed = 0;
+
+        // Locate last sync
+        int lastSync = -1;
+        for (int i = start; i < end; i = skip(data, i)) {
+            if (matches(data, opcodeStart(data, i), opcodeLength(data, i), SYNC))
+                lastSync = i;
+        }
+
+        // Copy all instructions which remain
+        int out = start;
+        int next;
+        for (int i = start; i < end; i = next) {
+
+            next = skip(data, i);
+
+            int opcode = opcodeStart(data, i);
+            int length = opcodeLength(data, i);
+
+            boolean remove = i != lastSync
+                    && matches(data, opcode, length, SYNC);
+
+            for (byte[] media : MEDIA)
+                remove |= matches(data, opcode, length, media);
+
+            if (remove) {
+                removed++;
+                continue;
+            }
+
+            if (out != i)
+                System.arraycopy(data, i, data, out, next - i);
+
+            out += next - i;
+
+        }
+
+        chunk.limit(out - chunk.arrayOffset());
+
+    }
+
+    /**
+     * Returns the number of instructions removed by the most recent call to
+     * filter().
+     *
+     * @return The number of instructions most recently removed.
+     */
+    public int getRemovedCount() {
+        return removed;
+    }
+
+}
@@ -0,0 +1,291 @@
+package net.sourceforge.guacamole.net.basic.protocol;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.sourceforge.guacamole.GuacamoleException;
+
+/**
+ * Incremental parser which locates the boundaries of complete Guacamole
+ * instructions within a stream of raw UTF-8 bytes, without decoding those
+ * bytes into characters. Data may be given in arbitrarily-sized pieces;
+ * parsing state is kept between calls, such that an instruction split across
+ * several pieces is recognized once its final byte is seen.
+ *
+ * Element lengths within the Guacamole protocol are given in characters,
+ * not bytes. As every UTF-8 character begins with exactly one byte which is
+ * not a continuation byte, characters are counted by counting such bytes.
+ *
+ * The framer also notes whether the last instruction it completed was a
+ * "sync" instruction, which marks the end of a frame.
+ *
+ * @author Michael Jumper
+ */
+public class InstructionFramer {
+
+    /**
+     * The maximum allowed length of any single element, in characters.
+     */
+    private static final int MAX_ELEMENT_LENGTH = 8388608;
+
+    /**
+     * The opcode of the sync instruction.
+     */
+    private static final byte[] SYNC_OPCODE = { 's', 'y', 'n', 'c' };
+
+    /**
+     * The number of characters remaining in the element currently being
+     * parsed, or -1 if the length of the next element is being parsed.
+     */
+    private int remaining = -1;
+
+    /**
+     * The length of the next element, as parsed so far.
+     */
+    private int length = 0;
+
+    /**
+     * The number of elements parsed so far within the current instruction.
+     */
+    private int elements = 0;
+
+    /**
+     * The number of bytes of the current opcode parsed so far.
+     */
+    private int opcodeLength = 0;
+
+    /**
+     * Whether the current opcode matches the sync opcode so far.
+     */
+    private boolean opcodeIsSync = true;
+
+    /**
+     * Whether the last instruction completed was a sync instruction.
+     */
+    private boolean lastWasSync = false;
+
+    /**
+     * The number of instructions completed by the most recent call to
+     * frame().
+     */
+    private int completed = 0;
+
+    /**
+     * The timestamp of the current sync instruction, as parsed so far.
+     */
+    private long syncArgument = 0;
+
+    /**
+     * The timestamp of the last sync instruction completed by the most
+     * recent call to frame(), or -1 if no sync instruction was completed.
+     */
+    private long syncTimestamp = -1;
+
+    /**
+     * Returns whether the given byte is a UTF-8 continuation byte, and thus
+     * does not begin a new character.
+     *
+     * @param b The byte to test.
+     * @return true if the byte is a continuation byte, false otherwise.
+     */
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    /**
+     * Parses the given bytes, which must immediately follow all bytes
+     * previously given to this framer, returning the position just after the
+     * last complete instruction within those bytes.
+     *
+     * @param data The array containing the bytes to parse.
+     * @param offset The offset of the first byte to parse.
+     * @param count The number of bytes to parse.
+     * @return The offset just past the end of the last instruction completed
+     *         within the given bytes, or -1 if no instruction was completed.
+     * @throws GuacamoleException If the bytes given do not form valid
+     *                            Guacamole instructions.
+     */
+    public int frame(byte[] data, int offset, int count)
+            throws GuacamoleException {
+
+        int boundary = -1;
+        int end = offset + count;
+
+        completed = 0;
+        syncTimestamp = -1;
+
+        for (int i = offset; i < end; i++) {
+
+            byte b = data[i];
+
+            // Parsing element length
+            if (remaining < 0) {
+
+                if (b >= '0' && b <= '9') {
+                    length = length * 10 + (b - '0');
+                    if (length > MAX_ELEMENT_LENGTH)
+                        throw new GuacamoleException("Element length exceeds maximum.");
+                }
+
+                else if (b == '.') {
+                    remaining = length;
+                    length = 0;
+                }
+
+                else
+                    throw new GuacamoleException("Non-numeric character in element length.");
+
+            }
+
+            // Continuation bytes belong to the current character
+            else if (isContinuation(b)) {
+                if (elements == 0)
+                    matchOpcode(b);
+            }
+
+            // Start of another character within the element
+            else if (remaining > 0) {
+
+                remaining--;
+
+                if (elements == 0)
+                    matchOpcode(b);
+
+                // Parse timestamp of sync instructions
+                else if (elements == 1 && isSyncOpcode())
+                    syncArgument = syncArgument * 10 + (b - '0');
+
+            }
+
+            // Element complete, byte must be a terminator
+            else {
+
+                remaining = -1;
+                elements++;
+
+                if (b == ';') {
+
+                    lastWasSync = isSyncOpcode();
+                    if (lastWasSync)
+                        syncTimestamp = syncArgument;
+
+                    syncArgument = 0;
+                    opcodeLength = 0;
+                    opcodeIsSync = true;
+                    elements = 0;
+                    boundary = i + 1;
+                    completed++;
+
+                }
+
+                else if (b != ',')
+                    throw new GuacamoleException("Element terminator of instruction was not ';' nor ','");
+
+            }
+
+        }
+
+        return boundary;
+
+    }
+
+    /**
+     * Compares the given byte of the current opcode against the sync opcode.
+     *
+     * @param b The next byte of the current opcode.
+     */
+    private void matchOpcode(byte b) {
+
+        if (opcodeIsSync && (opcodeLength >= SYNC_OPCODE.length
+                || SYNC_OPCODE[opcodeLength] != b))
+            opcodeIsSync = false;
+
+        opcodeLength++;
+
+    }
+
+    /**
+     * Returns whether the opcode of the current instruction, which must have
+     * been parsed completely, is the sync opcode.
+     *
+     * @return true if the current instruction is a sync instruction, false
+     *         otherwise.
+     */
+    private boolean isSyncOpcode() {
+        return opcodeIsSync && opcodeLength == SYNC_OPCODE.length;
+    }
+
+    /**
+     * Returns the timestamp of the last sync instruction completed by the
+     * most recent call to frame().
+     *
+     * @return The timestamp of the last sync instruction most recently
+     *         completed, or -1 if no sync instruction was completed.
+     */
+    public long getSyncTimestamp() {
+        return syncTimestamp;
+    }
+
+    /**
+     * Returns whether the last instruction completed was a sync instruction.
+     * If the last call to frame() returned a boundary, this is whether the
+     * data before that boundary ends with a complete frame.
+     *
+     * @return true if the last instruction completed was a sync instruction,
+     *         false otherwise.
+     */
+    public boolean isSyncBoundary() {
+        return lastWasSync;
+    }
+
+    /**
+     * Returns the number of instructions completed by the most recent call
+     * to frame(), all of which lie before the boundary it returned.
+     *
+     * @return The number of instructions most recently completed.
+     */
+    public int getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * Returns whether the bytes given so far end exactly at an instruction
+     * boundary.
+     *
+     * @return true if no instruction is partially parsed, false otherwise.
+     */
+    public boolean isAtBoundary() {
+        return remaining < 0 && length == 0 && elements == 0;
+    }
+
+    /**
+     * Resets this framer, discarding any partially-parsed instruction.
+     */
+    public void reset() {
+        remaining = -1;
+        length = 0;
+        elements = 0;
+        opcodeLength = 0;
+        opcodeIsSync = true;
+        lastWasSync = false;
+        completed = 0;
+        syncArgument = 0;
+        syncTimestamp = -1;
+    }
+
+}
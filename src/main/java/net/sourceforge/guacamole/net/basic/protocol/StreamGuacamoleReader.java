@@ -0,0 +1,237 @@
+package net.sourceforge.guacamole.net.basic.protocol;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import net.sourceforge.guacamole.GuacamoleException;
+
+/**
+ * ByteGuacamoleReader which reads raw UTF-8 bytes from an InputStream into a
+ * single reusable buffer, locating instruction boundaries without decoding.
+ *
+ * @author Michael Jumper
+ */
+public class StreamGuacamoleReader extends AbstractByteGuacamoleReader {
+
+    /**
+     * The initial size of the read buffer, in bytes.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    /**
+     * The stream to read from.
+     */
+    private final InputStream input;
+
+    /**
+     * Locates instruction boundaries within read data.
+     */
+    private final InstructionFramer framer = new InstructionFramer();
+
+    /**
+     * Buffer containing all read data not yet returned.
+     */
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * The number of bytes of data within the buffer.
+     */
+    private int used = 0;
+
+    /**
+     * The offset just past the last complete instruction within the buffer,
+     * or 0 if the buffer contains no complete instruction.
+     */
+    private int boundary = 0;
+
+    /**
+     * Whether the data before the boundary ends with a sync instruction.
+     */
+    private boolean boundarySync = false;
+
+    /**
+     * The number of instructions before the boundary.
+     */
+    private int boundaryCount = 0;
+
+    /**
+     * The timestamp of the last sync instruction before the boundary, or -1
+     * if there is no such instruction.
+     */
+    private long boundarySyncTimestamp = -1;
+
+    /**
+     * Whether the data most recently returned ends with a sync instruction.
+     */
+    private boolean returnedSync = false;
+
+    /**
+     * The number of instructions within the data most recently returned.
+     */
+    private int returnedCount = 0;
+
+    /**
+     * The timestamp of the last sync instruction within the data most
+     * recently returned, or -1 if there is no such instruction.
+     */
+    private long returnedSyncTimestamp = -1;
+
+    /**
+     * The number of bytes at the start of the buffer which have already been
+     * returned, and can be discarded upon the next read.
+     */
+    private int consumed = 0;
+
+    /**
+     * Creates a new StreamGuacamoleReader which reads from the given stream.
+     *
+     * @param input The stream to read from.
+     */
+    public StreamGuacamoleReader(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Discards all data which has already been returned.
+     */
+    private void compact() {
+
+        if (consumed == 0)
+            return;
+
+        used -= consumed;
+        System.arraycopy(buffer, consumed, buffer, 0, used);
+        consumed = 0;
+
+    }
+
+    @Override
+    protected ByteBuffer readChunk() throws GuacamoleException {
+
+        compact();
+
+        try {
+
+            // Read until at least one instruction is complete
+            while (boundary == 0) {
+
+                // Grow buffer if full
+                if (used == buffer.length) {
+                    byte[] grown = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, grown, 0, used);
+                    buffer = grown;
+                }
+
+                int length = input.read(buffer, used, buffer.length - used);
+                if (length == -1)
+                    return null;
+
+                int end = framer.frame(buffer, used, length);
+                if (end >= 0) {
+                    boundary = end;
+                    boundarySync = framer.isSyncBoundary();
+                    boundaryCount = framer.getCompletedCount();
+                    boundarySyncTimestamp = framer.getSyncTimestamp();
+                }
+
+                used += length;
+
+            }
+
+        }
+        catch (SocketTimeoutException e) {
+            throw new GuacamoleException("Connection to guacd timed out.", e);
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Error reading from guacd.", e);
+        }
+
+        // Return all complete instructions
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, boundary);
+        returnedSync = boundarySync;
+        returnedCount = boundaryCount;
+        returnedSyncTimestamp = boundarySyncTimestamp;
+        consumed = boundary;
+        boundary = 0;
+
+        return chunk;
+
+    }
+
+    @Override
+    public boolean endsWithSync() {
+        return returnedSync;
+    }
+
+    @Override
+    protected int getChunkInstructionCount() {
+        return returnedCount;
+    }
+
+    @Override
+    protected long getChunkSyncTimestamp() {
+        return returnedSyncTimestamp;
+    }
+
+    @Override
+    protected boolean chunkAvailable() throws GuacamoleException {
+
+        if (boundary != 0)
+            return true;
+
+        try {
+            return input.available() > 0;
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Error reading from guacd.", e);
+        }
+
+    }
+
+    /**
+     * Removes and returns all data read from the stream but not yet
+     * returned. The data begins at an instruction boundary. This allows the
+     * underlying connection to be handed elsewhere without losing data.
+     *
+     * @return All data read but not yet returned, which may be empty.
+     */
+    public byte[] drain() {
+
+        // Leftover instructions immediately precede any unreturned data
+        int start = consumed;
+        ByteBuffer leftover = takePending();
+        if (leftover != null)
+            start = leftover.arrayOffset() + leftover.position();
+
+        byte[] remaining = new byte[used - start];
+        System.arraycopy(buffer, start, remaining, 0, remaining.length);
+
+        consumed = 0;
+        used = 0;
+        boundary = 0;
+        framer.reset();
+
+        return remaining;
+
+    }
+
+}
@@ -0,0 +1,402 @@
+package net.sourceforge.guacamole.net.basic.recording;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.protocol.AbstractByteGuacamoleReader;
+import net.sourceforge.guacamole.net.basic.protocol.InstructionFilter;
+import net.sourceforge.guacamole.net.basic.protocol.InstructionFramer;
+
+/**
+ * GuacamoleReader which plays back a session recording, returning each
+ * recorded chunk of instructions once as much time has passed since the
+ * start of playback as passed between that chunk and the start of playback
+ * within the recording, scaled by the playback speed.
+ *
+ * Playback may start at any point in the recording. As the display at that
+ * point can only be reconstructed from everything drawn before it, all
+ * records before the indexed record nearest that point are first returned
+ * as quickly as possible, in large batches, with media dropped and frames
+ * collapsed. Playback at normal pace then begins from the indexed record,
+ * such that at most the index interval is replayed before the requested
+ * point.
+ *
+ * @author Michael Jumper
+ */
+public class PlaybackReader extends AbstractByteGuacamoleReader {
+
+    /**
+     * The preferred number of bytes in each batch returned while catching
+     * up to the starting point.
+     */
+    private static final int CATCH_UP_BATCH_SIZE = 65536;
+
+    /**
+     * The maximum number of milliseconds to wait at once for the next record
+     * to be due, such that closing playback is noticed promptly.
+     */
+    private static final int MAX_WAIT = 250;
+
+    /**
+     * The recording being played back.
+     */
+    private final RecordingReader recording;
+
+    /**
+     * The playback speed, where 1 is the speed at which the session was
+     * recorded.
+     */
+    private final double speed;
+
+    /**
+     * The segment containing the record at which normal playback begins.
+     */
+    private final int startSegment;
+
+    /**
+     * The offset within its segment of the record at which normal playback
+     * begins.
+     */
+    private final int startPosition;
+
+    /**
+     * Locates instruction boundaries within returned data.
+     */
+    private final InstructionFramer framer = new InstructionFramer();
+
+    /**
+     * The filter reducing output while catching up.
+     */
+    private final InstructionFilter filter = new InstructionFilter();
+
+    /**
+     * Buffer accumulating records while catching up.
+     */
+    private byte[] batch = new byte[CATCH_UP_BATCH_SIZE];
+
+    /**
+     * Whether records are still being returned as quickly as possible to
+     * reach the starting point.
+     */
+    private boolean catchingUp;
+
+    /**
+     * Whether the current record of the recording has been read but not yet
+     * returned.
+     */
+    private boolean held = false;
+
+    /**
+     * Whether all records have been read.
+     */
+    private boolean ended = false;
+
+    /**
+     * Whether playback has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The time normal playback began, in milliseconds since the epoch, or
+     * -1 if normal playback has not yet begun.
+     */
+    private long playbackStart = -1;
+
+    /**
+     * The timestamp of the first record returned at normal pace.
+     */
+    private long playbackStartTimestamp;
+
+    /**
+     * Whether the data most recently returned ends with a sync instruction.
+     */
+    private boolean returnedSync = false;
+
+    /**
+     * The number of instructions within the data most recently returned.
+     */
+    private int returnedCount = 0;
+
+    /**
+     * The timestamp of the last sync instruction within the data most
+     * recently returned, or -1 if there is no such instruction.
+     */
+    private long returnedSyncTimestamp = -1;
+
+    /**
+     * Creates a new PlaybackReader which plays back the given recording,
+     * starting at the given point.
+     *
+     * @param recording The recording to play back, which must be positioned
+     *                  before its first record.
+     * @param index The index of the recording.
+     * @param start The point to start playback, in milliseconds since the
+     *              start of the recording.
+     * @param speed The playback speed, where 1 is the speed at which the
+     *              session was recorded.
+     */
+    public PlaybackReader(RecordingReader recording, RecordingIndex index,
+            long start, double speed) {
+
+        this.recording = recording;
+        this.speed = speed;
+
+        // Catch up to nearest indexed record, if starting later than first
+        int entry = index.find(recording.getStartTime() + start);
+        if (start > 0 && entry >= 0) {
+            startSegment  = index.getSegment(entry);
+            startPosition = index.getOffset(entry);
+            catchingUp = true;
+        }
+        else {
+            startSegment  = 0;
+            startPosition = 0;
+            catchingUp = false;
+        }
+
+    }
+
+    /**
+     * Reads the next record containing data, if no record is already held.
+     *
+     * @return true if a record is held, false if all records have been read
+     *         or playback is closed.
+     * @throws IOException If an error occurs while reading the recording.
+     */
+    private synchronized boolean hold() throws IOException {
+
+        if (held)
+            return true;
+
+        if (ended || closed)
+            return false;
+
+        // Skip gaps
+        while (recording.next()) {
+            if (recording.getLength() > 0) {
+                held = true;
+                return true;
+            }
+        }
+
+        ended = true;
+        return false;
+
+    }
+
+    /**
+     * Returns whether the held record is the record at which normal playback
+     * begins, or lies after it.
+     *
+     * @return true if the held record need not be caught up to.
+     */
+    private boolean reachedStart() {
+        return recording.getSegment() > startSegment
+            || (recording.getSegment() == startSegment
+                && recording.getPosition() >= startPosition);
+    }
+
+    /**
+     * Returns the time the held record should be returned.
+     *
+     * @return The time the held record is due, in milliseconds since the
+     *         epoch.
+     */
+    private long getDue() {
+
+        // Start normal playback with first record
+        if (playbackStart == -1) {
+            playbackStart = System.currentTimeMillis();
+            playbackStartTimestamp = recording.getTimestamp();
+        }
+
+        return playbackStart + (long) ((recording.getTimestamp() - playbackStartTimestamp) / speed);
+
+    }
+
+    /**
+     * Frames the given data, noting its instruction count and sync
+     * instructions for the reader.
+     *
+     * @param data The array containing the data.
+     * @param length The number of bytes of data.
+     * @throws GuacamoleException If the data is not valid instructions.
+     */
+    private void frame(byte[] data, int length) throws GuacamoleException {
+        framer.frame(data, 0, length);
+        returnedSync = framer.isSyncBoundary();
+        returnedCount = framer.getCompletedCount();
+        returnedSyncTimestamp = framer.getSyncTimestamp();
+    }
+
+    /**
+     * Returns all records up to the starting point as quickly as possible,
+     * in batches, with media dropped and frames collapsed.
+     *
+     * @return The next batch, or null if the starting point has been
+     *         reached.
+     * @throws GuacamoleException If an error occurs while reading the
+     *                            recording.
+     * @throws IOException If the recording cannot be read.
+     */
+    private synchronized ByteBuffer catchUp()
+            throws GuacamoleException, IOException {
+
+        while (catchingUp) {
+
+            int used = 0;
+            while (hold()) {
+
+                if (reachedStart()) {
+                    catchingUp = false;
+                    break;
+                }
+
+                // Stop once batch is full
+                int length = recording.getLength();
+                if (used > 0 && used + length > batch.length)
+                    break;
+
+                if (length > batch.length)
+                    batch = new byte[length];
+
+                System.arraycopy(recording.getData(), 0, batch, used, length);
+                used += length;
+                held = false;
+
+            }
+
+            // Stop catching up if recording ends first
+            if (used == 0) {
+                catchingUp = false;
+                break;
+            }
+
+            frame(batch, used);
+
+            ByteBuffer chunk = ByteBuffer.wrap(batch, 0, used);
+            filter.filter(chunk);
+            returnedCount -= filter.getRemovedCount();
+
+            if (chunk.hasRemaining())
+                return chunk;
+
+        }
+
+        return null;
+
+    }
+
+    @Override
+    protected ByteBuffer readChunk() throws GuacamoleException {
+
+        try {
+
+            ByteBuffer chunk = catchUp();
+            if (chunk != null)
+                return chunk;
+
+            // Wait until next record is due
+            for (;;) {
+
+                synchronized (this) {
+
+                    if (!hold())
+                        return null;
+
+                    long remaining = getDue() - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        held = false;
+
+                        // Copy, as checking availability reads ahead
+                        byte[] data = Arrays.copyOf(recording.getData(), recording.getLength());
+                        frame(data, data.length);
+                        return ByteBuffer.wrap(data);
+                    }
+
+                    wait(Math.min(remaining, MAX_WAIT));
+
+                }
+
+            }
+
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleException("Interrupted during playback.", e);
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Error reading recording.", e);
+        }
+
+    }
+
+    @Override
+    protected synchronized boolean chunkAvailable() throws GuacamoleException {
+
+        if (catchingUp)
+            return true;
+
+        try {
+
+            // End of recording is immediately available
+            if (!hold())
+                return true;
+
+            return getDue() <= System.currentTimeMillis();
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Error reading recording.", e);
+        }
+
+    }
+
+    @Override
+    public boolean endsWithSync() {
+        return returnedSync;
+    }
+
+    @Override
+    protected int getChunkInstructionCount() {
+        return returnedCount;
+    }
+
+    @Override
+    protected long getChunkSyncTimestamp() {
+        return returnedSyncTimestamp;
+    }
+
+    /**
+     * Stops playback, closing the recording. Any read in progress returns
+     * end-of-stream.
+     *
+     * @throws IOException If an error occurs while closing the recording.
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        held = false;
+        notifyAll();
+        recording.close();
+    }
+
+}
@@ -0,0 +1,115 @@
+package net.sourceforge.guacamole.net.basic.recording;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleReader;
+import net.sourceforge.guacamole.io.GuacamoleWriter;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+import net.sourceforge.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleSocket which plays back a session recording in place of a
+ * connection to guacd. Anything written to the socket, such as input or
+ * sync replies from the client, is ignored.
+ *
+ * @author Michael Jumper
+ */
+public class PlaybackSocket implements GuacamoleSocket {
+
+    /**
+     * The reader playing back the recording.
+     */
+    private final PlaybackReader reader;
+
+    /**
+     * Writer which ignores all data written.
+     */
+    private final GuacamoleWriter writer = new GuacamoleWriter() {
+
+        @Override
+        public void write(char[] chunk, int off, int len) {
+            // Ignore
+        }
+
+        @Override
+        public void write(char[] chunk) {
+            // Ignore
+        }
+
+        @Override
+        public void writeInstruction(GuacamoleInstruction instruction) {
+            // Ignore
+        }
+
+    };
+
+    /**
+     * Whether this socket is open.
+     */
+    private volatile boolean open = true;
+
+    /**
+     * Creates a new PlaybackSocket which plays back the given recording,
+     * starting at the given point.
+     *
+     * @param recording The recording to play back, which must be positioned
+     *                  before its first record.
+     * @param index The index of the recording.
+     * @param start The point to start playback, in milliseconds since the
+     *              start of the recording.
+     * @param speed The playback speed, where 1 is the speed at which the
+     *              session was recorded.
+     */
+    public PlaybackSocket(RecordingReader recording, RecordingIndex index,
+            long start, double speed) {
+        reader = new PlaybackReader(recording, index, start, speed);
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+
+        open = false;
+
+        try {
+            reader.close();
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Error closing recording.", e);
+        }
+
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+}
@@ -0,0 +1,200 @@
+package net.sourceforge.guacamole.net.basic.recording;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * The index of a session recording, as written by RecordingSegmentWriter.
+ * The index is a sequence of entries, each consisting of the timestamp of an
+ * indexed record, the number of the segment containing that record, and the
+ * offset of that record within the segment. Entries are in order of
+ * timestamp.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingIndex {
+
+    /**
+     * The size of each entry, in bytes.
+     */
+    public static final int ENTRY_SIZE = 8 + 4 + 4;
+
+    /**
+     * The timestamp of each indexed record.
+     */
+    private final long[] timestamps;
+
+    /**
+     * The segment containing each indexed record.
+     */
+    private final int[] segments;
+
+    /**
+     * The offset of each indexed record within its segment.
+     */
+    private final int[] offsets;
+
+    /**
+     * Creates a new RecordingIndex containing the given entries.
+     *
+     * @param timestamps The timestamp of each indexed record.
+     * @param segments The segment containing each indexed record.
+     * @param offsets The offset of each indexed record within its segment.
+     */
+    private RecordingIndex(long[] timestamps, int[] segments, int[] offsets) {
+        this.timestamps = timestamps;
+        this.segments   = segments;
+        this.offsets    = offsets;
+    }
+
+    /**
+     * Returns the name of the index file of the recording having the given
+     * name.
+     *
+     * @param name The name of the recording.
+     * @return The name of the index file.
+     */
+    public static String getIndexName(String name) {
+        return name + ".idx";
+    }
+
+    /**
+     * Reads the index of the recording having the given name. If the
+     * recording is still being written, only the entries written so far are
+     * read.
+     *
+     * @param directory The directory containing the recording.
+     * @param name The name of the recording.
+     * @return The index of the recording, which is empty if the recording
+     *         has no index.
+     * @throws IOException If an error occurs while reading the index.
+     */
+    public static RecordingIndex load(File directory, String name)
+            throws IOException {
+
+        File file = new File(directory, getIndexName(name));
+        int count = (int) (file.length() / ENTRY_SIZE);
+
+        long[] timestamps = new long[count];
+        int[] segments = new int[count];
+        int[] offsets = new int[count];
+
+        DataInputStream input;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+        catch (FileNotFoundException e) {
+            return new RecordingIndex(new long[0], new int[0], new int[0]);
+        }
+
+        try {
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = input.readLong();
+                segments[i]   = input.readInt();
+                offsets[i]    = input.readInt();
+            }
+        }
+        catch (EOFException e) {
+            throw new IOException("Index of recording \"" + name + "\" truncated.");
+        }
+        finally {
+            input.close();
+        }
+
+        return new RecordingIndex(timestamps, segments, offsets);
+
+    }
+
+    /**
+     * Returns the number of entries in this index.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return timestamps.length;
+    }
+
+    /**
+     * Returns the entry of the last indexed record recorded at or before
+     * the given time.
+     *
+     * @param timestamp The time to search for, in milliseconds since the
+     *                  epoch.
+     * @return The number of the entry, or -1 if no record was indexed at or
+     *         before the given time.
+     */
+    public int find(long timestamp) {
+
+        int low = 0;
+        int high = timestamps.length - 1;
+
+        // Binary search for last entry not after timestamp
+        while (low <= high) {
+
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] <= timestamp)
+                low = middle + 1;
+            else
+                high = middle - 1;
+
+        }
+
+        return high;
+
+    }
+
+    /**
+     * Returns the timestamp of the record of the given entry.
+     *
+     * @param entry The number of the entry.
+     * @return The timestamp of the indexed record.
+     */
+    public long getTimestamp(int entry) {
+        return timestamps[entry];
+    }
+
+    /**
+     * Returns the segment containing the record of the given entry.
+     *
+     * @param entry The number of the entry.
+     * @return The number of the segment containing the indexed record.
+     */
+    public int getSegment(int entry) {
+        return segments[entry];
+    }
+
+    /**
+     * Returns the offset of the record of the given entry within its
+     * segment.
+     *
+     * @param entry The number of the entry.
+     * @return The offset of the indexed record within its segment.
+     */
+    public int getOffset(int entry) {
+        return offsets[entry];
+    }
+
+}
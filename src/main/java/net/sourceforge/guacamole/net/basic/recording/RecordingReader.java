@@ -0,0 +1,307 @@
+package net.sourceforge.guacamole.net.basic.recording;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a session recording, as written by
+ * RecordingSegmentWriter, in order, moving from segment to segment as each
+ * is exhausted.
+ *
+ * This class is not threadsafe.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingReader {
+
+    /**
+     * The directory containing all segments.
+     */
+    private final File directory;
+
+    /**
+     * The name shared by all segments.
+     */
+    private final String name;
+
+    /**
+     * The time the recording was started, in milliseconds since the epoch.
+     */
+    private final long startTime;
+
+    /**
+     * The number of the current segment.
+     */
+    private int segment = -1;
+
+    /**
+     * The stream reading the current segment, or null if all segments have
+     * been read.
+     */
+    private DataInputStream input;
+
+    /**
+     * The offset within the current segment of the next record.
+     */
+    private int position;
+
+    /**
+     * The offset within its segment of the current record.
+     */
+    private int recordPosition;
+
+    /**
+     * The timestamp of the current record.
+     */
+    private long timestamp;
+
+    /**
+     * The length of the current record, which is negative if the record
+     * marks a gap.
+     */
+    private int length;
+
+    /**
+     * The data of the current record. Only the first length bytes are
+     * valid.
+     */
+    private byte[] data = new byte[8192];
+
+    /**
+     * Creates a new RecordingReader which reads the recording having the
+     * given name, starting with its first record.
+     *
+     * @param directory The directory containing the recording.
+     * @param name The name of the recording.
+     * @throws IOException If the recording does not exist or cannot be
+     *                     read.
+     */
+    public RecordingReader(File directory, String name) throws IOException {
+
+        this.directory = directory;
+        this.name = name;
+
+        startTime = openSegment(0);
+        if (startTime == -1)
+            throw new IOException("No such recording: \"" + name + "\"");
+
+    }
+
+    /**
+     * Opens the given segment, reading its header.
+     *
+     * @param number The number of the segment to open.
+     * @return The time the segment was started, or -1 if the segment does
+     *         not exist.
+     * @throws IOException If the segment cannot be read or is not a segment
+     *                     of this recording.
+     */
+    private long openSegment(int number) throws IOException {
+
+        File file = new File(directory, RecordingSegmentWriter.getSegmentName(name, number));
+        if (!file.exists())
+            return -1;
+
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        segment = number;
+
+        try {
+
+            // Verify header
+            byte[] magic = new byte[RecordingSegmentWriter.MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, RecordingSegmentWriter.MAGIC)
+                    || input.readInt() != number)
+                throw new IOException("Invalid header in segment " + number
+                        + " of recording \"" + name + "\".");
+
+            long started = input.readLong();
+            position = RecordingSegmentWriter.SEGMENT_HEADER_SIZE;
+
+            return started;
+
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Closes the current segment and opens the next.
+     *
+     * @return true if the next segment was opened, false if there are no
+     *         more segments.
+     * @throws IOException If the next segment cannot be read.
+     */
+    private boolean nextSegment() throws IOException {
+        close();
+        return openSegment(segment + 1) != -1;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return true if the next record was read, false if there are no more
+     *         records.
+     * @throws IOException If an error occurs while reading.
+     */
+    public boolean next() throws IOException {
+
+        while (input != null) {
+
+            try {
+
+                // Zero timestamp marks end of segment
+                long recordTimestamp = input.readLong();
+                if (recordTimestamp == 0) {
+                    if (!nextSegment())
+                        return false;
+                    continue;
+                }
+
+                int recordLength = input.readInt();
+
+                // Read data, if not a gap
+                if (recordLength > 0) {
+                    if (recordLength > data.length)
+                        data = new byte[Math.max(recordLength, data.length * 2)];
+                    input.readFully(data, 0, recordLength);
+                }
+
+                recordPosition = position;
+                position += RecordingSegmentWriter.RECORD_HEADER_SIZE
+                        + Math.max(recordLength, 0);
+
+                timestamp = recordTimestamp;
+                length = recordLength;
+                return true;
+
+            }
+
+            // Trimmed segments end without a zero timestamp
+            catch (EOFException e) {
+                if (!nextSegment())
+                    return false;
+            }
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Returns the time the recording was started.
+     *
+     * @return The time the recording was started, in milliseconds since the
+     *         epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the number of the segment containing the current record.
+     *
+     * @return The number of the current segment.
+     */
+    public int getSegment() {
+        return segment;
+    }
+
+    /**
+     * Returns the offset of the current record within its segment.
+     *
+     * @return The offset of the current record.
+     */
+    public int getPosition() {
+        return recordPosition;
+    }
+
+    /**
+     * Returns the time the current record was recorded.
+     *
+     * @return The timestamp of the current record, in milliseconds since
+     *         the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns whether the current record marks a gap, where data was not
+     * recorded.
+     *
+     * @return true if the current record marks a gap, false if it contains
+     *         data.
+     */
+    public boolean isGap() {
+        return length < 0;
+    }
+
+    /**
+     * Returns the number of bytes of data within the current record.
+     *
+     * @return The number of bytes of data, or 0 if the current record marks
+     *         a gap.
+     */
+    public int getLength() {
+        return Math.max(length, 0);
+    }
+
+    /**
+     * Returns the data of the current record. Only the first getLength()
+     * bytes are valid, and the array may be reused by the next call to
+     * next().
+     *
+     * @return An array containing the data of the current record.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Closes the current segment. No further records will be read.
+     *
+     * @throws IOException If an error occurs while closing the segment.
+     */
+    public void close() throws IOException {
+
+        if (input == null)
+            return;
+
+        try {
+            input.close();
+        }
+        finally {
+            input = null;
+        }
+
+    }
+
+}
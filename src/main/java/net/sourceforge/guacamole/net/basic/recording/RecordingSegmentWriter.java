@@ -0,0 +1,285 @@
+package net.sourceforge.guacamole.net.basic.recording;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends timestamped records to a series of memory-mapped segment files.
+ * Each segment begins with a header consisting of MAGIC, the number of the
+ * segment, and the time the segment was started. Each record consists of
+ * the time it was recorded, its length, and its data. A record with a
+ * negative length marks the point where that many bytes were not recorded,
+ * and has no data. As segments are mapped before being written, unused
+ * space at the end of a segment is zero, and a record with a timestamp of
+ * zero marks the end of the segment.
+ *
+ * Alongside the segments, an index (see RecordingIndex) is written noting
+ * the position of the first record at least INDEX_INTERVAL milliseconds
+ * after the previously indexed record, such that any point in time can be
+ * located without reading every segment.
+ *
+ * This class is not threadsafe.
+ *
+ * @author Michael Jumper
+ */
+public class RecordingSegmentWriter {
+
+    /**
+     * The bytes which begin every segment.
+     */
+    public static final byte[] MAGIC = { 'G', 'U', 'A', 'C', 'R', 'E', 'C', '1' };
+
+    /**
+     * The size of the header of each segment, in bytes.
+     */
+    public static final int SEGMENT_HEADER_SIZE = MAGIC.length + 4 + 8;
+
+    /**
+     * The size of the header of each record, in bytes.
+     */
+    public static final int RECORD_HEADER_SIZE = 8 + 4;
+
+    /**
+     * The minimum number of milliseconds between indexed records.
+     */
+    public static final int INDEX_INTERVAL = 1000;
+
+    /**
+     * The directory containing all segments.
+     */
+    private final File directory;
+
+    /**
+     * The name shared by all segments.
+     */
+    private final String name;
+
+    /**
+     * The size of each segment, in bytes. Segments are only larger if a
+     * single record would not otherwise fit.
+     */
+    private final int segmentSize;
+
+    /**
+     * The number of the current segment.
+     */
+    private int segment = -1;
+
+    /**
+     * The file of the current segment, or null if no segment is open.
+     */
+    private RandomAccessFile file;
+
+    /**
+     * The mapping of the current segment, or null if no segment is open.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * The index of this recording, or null if not yet created.
+     */
+    private DataOutputStream index;
+
+    /**
+     * The timestamp of the last indexed record, or 0 if no record has been
+     * indexed.
+     */
+    private long lastIndexed = 0;
+
+    /**
+     * Creates a new RecordingSegmentWriter which writes segments of the
+     * given size to the given directory. No segment is created until the
+     * first record is appended.
+     *
+     * @param directory The directory to write segments to.
+     * @param name The name shared by all segments.
+     * @param segmentSize The size of each segment, in bytes.
+     */
+    public RecordingSegmentWriter(File directory, String name, int segmentSize) {
+        this.directory   = directory;
+        this.name        = name;
+        this.segmentSize = Math.max(segmentSize, SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * Returns the name of the file of the given segment.
+     *
+     * @param name The name shared by all segments.
+     * @param segment The number of the segment.
+     * @return The name of the file of the segment.
+     */
+    public static String getSegmentName(String name, int segment) {
+        return String.format("%s-%06d.rec", name, segment);
+    }
+
+    /**
+     * Closes the current segment, if any, and opens the next, ensuring it
+     * can hold at least the given number of bytes beyond its header.
+     *
+     * @param required The number of bytes the segment must be able to hold.
+     * @param timestamp The time the segment is started.
+     * @throws IOException If an error occurs while closing or creating a
+     *                     segment.
+     */
+    private void nextSegment(int required, long timestamp) throws IOException {
+
+        closeSegment();
+
+        segment++;
+        int size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + required);
+
+        file = new RandomAccessFile(new File(directory, getSegmentName(name, segment)), "rw");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        buffer.put(MAGIC);
+        buffer.putInt(segment);
+        buffer.putLong(timestamp);
+
+    }
+
+    /**
+     * Flushes and closes the current segment, if any, trimming any unused
+     * space where the platform allows.
+     *
+     * @throws IOException If an error occurs while closing the segment.
+     */
+    private void closeSegment() throws IOException {
+
+        if (file == null)
+            return;
+
+        try {
+
+            buffer.force();
+
+            // Keep index current with completed segments
+            if (index != null)
+                index.flush();
+
+            // Trim unused space. Not all platforms allow this while the
+            // segment is mapped, in which case the zeroed space remains.
+            try {
+                file.setLength(buffer.position());
+            }
+            catch (IOException e) {
+                // Unused space is zero and thus marks the end anyway
+            }
+
+        }
+        finally {
+            file.close();
+            file = null;
+            buffer = null;
+        }
+
+    }
+
+    /**
+     * Ensures the current segment has room for the given number of bytes,
+     * opening the next segment if not.
+     *
+     * @param required The number of bytes required.
+     * @param timestamp The current time.
+     * @throws IOException If a new segment is needed but cannot be created.
+     */
+    private void ensureSpace(int required, long timestamp) throws IOException {
+        if (buffer == null || buffer.remaining() < required)
+            nextSegment(required, timestamp);
+    }
+
+    /**
+     * Appends a record containing the given data.
+     *
+     * @param timestamp The time the data was recorded, in milliseconds since
+     *                  the epoch.
+     * @param data The array containing the data.
+     * @param offset The offset of the first byte of data.
+     * @param length The number of bytes of data.
+     * @throws IOException If an error occurs while writing the record.
+     */
+    public void append(long timestamp, byte[] data, int offset, int length)
+            throws IOException {
+
+        ensureSpace(RECORD_HEADER_SIZE + length, timestamp);
+
+        // Index record if enough time has passed
+        if (lastIndexed == 0 || timestamp - lastIndexed >= INDEX_INTERVAL) {
+
+            if (index == null)
+                index = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(new File(directory, RecordingIndex.getIndexName(name)))));
+
+            index.writeLong(timestamp);
+            index.writeInt(segment);
+            index.writeInt(buffer.position());
+            lastIndexed = timestamp;
+
+        }
+
+        buffer.putLong(timestamp);
+        buffer.putInt(length);
+        buffer.put(data, offset, length);
+
+    }
+
+    /**
+     * Appends a record marking that the given number of bytes were not
+     * recorded.
+     *
+     * @param timestamp The time the gap was noticed, in milliseconds since
+     *                  the epoch.
+     * @param dropped The number of bytes not recorded.
+     * @throws IOException If an error occurs while writing the record.
+     */
+    public void appendGap(long timestamp, long dropped) throws IOException {
+
+        ensureSpace(RECORD_HEADER_SIZE, timestamp);
+
+        buffer.putLong(timestamp);
+        buffer.putInt((int) -Math.min(dropped, Integer.MAX_VALUE));
+
+    }
+
+    /**
+     * Flushes and closes the current segment and the index. No further
+     * records may be appended.
+     *
+     * @throws IOException If an error occurs while closing the segment.
+     */
+    public void close() throws IOException {
+
+        try {
+            closeSegment();
+        }
+        finally {
+            if (index != null)
+                index.close();
+        }
+
+    }
+
+}
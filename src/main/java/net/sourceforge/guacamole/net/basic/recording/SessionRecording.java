@@ -0,0 +1,295 @@
+package net.sourceforge.guacamole.net.basic.recording;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the output of a single tunnel to disk. Data is handed to a
+ * dedicated thread through a queue bounded in bytes, and that thread
+ * appends the data to memory-mapped segments. If the queue is full, data is
+ * dropped rather than waited for, and the gap is marked in the recording,
+ * such that a slow disk never slows the tunnel. The details of the session
+ * are written alongside the segments as NAME.info.
+ *
+ * @author Michael Jumper
+ */
+public class SessionRecording implements Runnable {
+
+    private Logger logger = LoggerFactory.getLogger(SessionRecording.class);
+
+    /**
+     * The default size of each segment, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16777216;
+
+    /**
+     * The default number of bytes which may wait to be written before data
+     * is dropped.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 4194304;
+
+    /**
+     * Data waiting to be written.
+     */
+    private static class Entry {
+
+        /**
+         * The time the data was recorded, in milliseconds since the epoch.
+         */
+        private final long timestamp;
+
+        /**
+         * The data to write.
+         */
+        private final byte[] data;
+
+        /**
+         * Creates a new Entry holding the given data.
+         *
+         * @param timestamp The time the data was recorded.
+         * @param data The data to write.
+         */
+        public Entry(long timestamp, byte[] data) {
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+
+    }
+
+    /**
+     * Entry marking the end of the recording.
+     */
+    private static final Entry END = new Entry(0, new byte[0]);
+
+    /**
+     * The name of the recording, shared by all of its files.
+     */
+    private final String name;
+
+    /**
+     * The writer appending to the segments of this recording. Only used by
+     * the recording thread.
+     */
+    private final RecordingSegmentWriter writer;
+
+    /**
+     * Data waiting to be written, oldest first.
+     */
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+
+    /**
+     * The number of bytes which may wait to be written before data is
+     * dropped.
+     */
+    private final int queueLimit;
+
+    /**
+     * The number of bytes waiting to be written.
+     */
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * The number of bytes dropped since the last gap was marked.
+     */
+    private final AtomicLong pendingGap = new AtomicLong();
+
+    /**
+     * The number of bytes written.
+     */
+    private final AtomicLong recordedBytes = new AtomicLong();
+
+    /**
+     * The total number of bytes dropped.
+     */
+    private final AtomicLong droppedBytes = new AtomicLong();
+
+    /**
+     * Whether this recording has been closed or has failed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new SessionRecording which writes to the given directory,
+     * writing the given details of the session and starting the recording
+     * thread.
+     *
+     * @param directory The directory to write the recording to, which is
+     *                  created if necessary.
+     * @param name The name of the recording, shared by all of its files.
+     * @param details The details of the session being recorded.
+     * @param segmentSize The size of each segment, in bytes.
+     * @param queueLimit The number of bytes which may wait to be written
+     *                   before data is dropped.
+     * @throws GuacamoleException If the directory cannot be created or the
+     *                            details cannot be written.
+     */
+    public SessionRecording(File directory, String name, Properties details,
+            int segmentSize, int queueLimit) throws GuacamoleException {
+
+        this.name       = name;
+        this.queueLimit = queueLimit;
+        this.writer     = new RecordingSegmentWriter(directory, name, segmentSize);
+
+        // Create directory if necessary
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new GuacamoleException("Unable to create recording directory \"" + directory + "\".");
+
+        // Write details of session
+        try {
+            OutputStream out = new FileOutputStream(new File(directory, name + ".info"));
+            try {
+                details.store(out, "Guacamole session recording");
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            throw new GuacamoleException("Unable to write details of recording \"" + name + "\".", e);
+        }
+
+        GuacamoleThreads.newThreadFactory("session-recording").newThread(this).start();
+
+    }
+
+    /**
+     * Records the given data, which must consist of complete instructions.
+     * This function never blocks. If too much data is already waiting to be
+     * written, the data is dropped.
+     *
+     * @param data The array containing the data.
+     * @param offset The offset of the first byte of data.
+     * @param length The number of bytes of data.
+     */
+    public void record(byte[] data, int offset, int length) {
+
+        if (closed || length == 0)
+            return;
+
+        // Drop if too much is already waiting
+        if (queued.get() + length > queueLimit) {
+            pendingGap.addAndGet(length);
+            droppedBytes.addAndGet(length);
+            return;
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+
+        queued.addAndGet(length);
+        queue.add(new Entry(System.currentTimeMillis(), copy));
+
+    }
+
+    @Override
+    public void run() {
+
+        try {
+
+            for (;;) {
+
+                Entry entry = queue.take();
+                if (entry == END)
+                    break;
+
+                queued.addAndGet(-entry.data.length);
+
+                // Mark any data dropped before this entry
+                long gap = pendingGap.getAndSet(0);
+                if (gap > 0)
+                    writer.appendGap(entry.timestamp, gap);
+
+                writer.append(entry.timestamp, entry.data, 0, entry.data.length);
+                recordedBytes.addAndGet(entry.data.length);
+
+            }
+
+            // Mark any data dropped at end
+            long gap = pendingGap.getAndSet(0);
+            if (gap > 0)
+                writer.appendGap(System.currentTimeMillis(), gap);
+
+        }
+        catch (InterruptedException e) {
+            logger.warn("Recording \"{}\" interrupted.", name);
+        }
+        catch (IOException e) {
+            logger.error("Unable to write recording \"" + name + "\". Recording stopped.", e);
+        }
+        finally {
+
+            closed = true;
+            queue.clear();
+
+            try {
+                writer.close();
+            }
+            catch (IOException e) {
+                logger.error("Unable to close recording \"" + name + "\".", e);
+            }
+
+        }
+
+    }
+
+    /**
+     * Returns the number of bytes written to this recording.
+     *
+     * @return The number of bytes recorded.
+     */
+    public long getRecordedBytes() {
+        return recordedBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes dropped because too much data was waiting
+     * to be written.
+     *
+     * @return The number of bytes dropped.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * Stops recording. Data already waiting is still written, after which
+     * the recording thread ends.
+     */
+    public void close() {
+
+        if (closed)
+            return;
+
+        closed = true;
+        queue.add(END);
+
+    }
+
+}
@@ -0,0 +1,482 @@
+package net.sourceforge.guacamole.net.basic.share;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
+
+/**
+ * Ring buffer holding the most recent output of a shared tunnel, from which
+ * any number of read-only viewers read, each at its own pace. Output is
+ * stored as chunks of complete instructions, each numbered in sequence.
+ * Once the buffer is full, the oldest chunks are discarded, and viewers
+ * which have not yet read those chunks must skip ahead.
+ *
+ * The first frame of output (everything up to and including the first sync
+ * instruction) is also kept separately, such that it can be given to
+ * viewers joining after it has been discarded. Such viewers thus still
+ * learn the size of the display and see its initial contents.
+ *
+ * Output is added to the buffer as the owner of the shared tunnel reads it
+ * from guacd, and not otherwise. Viewers therefore see nothing new while
+ * the owner is not reading, such as while its connection is suspended,
+ * and catch up once the owner resumes.
+ *
+ * @author Michael Jumper
+ */
+public class SharedTunnelBuffer {
+
+    /**
+     * The default size of the buffer, in bytes.
+     */
+    public static final int DEFAULT_CAPACITY = 8388608;
+
+    /**
+     * The maximum number of chunks held at once.
+     */
+    private static final int MAX_CHUNKS = 65536;
+
+    /**
+     * The maximum size of the first frame, in bytes. If the first frame is
+     * larger, it is not kept.
+     */
+    private static final int MAX_FIRST_FRAME = 1048576;
+
+    /**
+     * A chunk of complete instructions read from the buffer.
+     */
+    public static class Chunk {
+
+        /**
+         * The sequence number of this chunk.
+         */
+        private final long sequence;
+
+        /**
+         * The instructions within this chunk.
+         */
+        private final byte[] data;
+
+        /**
+         * The number of instructions within this chunk.
+         */
+        private final int count;
+
+        /**
+         * Whether this chunk ends with a sync instruction.
+         */
+        private final boolean sync;
+
+        /**
+         * The timestamp of the last sync instruction within this chunk, or
+         * -1 if there is none.
+         */
+        private final long syncTimestamp;
+
+        /**
+         * Creates a new Chunk.
+         *
+         * @param sequence The sequence number of the chunk.
+         * @param data The instructions within the chunk.
+         * @param count The number of instructions within the chunk.
+         * @param sync Whether the chunk ends with a sync instruction.
+         * @param syncTimestamp The timestamp of the last sync instruction
+         *                      within the chunk, or -1 if there is none.
+         */
+        private Chunk(long sequence, byte[] data, int count, boolean sync,
+                long syncTimestamp) {
+            this.sequence = sequence;
+            this.data = data;
+            this.count = count;
+            this.sync = sync;
+            this.syncTimestamp = syncTimestamp;
+        }
+
+        /**
+         * Returns the sequence number of this chunk. For the first frame,
+         * this is the sequence number of the first chunk after that frame.
+         *
+         * @return The sequence number of this chunk.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Returns the instructions within this chunk.
+         *
+         * @return The instructions within this chunk.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Returns the number of instructions within this chunk.
+         *
+         * @return The number of instructions within this chunk.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns whether this chunk ends with a sync instruction.
+         *
+         * @return true if this chunk ends with a sync instruction, false
+         *         otherwise.
+         */
+        public boolean endsWithSync() {
+            return sync;
+        }
+
+        /**
+         * Returns the timestamp of the last sync instruction within this
+         * chunk.
+         *
+         * @return The timestamp of the last sync instruction, or -1 if there
+         *         is none.
+         */
+        public long getSyncTimestamp() {
+            return syncTimestamp;
+        }
+
+    }
+
+    /**
+     * The stored output.
+     */
+    private final byte[] buffer;
+
+    /**
+     * The position within the output of the start of each held chunk,
+     * indexed by sequence number modulo MAX_CHUNKS.
+     */
+    private final long[] starts = new long[MAX_CHUNKS];
+
+    /**
+     * The length of each held chunk.
+     */
+    private final int[] lengths = new int[MAX_CHUNKS];
+
+    /**
+     * The number of instructions within each held chunk.
+     */
+    private final int[] counts = new int[MAX_CHUNKS];
+
+    /**
+     * Whether each held chunk ends with a sync instruction.
+     */
+    private final boolean[] syncs = new boolean[MAX_CHUNKS];
+
+    /**
+     * The timestamp of the last sync instruction within each held chunk.
+     */
+    private final long[] syncTimestamps = new long[MAX_CHUNKS];
+
+    /**
+     * The sequence number of the oldest held chunk.
+     */
+    private long first = 0;
+
+    /**
+     * The sequence number of the next chunk to be added.
+     */
+    private long next = 0;
+
+    /**
+     * The total number of bytes of output added.
+     */
+    private long written = 0;
+
+    /**
+     * The first frame of output, as built so far, or null if the first frame
+     * was too large to keep.
+     */
+    private byte[] firstFrame = new byte[0];
+
+    /**
+     * The number of instructions within the first frame.
+     */
+    private int firstFrameCount = 0;
+
+    /**
+     * The timestamp of the sync instruction ending the first frame.
+     */
+    private long firstFrameSyncTimestamp = -1;
+
+    /**
+     * Whether the first frame is complete.
+     */
+    private boolean firstFrameComplete = false;
+
+    /**
+     * The sequence number of the first chunk after the first frame.
+     */
+    private long firstFrameEnd;
+
+    /**
+     * Whether the shared tunnel has closed. No further output will be added.
+     */
+    private boolean closed = false;
+
+    /**
+     * The configuration the shared tunnel was connected with.
+     */
+    private final GuacamoleConfiguration configuration;
+
+    /**
+     * The names of the arguments guacd requested when the shared tunnel was
+     * connected.
+     */
+    private final List<String> arguments;
+
+    /**
+     * Creates a new SharedTunnelBuffer holding at most the given number of
+     * bytes of output of a tunnel connected with the given configuration.
+     *
+     * @param capacity The size of the buffer, in bytes.
+     * @param configuration The configuration the shared tunnel was
+     *                      connected with.
+     * @param arguments The names of the arguments guacd requested when the
+     *                  shared tunnel was connected.
+     */
+    public SharedTunnelBuffer(int capacity, GuacamoleConfiguration configuration,
+            List<String> arguments) {
+        this.buffer = new byte[capacity];
+        this.configuration = configuration;
+        this.arguments = arguments;
+    }
+
+    /**
+     * Returns the given parameter value as it would be sent to guacd, where
+     * unset parameters are sent as blank.
+     *
+     * @param value The value of the parameter, or null if unset.
+     * @return The value sent to guacd.
+     */
+    private static String getSentValue(String value) {
+        return (value != null) ? value : "";
+    }
+
+    /**
+     * Returns whether the given configuration permits viewing the shared
+     * tunnel. Only users authorized for the very same connection may view
+     * it: the protocol, and the value of every argument guacd requested of
+     * the shared tunnel, must be the same as those the shared tunnel was
+     * connected with. Configurations are compared this way, rather than
+     * through equals(), as not every AuthenticationProvider produces
+     * configurations which can be compared by value.
+     *
+     * @param viewerConfiguration The configuration the viewer is authorized
+     *                            for.
+     * @return true if the given configuration permits viewing the shared
+     *         tunnel, false otherwise.
+     */
+    public boolean isAuthorized(GuacamoleConfiguration viewerConfiguration) {
+
+        if (viewerConfiguration == null || configuration.getProtocol() == null
+                || !configuration.getProtocol().equals(viewerConfiguration.getProtocol()))
+            return false;
+
+        for (String name : arguments) {
+            if (!getSentValue(configuration.getParameter(name)).equals(
+                    getSentValue(viewerConfiguration.getParameter(name))))
+                return false;
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Adds a chunk of output, which must consist of complete instructions,
+     * discarding the oldest chunks as necessary to make room.
+     *
+     * @param data The array containing the output.
+     * @param offset The offset of the first byte of output.
+     * @param length The number of bytes of output.
+     * @param count The number of instructions within the output.
+     * @param sync Whether the output ends with a sync instruction.
+     * @param syncTimestamp The timestamp of the last sync instruction within
+     *                      the output, or -1 if there is none.
+     */
+    public synchronized void add(byte[] data, int offset, int length,
+            int count, boolean sync, long syncTimestamp) {
+
+        if (closed || length == 0)
+            return;
+
+        // Keep first frame until its sync
+        if (!firstFrameComplete && firstFrame != null) {
+
+            if (firstFrame.length + length > MAX_FIRST_FRAME)
+                firstFrame = null;
+
+            else {
+
+                byte[] grown = new byte[firstFrame.length + length];
+                System.arraycopy(firstFrame, 0, grown, 0, firstFrame.length);
+                System.arraycopy(data, offset, grown, firstFrame.length, length);
+
+                firstFrame = grown;
+                firstFrameCount += count;
+
+                if (syncTimestamp != -1) {
+                    firstFrameComplete = true;
+                    firstFrameSyncTimestamp = syncTimestamp;
+                    firstFrameEnd = next + 1;
+                }
+
+            }
+
+        }
+
+        // Chunks larger than the entire buffer cannot be held
+        if (length > buffer.length) {
+            first = next = next + 1;
+            written += length;
+            notifyAll();
+            return;
+        }
+
+        // Discard oldest chunks until there is room
+        while (first < next && (written + length - starts[(int) (first % MAX_CHUNKS)] > buffer.length
+                    || next - first >= MAX_CHUNKS))
+            first++;
+
+        int slot = (int) (next % MAX_CHUNKS);
+        starts[slot] = written;
+        lengths[slot] = length;
+        counts[slot] = count;
+        syncs[slot] = sync;
+        syncTimestamps[slot] = syncTimestamp;
+
+        // Copy, wrapping around end of buffer
+        int position = (int) (written % buffer.length);
+        int contiguous = Math.min(length, buffer.length - position);
+        System.arraycopy(data, offset, buffer, position, contiguous);
+        System.arraycopy(data, offset + contiguous, buffer, 0, length - contiguous);
+
+        written += length;
+        next++;
+        notifyAll();
+
+    }
+
+    /**
+     * Returns the first frame of output, if it is complete and was small
+     * enough to keep.
+     *
+     * @return The first frame, whose sequence number is that of the first
+     *         chunk following it, or null if there is no such frame.
+     */
+    public synchronized Chunk getFirstFrame() {
+
+        if (!firstFrameComplete || firstFrame == null)
+            return null;
+
+        return new Chunk(firstFrameEnd, firstFrame, firstFrameCount, true,
+                firstFrameSyncTimestamp);
+
+    }
+
+    /**
+     * Returns the sequence number of the oldest chunk still held.
+     *
+     * @return The sequence number of the oldest held chunk.
+     */
+    public synchronized long getFirstSequence() {
+        return first;
+    }
+
+    /**
+     * Returns whether the chunk having the given sequence number, or a later
+     * chunk if that chunk has been discarded, can be read without waiting.
+     *
+     * @param sequence The sequence number of the chunk to read.
+     * @return true if a chunk can be read immediately, false otherwise.
+     */
+    public synchronized boolean isAvailable(long sequence) {
+        return Math.max(sequence, first) < next;
+    }
+
+    /**
+     * Reads the chunk having the given sequence number, waiting at most the
+     * given number of milliseconds for it to be added. If that chunk has
+     * already been discarded, the oldest held chunk is read instead.
+     *
+     * @param sequence The sequence number of the chunk to read.
+     * @param timeout The maximum number of milliseconds to wait.
+     * @return The chunk read, or null if no chunk was added in time or the
+     *         shared tunnel has closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized Chunk read(long sequence, long timeout)
+            throws InterruptedException {
+
+        if (Math.max(sequence, first) >= next && !closed)
+            wait(timeout);
+
+        // Skip ahead if chunk discarded
+        sequence = Math.max(sequence, first);
+        if (sequence >= next)
+            return null;
+
+        int slot = (int) (sequence % MAX_CHUNKS);
+        byte[] data = new byte[lengths[slot]];
+
+        // Copy, wrapping around end of buffer
+        int position = (int) (starts[slot] % buffer.length);
+        int contiguous = Math.min(data.length, buffer.length - position);
+        System.arraycopy(buffer, position, data, 0, contiguous);
+        System.arraycopy(buffer, 0, data, contiguous, data.length - contiguous);
+
+        return new Chunk(sequence, data, counts[slot], syncs[slot],
+                syncTimestamps[slot]);
+
+    }
+
+    /**
+     * Wakes all viewers waiting to read, such that they may notice they have
+     * been closed.
+     */
+    public synchronized void wake() {
+        notifyAll();
+    }
+
+    /**
+     * Marks the shared tunnel as closed. Viewers may still read all held
+     * chunks, after which they reach the end of the stream.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns whether the shared tunnel has closed.
+     *
+     * @return true if the shared tunnel has closed, false otherwise.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+}
@@ -0,0 +1,222 @@
+package net.sourceforge.guacamole.net.basic.share;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.protocol.AbstractByteGuacamoleReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleReader which reads the output of a shared tunnel from its
+ * SharedTunnelBuffer, keeping its own position within that buffer. A viewer
+ * joining after the first frame has been discarded is given the first frame
+ * before anything else. If the viewer falls so far behind that output it
+ * has not read is discarded, it skips ahead to the oldest output still
+ * held. If this happens again within RESYNC_INTERVAL, the viewer is
+ * dropped.
+ *
+ * @author Michael Jumper
+ */
+public class SharedViewerReader extends AbstractByteGuacamoleReader {
+
+    private Logger logger = LoggerFactory.getLogger(SharedViewerReader.class);
+
+    /**
+     * The minimum number of milliseconds between skips before a viewer is
+     * dropped.
+     */
+    public static final int RESYNC_INTERVAL = 10000;
+
+    /**
+     * The maximum number of milliseconds to wait at once for output, such
+     * that closing the viewer is noticed promptly.
+     */
+    private static final int MAX_WAIT = 250;
+
+    /**
+     * The buffer holding the output of the shared tunnel.
+     */
+    private final SharedTunnelBuffer buffer;
+
+    /**
+     * The sequence number of the next chunk to read, or -1 if nothing has
+     * yet been read.
+     */
+    private long sequence = -1;
+
+    /**
+     * The time this viewer last skipped ahead, in milliseconds since the
+     * epoch, or 0 if it never has.
+     */
+    private long lastResync = 0;
+
+    /**
+     * The total number of chunks skipped.
+     */
+    private volatile long skipped = 0;
+
+    /**
+     * Whether this viewer has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Whether the data most recently returned ends with a sync instruction.
+     */
+    private boolean returnedSync = false;
+
+    /**
+     * The number of instructions within the data most recently returned.
+     */
+    private int returnedCount = 0;
+
+    /**
+     * The timestamp of the last sync instruction within the data most
+     * recently returned, or -1 if there is no such instruction.
+     */
+    private long returnedSyncTimestamp = -1;
+
+    /**
+     * Creates a new SharedViewerReader which reads the output held by the
+     * given buffer.
+     *
+     * @param buffer The buffer holding the output of the shared tunnel.
+     */
+    public SharedViewerReader(SharedTunnelBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the given chunk, noting its details for the reader.
+     *
+     * @param chunk The chunk to return.
+     * @return A buffer containing the data of the chunk.
+     */
+    private ByteBuffer returnChunk(SharedTunnelBuffer.Chunk chunk) {
+        returnedSync = chunk.endsWithSync();
+        returnedCount = chunk.getCount();
+        returnedSyncTimestamp = chunk.getSyncTimestamp();
+        return ByteBuffer.wrap(chunk.getData());
+    }
+
+    @Override
+    protected ByteBuffer readChunk() throws GuacamoleException {
+
+        // Begin with first frame if any of it has been discarded
+        if (sequence == -1) {
+
+            long oldest = buffer.getFirstSequence();
+            sequence = oldest;
+
+            SharedTunnelBuffer.Chunk firstFrame = buffer.getFirstFrame();
+            if (oldest > 0 && firstFrame != null) {
+                sequence = Math.max(oldest, firstFrame.getSequence());
+                return returnChunk(firstFrame);
+            }
+
+        }
+
+        try {
+
+            for (;;) {
+
+                if (closed)
+                    return null;
+
+                SharedTunnelBuffer.Chunk chunk = buffer.read(sequence, MAX_WAIT);
+                if (chunk == null) {
+
+                    // End of stream once everything has been read
+                    if (buffer.isClosed() && !buffer.isAvailable(sequence))
+                        return null;
+
+                    continue;
+
+                }
+
+                // Skip ahead if too far behind, but drop if this recurs
+                if (chunk.getSequence() > sequence) {
+
+                    long now = System.currentTimeMillis();
+                    if (lastResync != 0 && now - lastResync < RESYNC_INTERVAL)
+                        throw new GuacamoleException("Viewer fell too far behind shared tunnel.");
+
+                    logger.debug("Viewer skipped {} chunks of shared tunnel output.",
+                            chunk.getSequence() - sequence);
+
+                    skipped += chunk.getSequence() - sequence;
+                    lastResync = now;
+
+                }
+
+                sequence = chunk.getSequence() + 1;
+                return returnChunk(chunk);
+
+            }
+
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GuacamoleException("Interrupted while waiting for shared tunnel.", e);
+        }
+
+    }
+
+    @Override
+    protected boolean chunkAvailable() {
+        return sequence == -1 || closed || buffer.isAvailable(sequence)
+            || buffer.isClosed();
+    }
+
+    @Override
+    public boolean endsWithSync() {
+        return returnedSync;
+    }
+
+    @Override
+    protected int getChunkInstructionCount() {
+        return returnedCount;
+    }
+
+    @Override
+    protected long getChunkSyncTimestamp() {
+        return returnedSyncTimestamp;
+    }
+
+    /**
+     * Returns the number of chunks of output this viewer skipped because it
+     * fell too far behind.
+     *
+     * @return The number of chunks skipped.
+     */
+    public long getSkippedChunks() {
+        return skipped;
+    }
+
+    /**
+     * Stops reading. Any read in progress returns end-of-stream.
+     */
+    public void close() {
+        closed = true;
+        buffer.wake();
+    }
+
+}
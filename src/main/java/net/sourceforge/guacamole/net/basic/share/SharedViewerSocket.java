@@ -0,0 +1,100 @@
+package net.sourceforge.guacamole.net.basic.share;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.sourceforge.guacamole.io.GuacamoleReader;
+import net.sourceforge.guacamole.io.GuacamoleWriter;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+import net.sourceforge.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleSocket through which a read-only viewer watches a shared tunnel.
+ * Output is read from the SharedTunnelBuffer of the shared tunnel. Anything
+ * written to the socket, such as input or sync replies from the viewer, is
+ * ignored, such that only the owner of the shared tunnel controls the
+ * session.
+ *
+ * @author Michael Jumper
+ */
+public class SharedViewerSocket implements GuacamoleSocket {
+
+    /**
+     * The reader reading the output of the shared tunnel.
+     */
+    private final SharedViewerReader reader;
+
+    /**
+     * Writer which ignores all data written.
+     */
+    private final GuacamoleWriter writer = new GuacamoleWriter() {
+
+        @Override
+        public void write(char[] chunk, int off, int len) {
+            // Ignore
+        }
+
+        @Override
+        public void write(char[] chunk) {
+            // Ignore
+        }
+
+        @Override
+        public void writeInstruction(GuacamoleInstruction instruction) {
+            // Ignore
+        }
+
+    };
+
+    /**
+     * Whether this socket is open.
+     */
+    private volatile boolean open = true;
+
+    /**
+     * Creates a new SharedViewerSocket which reads the output held by the
+     * given buffer.
+     *
+     * @param buffer The buffer holding the output of the shared tunnel.
+     */
+    public SharedViewerSocket(SharedTunnelBuffer buffer) {
+        reader = new SharedViewerReader(buffer);
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        reader.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+}
@@ -0,0 +1,273 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses when a streaming HTTP tunnel read response should be flushed,
+ * gathering instructions into batches. Each batch ends once a byte budget
+ * is reached, or once no further data is immediately available. The byte
+ * budget grows with the measured round-trip time of the client, such that
+ * high-latency clients receive fewer, larger batches, while clients on fast
+ * networks receive smaller batches with less buffering delay.
+ *
+ * While the user is actively providing input, batches also end at every
+ * complete frame, such that the effects of that input (typed characters,
+ * mouse movement) are seen as soon as possible.
+ *
+ * The round-trip time is measured as the time between flushing a batch which
+ * ends with a sync instruction and receiving the client's reply to that sync.
+ * This includes the time the client takes to render the frame.
+ *
+ * @author Michael Jumper
+ */
+public class AdaptiveBatcher {
+
+    /**
+     * The smallest allowed byte budget.
+     */
+    public static final int MIN_BUDGET = 4096;
+
+    /**
+     * The largest allowed byte budget.
+     */
+    public static final int MAX_BUDGET = 262144;
+
+    /**
+     * The number of bytes added to the budget per millisecond of round-trip
+     * time, corresponding to a link of roughly 16 Mbit/s.
+     */
+    private static final int BYTES_PER_MILLISECOND = 2048;
+
+    /**
+     * The number of milliseconds after user input during which batches end
+     * at every complete frame.
+     */
+    private static final long ECHO_WINDOW = 250;
+
+    /**
+     * The weight given to each new round-trip time sample, as a divisor.
+     */
+    private static final int RTT_SMOOTHING = 8;
+
+    /**
+     * The smoothed round-trip time, in milliseconds, or -1 if not yet
+     * measured.
+     */
+    private volatile long roundTripTime = -1;
+
+    /**
+     * The time the last batch ending with a sync instruction was flushed,
+     * in milliseconds since the epoch, or 0 if no reply to that sync is
+     * expected.
+     */
+    private volatile long syncFlushed = 0;
+
+    /**
+     * The time user input was last received, in milliseconds since the
+     * epoch.
+     */
+    private volatile long lastInput = 0;
+
+    /**
+     * The number of batches flushed.
+     */
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * The total number of bytes in all batches flushed.
+     */
+    private final AtomicLong batchBytes = new AtomicLong();
+
+    /**
+     * The size of the most recent batch, in bytes.
+     */
+    private volatile int lastBatch = 0;
+
+    /**
+     * The size of the largest batch, in bytes.
+     */
+    private volatile int maxBatch = 0;
+
+    /**
+     * Returns the current byte budget of each batch, based on the measured
+     * round-trip time.
+     *
+     * @return The current byte budget.
+     */
+    public int getBudget() {
+
+        long rtt = roundTripTime;
+        if (rtt < 0)
+            return MIN_BUDGET;
+
+        return (int) Math.max(MIN_BUDGET,
+                Math.min(MAX_BUDGET, rtt * BYTES_PER_MILLISECOND));
+
+    }
+
+    /**
+     * Returns whether user input was received recently enough that frames
+     * should be sent as soon as complete.
+     *
+     * @return true if input was received recently, false otherwise.
+     */
+    public boolean isEchoing() {
+        return System.currentTimeMillis() - lastInput < ECHO_WINDOW;
+    }
+
+    /**
+     * Returns whether the current batch should be flushed.
+     *
+     * @param pending The number of bytes in the current batch.
+     * @param sync Whether the current batch ends with a sync instruction.
+     * @param available Whether further data is immediately available.
+     * @return true if the batch should be flushed now, false if further data
+     *         should be added to the batch.
+     */
+    public boolean shouldFlush(int pending, boolean sync, boolean available) {
+
+        // Never hold data while waiting for more
+        if (!available)
+            return true;
+
+        // End batch at budget
+        if (pending >= getBudget())
+            return true;
+
+        // Send complete frames immediately while the user is interacting
+        return sync && isEchoing();
+
+    }
+
+    /**
+     * Records that a batch has been flushed.
+     *
+     * @param size The size of the batch, in bytes.
+     * @param sync Whether the batch ended with a sync instruction.
+     */
+    public void flushed(int size, boolean sync) {
+
+        if (size == 0)
+            return;
+
+        batches.incrementAndGet();
+        batchBytes.addAndGet(size);
+
+        lastBatch = size;
+        if (size > maxBatch)
+            maxBatch = size;
+
+        // Time the reply to the sync, if not already timing another
+        if (sync && syncFlushed == 0)
+            syncFlushed = System.currentTimeMillis();
+
+    }
+
+    /**
+     * Records that user input (a key or mouse event) has been received from
+     * the client.
+     */
+    public void inputReceived() {
+        lastInput = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that the client has replied to a sync instruction, updating
+     * the measured round-trip time if a flushed sync was being timed.
+     */
+    public void syncReceived() {
+
+        long flushed = syncFlushed;
+        if (flushed == 0)
+            return;
+
+        syncFlushed = 0;
+        long sample = System.currentTimeMillis() - flushed;
+
+        long rtt = roundTripTime;
+        if (rtt < 0)
+            roundTripTime = sample;
+        else
+            roundTripTime = rtt + (sample - rtt) / RTT_SMOOTHING;
+
+    }
+
+    /**
+     * Returns the smoothed round-trip time of the client.
+     *
+     * @return The round-trip time in milliseconds, or -1 if not yet
+     *         measured.
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Returns the number of batches flushed.
+     *
+     * @return The number of batches flushed.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Returns the average size of all batches flushed.
+     *
+     * @return The average batch size in bytes, or 0 if no batches have been
+     *         flushed.
+     */
+    public long getAverageBatchSize() {
+
+        long count = batches.get();
+        if (count == 0)
+            return 0;
+
+        return batchBytes.get() / count;
+
+    }
+
+    /**
+     * Returns the size of the most recent batch.
+     *
+     * @return The size of the most recent batch, in bytes.
+     */
+    public int getLastBatchSize() {
+        return lastBatch;
+    }
+
+    /**
+     * Returns the size of the largest batch.
+     *
+     * @return The size of the largest batch, in bytes.
+     */
+    public int getMaxBatchSize() {
+        return maxBatch;
+    }
+
+    @Override
+    public String toString() {
+        return batches.get() + " batches, average " + getAverageBatchSize()
+                + " bytes, largest " + maxBatch + " bytes, budget "
+                + getBudget() + " bytes, round trip " + roundTripTime + " ms";
+    }
+
+}
@@ -0,0 +1,445 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleWriter;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+import net.sourceforge.guacamole.net.GuacamoleTunnel;
+import net.sourceforge.guacamole.net.basic.metrics.ConnectTimer;
+import net.sourceforge.guacamole.net.basic.recording.SessionRecording;
+import net.sourceforge.guacamole.net.basic.share.SharedTunnelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleTunnel which keeps the per-tunnel state used by the tunnel
+ * servlets of this web application, such as how its output is batched, how
+ * far its client has fallen behind, how much data has passed through it,
+ * where its output is recorded, with which viewers it is shared, and what
+ * its client may need resent if its connection fails.
+ *
+ * @author Michael Jumper
+ */
+public class BasicGuacamoleTunnel extends GuacamoleTunnel {
+
+    private Logger logger = LoggerFactory.getLogger(BasicGuacamoleTunnel.class);
+
+    /**
+     * The batcher choosing when output of this tunnel is flushed.
+     */
+    private final AdaptiveBatcher batcher = new AdaptiveBatcher();
+
+    /**
+     * The tracker measuring how far the client has fallen behind.
+     */
+    private final LagTracker lagTracker = new LagTracker();
+
+    /**
+     * Traffic counters and details of this tunnel.
+     */
+    private final TunnelStatistics statistics = new TunnelStatistics(this);
+
+    /**
+     * The method used to compress output of this tunnel, or null if output
+     * is not compressed.
+     */
+    private TunnelCompression compression;
+
+    /**
+     * The number of bytes of output written to compressed responses, before
+     * compression.
+     */
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+
+    /**
+     * The number of bytes of output written to compressed responses, after
+     * compression.
+     */
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /**
+     * The recording of the output of this tunnel, or null if output is not
+     * recorded.
+     */
+    private volatile SessionRecording recording;
+
+    /**
+     * The buffer from which viewers read the output of this tunnel, or null
+     * if this tunnel is not shared.
+     */
+    private volatile SharedTunnelBuffer share;
+
+    /**
+     * The output which the client may not have received, or null if this
+     * tunnel cannot be resumed.
+     */
+    private volatile ReplayBuffer replayBuffer;
+
+    /**
+     * The time this tunnel was suspended, in milliseconds since the epoch,
+     * or 0 if this tunnel is not suspended.
+     */
+    private volatile long suspendedSince = 0;
+
+    /**
+     * The timestamp of the last sync instruction the client received before
+     * resuming, or -1 if the client has not resumed since this tunnel was
+     * last read.
+     */
+    private long resumeSync = -1;
+
+    /**
+     * The reason this tunnel was closed, or null if not yet closed or if
+     * the reason is not known.
+     */
+    private volatile TunnelCloseReason closeReason;
+
+    /**
+     * The timer measuring how long this tunnel took to establish, or null if
+     * not timed.
+     */
+    private volatile ConnectTimer connectTimer;
+
+    /**
+     * The writer returned by acquireWriter(), or null if not yet created.
+     */
+    private GuacamoleWriter writer;
+
+    /**
+     * Creates a new BasicGuacamoleTunnel which synchronizes access to the
+     * given socket.
+     *
+     * @param socket The GuacamoleSocket to provide synchronized access for.
+     */
+    public BasicGuacamoleTunnel(GuacamoleSocket socket) {
+        super(socket);
+    }
+
+    /**
+     * Returns the batcher choosing when output of this tunnel is flushed.
+     *
+     * @return The batcher of this tunnel.
+     */
+    public AdaptiveBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * Returns the tracker measuring how far the client of this tunnel has
+     * fallen behind.
+     *
+     * @return The lag tracker of this tunnel.
+     */
+    public LagTracker getLagTracker() {
+        return lagTracker;
+    }
+
+    /**
+     * Returns the traffic counters and details of this tunnel.
+     *
+     * @return The statistics of this tunnel.
+     */
+    public TunnelStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns the method used to compress output of this tunnel.
+     *
+     * @return The compression method of this tunnel, or null if output is
+     *         not compressed.
+     */
+    public TunnelCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets the method used to compress output of this tunnel.
+     *
+     * @param compression The compression method to use, or null if output
+     *                    should not be compressed.
+     */
+    public void setCompression(TunnelCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Records the size of output written to a compressed response, before
+     * and after compression.
+     *
+     * @param uncompressed The number of bytes before compression.
+     * @param compressed The number of bytes after compression.
+     */
+    public void recordCompression(long uncompressed, long compressed) {
+        uncompressedBytes.addAndGet(uncompressed);
+        compressedBytes.addAndGet(compressed);
+    }
+
+    /**
+     * Returns the ratio of the size of all compressed output of this tunnel
+     * before compression to its size after compression.
+     *
+     * @return The compression ratio, or 0 if no output has been compressed.
+     */
+    public double getCompressionRatio() {
+
+        long compressed = compressedBytes.get();
+        if (compressed == 0)
+            return 0;
+
+        return (double) uncompressedBytes.get() / compressed;
+
+    }
+
+    /**
+     * Returns the recording of the output of this tunnel.
+     *
+     * @return The recording of this tunnel, or null if output is not
+     *         recorded.
+     */
+    public SessionRecording getRecording() {
+        return recording;
+    }
+
+    /**
+     * Sets the recording of the output of this tunnel. The recording is
+     * closed when this tunnel is closed.
+     *
+     * @param recording The recording to write output to, or null if output
+     *                  should not be recorded.
+     */
+    public void setRecording(SessionRecording recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Returns the buffer from which viewers read the output of this tunnel.
+     *
+     * @return The shared output of this tunnel, or null if this tunnel is
+     *         not shared.
+     */
+    public SharedTunnelBuffer getShare() {
+        return share;
+    }
+
+    /**
+     * Sets the buffer from which viewers read the output of this tunnel.
+     * The buffer is closed when this tunnel is closed.
+     *
+     * @param share The buffer to add output to, or null if this tunnel
+     *              should not be shared.
+     */
+    public void setShare(SharedTunnelBuffer share) {
+        this.share = share;
+    }
+
+    /**
+     * Returns the output of this tunnel which the client may not have
+     * received.
+     *
+     * @return The replay buffer of this tunnel, or null if this tunnel
+     *         cannot be resumed.
+     */
+    public ReplayBuffer getReplayBuffer() {
+        return replayBuffer;
+    }
+
+    /**
+     * Sets the buffer holding output of this tunnel which the client may
+     * not have received.
+     *
+     * @param replayBuffer The buffer to hold output, or null if this tunnel
+     *                     should not be resumable.
+     */
+    public void setReplayBuffer(ReplayBuffer replayBuffer) {
+        this.replayBuffer = replayBuffer;
+    }
+
+    /**
+     * Marks this tunnel as suspended, as its client connection has failed.
+     *
+     * @return The time this tunnel was suspended, in milliseconds since the
+     *         epoch.
+     */
+    public synchronized long suspend() {
+
+        if (suspendedSince == 0)
+            suspendedSince = System.currentTimeMillis();
+
+        return suspendedSince;
+
+    }
+
+    /**
+     * Returns the time this tunnel was suspended.
+     *
+     * @return The time this tunnel was suspended, in milliseconds since the
+     *         epoch, or 0 if this tunnel is not suspended.
+     */
+    public long getSuspendedSince() {
+        return suspendedSince;
+    }
+
+    /**
+     * Resumes this tunnel. Once this tunnel is next read, all output
+     * following the given sync instruction is sent again before anything
+     * else.
+     *
+     * @param sync The timestamp of the last sync instruction the client
+     *             received.
+     */
+    public synchronized void resume(long sync) {
+        suspendedSince = 0;
+        resumeSync = sync;
+    }
+
+    /**
+     * Removes and returns the timestamp of the last sync instruction the
+     * client received before resuming.
+     *
+     * @return The timestamp of the sync instruction after which output must
+     *         be sent again, or -1 if the client has not resumed since this
+     *         tunnel was last read.
+     */
+    public synchronized long takeResumeSync() {
+        long sync = resumeSync;
+        resumeSync = -1;
+        return sync;
+    }
+
+    /**
+     * Returns the timer measuring how long this tunnel took to establish.
+     *
+     * @return The timer of this tunnel, or null if not timed.
+     */
+    public ConnectTimer getConnectTimer() {
+        return connectTimer;
+    }
+
+    /**
+     * Sets the timer measuring how long this tunnel took to establish. The
+     * timer is completed once the first sync instruction is sent.
+     *
+     * @param connectTimer The timer of this tunnel, or null if not timed.
+     */
+    public void setConnectTimer(ConnectTimer connectTimer) {
+        this.connectTimer = connectTimer;
+    }
+
+    /**
+     * Returns the reason this tunnel was closed. The reason is set before
+     * any close listeners are notified.
+     *
+     * @return The reason this tunnel was closed, or null if this tunnel has
+     *         not been closed or was closed for an unknown reason.
+     */
+    public TunnelCloseReason getCloseReason() {
+        return closeReason;
+    }
+
+    /**
+     * Closes this tunnel for the given reason. If a reason was already
+     * given by an earlier attempt to close this tunnel, that reason is kept.
+     *
+     * @param reason The reason this tunnel is being closed.
+     * @throws GuacamoleException If an error occurs while closing.
+     */
+    public void close(TunnelCloseReason reason) throws GuacamoleException {
+
+        synchronized (this) {
+            if (closeReason == null)
+                closeReason = reason;
+        }
+
+        close();
+
+    }
+
+    /**
+     * Closes the given tunnel for the given reason. The reason is only
+     * recorded if the tunnel is a BasicGuacamoleTunnel.
+     *
+     * @param tunnel The tunnel to close.
+     * @param reason The reason the tunnel is being closed.
+     * @throws GuacamoleException If an error occurs while closing.
+     */
+    public static void close(GuacamoleTunnel tunnel, TunnelCloseReason reason)
+            throws GuacamoleException {
+
+        if (tunnel instanceof BasicGuacamoleTunnel)
+            ((BasicGuacamoleTunnel) tunnel).close(reason);
+        else
+            tunnel.close();
+
+    }
+
+    @Override
+    public GuacamoleWriter acquireWriter() {
+
+        GuacamoleWriter socketWriter = super.acquireWriter();
+
+        // Note input and sync replies as they pass through
+        if (writer == null)
+            writer = new InputTrackingGuacamoleWriter(socketWriter, batcher,
+                    statistics, lagTracker);
+
+        return writer;
+
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+
+        try {
+            super.close();
+        }
+        finally {
+
+            TunnelRegistry.unregister(this);
+
+            // Stop recording
+            if (recording != null)
+                recording.close();
+
+            // Let viewers finish
+            if (share != null)
+                share.close();
+
+        }
+
+        logger.debug("Tunnel {} closed ({}). Traffic: {}.", new Object[] {
+                getUUID(), closeReason, statistics });
+        logger.debug("Tunnel {} closed. Output: {}.", getUUID(), batcher);
+        logger.debug("Tunnel {} closed. Client: {}.", getUUID(), lagTracker);
+
+        if (compression != null)
+            logger.debug("Tunnel {} output compressed using {} (ratio {}).",
+                    new Object[] { getUUID(), compression.getName(),
+                    String.format("%.2f", getCompressionRatio()) });
+
+        if (recording != null)
+            logger.debug("Tunnel {} recorded {} bytes ({} bytes dropped).",
+                    new Object[] { getUUID(), recording.getRecordedBytes(),
+                    recording.getDroppedBytes() });
+
+    }
+
+}
@@ -0,0 +1,260 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleWriter;
+import net.sourceforge.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleWriter which passes all data through to another writer, noting
+ * user input and sync replies from the client in an AdaptiveBatcher and
+ * LagTracker, and counting all data received in the statistics of the
+ * tunnel. Sync replies are parsed by following element lengths, while
+ * input is recognized by encoded opcodes, which is reliable for the small,
+ * whole instructions clients send.
+ *
+ * @author Michael Jumper
+ */
+public class InputTrackingGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The encoded opcode of key events.
+     */
+    private static final char[] KEY = "3.key,".toCharArray();
+
+    /**
+     * The encoded opcode of mouse events.
+     */
+    private static final char[] MOUSE = "5.mouse,".toCharArray();
+
+    /**
+     * The opcode of sync replies.
+     */
+    private static final char[] SYNC = { 's', 'y', 'n', 'c' };
+
+    /**
+     * The writer to pass all data to.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * The batcher to notify of input and sync replies.
+     */
+    private final AdaptiveBatcher batcher;
+
+    /**
+     * The statistics to record all data received in.
+     */
+    private final TunnelStatistics statistics;
+
+    /**
+     * The tracker to notify of sync replies.
+     */
+    private final LagTracker lagTracker;
+
+    /**
+     * The number of characters remaining in the element currently being
+     * received, or -1 if the length of the next element is being received.
+     */
+    private int remaining = -1;
+
+    /**
+     * The length of the next element, as received so far.
+     */
+    private int length = 0;
+
+    /**
+     * The number of elements received so far within the current
+     * instruction.
+     */
+    private int elements = 0;
+
+    /**
+     * The number of characters of the current opcode received so far.
+     */
+    private int opcodeLength = 0;
+
+    /**
+     * Whether the current opcode matches the sync opcode so far.
+     */
+    private boolean opcodeIsSync = true;
+
+    /**
+     * The timestamp of the current sync reply, as received so far.
+     */
+    private long syncArgument = 0;
+
+    /**
+     * Creates a new InputTrackingGuacamoleWriter which passes all data to
+     * the given writer.
+     *
+     * @param writer The writer to pass all data to.
+     * @param batcher The batcher to notify of input and sync replies.
+     * @param statistics The statistics to record all data received in.
+     * @param lagTracker The tracker to notify of sync replies.
+     */
+    public InputTrackingGuacamoleWriter(GuacamoleWriter writer,
+            AdaptiveBatcher batcher, TunnelStatistics statistics,
+            LagTracker lagTracker) {
+        this.writer = writer;
+        this.batcher = batcher;
+        this.statistics = statistics;
+        this.lagTracker = lagTracker;
+    }
+
+    /**
+     * Returns whether the given pattern occurs within the given range of
+     * characters.
+     *
+     * @param chunk The characters to search.
+     * @param off The offset of the first character to search.
+     * @param len The number of characters to search.
+     * @param pattern The pattern to search for.
+     * @return true if the pattern occurs, false otherwise.
+     */
+    private static boolean contains(char[] chunk, int off, int len, char[] pattern) {
+
+        int last = off + len - pattern.length;
+        for (int i = off; i <= last; i++) {
+
+            int j = 0;
+            while (j < pattern.length && chunk[i + j] == pattern[j])
+                j++;
+
+            if (j == pattern.length)
+                return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Records the given characters in the statistics of the tunnel, counting
+     * their length in UTF-8 and the number of instructions they complete,
+     * and passing the timestamp of each completed sync reply along.
+     * Instructions are parsed by following element lengths, such that
+     * instructions may be split across calls.
+     *
+     * @param chunk The characters received.
+     * @param off The offset of the first character received.
+     * @param len The number of characters received.
+     */
+    private void count(char[] chunk, int off, int len) {
+
+        int bytes = 0;
+        int instructions = 0;
+
+        for (int i = off; i < off + len; i++) {
+
+            char c = chunk[i];
+
+            // Length of character in UTF-8 (surrogates are half of four)
+            if (c < 0x80)
+                bytes++;
+            else if (c < 0x800 || (c >= 0xD800 && c <= 0xDFFF))
+                bytes += 2;
+            else
+                bytes += 3;
+
+            // Parsing element length
+            if (remaining < 0) {
+                if (c == '.') {
+                    remaining = length;
+                    length = 0;
+                }
+                else
+                    length = length * 10 + (c - '0');
+            }
+
+            // Within element value
+            else if (remaining > 0) {
+
+                remaining--;
+
+                // Compare opcode against sync opcode
+                if (elements == 0) {
+                    if (opcodeLength >= SYNC.length || SYNC[opcodeLength] != c)
+                        opcodeIsSync = false;
+                    opcodeLength++;
+                }
+
+                // Parse timestamp of sync replies
+                else if (elements == 1 && opcodeIsSync)
+                    syncArgument = syncArgument * 10 + (c - '0');
+
+            }
+
+            // Element terminator
+            else {
+
+                remaining = -1;
+                elements++;
+
+                if (elements == 1)
+                    opcodeIsSync &= opcodeLength == SYNC.length;
+
+                // End of instruction
+                if (c == ';') {
+
+                    if (opcodeIsSync) {
+                        batcher.syncReceived();
+                        lagTracker.syncAcknowledged(syncArgument);
+                    }
+
+                    instructions++;
+                    elements = 0;
+                    opcodeLength = 0;
+                    opcodeIsSync = true;
+                    syncArgument = 0;
+
+                }
+
+            }
+
+        }
+
+        statistics.recordInput(bytes, instructions);
+
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+
+        writer.write(chunk, off, len);
+        count(chunk, off, len);
+
+        if (contains(chunk, off, len, KEY) || contains(chunk, off, len, MOUSE))
+            batcher.inputReceived();
+
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction) throws GuacamoleException {
+        write(instruction.toString().toCharArray());
+    }
+
+}
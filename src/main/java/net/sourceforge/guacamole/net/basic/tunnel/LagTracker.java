@@ -0,0 +1,193 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how far a client has fallen behind the output of its tunnel, by
+ * comparing the timestamps of sync instructions sent to the client with
+ * the timestamps the client acknowledges, as guacd does. Once the lag
+ * exceeds a threshold, output may be reduced until the client catches up.
+ *
+ * @author Michael Jumper
+ */
+public class LagTracker {
+
+    /**
+     * The default lag, in milliseconds, beyond which a client is considered
+     * to be lagging.
+     */
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    /**
+     * The lag, in milliseconds, beyond which the client is considered to be
+     * lagging, or 0 if the client is never considered to be lagging.
+     */
+    private volatile int threshold = DEFAULT_THRESHOLD;
+
+    /**
+     * The timestamp of the first sync instruction sent to the client, or -1
+     * if none has been sent.
+     */
+    private volatile long firstSent = -1;
+
+    /**
+     * The timestamp of the last sync instruction sent to the client, or -1
+     * if none has been sent.
+     */
+    private volatile long lastSent = -1;
+
+    /**
+     * The timestamp most recently acknowledged by the client, or -1 if the
+     * client has not yet acknowledged any sync instruction.
+     */
+    private volatile long lastAcknowledged = -1;
+
+    /**
+     * The number of instructions not sent to the client due to lag.
+     */
+    private final AtomicLong droppedInstructions = new AtomicLong();
+
+    /**
+     * The number of bytes not sent to the client due to lag.
+     */
+    private final AtomicLong droppedBytes = new AtomicLong();
+
+    /**
+     * Sets the lag beyond which the client is considered to be lagging.
+     *
+     * @param threshold The lag threshold in milliseconds, or 0 if the client
+     *                  should never be considered to be lagging.
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the lag beyond which the client is considered to be lagging.
+     *
+     * @return The lag threshold in milliseconds, or 0 if the client is never
+     *         considered to be lagging.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Records that a sync instruction has been sent to the client.
+     *
+     * @param timestamp The timestamp of the sync instruction.
+     */
+    public void syncSent(long timestamp) {
+
+        if (firstSent < 0)
+            firstSent = timestamp;
+
+        lastSent = timestamp;
+
+    }
+
+    /**
+     * Records that the client has acknowledged a sync instruction.
+     *
+     * @param timestamp The timestamp acknowledged by the client.
+     */
+    public void syncAcknowledged(long timestamp) {
+        lastAcknowledged = timestamp;
+    }
+
+    /**
+     * Returns the timestamp of the last sync instruction the client has
+     * acknowledged.
+     *
+     * @return The last acknowledged timestamp, or -1 if the client has not
+     *         yet acknowledged any sync instruction.
+     */
+    public long getLastAcknowledged() {
+        return lastAcknowledged;
+    }
+
+    /**
+     * Records that instructions were not sent to the client due to lag.
+     *
+     * @param instructions The number of instructions not sent.
+     * @param bytes The number of bytes not sent.
+     */
+    public void dropped(int instructions, int bytes) {
+        droppedInstructions.addAndGet(instructions);
+        droppedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Returns how far the client has fallen behind, as the time between the
+     * last frame sent and the last frame the client has acknowledged.
+     *
+     * @return The lag of the client, in milliseconds.
+     */
+    public long getLag() {
+
+        long sent = lastSent;
+        if (sent < 0)
+            return 0;
+
+        // Until the client acknowledges anything, it is behind every frame
+        long acknowledged = lastAcknowledged;
+        if (acknowledged < 0)
+            acknowledged = firstSent;
+
+        return Math.max(0, sent - acknowledged);
+
+    }
+
+    /**
+     * Returns whether the client is lagging beyond the threshold.
+     *
+     * @return true if the client is lagging, false otherwise.
+     */
+    public boolean isLagging() {
+        int limit = threshold;
+        return limit > 0 && getLag() > limit;
+    }
+
+    /**
+     * Returns the number of instructions not sent to the client due to lag.
+     *
+     * @return The number of instructions dropped.
+     */
+    public long getDroppedInstructions() {
+        return droppedInstructions.get();
+    }
+
+    /**
+     * Returns the number of bytes not sent to the client due to lag.
+     *
+     * @return The number of bytes dropped.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "lag " + getLag() + " ms, dropped " + droppedInstructions.get()
+                + " instructions (" + droppedBytes.get() + " bytes)";
+    }
+
+}
@@ -0,0 +1,271 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Holds the output most recently sent to the client of a tunnel which the
+ * client may not have received, such that a client whose connection failed
+ * can resume the tunnel and receive only what it missed. Output is held as
+ * sent, in chunks of complete instructions. Chunks are discarded once the
+ * client acknowledges a later sync instruction, or once more output is held
+ * than allowed.
+ *
+ * @author Michael Jumper
+ */
+public class ReplayBuffer {
+
+    /**
+     * The default maximum number of bytes held.
+     */
+    public static final int DEFAULT_CAPACITY = 1048576;
+
+    /**
+     * The opcode of the sync instruction.
+     */
+    private static final byte[] SYNC_OPCODE = { 's', 'y', 'n', 'c' };
+
+    /**
+     * A chunk of output sent to the client.
+     */
+    private static class Entry {
+
+        /**
+         * The output sent, consisting of complete instructions.
+         */
+        private final byte[] data;
+
+        /**
+         * The timestamp of the last sync instruction within the output, or
+         * -1 if there is none.
+         */
+        private final long lastSync;
+
+        /**
+         * Creates a new Entry holding the given output.
+         *
+         * @param data The output sent.
+         * @param lastSync The timestamp of the last sync instruction within
+         *                 the output, or -1 if there is none.
+         */
+        public Entry(byte[] data, long lastSync) {
+            this.data = data;
+            this.lastSync = lastSync;
+        }
+
+    }
+
+    /**
+     * All held chunks, oldest first.
+     */
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+    /**
+     * The maximum number of bytes held.
+     */
+    private final int capacity;
+
+    /**
+     * The number of bytes held.
+     */
+    private int size = 0;
+
+    /**
+     * Creates a new ReplayBuffer which holds at most the given number of
+     * bytes.
+     *
+     * @param capacity The maximum number of bytes held.
+     */
+    public ReplayBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds output which has been sent to the client, discarding output the
+     * client is known to have received.
+     *
+     * @param data The array containing the output.
+     * @param offset The offset of the first byte of output.
+     * @param length The number of bytes of output.
+     * @param lastSync The timestamp of the last sync instruction within the
+     *                 output, or -1 if there is none.
+     * @param acknowledged The timestamp of the last sync instruction
+     *                     acknowledged by the client, or -1 if none.
+     */
+    public synchronized void add(byte[] data, int offset, int length,
+            long lastSync, long acknowledged) {
+
+        if (length == 0)
+            return;
+
+        // Discard chunks preceding an acknowledged sync
+        while (entries.size() >= 2) {
+
+            long nextSync = entries.get(1).lastSync;
+            if (nextSync == -1 || nextSync > acknowledged)
+                break;
+
+            size -= entries.removeFirst().data.length;
+
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        entries.add(new Entry(copy, lastSync));
+        size += length;
+
+        // Discard oldest chunks if full
+        while (size > capacity)
+            size -= entries.removeFirst().data.length;
+
+    }
+
+    /**
+     * Returns all held output following the sync instruction having the
+     * given timestamp.
+     *
+     * @param timestamp The timestamp of the last sync instruction received
+     *                  by the client.
+     * @return All output following that sync instruction, or null if that
+     *         sync instruction is no longer held.
+     */
+    public synchronized byte[] getOutputAfter(long timestamp) {
+
+        if (timestamp < 0)
+            return null;
+
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+
+            // Syncs are in order, so only one chunk may contain the sync
+            Entry entry = iterator.next();
+            if (entry.lastSync < timestamp)
+                continue;
+
+            int end = findSyncEnd(entry.data, timestamp);
+            if (end == -1)
+                return null;
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            output.write(entry.data, end, entry.data.length - end);
+
+            while (iterator.hasNext()) {
+                byte[] data = iterator.next().data;
+                output.write(data, 0, data.length);
+            }
+
+            return output.toByteArray();
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Discards all held output.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the position just after the sync instruction having the given
+     * timestamp within the given complete instructions.
+     *
+     * @param data The instructions to search.
+     * @param timestamp The timestamp of the sync instruction to find.
+     * @return The offset just after the sync instruction, or -1 if there is
+     *         no such instruction.
+     */
+    private static int findSyncEnd(byte[] data, long timestamp) {
+
+        int i = 0;
+        while (i < data.length) {
+
+            boolean sync = false;
+            long argument = -1;
+
+            // Parse each element of the instruction
+            for (int element = 0; ; element++) {
+
+                int length = 0;
+                while (data[i] != '.')
+                    length = length * 10 + (data[i++] - '0');
+
+                int start = ++i;
+
+                // Skip value, skipping continuation bytes of each character
+                for (int remaining = length; remaining > 0; remaining--) {
+                    i++;
+                    while (i < data.length && (data[i] & 0xC0) == 0x80)
+                        i++;
+                }
+
+                if (element == 0)
+                    sync = isSync(data, start, i - start);
+
+                else if (element == 1 && sync) {
+                    argument = 0;
+                    for (int j = start; j < i; j++)
+                        argument = argument * 10 + (data[j] - '0');
+                }
+
+                // Stop at end of instruction
+                if (data[i++] == ';')
+                    break;
+
+            }
+
+            if (sync && argument == timestamp)
+                return i;
+
+        }
+
+        return -1;
+
+    }
+
+    /**
+     * Returns whether the given opcode is the sync opcode.
+     *
+     * @param data The array containing the opcode.
+     * @param offset The offset of the opcode.
+     * @param length The length of the opcode, in bytes.
+     * @return true if the opcode is "sync", false otherwise.
+     */
+    private static boolean isSync(byte[] data, int offset, int length) {
+
+        if (length != SYNC_OPCODE.length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] != SYNC_OPCODE[i])
+                return false;
+        }
+
+        return true;
+
+    }
+
+}
@@ -0,0 +1,284 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel: a circular array of buckets, each covering one tick
+ * of time, into which timeouts are hashed by the tick of their deadline.
+ * Scheduling and canceling a timeout takes constant time regardless of how
+ * many timeouts exist, and advancing the wheel only examines the buckets of
+ * the ticks which have passed. Deadlines further away than one full turn of
+ * the wheel share buckets with nearer deadlines, and are simply left in
+ * place until their own tick arrives.
+ *
+ * Deadlines are only as precise as the tick; a timeout expires during the
+ * first call to advance() at or after the end of the tick containing its
+ * deadline.
+ *
+ * @author Michael Jumper
+ * @param <T> The type of value associated with each timeout.
+ */
+public class TimingWheel<T> {
+
+    /**
+     * A scheduled timeout, held within one bucket of the wheel.
+     *
+     * @param <T> The type of value associated with the timeout.
+     */
+    public static class Timeout<T> {
+
+        /**
+         * The value associated with this timeout.
+         */
+        private final T value;
+
+        /**
+         * The tick at which this timeout expires.
+         */
+        private long tick;
+
+        /**
+         * The previous timeout within the same bucket, or null if this is
+         * the first.
+         */
+        private Timeout<T> previous;
+
+        /**
+         * The next timeout within the same bucket, or null if this is the
+         * last.
+         */
+        private Timeout<T> next;
+
+        /**
+         * The index of the bucket holding this timeout, or -1 if this
+         * timeout is not scheduled.
+         */
+        private int bucket = -1;
+
+        /**
+         * Creates a new, unscheduled Timeout associated with the given value.
+         *
+         * @param value The value to associate with the timeout.
+         */
+        private Timeout(T value) {
+            this.value = value;
+        }
+
+        /**
+         * Returns the value associated with this timeout.
+         *
+         * @return The value associated with this timeout.
+         */
+        public T getValue() {
+            return value;
+        }
+
+    }
+
+    /**
+     * The number of milliseconds covered by each bucket.
+     */
+    private final long tickDuration;
+
+    /**
+     * The first timeout within each bucket, or null if the bucket is empty.
+     * The number of buckets is always a power of two.
+     */
+    private final Timeout<T>[] buckets;
+
+    /**
+     * The time at which tick 0 began, in milliseconds since the epoch.
+     */
+    private final long startTime;
+
+    /**
+     * The last tick whose bucket has been processed.
+     */
+    private long currentTick = 0;
+
+    /**
+     * The number of scheduled timeouts.
+     */
+    private int size = 0;
+
+    /**
+     * Creates a new TimingWheel with the given tick duration and number of
+     * buckets.
+     *
+     * @param tickDuration The number of milliseconds covered by each bucket.
+     * @param wheelSize The number of buckets, which is rounded up to the
+     *                  nearest power of two.
+     */
+    public TimingWheel(long tickDuration, int wheelSize) {
+
+        int buckets = 1;
+        while (buckets < wheelSize)
+            buckets <<= 1;
+
+        this.tickDuration = tickDuration;
+        @SuppressWarnings("unchecked")
+        Timeout<T>[] wheel = (Timeout<T>[]) new Timeout<?>[buckets];
+        this.buckets = wheel;
+        this.startTime = System.currentTimeMillis();
+
+    }
+
+    /**
+     * Schedules a new timeout associated with the given value.
+     *
+     * @param value The value to associate with the timeout.
+     * @param deadline The time at which the timeout should expire, in
+     *                 milliseconds since the epoch.
+     * @return The scheduled timeout.
+     */
+    public synchronized Timeout<T> schedule(T value, long deadline) {
+        Timeout<T> timeout = new Timeout<T>(value);
+        add(timeout, deadline);
+        return timeout;
+    }
+
+    /**
+     * Schedules the given timeout again, whether or not it has already
+     * expired or been canceled.
+     *
+     * @param timeout The timeout to schedule.
+     * @param deadline The time at which the timeout should expire, in
+     *                 milliseconds since the epoch.
+     */
+    public synchronized void reschedule(Timeout<T> timeout, long deadline) {
+        remove(timeout);
+        add(timeout, deadline);
+    }
+
+    /**
+     * Cancels the given timeout, if still scheduled.
+     *
+     * @param timeout The timeout to cancel.
+     */
+    public synchronized void cancel(Timeout<T> timeout) {
+        remove(timeout);
+    }
+
+    /**
+     * Returns the number of scheduled timeouts.
+     *
+     * @return The number of scheduled timeouts.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Advances the wheel to the given time, removing and returning all
+     * timeouts which have expired.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     * @return All timeouts which have expired, which may be empty.
+     */
+    public synchronized List<Timeout<T>> advance(long now) {
+
+        List<Timeout<T>> expired = new ArrayList<Timeout<T>>();
+
+        // Only ticks which have completely passed can have expired
+        long nowTick = (now - startTime) / tickDuration - 1;
+        if (nowTick <= currentTick)
+            return expired;
+
+        // Visit each passed bucket once, even if more than a full turn passed
+        long ticks = Math.min(nowTick - currentTick, buckets.length);
+        for (long i = 1; i <= ticks; i++) {
+
+            Timeout<T> timeout = buckets[(int) ((currentTick + i) & (buckets.length - 1))];
+            while (timeout != null) {
+
+                Timeout<T> next = timeout.next;
+
+                // Leave timeouts due in later turns of the wheel
+                if (timeout.tick <= nowTick) {
+                    remove(timeout);
+                    expired.add(timeout);
+                }
+
+                timeout = next;
+
+            }
+
+        }
+
+        currentTick = nowTick;
+        return expired;
+
+    }
+
+    /**
+     * Adds the given unscheduled timeout to the bucket of the tick
+     * containing the given deadline.
+     *
+     * @param timeout The timeout to add.
+     * @param deadline The time at which the timeout should expire, in
+     *                 milliseconds since the epoch.
+     */
+    private void add(Timeout<T> timeout, long deadline) {
+
+        // Deadlines already passed expire at the next tick
+        timeout.tick = Math.max((deadline - startTime) / tickDuration,
+                currentTick + 1);
+
+        int index = (int) (timeout.tick & (buckets.length - 1));
+        timeout.bucket = index;
+        timeout.previous = null;
+        timeout.next = buckets[index];
+
+        if (timeout.next != null)
+            timeout.next.previous = timeout;
+
+        buckets[index] = timeout;
+        size++;
+
+    }
+
+    /**
+     * Removes the given timeout from its bucket, if scheduled.
+     *
+     * @param timeout The timeout to remove.
+     */
+    private void remove(Timeout<T> timeout) {
+
+        if (timeout.bucket == -1)
+            return;
+
+        if (timeout.previous != null)
+            timeout.previous.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+
+    }
+
+}
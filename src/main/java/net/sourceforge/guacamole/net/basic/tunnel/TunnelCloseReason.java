@@ -0,0 +1,91 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The reasons a tunnel may be closed by the web application. The reason a
+ * BasicGuacamoleTunnel was closed is available from the tunnel itself,
+ * including to any TunnelCloseListener notified of the close.
+ *
+ * @author Michael Jumper
+ */
+public enum TunnelCloseReason {
+
+    /**
+     * guacd ended the connection, typically because the remote desktop
+     * session ended or the user disconnected.
+     */
+    GUACD_CLOSED("guacd-closed"),
+
+    /**
+     * An error occurred while reading from or writing to guacd.
+     */
+    ERROR("error"),
+
+    /**
+     * The connection to the client failed, and the tunnel could not be
+     * kept open for the client to resume.
+     */
+    CLIENT_FAILED("client-failed"),
+
+    /**
+     * The connection to the client failed, and the client did not resume
+     * the tunnel in time.
+     */
+    NOT_RESUMED("not-resumed"),
+
+    /**
+     * No data passed through the tunnel for longer than allowed.
+     */
+    IDLE("idle"),
+
+    /**
+     * The tunnel was open for longer than allowed.
+     */
+    LIFETIME("lifetime");
+
+    /**
+     * The name of this reason, as logged.
+     */
+    private final String name;
+
+    /**
+     * Creates a new TunnelCloseReason having the given name.
+     *
+     * @param name The name of the reason, as logged.
+     */
+    private TunnelCloseReason(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of this reason, as logged.
+     *
+     * @return The name of this reason.
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
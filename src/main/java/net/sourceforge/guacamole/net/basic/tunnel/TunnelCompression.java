@@ -0,0 +1,222 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * All supported compression methods for HTTP tunnel read responses, named as
+ * within the Content-Encoding and Accept-Encoding headers. Clients request
+ * compression by passing one or more "compress" parameters when connecting.
+ *
+ * Compressed streams are flushed with Deflater.SYNC_FLUSH, such that all
+ * data written before each flush can be decompressed by the client
+ * immediately, at the cost of a few bytes per flush. SYNC_FLUSH requires
+ * Java 7 or later; on older runtimes, compression is never negotiated.
+ *
+ * @author Michael Jumper
+ */
+public enum TunnelCompression {
+
+    /**
+     * The gzip format (RFC 1952).
+     */
+    GZIP("gzip"),
+
+    /**
+     * The zlib format (RFC 1950), which HTTP calls "deflate".
+     */
+    DEFLATE("deflate");
+
+    /**
+     * The compression level used for all tunnels. Tunnel data is sent as
+     * it is produced, so speed matters more than the last few percent of
+     * size.
+     */
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * The size of the buffer of each compressed stream, in bytes.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Whether the Java runtime supports flushing compressed streams.
+     */
+    private static final boolean SUPPORTED = isSyncFlushSupported();
+
+    /**
+     * The name of this method within the Content-Encoding header.
+     */
+    private final String name;
+
+    /**
+     * Creates a new TunnelCompression having the given name.
+     *
+     * @param name The name of the method within the Content-Encoding header.
+     */
+    private TunnelCompression(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of this method within the Content-Encoding header.
+     *
+     * @return The name of this compression method.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns whether the Java runtime supports flushing compressed streams.
+     *
+     * @return true if SYNC_FLUSH is supported, false otherwise.
+     */
+    private static boolean isSyncFlushSupported() {
+        try {
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Chooses the compression method to use for a tunnel, given the methods
+     * requested by the client, in order of preference, and the value of the
+     * Accept-Encoding header of the connect request.
+     *
+     * @param requested The methods requested by the client, or null if none
+     *                  were requested.
+     * @param acceptEncoding The value of the Accept-Encoding header, or null
+     *                       if the header is absent.
+     * @return The method to use, or null if the tunnel should not be
+     *         compressed.
+     */
+    public static TunnelCompression negotiate(String[] requested,
+            String acceptEncoding) {
+
+        if (!SUPPORTED || requested == null || acceptEncoding == null)
+            return null;
+
+        // Use first requested method also accepted by browser
+        for (String method : requested) {
+            for (TunnelCompression compression : values()) {
+                if (compression.name.equals(method)
+                        && accepts(acceptEncoding, compression.name))
+                    return compression;
+            }
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Returns whether the given Accept-Encoding header value accepts the
+     * given content coding.
+     *
+     * @param acceptEncoding The value of the Accept-Encoding header.
+     * @param coding The content coding to check.
+     * @return true if the content coding is accepted, false otherwise.
+     */
+    private static boolean accepts(String acceptEncoding, String coding) {
+
+        for (String entry : acceptEncoding.split(",")) {
+
+            String[] parts = entry.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase(coding))
+                continue;
+
+            // Reject codings explicitly given zero quality
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim().replace(" ", "");
+                if (param.matches("q=0(\\.0*)?"))
+                    return false;
+            }
+
+            return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Returns a new stream which compresses all data written to it using this
+     * method, writing the result to the given stream. Flushing the returned
+     * stream flushes all data written so far. Closing the returned stream
+     * finishes compression and closes the given stream, and always releases
+     * the native resources of the compressor, even if finishing fails.
+     *
+     * @param out The stream to write compressed data to.
+     * @return A new compressing stream.
+     * @throws IOException If an error occurs while starting compression.
+     */
+    public DeflaterOutputStream wrap(OutputStream out) throws IOException {
+
+        switch (this) {
+
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE, true) {
+
+                    // Use tunnel compression level
+                    {
+                        def.setLevel(LEVEL);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            def.end();
+                        }
+                    }
+
+                };
+
+            default:
+                return new DeflaterOutputStream(out, new Deflater(LEVEL), BUFFER_SIZE, true) {
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            def.end();
+                        }
+                    }
+
+                };
+
+        }
+
+    }
+
+}
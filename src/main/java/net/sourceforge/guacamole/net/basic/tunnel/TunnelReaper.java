@@ -0,0 +1,292 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import net.sourceforge.guacamole.servlet.GuacamoleSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes tunnels which have been idle, or open at all, for longer than
+ * allowed. Each tunnel is tracked within a TimingWheel by the earliest time
+ * it could reach either limit. Activity on a tunnel only updates its last
+ * activity time, without touching the wheel; when a tunnel's timeout
+ * expires, its limits are checked again, and the timeout is simply
+ * rescheduled if the tunnel has seen activity since. The cost of tracking
+ * each tunnel is therefore constant, no matter how many tunnels are open.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelReaper {
+
+    private Logger logger = LoggerFactory.getLogger(TunnelReaper.class);
+
+    /**
+     * The number of milliseconds covered by each bucket of the wheel, and
+     * thus the precision of all limits.
+     */
+    private static final long TICK_DURATION = 1000;
+
+    /**
+     * The number of buckets of the wheel.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * A tracked tunnel, along with the session it is attached to.
+     */
+    private static class Entry {
+
+        /**
+         * The session the tunnel is attached to.
+         */
+        private final GuacamoleSession session;
+
+        /**
+         * The tracked tunnel.
+         */
+        private final BasicGuacamoleTunnel tunnel;
+
+        /**
+         * Creates a new Entry tracking the given tunnel.
+         *
+         * @param session The session the tunnel is attached to.
+         * @param tunnel The tunnel to track.
+         */
+        public Entry(GuacamoleSession session, BasicGuacamoleTunnel tunnel) {
+            this.session = session;
+            this.tunnel = tunnel;
+        }
+
+    }
+
+    /**
+     * The number of milliseconds a tunnel may be idle before it is closed,
+     * or 0 if tunnels may be idle indefinitely.
+     */
+    private final long idleTimeout;
+
+    /**
+     * The number of milliseconds a tunnel may be open before it is closed,
+     * or 0 if tunnels may be open indefinitely.
+     */
+    private final long maxLifetime;
+
+    /**
+     * The wheel holding the timeout of each tracked tunnel.
+     */
+    private final TimingWheel<Entry> wheel =
+            new TimingWheel<Entry>(TICK_DURATION, WHEEL_SIZE);
+
+    /**
+     * The timeout of each tracked tunnel.
+     */
+    private final ConcurrentMap<BasicGuacamoleTunnel, TimingWheel.Timeout<Entry>> timeouts =
+            new ConcurrentHashMap<BasicGuacamoleTunnel, TimingWheel.Timeout<Entry>>();
+
+    /**
+     * The executor advancing the wheel once per tick.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Creates a new TunnelReaper which closes tunnels exceeding the given
+     * limits.
+     *
+     * @param idleTimeout The number of milliseconds a tunnel may be idle
+     *                    before it is closed, or 0 if tunnels may be idle
+     *                    indefinitely.
+     * @param maxLifetime The number of milliseconds a tunnel may be open
+     *                    before it is closed, or 0 if tunnels may be open
+     *                    indefinitely.
+     */
+    public TunnelReaper(long idleTimeout, long maxLifetime) {
+
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+                GuacamoleThreads.newThreadFactory("tunnel-reaper"));
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                reap();
+            }
+
+        }, TICK_DURATION, TICK_DURATION, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Returns the time at which the given tunnel will exceed a limit if no
+     * further activity occurs.
+     *
+     * @param tunnel The tunnel to check.
+     * @return The time the tunnel will exceed a limit, in milliseconds since
+     *         the epoch, or Long.MAX_VALUE if never.
+     */
+    private long getDeadline(BasicGuacamoleTunnel tunnel) {
+
+        TunnelStatistics statistics = tunnel.getStatistics();
+        long deadline = Long.MAX_VALUE;
+
+        if (idleTimeout > 0)
+            deadline = statistics.getLastActivityTime() + idleTimeout;
+
+        if (maxLifetime > 0)
+            deadline = Math.min(deadline, statistics.getCreationTime() + maxLifetime);
+
+        return deadline;
+
+    }
+
+    /**
+     * Begins tracking the given tunnel, closing it once it exceeds either
+     * limit.
+     *
+     * @param session The session the tunnel is attached to.
+     * @param tunnel The tunnel to track.
+     */
+    public void register(GuacamoleSession session, BasicGuacamoleTunnel tunnel) {
+
+        long deadline = getDeadline(tunnel);
+        if (deadline == Long.MAX_VALUE)
+            return;
+
+        timeouts.put(tunnel, wheel.schedule(new Entry(session, tunnel), deadline));
+
+    }
+
+    /**
+     * Stops tracking the given tunnel, if tracked, as it has been closed.
+     *
+     * @param tunnel The tunnel to stop tracking.
+     */
+    public void unregister(BasicGuacamoleTunnel tunnel) {
+
+        TimingWheel.Timeout<Entry> timeout = timeouts.remove(tunnel);
+        if (timeout != null)
+            wheel.cancel(timeout);
+
+    }
+
+    /**
+     * Returns the number of tunnels being tracked.
+     *
+     * @return The number of tracked tunnels.
+     */
+    public int getTrackedCount() {
+        return timeouts.size();
+    }
+
+    /**
+     * Advances the wheel, closing all tunnels which have exceeded a limit,
+     * and rescheduling those which have seen activity since they were last
+     * checked.
+     */
+    private void reap() {
+
+        long now = System.currentTimeMillis();
+        List<TimingWheel.Timeout<Entry>> expired = wheel.advance(now);
+
+        // An error escaping this task would stop all future runs, so errors
+        // affect only the tunnel concerned
+        for (TimingWheel.Timeout<Entry> timeout : expired) {
+            try {
+                reap(timeout, now);
+            }
+            catch (RuntimeException e) {
+                logger.error("Unexpected error closing tunnel {}.",
+                        timeout.getValue().tunnel.getUUID(), e);
+            }
+        }
+
+    }
+
+    /**
+     * Closes the tunnel of the given expired timeout if it has been idle or
+     * open for too long, or otherwise schedules it to be checked again.
+     *
+     * @param timeout The expired timeout.
+     * @param now The current time, in milliseconds.
+     */
+    private void reap(TimingWheel.Timeout<Entry> timeout, long now) {
+
+        Entry entry = timeout.getValue();
+        BasicGuacamoleTunnel tunnel = entry.tunnel;
+
+        // Forget tunnels closed by other means
+        if (!tunnel.isOpen()) {
+            timeouts.remove(tunnel);
+            return;
+        }
+
+        // Check again later if there has been activity
+        long deadline = getDeadline(tunnel);
+        if (deadline > now) {
+            wheel.reschedule(timeout, deadline);
+            return;
+        }
+
+        timeouts.remove(tunnel);
+
+        TunnelCloseReason reason = TunnelCloseReason.IDLE;
+        if (maxLifetime > 0 && now >= tunnel.getStatistics().getCreationTime() + maxLifetime)
+            reason = TunnelCloseReason.LIFETIME;
+
+        logger.info("Closing tunnel {} ({}).", tunnel.getUUID(), reason);
+
+        // Close regardless of whether the session is still valid
+        try {
+            entry.session.detachTunnel(tunnel);
+        }
+        catch (IllegalStateException e) {
+            logger.debug("Session of tunnel {} already invalidated.", tunnel.getUUID());
+        }
+
+        try {
+            tunnel.close(reason);
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Unable to close tunnel {}: {}", tunnel.getUUID(), e.getMessage());
+            logger.debug("Error closing tunnel.", e);
+        }
+
+    }
+
+    /**
+     * Stops closing tunnels. Tunnels still tracked remain open until
+     * otherwise closed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        logger.debug("Tunnel reaper stopped with {} tunnels tracked.", timeouts.size());
+    }
+
+}
@@ -0,0 +1,158 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of all open tunnels of this web application. Each registered
+ * tunnel is also exposed through JMX as an MBean named
+ * "net.sourceforge.guacamole:type=Tunnel,name=UUID".
+ *
+ * @author Michael Jumper
+ */
+public class TunnelRegistry {
+
+    private static Logger logger = LoggerFactory.getLogger(TunnelRegistry.class);
+
+    /**
+     * The JMX domain of all tunnel MBeans.
+     */
+    private static final String MBEAN_DOMAIN = "net.sourceforge.guacamole";
+
+    /**
+     * All registered tunnels, by UUID.
+     */
+    private static final ConcurrentMap<String, BasicGuacamoleTunnel> tunnels =
+            new ConcurrentHashMap<String, BasicGuacamoleTunnel>();
+
+    /**
+     * This class should not be instantiated.
+     */
+    private TunnelRegistry() {}
+
+    /**
+     * Returns the name of the MBean of the tunnel having the given UUID.
+     *
+     * @param uuid The UUID of the tunnel.
+     * @return The name of the MBean of the tunnel.
+     * @throws JMException If the UUID does not produce a valid name.
+     */
+    private static ObjectName getObjectName(String uuid) throws JMException {
+        return new ObjectName(MBEAN_DOMAIN + ":type=Tunnel,name=" + uuid);
+    }
+
+    /**
+     * Registers the given open tunnel, exposing its statistics through JMX.
+     *
+     * @param tunnel The tunnel to register.
+     */
+    public static void register(BasicGuacamoleTunnel tunnel) {
+
+        String uuid = tunnel.getUUID().toString();
+        tunnels.put(uuid, tunnel);
+
+        // Expose through JMX, if possible
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(tunnel.getStatistics(), getObjectName(uuid));
+        }
+        catch (JMException e) {
+            logger.warn("Unable to expose tunnel {} through JMX: {}", uuid, e.getMessage());
+        }
+        catch (SecurityException e) {
+            logger.warn("Unable to expose tunnel {} through JMX: {}", uuid, e.getMessage());
+        }
+
+    }
+
+    /**
+     * Removes the given tunnel from the registry, if registered.
+     *
+     * @param tunnel The tunnel to remove.
+     */
+    public static void unregister(BasicGuacamoleTunnel tunnel) {
+        unregister(tunnel.getUUID().toString());
+    }
+
+    /**
+     * Removes the tunnel having the given UUID from the registry, if
+     * registered.
+     *
+     * @param uuid The UUID of the tunnel to remove.
+     */
+    private static void unregister(String uuid) {
+
+        if (tunnels.remove(uuid) == null)
+            return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName(uuid);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        }
+        catch (JMException e) {
+            logger.debug("Unable to remove MBean of tunnel {}.", uuid, e);
+        }
+        catch (SecurityException e) {
+            logger.debug("Unable to remove MBean of tunnel {}.", uuid, e);
+        }
+
+    }
+
+    /**
+     * Removes all tunnels from the registry, such that none remain exposed
+     * through JMX once this web application is stopped.
+     */
+    public static void unregisterAll() {
+        for (String uuid : tunnels.keySet())
+            unregister(uuid);
+    }
+
+    /**
+     * Returns the tunnel having the given UUID.
+     *
+     * @param uuid The UUID of the tunnel.
+     * @return The tunnel having the given UUID, or null if no such tunnel is
+     *         registered.
+     */
+    public static BasicGuacamoleTunnel getTunnel(String uuid) {
+        return tunnels.get(uuid);
+    }
+
+    /**
+     * Returns a snapshot of all registered tunnels.
+     *
+     * @return All registered tunnels.
+     */
+    public static Collection<BasicGuacamoleTunnel> getTunnels() {
+        return new ArrayList<BasicGuacamoleTunnel>(tunnels.values());
+    }
+
+}
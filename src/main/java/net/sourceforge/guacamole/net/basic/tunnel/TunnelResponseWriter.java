@@ -0,0 +1,528 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.zip.DeflaterOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.io.GuacamoleReader;
+import net.sourceforge.guacamole.net.GuacamoleTunnel;
+import net.sourceforge.guacamole.net.basic.metrics.ConnectTimer;
+import net.sourceforge.guacamole.net.basic.recording.SessionRecording;
+import net.sourceforge.guacamole.net.basic.share.SharedTunnelBuffer;
+import net.sourceforge.guacamole.net.basic.protocol.ByteGuacamoleReader;
+import net.sourceforge.guacamole.net.basic.protocol.InstructionFilter;
+
+/**
+ * Writes instructions from a tunnel to the response of an HTTP tunnel read
+ * request. If the tunnel provides instructions as raw bytes, those bytes are
+ * copied directly to the response, without being decoded into characters
+ * and encoded again, and are flushed in batches chosen by the
+ * AdaptiveBatcher of the tunnel. If compression was negotiated for the
+ * tunnel, the response is compressed, and each batch is flushed through the
+ * compressor. While the client of the tunnel lags too far behind, frames
+ * are collapsed and media is dropped. All output is counted in the
+ * statistics of the tunnel and, if the tunnel is being recorded or shared,
+ * recorded and given to viewers in full before any of it is dropped. If the
+ * tunnel can be resumed, output is held until acknowledged by the client,
+ * and output missed before resuming is sent first.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelResponseWriter {
+
+    /**
+     * The instruction which marks the end of each read response, signalling
+     * the client to continue with its next read request.
+     */
+    private static final byte[] END_OF_RESPONSE = { '0', '.', ';' };
+
+    /**
+     * OutputStream which counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        /**
+         * The number of bytes written.
+         */
+        private long count = 0;
+
+        /**
+         * Whether all further output is discarded.
+         */
+        private boolean discarding = false;
+
+        /**
+         * Creates a new CountingOutputStream which writes to the given
+         * stream.
+         *
+         * @param out The stream to write to.
+         */
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * Returns the number of bytes written.
+         *
+         * @return The number of bytes written.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Discards all further output, without writing to, flushing or
+         * closing the underlying stream, which may have failed.
+         */
+        public void discard() {
+            discarding = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (discarding)
+                return;
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (discarding)
+                return;
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!discarding)
+                out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!discarding)
+                super.close();
+        }
+
+    }
+
+    /**
+     * The tunnel being read.
+     */
+    private final GuacamoleTunnel tunnel;
+
+    /**
+     * The reader acquired from the tunnel.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The response being written.
+     */
+    private final HttpServletResponse response;
+
+    /**
+     * The batcher of the tunnel, or null if the tunnel has none.
+     */
+    private final AdaptiveBatcher batcher;
+
+    /**
+     * The statistics of the tunnel, or null if the tunnel has none.
+     */
+    private final TunnelStatistics statistics;
+
+    /**
+     * The lag tracker of the tunnel, or null if the tunnel has none.
+     */
+    private final LagTracker lagTracker;
+
+    /**
+     * The recording of the tunnel, or null if the tunnel is not recorded.
+     */
+    private final SessionRecording recording;
+
+    /**
+     * The buffer of output shared with viewers, or null if the tunnel is not
+     * shared.
+     */
+    private final SharedTunnelBuffer share;
+
+    /**
+     * The output the client may not have received, or null if the tunnel
+     * cannot be resumed.
+     */
+    private final ReplayBuffer replayBuffer;
+
+    /**
+     * The timer measuring how long the tunnel took to establish, or null if
+     * not timed.
+     */
+    private final ConnectTimer connectTimer;
+
+    /**
+     * The filter reducing output while the client is lagging, created when
+     * first needed.
+     */
+    private InstructionFilter filter;
+
+    /**
+     * The number of bytes written since the last flush.
+     */
+    private int batch = 0;
+
+    /**
+     * Whether the data written since the last flush ends with a sync
+     * instruction.
+     */
+    private boolean batchSync = false;
+
+    /**
+     * Creates a new TunnelResponseWriter which writes instructions from the
+     * given tunnel to the given response. The caller must have already
+     * acquired the given reader from the tunnel.
+     *
+     * @param tunnel The tunnel to read from.
+     * @param reader The reader acquired from the tunnel.
+     * @param response The response to write to.
+     */
+    public TunnelResponseWriter(GuacamoleTunnel tunnel, GuacamoleReader reader,
+            HttpServletResponse response) {
+
+        this.tunnel   = tunnel;
+        this.reader   = reader;
+        this.response = response;
+
+        if (tunnel instanceof BasicGuacamoleTunnel) {
+            batcher    = ((BasicGuacamoleTunnel) tunnel).getBatcher();
+            statistics = ((BasicGuacamoleTunnel) tunnel).getStatistics();
+            lagTracker = ((BasicGuacamoleTunnel) tunnel).getLagTracker();
+            recording  = ((BasicGuacamoleTunnel) tunnel).getRecording();
+            share      = ((BasicGuacamoleTunnel) tunnel).getShare();
+            replayBuffer = ((BasicGuacamoleTunnel) tunnel).getReplayBuffer();
+            connectTimer = ((BasicGuacamoleTunnel) tunnel).getConnectTimer();
+        }
+        else {
+            batcher    = null;
+            statistics = null;
+            lagTracker = null;
+            recording  = null;
+            share      = null;
+            replayBuffer = null;
+            connectTimer = null;
+        }
+
+    }
+
+    /**
+     * Writes instructions from the tunnel to the response, followed by the
+     * end-of-response marker. If waiting, at least one instruction is
+     * written, and the response continues for as long as the tunnel remains
+     * open and no other read request is waiting. Otherwise, only
+     * instructions which are immediately available are written.
+     *
+     * @param wait Whether to wait for instructions which are not yet
+     *             available.
+     * @return true if the tunnel may have further instructions, false if
+     *         the end of the stream was reached.
+     * @throws GuacamoleException If an error occurs while reading from the
+     *                            tunnel.
+     * @throws IOException If an error occurs while writing to the response.
+     */
+    public boolean write(boolean wait) throws GuacamoleException, IOException {
+
+        OutputStream out = response.getOutputStream();
+
+        // Compress if negotiated
+        TunnelCompression compression = null;
+        if (tunnel instanceof BasicGuacamoleTunnel)
+            compression = ((BasicGuacamoleTunnel) tunnel).getCompression();
+
+        CountingOutputStream compressed = null;
+        CountingOutputStream uncompressed = null;
+        DeflaterOutputStream compressor = null;
+
+        if (compression != null) {
+            response.setHeader("Content-Encoding", compression.getName());
+            compressed   = new CountingOutputStream(out);
+            compressor   = compression.wrap(compressed);
+            uncompressed = new CountingOutputStream(compressor);
+            out = uncompressed;
+        }
+
+        boolean open;
+        boolean compressorClosed = false;
+        try {
+
+            // Resend output missed before resuming. This is done only now,
+            // as output may have been sent until the failed read ended.
+            if (replayBuffer != null) {
+
+                long sync = ((BasicGuacamoleTunnel) tunnel).takeResumeSync();
+                if (sync != -1) {
+
+                    byte[] missed = replayBuffer.getOutputAfter(sync);
+                    if (missed == null)
+                        throw new GuacamoleException("Output missed by client is no longer available.");
+
+                    out.write(missed);
+                    batch += missed.length;
+
+                }
+
+            }
+
+            if (reader instanceof ByteGuacamoleReader)
+                open = writeBytes((ByteGuacamoleReader) reader, out, wait);
+            else
+                open = writeChars(out, wait);
+
+            // End response
+            out.write(END_OF_RESPONSE);
+            flush(out);
+
+            // Finish compression. The compressor is released even if
+            // finishing fails.
+            if (compressor != null) {
+                compressorClosed = true;
+                compressor.close();
+            }
+
+        }
+        finally {
+
+            // Release compressor if the response failed, discarding whatever
+            // it would still write to the response
+            if (compressor != null && !compressorClosed) {
+                compressed.discard();
+                try {
+                    compressor.close();
+                }
+                catch (IOException e) {
+                    // Nothing is written once discarding
+                }
+            }
+
+            // Record compressed size, even if incomplete
+            if (compressor != null)
+                ((BasicGuacamoleTunnel) tunnel).recordCompression(
+                        uncompressed.getCount(), compressed.getCount());
+
+        }
+
+        return open;
+
+    }
+
+    /**
+     * Flushes the response, recording the flushed batch.
+     *
+     * @param out The output stream of the response.
+     * @throws IOException If an error occurs while flushing.
+     */
+    private void flush(OutputStream out) throws IOException {
+
+        out.flush();
+        response.flushBuffer();
+
+        if (batcher != null)
+            batcher.flushed(batch, batchSync);
+
+        batch = 0;
+
+    }
+
+    /**
+     * Copies raw instruction bytes from the given reader to the given
+     * stream, flushing in batches.
+     *
+     * @param reader The reader acquired from the tunnel.
+     * @param out The output stream of the response.
+     * @param wait Whether to wait for instructions which are not yet
+     *             available.
+     * @return true if the tunnel may have further instructions, false if
+     *         the end of the stream was reached.
+     * @throws GuacamoleException If an error occurs while reading.
+     * @throws IOException If an error occurs while writing.
+     */
+    private boolean writeBytes(ByteGuacamoleReader reader, OutputStream out,
+            boolean wait) throws GuacamoleException, IOException {
+
+        if (!wait && !reader.available())
+            return true;
+
+        ByteBuffer chunk;
+        while ((chunk = reader.readBytes()) != null) {
+
+            int instructions = reader.getInstructionCount();
+
+            // Record everything, including what the client will not see
+            if (recording != null)
+                recording.record(chunk.array(),
+                        chunk.arrayOffset() + chunk.position(),
+                        chunk.remaining());
+
+            // Viewers have their own lag
+            if (share != null)
+                share.add(chunk.array(), chunk.arrayOffset() + chunk.position(),
+                        chunk.remaining(), instructions, reader.endsWithSync(),
+                        reader.getSyncTimestamp());
+
+            if (lagTracker != null) {
+
+                // Collapse frames and drop media while client is behind
+                if (lagTracker.isLagging()) {
+
+                    if (filter == null)
+                        filter = new InstructionFilter();
+
+                    int length = chunk.remaining();
+                    filter.filter(chunk);
+
+                    instructions -= filter.getRemovedCount();
+                    lagTracker.dropped(filter.getRemovedCount(),
+                            length - chunk.remaining());
+
+                }
+
+                long timestamp = reader.getSyncTimestamp();
+                if (timestamp >= 0)
+                    lagTracker.syncSent(timestamp);
+
+            }
+
+            out.write(chunk.array(), chunk.arrayOffset() + chunk.position(),
+                    chunk.remaining());
+
+            // Connection is established once the first frame is sent
+            if (connectTimer != null && reader.getSyncTimestamp() >= 0
+                    && !connectTimer.isComplete())
+                connectTimer.firstSyncSent();
+
+            // Hold until acknowledged, in case the client must resume
+            if (replayBuffer != null)
+                replayBuffer.add(chunk.array(),
+                        chunk.arrayOffset() + chunk.position(),
+                        chunk.remaining(), reader.getSyncTimestamp(),
+                        lagTracker != null ? lagTracker.getLastAcknowledged() : -1);
+
+            batch += chunk.remaining();
+            batchSync = reader.endsWithSync();
+
+            if (statistics != null)
+                statistics.recordOutput(chunk.remaining(), instructions);
+
+            boolean available = reader.available();
+
+            // Stop once no more data is immediately available, if not waiting
+            if (!wait && !available)
+                return true;
+
+            // Flush once batch is complete
+            if (batcher != null ? batcher.shouldFlush(batch, batchSync, available) : !available)
+                flush(out);
+
+            // Let other read requests take over
+            if (tunnel.hasQueuedReaderThreads() || !tunnel.isOpen())
+                return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Encodes instructions read as characters from the tunnel to the given
+     * stream, flushing whenever no more data is immediately available. This
+     * is used only for tunnels whose readers cannot provide raw bytes, and
+     * counts only the number of characters written.
+     *
+     * @param out The output stream of the response.
+     * @param wait Whether to wait for instructions which are not yet
+     *             available.
+     * @return true if the tunnel may have further instructions, false if
+     *         the end of the stream was reached.
+     * @throws GuacamoleException If an error occurs while reading.
+     * @throws IOException If an error occurs while writing.
+     */
+    private boolean writeChars(OutputStream out, boolean wait)
+            throws GuacamoleException, IOException {
+
+        if (!wait && !reader.available())
+            return true;
+
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        try {
+
+            char[] message;
+            while ((message = reader.read()) != null) {
+
+                writer.write(message, 0, message.length);
+
+                if (recording != null || share != null) {
+
+                    byte[] data = new String(message).getBytes("UTF-8");
+
+                    if (recording != null)
+                        recording.record(data, 0, data.length);
+
+                    if (share != null)
+                        share.add(data, 0, data.length, 0, false, -1);
+
+                }
+
+                if (statistics != null)
+                    statistics.recordOutput(message.length, 0);
+
+                // Flush or stop once no more data is immediately available
+                if (!reader.available()) {
+
+                    if (!wait)
+                        return true;
+
+                    writer.flush();
+                    response.flushBuffer();
+
+                }
+
+                // Let other read requests take over
+                if (tunnel.hasQueuedReaderThreads() || !tunnel.isOpen())
+                    return true;
+
+            }
+
+            return false;
+
+        }
+        finally {
+            writer.flush();
+        }
+
+    }
+
+}
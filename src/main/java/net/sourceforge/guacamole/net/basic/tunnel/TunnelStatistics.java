@@ -0,0 +1,470 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import net.sourceforge.guacamole.net.GuacamoleSocket;
+import net.sourceforge.guacamole.net.basic.nio.NioGuacamoleSocket;
+import net.sourceforge.guacamole.net.basic.recording.SessionRecording;
+
+/**
+ * Live traffic counters and descriptive details of a single tunnel. All
+ * counters are updated without locking, and may be read at any time while
+ * the tunnel is in use.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelStatistics implements TunnelStatisticsMXBean {
+
+    /**
+     * The minimum number of milliseconds over which input and output rates
+     * are measured.
+     */
+    private static final long RATE_WINDOW = 1000;
+
+    /**
+     * The tunnel these statistics describe.
+     */
+    private final BasicGuacamoleTunnel tunnel;
+
+    /**
+     * The time the tunnel was created, in milliseconds since the epoch.
+     */
+    private final long creationTime = System.currentTimeMillis();
+
+    /**
+     * The time data last passed through the tunnel, in milliseconds since
+     * the epoch.
+     */
+    private volatile long lastActivityTime = creationTime;
+
+    /**
+     * The number of bytes received from the client.
+     */
+    private final AtomicLong inputBytes = new AtomicLong();
+
+    /**
+     * The number of instructions received from the client.
+     */
+    private final AtomicLong inputInstructions = new AtomicLong();
+
+    /**
+     * The number of bytes sent to the client.
+     */
+    private final AtomicLong outputBytes = new AtomicLong();
+
+    /**
+     * The number of instructions sent to the client.
+     */
+    private final AtomicLong outputInstructions = new AtomicLong();
+
+    /**
+     * The time input and output rates were last measured.
+     */
+    private long rateSampleTime = creationTime;
+
+    /**
+     * The number of bytes received from the client when rates were last
+     * measured.
+     */
+    private long rateSampleInput = 0;
+
+    /**
+     * The number of bytes sent to the client when rates were last measured.
+     */
+    private long rateSampleOutput = 0;
+
+    /**
+     * The most recently measured rate of input, in bytes per second.
+     */
+    private long inputRate = 0;
+
+    /**
+     * The most recently measured rate of output, in bytes per second.
+     */
+    private long outputRate = 0;
+
+    /**
+     * The name of the user that opened the tunnel.
+     */
+    private volatile String username;
+
+    /**
+     * The ID of the configuration the tunnel is connected to.
+     */
+    private volatile String connectionId;
+
+    /**
+     * The protocol of the configuration the tunnel is connected to.
+     */
+    private volatile String protocol;
+
+    /**
+     * The address of the client that opened the tunnel.
+     */
+    private volatile String remoteAddress;
+
+    /**
+     * The address of the guacd the tunnel is connected through.
+     */
+    private volatile String guacdEndpoint;
+
+    /**
+     * The UUID of the shared tunnel the tunnel is viewing, if any.
+     */
+    private volatile String sharedTunnel;
+
+    /**
+     * The time the guacd connection of the tunnel was requested, in
+     * milliseconds since the epoch.
+     */
+    private volatile long connectTime = creationTime;
+
+    /**
+     * The time output was first sent to the client, in milliseconds since the
+     * epoch, or 0 if no output has been sent.
+     */
+    private final AtomicLong firstOutputTime = new AtomicLong();
+
+    /**
+     * Whether the handshake with guacd was pipelined.
+     */
+    private volatile boolean handshakePipelined = false;
+
+    /**
+     * The duration of the handshake with guacd, in nanoseconds.
+     */
+    private volatile long handshakeTime = 0;
+
+    /**
+     * Creates a new TunnelStatistics describing the given tunnel.
+     *
+     * @param tunnel The tunnel to describe.
+     */
+    public TunnelStatistics(BasicGuacamoleTunnel tunnel) {
+        this.tunnel = tunnel;
+    }
+
+    /**
+     * Records data received from the client.
+     *
+     * @param bytes The number of bytes received.
+     * @param instructions The number of instructions completed by the
+     *                     received data.
+     */
+    public void recordInput(int bytes, int instructions) {
+        inputBytes.addAndGet(bytes);
+        inputInstructions.addAndGet(instructions);
+        lastActivityTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Records data sent to the client.
+     *
+     * @param bytes The number of bytes sent, before compression.
+     * @param instructions The number of instructions sent.
+     */
+    public void recordOutput(int bytes, int instructions) {
+        outputBytes.addAndGet(bytes);
+        outputInstructions.addAndGet(instructions);
+        lastActivityTime = System.currentTimeMillis();
+        firstOutputTime.compareAndSet(0, lastActivityTime);
+    }
+
+    /**
+     * Measures input and output rates since they were last measured, if at
+     * least RATE_WINDOW milliseconds have passed.
+     */
+    private synchronized void sampleRates() {
+
+        long now = System.currentTimeMillis();
+        long elapsed = now - rateSampleTime;
+        if (elapsed < RATE_WINDOW)
+            return;
+
+        long input  = inputBytes.get();
+        long output = outputBytes.get();
+
+        inputRate  = (input  - rateSampleInput)  * 1000 / elapsed;
+        outputRate = (output - rateSampleOutput) * 1000 / elapsed;
+
+        rateSampleTime   = now;
+        rateSampleInput  = input;
+        rateSampleOutput = output;
+
+    }
+
+    /**
+     * Sets the name of the user that opened the tunnel.
+     *
+     * @param username The name of the user.
+     */
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * Sets the ID of the configuration the tunnel is connected to.
+     *
+     * @param connectionId The ID of the configuration.
+     */
+    public void setConnectionId(String connectionId) {
+        this.connectionId = connectionId;
+    }
+
+    /**
+     * Sets the protocol of the configuration the tunnel is connected to.
+     *
+     * @param protocol The protocol of the connection.
+     */
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Sets the address of the client that opened the tunnel.
+     *
+     * @param remoteAddress The address of the client.
+     */
+    public void setRemoteAddress(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Sets the address of the guacd the tunnel is connected through.
+     *
+     * @param guacdEndpoint The address of guacd.
+     */
+    public void setGuacdEndpoint(String guacdEndpoint) {
+        this.guacdEndpoint = guacdEndpoint;
+    }
+
+    /**
+     * Sets the UUID of the shared tunnel the tunnel is viewing.
+     *
+     * @param sharedTunnel The UUID of the shared tunnel, or null if the
+     *                     tunnel is not a viewer.
+     */
+    public void setSharedTunnel(String sharedTunnel) {
+        this.sharedTunnel = sharedTunnel;
+    }
+
+    /**
+     * Records how the guacd connection of the tunnel was established.
+     *
+     * @param connectTime The time the connection was requested, in
+     *                    milliseconds since the epoch.
+     * @param pipelined Whether the handshake with guacd was pipelined.
+     * @param handshakeTime The duration of the handshake, in nanoseconds.
+     */
+    public void setHandshake(long connectTime, boolean pipelined,
+            long handshakeTime) {
+        this.connectTime = connectTime;
+        this.handshakePipelined = pipelined;
+        this.handshakeTime = handshakeTime;
+    }
+
+    @Override
+    public String getUUID() {
+        return tunnel.getUUID().toString();
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getGuacdEndpoint() {
+        return guacdEndpoint;
+    }
+
+    @Override
+    public String getSharedTunnel() {
+        return sharedTunnel;
+    }
+
+    @Override
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    @Override
+    public boolean isHandshakePipelined() {
+        return handshakePipelined;
+    }
+
+    @Override
+    public double getHandshakeTime() {
+        return handshakeTime / 1000000.0;
+    }
+
+    @Override
+    public long getConnectLatency() {
+
+        long first = firstOutputTime.get();
+        if (first == 0)
+            return -1;
+
+        return first - connectTime;
+
+    }
+
+    @Override
+    public long getInputBytes() {
+        return inputBytes.get();
+    }
+
+    @Override
+    public long getInputInstructions() {
+        return inputInstructions.get();
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return outputBytes.get();
+    }
+
+    @Override
+    public long getOutputInstructions() {
+        return outputInstructions.get();
+    }
+
+    @Override
+    public synchronized long getInputRate() {
+        sampleRates();
+        return inputRate;
+    }
+
+    @Override
+    public synchronized long getOutputRate() {
+        sampleRates();
+        return outputRate;
+    }
+
+    @Override
+    public String getCompression() {
+
+        TunnelCompression compression = tunnel.getCompression();
+        if (compression == null)
+            return null;
+
+        return compression.getName();
+
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return tunnel.getCompressionRatio();
+    }
+
+    @Override
+    public long getAverageBatchSize() {
+        return tunnel.getBatcher().getAverageBatchSize();
+    }
+
+    @Override
+    public long getRoundTripTime() {
+        return tunnel.getBatcher().getRoundTripTime();
+    }
+
+    @Override
+    public long getLag() {
+        return tunnel.getLagTracker().getLag();
+    }
+
+    @Override
+    public long getDroppedInstructions() {
+        return tunnel.getLagTracker().getDroppedInstructions();
+    }
+
+    @Override
+    public long getBufferedBytes() {
+
+        // Only relayed sockets buffer data
+        GuacamoleSocket socket = tunnel.getSocket();
+        if (socket instanceof NioGuacamoleSocket)
+            return ((NioGuacamoleSocket) socket).getBufferedBytes();
+
+        return 0;
+
+    }
+
+    @Override
+    public long getThrottledTime() {
+
+        // Only relayed sockets are throttled
+        GuacamoleSocket socket = tunnel.getSocket();
+        if (socket instanceof NioGuacamoleSocket)
+            return ((NioGuacamoleSocket) socket).getThrottledTime();
+
+        return 0;
+
+    }
+
+    @Override
+    public long getRecordedBytes() {
+
+        SessionRecording recording = tunnel.getRecording();
+        if (recording != null)
+            return recording.getRecordedBytes();
+
+        return 0;
+
+    }
+
+    @Override
+    public long getRecordingDroppedBytes() {
+
+        SessionRecording recording = tunnel.getRecording();
+        if (recording != null)
+            return recording.getDroppedBytes();
+
+        return 0;
+
+    }
+
+    @Override
+    public String toString() {
+        return "in " + inputBytes.get() + " bytes (" + inputInstructions.get()
+                + " instructions), out " + outputBytes.get() + " bytes ("
+                + outputInstructions.get() + " instructions)";
+    }
+
+}
@@ -0,0 +1,247 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Management interface exposing the traffic and other details of a single
+ * open tunnel.
+ *
+ * @author Michael Jumper
+ */
+public interface TunnelStatisticsMXBean {
+
+    /**
+     * Returns the UUID of the tunnel.
+     *
+     * @return The UUID of the tunnel, as a string.
+     */
+    public String getUUID();
+
+    /**
+     * Returns the name of the user that opened the tunnel.
+     *
+     * @return The name of the user, or null if not known.
+     */
+    public String getUsername();
+
+    /**
+     * Returns the ID of the configuration the tunnel is connected to.
+     *
+     * @return The ID of the configuration, or null if not known.
+     */
+    public String getConnectionId();
+
+    /**
+     * Returns the protocol of the configuration the tunnel is connected to.
+     *
+     * @return The protocol of the connection, or null if not known.
+     */
+    public String getProtocol();
+
+    /**
+     * Returns the address of the client that opened the tunnel.
+     *
+     * @return The address of the client, or null if not known.
+     */
+    public String getRemoteAddress();
+
+    /**
+     * Returns the address of the guacd the tunnel is connected through.
+     *
+     * @return The address of guacd, or null if not known.
+     */
+    public String getGuacdEndpoint();
+
+    /**
+     * Returns the UUID of the shared tunnel the tunnel is viewing. Viewers
+     * receive the output of the shared tunnel, but their input is ignored.
+     *
+     * @return The UUID of the shared tunnel, or null if the tunnel is not a
+     *         viewer.
+     */
+    public String getSharedTunnel();
+
+    /**
+     * Returns the time the tunnel was created.
+     *
+     * @return The creation time of the tunnel, in milliseconds since the
+     *         epoch.
+     */
+    public long getCreationTime();
+
+    /**
+     * Returns the time data last passed through the tunnel in either
+     * direction.
+     *
+     * @return The time of the last activity on the tunnel, in milliseconds
+     *         since the epoch.
+     */
+    public long getLastActivityTime();
+
+    /**
+     * Returns whether the handshake with guacd was sent in a single write,
+     * without waiting for guacd to request its arguments.
+     *
+     * @return true if the handshake was pipelined, false otherwise.
+     */
+    public boolean isHandshakePipelined();
+
+    /**
+     * Returns the duration of the handshake with guacd.
+     *
+     * @return The duration of the handshake, in milliseconds, or 0 if the
+     *         tunnel did not perform a handshake.
+     */
+    public double getHandshakeTime();
+
+    /**
+     * Returns the time between the tunnel being requested and its first
+     * output being sent to the client.
+     *
+     * @return The connect latency in milliseconds, or -1 if no output has
+     *         been sent yet.
+     */
+    public long getConnectLatency();
+
+    /**
+     * Returns the number of bytes received from the client.
+     *
+     * @return The number of bytes received from the client.
+     */
+    public long getInputBytes();
+
+    /**
+     * Returns the number of instructions received from the client.
+     *
+     * @return The number of instructions received from the client.
+     */
+    public long getInputInstructions();
+
+    /**
+     * Returns the number of bytes sent to the client.
+     *
+     * @return The number of bytes sent to the client, before compression.
+     */
+    public long getOutputBytes();
+
+    /**
+     * Returns the number of instructions sent to the client.
+     *
+     * @return The number of instructions sent to the client.
+     */
+    public long getOutputInstructions();
+
+    /**
+     * Returns the recent rate at which data has been received from the
+     * client.
+     *
+     * @return The number of bytes received per second.
+     */
+    public long getInputRate();
+
+    /**
+     * Returns the recent rate at which data has been sent to the client.
+     *
+     * @return The number of bytes sent per second, before compression.
+     */
+    public long getOutputRate();
+
+    /**
+     * Returns the name of the method used to compress output of the tunnel.
+     *
+     * @return The name of the compression method, or null if output is not
+     *         compressed.
+     */
+    public String getCompression();
+
+    /**
+     * Returns the ratio of the size of compressed output before compression
+     * to its size after compression.
+     *
+     * @return The compression ratio, or 0 if no output has been compressed.
+     */
+    public double getCompressionRatio();
+
+    /**
+     * Returns the average size of each batch of output flushed to the
+     * client.
+     *
+     * @return The average batch size, in bytes.
+     */
+    public long getAverageBatchSize();
+
+    /**
+     * Returns the smoothed round-trip time of the client.
+     *
+     * @return The round-trip time in milliseconds, or -1 if not yet
+     *         measured.
+     */
+    public long getRoundTripTime();
+
+    /**
+     * Returns how far the client has fallen behind, as the time between the
+     * last frame sent and the last frame the client has acknowledged.
+     *
+     * @return The lag of the client, in milliseconds.
+     */
+    public long getLag();
+
+    /**
+     * Returns the number of instructions not sent to the client because it
+     * had fallen too far behind.
+     *
+     * @return The number of instructions dropped.
+     */
+    public long getDroppedInstructions();
+
+    /**
+     * Returns the number of bytes received from guacd but not yet sent to
+     * the client.
+     *
+     * @return The number of bytes buffered, or 0 if data is not buffered.
+     */
+    public long getBufferedBytes();
+
+    /**
+     * Returns the total time reading from guacd has been stopped because
+     * too much data was waiting to be sent to the client.
+     *
+     * @return The total time spent throttled, in milliseconds.
+     */
+    public long getThrottledTime();
+
+    /**
+     * Returns the number of bytes of output written to the recording of the
+     * tunnel.
+     *
+     * @return The number of bytes recorded, or 0 if the tunnel is not
+     *         recorded.
+     */
+    public long getRecordedBytes();
+
+    /**
+     * Returns the number of bytes of output which could not be recorded
+     * because the disk did not keep up.
+     *
+     * @return The number of bytes not recorded, or 0 if the tunnel is not
+     *         recorded.
+     */
+    public long getRecordingDroppedBytes();
+
+}
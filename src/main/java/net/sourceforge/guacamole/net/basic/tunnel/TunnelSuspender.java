@@ -0,0 +1,124 @@
+package net.sourceforge.guacamole.net.basic.tunnel;
+
+/*
+ *  Guacamole - Clientless Remote Desktop
+ *  Copyright (C) 2010  Michael Jumper
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import net.sourceforge.guacamole.GuacamoleException;
+import net.sourceforge.guacamole.net.basic.concurrent.GuacamoleThreads;
+import net.sourceforge.guacamole.servlet.GuacamoleSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps tunnels whose client connection failed open for a grace period,
+ * such that the client may resume them, closing those which are not resumed
+ * in time.
+ *
+ * @author Michael Jumper
+ */
+public class TunnelSuspender {
+
+    private Logger logger = LoggerFactory.getLogger(TunnelSuspender.class);
+
+    /**
+     * The default number of milliseconds a suspended tunnel remains open.
+     */
+    public static final int DEFAULT_TIMEOUT = 15000;
+
+    /**
+     * The number of milliseconds a suspended tunnel remains open.
+     */
+    private final int timeout;
+
+    /**
+     * The executor closing tunnels which are not resumed in time.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Creates a new TunnelSuspender which keeps suspended tunnels open for
+     * the given number of milliseconds.
+     *
+     * @param timeout The number of milliseconds a suspended tunnel remains
+     *                open.
+     */
+    public TunnelSuspender(int timeout) {
+        this.timeout = timeout;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                GuacamoleThreads.newThreadFactory("tunnel-suspender"));
+    }
+
+    /**
+     * Attempts to suspend the given tunnel after its client connection
+     * failed. Tunnels which cannot be resumed are not suspended.
+     *
+     * @param session The session the tunnel is attached to.
+     * @param tunnel The tunnel to suspend.
+     * @return true if the tunnel was suspended and should remain open, false
+     *         if the tunnel should be closed.
+     */
+    public boolean suspend(final GuacamoleSession session,
+            final BasicGuacamoleTunnel tunnel) {
+
+        if (tunnel.getReplayBuffer() == null || !tunnel.isOpen())
+            return false;
+
+        final long suspended = tunnel.suspend();
+        logger.debug("Tunnel {} suspended.", tunnel.getUUID());
+
+        executor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                // Ignore if resumed, even if since suspended again
+                if (tunnel.getSuspendedSince() != suspended)
+                    return;
+
+                logger.info("Tunnel {} not resumed within {} ms. Closing.",
+                        tunnel.getUUID(), timeout);
+
+                session.detachTunnel(tunnel);
+
+                try {
+                    tunnel.close(TunnelCloseReason.NOT_RESUMED);
+                }
+                catch (GuacamoleException e) {
+                    logger.debug("Error closing suspended tunnel.", e);
+                }
+
+            }
+
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        return true;
+
+    }
+
+    /**
+     * Stops closing suspended tunnels. Tunnels still suspended remain open
+     * until otherwise closed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
@@ -19,6 +19,7 @@ package net.sourceforge.guacamole.net.basic.xml.user_mapping;
  */
 
 import net.sourceforge.guacamole.net.basic.auth.Authorization;
+import net.sourceforge.guacamole.net.basic.auth.MappedConfiguration;
 import net.sourceforge.guacamole.net.basic.xml.TagHandler;
 import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
 import org.xml.sax.Attributes;
@@ -99,7 +100,7 @@ public class AuthorizeTagHandler implements TagHandler {
 
             // Create default config if it doesn't exist
             if (default_config == null) {
-                default_config = new GuacamoleConfiguration();
+                default_config = new MappedConfiguration();
                 authorization.addConfiguration("DEFAULT", default_config);
             }
 
@@ -111,7 +112,7 @@ public class AuthorizeTagHandler implements TagHandler {
 
             // Create default config if it doesn't exist
             if (default_config == null) {
-                default_config = new GuacamoleConfiguration();
+                default_config = new MappedConfiguration();
                 authorization.addConfiguration("DEFAULT", default_config);
             }
 
@@ -18,6 +18,7 @@ package net.sourceforge.guacamole.net.basic.xml.user_mapping;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import net.sourceforge.guacamole.net.basic.auth.MappedConfiguration;
 import net.sourceforge.guacamole.net.basic.xml.TagHandler;
 import net.sourceforge.guacamole.protocol.GuacamoleConfiguration;
 import org.xml.sax.Attributes;
@@ -33,7 +34,7 @@ public class ConnectionTagHandler implements TagHandler {
     /**
      * The GuacamoleConfiguration backing this tag handler.
      */
-    private GuacamoleConfiguration config = new GuacamoleConfiguration();
+    private GuacamoleConfiguration config = new MappedConfiguration();
     
     /**
      * The name associated with the connection being parsed.